@@ -76,11 +76,26 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AugmentedRealityActivity extends Activity implements View.OnTouchListener {
     private static final String TAG = AugmentedRealityActivity.class.getSimpleName();
+    /**
+     * Boolean intent extra enabling the camera pose prediction, off by default. E.g.
+     * {@code adb shell am start -n <package>/.AugmentedRealityActivity
+     * --ez predict_camera_pose true}.
+     */
+    public static final String EXTRA_PREDICT_CAMERA_POSE = "predict_camera_pose";
     private static final int INVALID_TEXTURE_ID = 0;
 
     private static final String CAMERA_PERMISSION = Manifest.permission.CAMERA;
     private static final int CAMERA_PERMISSION_CODE = 0;
 
+    // Expected time from the latest device pose to the display, and the longest extrapolation.
+    private static final double PREDICTION_DISPLAY_LATENCY = 0.033;
+    private static final double PREDICTION_MAX_HORIZON = 0.1;
+    private static final double PREDICTION_VELOCITY_SMOOTHING = 0.5;
+    // Camera frames older than this at display time, e.g. from before a reconnect, aren't moved.
+    private static final double PREDICTION_MAX_FRAME_AGE = 0.2;
+    // Every this many predicted frames the prediction error is logged.
+    private static final int PREDICTION_LOG_INTERVAL = 600;
+
     private SurfaceView mSurfaceView;
     private AugmentedRealityRenderer mRenderer;
     private Tango mTango;
@@ -96,6 +111,26 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
 
     private int mDisplayRotation = 0;
 
+    // Renders the camera with the device pose predicted at display time instead of the color
+    // camera frame time, see EXTRA_PREDICT_CAMERA_POSE. The scene is then rendered continuously
+    // instead of once per camera frame, and the Earth lags less behind head motion on high refresh
+    // displays, at the cost of moving slightly against the camera image.
+    private boolean mIsCameraPosePredicted;
+    private final PosePredictor mPosePredictor =
+            new PosePredictor(PREDICTION_MAX_HORIZON, PREDICTION_VELOCITY_SMOOTHING);
+    // Color camera pose and start of service T device pose at the latest camera frame.
+    private TangoPoseData mCameraPoseGlThread;
+    private TangoPoseData mDevicePoseGlThread;
+    private final TangoPoseData mPredictedCameraPoseGlThread = new TangoPoseData();
+    private long mPredictedFrameCountGlThread;
+    // Scratch space of predictCameraPose, so prediction doesn't allocate on each frame.
+    private final double[] mFromTranslationGlThread = new double[3];
+    private final double[] mFromRotationGlThread = new double[4];
+    private final double[] mToTranslationGlThread = new double[3];
+    private final double[] mToRotationGlThread = new double[4];
+    private final double[] mDeltaRotationGlThread = new double[4];
+    private final double[] mDeltaTranslationGlThread = new double[3];
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -103,6 +138,7 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         mSurfaceView = (SurfaceView) findViewById(R.id.surfaceview);
         mSurfaceView.setOnTouchListener(this);
         mRenderer = new AugmentedRealityRenderer(this);
+        mIsCameraPosePredicted = getIntent().getBooleanExtra(EXTRA_PREDICT_CAMERA_POSE, false);
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
@@ -230,13 +266,19 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
      * Listen to updates from the RGB camera.
      */
     private void startupTango() {
-        // No need to add any coordinate frame pairs since we aren't using pose data from callbacks.
+        // The device pose stream is only needed to predict the camera pose.
         ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
+        if (mIsCameraPosePredicted) {
+            framePairs.add(new TangoCoordinateFramePair(
+                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                    TangoPoseData.COORDINATE_FRAME_DEVICE));
+        }
+        mPosePredictor.reset();
 
         mTango.connectListener(framePairs, new OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(TangoPoseData pose) {
-                // We are not using onPoseAvailable for this app.
+                mPosePredictor.add(pose);
             }
 
             @Override
@@ -265,8 +307,9 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                     // the RGB camera driver.
                     // If you need to render at a higher rate (i.e., if you want to render complex
                     // animations smoothly) you  can use RENDERMODE_CONTINUOUSLY throughout the
-                    // application lifecycle.
-                    if (mSurfaceView.getRenderMode() != GLSurfaceView.RENDERMODE_WHEN_DIRTY) {
+                    // application lifecycle, as the camera pose prediction does.
+                    if (!mIsCameraPosePredicted && mSurfaceView.getRenderMode()
+                            != GLSurfaceView.RENDERMODE_WHEN_DIRTY) {
                         mSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
                     }
 
@@ -343,6 +386,16 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                                 // Update the camera pose from the renderer
                                 mRenderer.updateRenderCameraPose(lastFramePose);
                                 mCameraPoseTimestamp = lastFramePose.timestamp;
+                                if (mIsCameraPosePredicted) {
+                                    mCameraPoseGlThread = lastFramePose;
+                                    mDevicePoseGlThread = TangoSupport.getPoseAtTime(
+                                            mRgbTimestampGlThread,
+                                            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                            TangoPoseData.COORDINATE_FRAME_DEVICE,
+                                            TangoSupport.ENGINE_TANGO,
+                                            TangoSupport.ENGINE_TANGO,
+                                            TangoSupport.ROTATION_IGNORED);
+                                }
                             } else {
                                 // When the pose status is not valid, it indicates the tracking has
                                 // been lost. In this case, we simply stop rendering.
@@ -353,6 +406,17 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                                         mRgbTimestampGlThread);
                             }
                         }
+
+                        // Move the camera to the predicted pose on every rendered frame, not only
+                        // on new camera frames.
+                        if (mIsCameraPosePredicted && mCameraPoseGlThread != null
+                                && predictCameraPose(mCameraPoseGlThread, mDevicePoseGlThread,
+                                mPredictedCameraPoseGlThread)) {
+                            mRenderer.updateRenderCameraPose(mPredictedCameraPoseGlThread);
+                            if (++mPredictedFrameCountGlThread % PREDICTION_LOG_INTERVAL == 0) {
+                                Log.d(TAG, "Pose prediction " + mPosePredictor);
+                            }
+                        }
                     }
 
                     // Avoid crashing the application due to unhandled exceptions.
@@ -417,6 +481,57 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         return m;
     }
 
+    /**
+     * Moves an OpenGL camera pose by the device motion between its timestamp and the expected
+     * display time, as predicted from the pose stream.
+     *
+     * @param cameraPose OpenGL world T OpenGL camera pose, as queried for rendering.
+     * @param devicePose Start of service T device pose at the same time, in Tango convention.
+     * @param out        The predicted pose.
+     * @return Whether there is a prediction; the output is unchanged otherwise.
+     */
+    private boolean predictCameraPose(TangoPoseData cameraPose, TangoPoseData devicePose,
+                                      TangoPoseData out) {
+        double[] fromTranslation = mFromTranslationGlThread;
+        double[] fromRotation = mFromRotationGlThread;
+        double[] toTranslation = mToTranslationGlThread;
+        double[] toRotation = mToRotationGlThread;
+        double displayTimestamp = mPosePredictor.getLatestTimestamp() + PREDICTION_DISPLAY_LATENCY;
+        if (devicePose.statusCode != TangoPoseData.POSE_VALID
+                || displayTimestamp - devicePose.timestamp > PREDICTION_MAX_FRAME_AGE
+                || !mPosePredictor.predict(displayTimestamp, toTranslation, toRotation)) {
+            return false;
+        }
+        System.arraycopy(devicePose.translation, 0, fromTranslation, 0, 3);
+        System.arraycopy(devicePose.rotation, 0, fromRotation, 0, 4);
+
+        // Device motion in start of service frame: delta = to * inverse(from).
+        double[] delta = mDeltaRotationGlThread;
+        PosePredictor.conjugate(fromRotation);
+        PosePredictor.multiply(toRotation, fromRotation, delta);
+        double[] deltaTranslation = mDeltaTranslationGlThread;
+        PosePredictor.rotate(delta, fromTranslation, deltaTranslation);
+        for (int i = 0; i < 3; i++) {
+            deltaTranslation[i] = toTranslation[i] - deltaTranslation[i];
+        }
+        // The same motion in OpenGL world, whose Y is Tango Z and Z is Tango -Y.
+        double y = delta[1];
+        delta[1] = delta[2];
+        delta[2] = -y;
+        y = deltaTranslation[1];
+        deltaTranslation[1] = deltaTranslation[2];
+        deltaTranslation[2] = -y;
+
+        PosePredictor.multiply(delta, cameraPose.rotation, out.rotation);
+        PosePredictor.rotate(delta, cameraPose.translation, out.translation);
+        for (int i = 0; i < 3; i++) {
+            out.translation[i] += deltaTranslation[i];
+        }
+        out.timestamp = displayTimestamp;
+        out.statusCode = TangoPoseData.POSE_VALID;
+        return true;
+    }
+
     /**
      * Set the color camera background texture rotation and save the camera to display rotation.
      */
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+/**
+ * Allocation-free versions of the {@link ScenePoseCalculator} transformations, for code that
+ * runs on every frame.
+ * <p/>
+ * Matrices are column-major {@code double[16]}, as in Rajawali's {@code Matrix4}. Quaternions
+ * are {@code double[4]} in x, y, z, w order, as in {@link TangoPoseData#rotation}. All results
+ * are written into caller-owned arrays; an output matrix may be the same array as the first
+ * operand.
+ */
+public final class PoseMath {
+    /**
+     * @see ScenePoseCalculator#OPENGL_T_TANGO_WORLD
+     */
+    static final double[] OPENGL_T_TANGO_WORLD = new double[]{
+            1, 0,  0, 0,
+            0, 0, -1, 0,
+            0, 1,  0, 0,
+            0, 0,  0, 1
+    };
+
+    static final double[] COLOR_CAMERA_T_OPENGL_CAMERA = new double[]{
+            1,  0,  0, 0,
+            0, -1,  0, 0,
+            0,  0, -1, 0,
+            0,  0,  0, 1
+    };
+
+    static final double[] ROTATION_270_T_DEFAULT = new double[]{
+             0, 1, 0, 0,
+            -1, 0, 0, 0,
+             0, 0, 0, 0,
+             0, 0, 0, 1
+    };
+
+    static final double[] ROTATION_180_T_DEFAULT = new double[]{
+            -1,  0, 0, 0,
+             0, -1, 0, 0,
+             0,  0, 1, 0,
+             0,  0, 0, 1
+    };
+
+    static final double[] ROTATION_90_T_DEFAULT = new double[]{
+            0, -1, 0, 0,
+            1,  0, 0, 0,
+            0,  0, 1, 0,
+            0,  0, 0, 1
+    };
+
+    static final double[] ROTATION_0_T_DEFAULT = new double[]{
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1
+    };
+
+    static final double[] DEPTH_CAMERA_T_OPENGL_CAMERA = new double[]{
+            1,  0,  0, 0,
+            0, -1,  0, 0,
+            0,  0, -1, 0,
+            0,  0,  0, 1
+    };
+
+    /**
+     * Avoid instantiating the class since it will only be used statically.
+     */
+    private PoseMath() {
+    }
+
+    /**
+     * Converts a Tango pose to a transformation matrix.
+     */
+    public static void tangoPoseToMatrix(TangoPoseData tangoPose, double[] out) {
+        fromTranslationRotation(tangoPose.translation, tangoPose.rotation, out);
+    }
+
+    /**
+     * Builds a transformation matrix from a translation and a Hamilton (right-handed) rotation
+     * quaternion in x, y, z, w order.
+     */
+    public static void fromTranslationRotation(double[] translation, double[] rotation,
+                                               double[] out) {
+        double x = rotation[0];
+        double y = rotation[1];
+        double z = rotation[2];
+        double w = rotation[3];
+        double xx = x * x;
+        double yy = y * y;
+        double zz = z * z;
+        double xy = x * y;
+        double xz = x * z;
+        double yz = y * z;
+        double wx = w * x;
+        double wy = w * y;
+        double wz = w * z;
+
+        out[0] = 1 - 2 * (yy + zz);
+        out[1] = 2 * (xy + wz);
+        out[2] = 2 * (xz - wy);
+        out[3] = 0;
+        out[4] = 2 * (xy - wz);
+        out[5] = 1 - 2 * (xx + zz);
+        out[6] = 2 * (yz + wx);
+        out[7] = 0;
+        out[8] = 2 * (xz + wy);
+        out[9] = 2 * (yz - wx);
+        out[10] = 1 - 2 * (xx + yy);
+        out[11] = 0;
+        out[12] = translation[0];
+        out[13] = translation[1];
+        out[14] = translation[2];
+        out[15] = 1;
+    }
+
+    /**
+     * Computes {@code out = a * b}. {@code out} may be {@code a} but not {@code b}.
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        // Row by row, so that a row of a is read completely before it is overwritten.
+        for (int row = 0; row < 4; row++) {
+            double a0 = a[row];
+            double a1 = a[row + 4];
+            double a2 = a[row + 8];
+            double a3 = a[row + 12];
+            for (int column = 0; column < 16; column += 4) {
+                out[row + column] = a0 * b[column] + a1 * b[column + 1] + a2 * b[column + 2]
+                        + a3 * b[column + 3];
+            }
+        }
+    }
+
+    /**
+     * Computes {@code out = OPENGL_T_TANGO_WORLD * tangoWorldTFrame}. {@code out} may be
+     * {@code tangoWorldTFrame}.
+     */
+    public static void toOpenGlWorld(double[] tangoWorldTFrame, double[] out) {
+        // OpenGL Y is Tango Z and OpenGL Z is Tango -Y.
+        for (int column = 0; column < 16; column += 4) {
+            double y = tangoWorldTFrame[column + 1];
+            out[column] = tangoWorldTFrame[column];
+            out[column + 1] = tangoWorldTFrame[column + 2];
+            out[column + 2] = -y;
+            out[column + 3] = tangoWorldTFrame[column + 3];
+        }
+    }
+
+    /**
+     * Computes {@code out = m * ROTATION_X_T_DEFAULT} for the given screen rotation index.
+     *
+     * @see ScenePoseCalculator#toOpenGLPoseWithScreenRotation
+     */
+    public static void applyScreenRotation(double[] m, int rotationIndex, double[] out) {
+        switch (rotationIndex) {
+            case 1:
+                multiply(m, ROTATION_90_T_DEFAULT, out);
+                break;
+            case 2:
+                multiply(m, ROTATION_180_T_DEFAULT, out);
+                break;
+            case 3:
+                multiply(m, ROTATION_270_T_DEFAULT, out);
+                break;
+            default:
+                multiply(m, ROTATION_0_T_DEFAULT, out);
+                break;
+        }
+    }
+
+    /**
+     * Given a pose in start of service or area description frame, calculates the transform of
+     * the corresponding 3D object in the OpenGL world.
+     */
+    public static void toOpenGlPose(TangoPoseData tangoPose, double[] out) {
+        tangoPoseToMatrix(tangoPose, out);
+        toOpenGlWorld(out, out);
+    }
+
+    /**
+     * Same as {@link #toOpenGlPose}, taking into account the screen rotation.
+     */
+    public static void toOpenGlPoseWithScreenRotation(TangoPoseData tangoPose, int rotationIndex,
+                                                      double[] out) {
+        toOpenGlPose(tangoPose, out);
+        applyScreenRotation(out, rotationIndex, out);
+    }
+
+    /**
+     * Given the device pose in start of service frame, calculates the transform of the OpenGL
+     * scene camera in the OpenGL world.
+     *
+     * @param deviceTColorCamera Device T color camera extrinsics, as in
+     *                           {@link DeviceExtrinsics#getDeviceTColorCamera()}.
+     */
+    public static void toOpenGlCameraPose(TangoPoseData devicePose, double[] deviceTColorCamera,
+                                          double[] out) {
+        toOpenGlPose(devicePose, out);
+        multiply(out, deviceTColorCamera, out);
+        multiply(out, COLOR_CAMERA_T_OPENGL_CAMERA, out);
+    }
+
+    /**
+     * Given the device pose in start of service frame, calculates the transform of the depth
+     * sensor in the OpenGL world.
+     *
+     * @param deviceTDepthCamera Device T depth camera extrinsics, as in
+     *                           {@link DeviceExtrinsics#getDeviceTDepthCamera()}.
+     */
+    public static void toDepthCameraOpenGlPose(TangoPoseData devicePose,
+                                               double[] deviceTDepthCamera, double[] out) {
+        toOpenGlPose(devicePose, out);
+        multiply(out, deviceTDepthCamera, out);
+    }
+
+    /**
+     * Extracts the position and the Rajawali orientation from a transformation matrix, as in
+     * {@link ScenePoseCalculator#matrixToPose}.
+     *
+     * @param outPosition    Position as x, y, z.
+     * @param outOrientation Orientation as x, y, z, w, using Rajawali's left-handed convention.
+     */
+    public static void matrixToPose(double[] m, double[] outPosition, double[] outOrientation) {
+        outPosition[0] = m[12];
+        outPosition[1] = m[13];
+        outPosition[2] = m[14];
+        getRotation(m, outOrientation);
+        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
+        conjugate(outOrientation);
+    }
+
+    /**
+     * Extracts the Hamilton rotation quaternion, in x, y, z, w order, of a transformation
+     * matrix.
+     */
+    public static void getRotation(double[] m, double[] out) {
+        double m00 = m[0];
+        double m11 = m[5];
+        double m22 = m[10];
+        double trace = m00 + m11 + m22;
+        if (trace >= 0) {
+            double s = Math.sqrt(trace + 1);
+            out[3] = 0.5 * s;
+            s = 0.5 / s;
+            out[0] = (m[6] - m[9]) * s;
+            out[1] = (m[8] - m[2]) * s;
+            out[2] = (m[1] - m[4]) * s;
+        } else if (m00 > m11 && m00 > m22) {
+            double s = Math.sqrt(1 + m00 - m11 - m22);
+            out[0] = 0.5 * s;
+            s = 0.5 / s;
+            out[1] = (m[1] + m[4]) * s;
+            out[2] = (m[8] + m[2]) * s;
+            out[3] = (m[6] - m[9]) * s;
+        } else if (m11 > m22) {
+            double s = Math.sqrt(1 + m11 - m00 - m22);
+            out[1] = 0.5 * s;
+            s = 0.5 / s;
+            out[0] = (m[1] + m[4]) * s;
+            out[2] = (m[6] + m[9]) * s;
+            out[3] = (m[8] - m[2]) * s;
+        } else {
+            double s = Math.sqrt(1 + m22 - m00 - m11);
+            out[2] = 0.5 * s;
+            s = 0.5 / s;
+            out[0] = (m[8] + m[2]) * s;
+            out[1] = (m[6] + m[9]) * s;
+            out[3] = (m[1] - m[4]) * s;
+        }
+    }
+
+    /**
+     * Conjugates a quaternion in x, y, z, w order in place.
+     */
+    public static void conjugate(double[] q) {
+        q[0] = -q[0];
+        q[1] = -q[1];
+        q[2] = -q[2];
+    }
+
+    /**
+     * Copies a matrix to single precision, e.g. for OpenGL uniforms.
+     */
+    public static void toFloat(double[] m, float[] out) {
+        for (int i = 0; i < 16; i++) {
+            out[i] = (float) m[i];
+        }
+    }
+}
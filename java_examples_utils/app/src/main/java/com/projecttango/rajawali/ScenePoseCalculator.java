@@ -22,6 +22,13 @@ import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
 
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Convenience class for calculating transformations from the Tango world to the OpenGL world
  * using Rajawali-specific classes and conventions.
@@ -29,74 +36,51 @@ import org.rajawali3d.math.vector.Vector3;
 public final class ScenePoseCalculator {
     private static final String TAG = ScenePoseCalculator.class.getSimpleName();
 
+    // Points copied per bulk buffer access in transformPoints.
+    private static final int TRANSFORM_BATCH_POINTS = 256;
+    // Minimum number of points per parallel task in transformPoints.
+    private static final int MIN_POINTS_PER_TRANSFORM_TASK = 8192;
+
     /**
      * Transformation from the Tango Area Description or Start of Service coordinate frames
      * to the OpenGL coordinate frame.
      * NOTE: Rajawali uses column-major for matrices.
      */
-    public static final Matrix4 OPENGL_T_TANGO_WORLD = new Matrix4(new double[]{
-            1, 0,  0, 0,
-            0, 0, -1, 0,
-            0, 1,  0, 0,
-            0, 0,  0, 1
-    });
+    public static final Matrix4 OPENGL_T_TANGO_WORLD =
+            new Matrix4(PoseMath.OPENGL_T_TANGO_WORLD);
 
     /**
      *  Transformation from the Tango RGB camera coordinate frame to the OpenGL camera frame.
      */
-    public static final Matrix4 COLOR_CAMERA_T_OPENGL_CAMERA = new Matrix4(new double[]{
-            1,  0,  0, 0,
-            0, -1,  0, 0,
-            0,  0, -1, 0,
-            0,  0,  0, 1
-    });
+    public static final Matrix4 COLOR_CAMERA_T_OPENGL_CAMERA =
+            new Matrix4(PoseMath.COLOR_CAMERA_T_OPENGL_CAMERA);
 
     /**
      *  Transformation for device rotation on 270 degrees.
      */
-    public static final Matrix4 ROTATION_270_T_DEFAULT = new Matrix4(new double[]{
-             0, 1, 0, 0,
-            -1, 0, 0, 0,
-             0, 0, 0, 0,
-             0, 0, 0, 1
-    });
+    public static final Matrix4 ROTATION_270_T_DEFAULT =
+            new Matrix4(PoseMath.ROTATION_270_T_DEFAULT);
 
     /**
      *  Transformation for device rotation on 180 degrees.
      */
-    public static final Matrix4 ROTATION_180_T_DEFAULT = new Matrix4(new double[]{
-            -1,  0, 0, 0,
-             0, -1, 0, 0,
-             0,  0, 1, 0,
-             0,  0, 0, 1
-    });
+    public static final Matrix4 ROTATION_180_T_DEFAULT =
+            new Matrix4(PoseMath.ROTATION_180_T_DEFAULT);
 
     /**
      *  Transformation for device rotation on 90 degrees.
      */
-    public static final Matrix4 ROTATION_90_T_DEFAULT = new Matrix4(new double[]{
-            0, -1, 0, 0,
-            1,  0, 0, 0,
-            0,  0, 1, 0,
-            0,  0, 0, 1
-    });
+    public static final Matrix4 ROTATION_90_T_DEFAULT =
+            new Matrix4(PoseMath.ROTATION_90_T_DEFAULT);
 
     /**
      *  Transformation for device rotation on default orientation.
      */
-    public static final Matrix4 ROTATION_0_T_DEFAULT = new Matrix4(new double[]{
-            1, 0, 0, 0,
-            0, 1, 0, 0,
-            0, 0, 1, 0,
-            0, 0, 0, 1
-    });
-
-    public static final Matrix4 DEPTH_CAMERA_T_OPENGL_CAMERA = new Matrix4(new double[]{
-            1,  0,  0, 0,
-            0, -1,  0, 0,
-            0,  0, -1, 0,
-            0,  0,  0, 1
-    });
+    public static final Matrix4 ROTATION_0_T_DEFAULT =
+            new Matrix4(PoseMath.ROTATION_0_T_DEFAULT);
+
+    public static final Matrix4 DEPTH_CAMERA_T_OPENGL_CAMERA =
+            new Matrix4(PoseMath.DEPTH_CAMERA_T_OPENGL_CAMERA);
 
     /**
      * Up vector in the Tango start of Service and Area Description frame.
@@ -113,15 +97,9 @@ public final class ScenePoseCalculator {
      * Converts from TangoPoseData to a Matrix4 for transformations.
      */
     public static Matrix4 tangoPoseToMatrix(TangoPoseData tangoPose) {
-        Vector3 v = new Vector3(tangoPose.translation[0],
-                tangoPose.translation[1], tangoPose.translation[2]);
-        Quaternion q = new Quaternion(tangoPose.rotation[3], tangoPose.rotation[0],
-                tangoPose.rotation[1], tangoPose.rotation[2]);
-        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
-        q.conjugate();
-        Matrix4 m = new Matrix4();
-        m.setAll(v, new Vector3(1, 1, 1), q);
-        return m;
+        double[] m = new double[16];
+        PoseMath.tangoPoseToMatrix(tangoPose, m);
+        return new Matrix4(m);
     }
 
     /**
@@ -152,15 +130,14 @@ public final class ScenePoseCalculator {
      * Rajawali conventions.
      */
     public static Pose matrixToPose(Matrix4 m) {
-        // Get translation and rotation components from the transformation matrix.
-        Vector3 p = m.getTranslation();
-        Quaternion q = new Quaternion();
-        q.fromMatrix(m);
-
-        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
-        q.conjugate();
+        return matrixToPose(m.getDoubleValues());
+    }
 
-        return new Pose(p, q);
+    private static Pose matrixToPose(double[] m) {
+        double[] p = new double[3];
+        double[] q = new double[4];
+        PoseMath.matrixToPose(m, p, q);
+        return new Pose(new Vector3(p[0], p[1], p[2]), new Quaternion(q[3], q[0], q[1], q[2]));
     }
 
     /**
@@ -168,11 +145,8 @@ public final class ScenePoseCalculator {
      * position and orientation for a 3D object in the Rajawali world.
      */
     public static Pose toOpenGLPose(TangoPoseData tangoPose) {
-        Matrix4 startServiceTDevice = tangoPoseToMatrix(tangoPose);
-
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglWorldTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTDevice);
-
+        double[] openglWorldTDevice = new double[16];
+        PoseMath.toOpenGlPose(tangoPose, openglWorldTDevice);
         return matrixToPose(openglWorldTDevice);
     }
 
@@ -186,29 +160,8 @@ public final class ScenePoseCalculator {
      *                      http://developer.android.com/reference/android/view/Surface.html#ROTATION_0 // NO_LINT
      */
     public static Pose toOpenGLPoseWithScreenRotation(TangoPoseData tangoPose, int rotationIndex) {
-        Matrix4 startServiceTDevice = tangoPoseToMatrix(tangoPose);
-
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglWorldTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTDevice);
-
-        switch (rotationIndex) {
-            case 0:
-                openglWorldTDevice.multiply(ROTATION_0_T_DEFAULT);
-                break;
-            case 1:
-                openglWorldTDevice.multiply(ROTATION_90_T_DEFAULT);
-                break;
-            case 2:
-                openglWorldTDevice.multiply(ROTATION_180_T_DEFAULT);
-                break;
-            case 3:
-                openglWorldTDevice.multiply(ROTATION_270_T_DEFAULT);
-                break;
-            default:
-                openglWorldTDevice.multiply(ROTATION_0_T_DEFAULT);
-                break;
-        }
-
+        double[] openglWorldTDevice = new double[16];
+        PoseMath.toOpenGlPoseWithScreenRotation(tangoPose, rotationIndex, openglWorldTDevice);
         return matrixToPose(openglWorldTDevice);
     }
 
@@ -244,16 +197,9 @@ public final class ScenePoseCalculator {
      * position and orientation for a OpenGL Scene Camera in the Rajawali world.
      */
     public static Pose toOpenGlCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
-        Matrix4 startServiceTdevice = tangoPoseToMatrix(devicePose);
-
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTdevice);
-
-        // Get OpenGL camera pose in OpenGL world frame.
-        Matrix4 openglWorldTOpenglCamera =
-                openglTDevice.multiply(extrinsics.getDeviceTColorCamera()).
-                        multiply(COLOR_CAMERA_T_OPENGL_CAMERA);
-
+        double[] openglWorldTOpenglCamera = new double[16];
+        PoseMath.toOpenGlCameraPose(devicePose,
+                extrinsics.getDeviceTColorCamera().getDoubleValues(), openglWorldTOpenglCamera);
         return matrixToPose(openglWorldTOpenglCamera);
     }
 
@@ -263,16 +209,10 @@ public final class ScenePoseCalculator {
      */
     public static Pose toDepthCameraOpenGlPose(TangoPoseData devicePose,
                                                DeviceExtrinsics extrinsics) {
-        Matrix4 startServiceTdevice = tangoPoseToMatrix(devicePose);
-
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTdevice);
-
-        // Get OpenGL camera pose in OpenGL world frame.
-        Matrix4 openglWorldTOpenglCamera =
-                openglTDevice.multiply(extrinsics.getDeviceTDepthCamera());
-
-        return matrixToPose(openglWorldTOpenglCamera);
+        double[] openglWorldTDepthCamera = new double[16];
+        PoseMath.toDepthCameraOpenGlPose(devicePose,
+                extrinsics.getDeviceTDepthCamera().getDoubleValues(), openglWorldTDepthCamera);
+        return matrixToPose(openglWorldTDepthCamera);
     }
 
     /**
@@ -350,19 +290,231 @@ public final class ScenePoseCalculator {
             Vector3 inPoint,
             TangoPoseData deviceTPointFramePose,
             TangoPoseData startServiceTDevicePose) {
-        Matrix4 startServiceTDeviceMatrix = tangoPoseToMatrix(startServiceTDevicePose);
-        Matrix4 deviceTPointFrameMatrix = tangoPoseToMatrix(deviceTPointFramePose);
-        Matrix4 startServiceTDepthMatrix 
-                = startServiceTDeviceMatrix.multiply(deviceTPointFrameMatrix);
-
-        // Convert the depth point to a Matrix. 
-        Matrix4 inPointMatrix = new Matrix4();
-        inPointMatrix.setToTranslation(inPoint);
-
-        // Transform Point from depth frame to start of service frame to OpenGl world frame.
-        Matrix4 startServicePointMatrix = startServiceTDepthMatrix.multiply(inPointMatrix);
-        Matrix4 openGlWorldPointMatrix 
-                = OPENGL_T_TANGO_WORLD.clone().multiply(startServicePointMatrix);
-        return matrixToPose(openGlWorldPointMatrix).getPosition();
+        double[] openGlWorldTPointFrame = new double[16];
+        double[] deviceTPointFrame = new double[16];
+        PoseMath.tangoPoseToMatrix(startServiceTDevicePose, openGlWorldTPointFrame);
+        PoseMath.tangoPoseToMatrix(deviceTPointFramePose, deviceTPointFrame);
+        PoseMath.multiply(openGlWorldTPointFrame, deviceTPointFrame, openGlWorldTPointFrame);
+        PoseMath.toOpenGlWorld(openGlWorldTPointFrame, openGlWorldTPointFrame);
+
+        // Transform the point from its frame to the OpenGl world frame.
+        double[] m = openGlWorldTPointFrame;
+        return new Vector3(
+                m[0] * inPoint.x + m[4] * inPoint.y + m[8] * inPoint.z + m[12],
+                m[1] * inPoint.x + m[5] * inPoint.y + m[9] * inPoint.z + m[13],
+                m[2] * inPoint.x + m[6] * inPoint.y + m[10] * inPoint.z + m[14]);
+    }
+
+    /**
+     * Transforms a batch of points, e.g. a point cloud from depth camera to OpenGL world frame,
+     * without allocating per point.
+     * <p/>
+     * Points are read from {@code src} and written to {@code dst} starting at their current
+     * positions, which are not modified. Strides are in floats, 3 for XYZ and 4 for XYZC; when
+     * both strides are equal the components after XYZ, such as the confidence, are copied as is.
+     * <p/>
+     * {@code src} and {@code dst} may share storage as long as every point is written at or
+     * before where it is read, i.e. {@code dst} starts at or before {@code src} and
+     * {@code dstStride <= srcStride}. Other overlaps are rejected when the buffers are the same
+     * object or wrap the same array; overlapping views of direct memory can't be detected and
+     * must follow the same rule.
+     *
+     * @param transform Column-major 4x4 transform, as in {@link Matrix4} and Tango support.
+     */
+    public static void transformPoints(float[] transform, FloatBuffer src, int srcStride,
+                                       FloatBuffer dst, int dstStride, int numPoints) {
+        checkTransformArguments(src, srcStride, dst, dstStride, numPoints);
+        Integer shift = getOverlapShift(src, srcStride, dst, dstStride, numPoints);
+        if (shift != null && (shift > 0 || dstStride > srcStride)) {
+            throw new IllegalArgumentException(
+                    "Destination overwrites source points before they are read");
+        }
+        transformRange(transform, src, srcStride, dst, dstStride, 0, numPoints);
+    }
+
+    /**
+     * Same as {@link #transformPoints(float[], FloatBuffer, int, FloatBuffer, int, int)},
+     * splitting large batches in point ranges that run in parallel in {@code executor} and in
+     * the calling thread.
+     * <p/>
+     * The ranges are written in any order, so {@code src} and {@code dst} may only share storage
+     * for an in place transform, starting at the same point with equal strides. The call doesn't
+     * return before every range has stopped, even when interrupted; ranges that haven't started
+     * by then are skipped.
+     *
+     * @param parallelism Maximum number of ranges the batch is split into.
+     */
+    public static void transformPoints(final float[] transform, final FloatBuffer src,
+                                       final int srcStride, final FloatBuffer dst,
+                                       final int dstStride, int numPoints,
+                                       ExecutorService executor, int parallelism)
+            throws InterruptedException {
+        checkTransformArguments(src, srcStride, dst, dstStride, numPoints);
+        Integer shift = getOverlapShift(src, srcStride, dst, dstStride, numPoints);
+        if (shift != null && (shift != 0 || dstStride != srcStride)) {
+            throw new IllegalArgumentException(
+                    "Parallel transforms of shared storage must be in place");
+        }
+        int tasks = Math.max(1, Math.min(parallelism,
+                numPoints / MIN_POINTS_PER_TRANSFORM_TASK));
+        int perTask = (numPoints + tasks - 1) / tasks;
+        final TaskTracker tracker = new TaskTracker();
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        try {
+            for (int start = 0; start < numPoints; start += perTask) {
+                final int first = start;
+                final int last = Math.min(numPoints, start + perTask);
+                if (last == numPoints) {
+                    transformRange(transform, src, srcStride, dst, dstStride, first, last);
+                } else {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!tracker.begin()) {
+                                return;
+                            }
+                            try {
+                                transformRange(transform, src, srcStride, dst, dstStride, first,
+                                        last);
+                            } finally {
+                                tracker.end();
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Don't return while a range still writes the caller's buffer.
+            tracker.cancelAndWait();
+        }
+    }
+
+    /**
+     * Same as {@link #transformPoints(float[], FloatBuffer, int, FloatBuffer, int, int)} for a
+     * Rajawali transform.
+     */
+    public static void transformPoints(Matrix4 transform, FloatBuffer src, int srcStride,
+                                       FloatBuffer dst, int dstStride, int numPoints) {
+        transformPoints(transform.getFloatValues(), src, srcStride, dst, dstStride, numPoints);
+    }
+
+    private static void checkTransformArguments(FloatBuffer src, int srcStride, FloatBuffer dst,
+                                                int dstStride, int numPoints) {
+        if (srcStride < 3 || dstStride < 3) {
+            throw new IllegalArgumentException("Strides must be at least 3");
+        }
+        if (src.remaining() < srcStride * numPoints || dst.remaining() < dstStride * numPoints) {
+            throw new IllegalArgumentException("Buffers too small for " + numPoints + " points");
+        }
+    }
+
+    /**
+     * @return How many floats the points of {@code dst} start after those of {@code src} when
+     * they overlap in the same buffer or array, or null if they don't overlap or the overlap
+     * can't be detected.
+     */
+    private static Integer getOverlapShift(FloatBuffer src, int srcStride, FloatBuffer dst,
+                                           int dstStride, int numPoints) {
+        int shift;
+        if (src == dst) {
+            shift = 0;
+        } else if (src.hasArray() && dst.hasArray() && src.array() == dst.array()) {
+            shift = (dst.arrayOffset() + dst.position()) - (src.arrayOffset() + src.position());
+        } else {
+            return null;
+        }
+        boolean overlaps = shift >= 0 ? shift < srcStride * numPoints
+                : -shift < dstStride * numPoints;
+        return overlaps && numPoints > 0 ? shift : null;
+    }
+
+    /**
+     * Transforms the points in [first, last) through reusable batch arrays, so that the buffers
+     * are accessed in bulk and the inner loop only touches arrays.
+     */
+    private static void transformRange(float[] m, FloatBuffer src, int srcStride,
+                                       FloatBuffer dst, int dstStride, int first, int last) {
+        float m00 = m[0], m10 = m[1], m20 = m[2];
+        float m01 = m[4], m11 = m[5], m21 = m[6];
+        float m02 = m[8], m12 = m[9], m22 = m[10];
+        float m03 = m[12], m13 = m[13], m23 = m[14];
+        boolean copyExtra = srcStride == dstStride;
+        float[] in = new float[TRANSFORM_BATCH_POINTS * srcStride];
+        float[] out = copyExtra ? in : new float[TRANSFORM_BATCH_POINTS * dstStride];
+        // Private cursors; the callers' buffer positions stay untouched.
+        FloatBuffer source = src.duplicate();
+        FloatBuffer destination = dst.duplicate();
+        int srcBase = src.position();
+        int dstBase = dst.position();
+
+        for (int start = first; start < last; start += TRANSFORM_BATCH_POINTS) {
+            int count = Math.min(TRANSFORM_BATCH_POINTS, last - start);
+            source.position(srcBase + start * srcStride);
+            source.get(in, 0, count * srcStride);
+            if (!copyExtra) {
+                // Keep what is already in the destination after XYZ.
+                destination.position(dstBase + start * dstStride);
+                destination.get(out, 0, count * dstStride);
+            }
+            for (int i = 0, s = 0, d = 0; i < count; i++, s += srcStride, d += dstStride) {
+                float x = in[s];
+                float y = in[s + 1];
+                float z = in[s + 2];
+                out[d] = m00 * x + m01 * y + m02 * z + m03;
+                out[d + 1] = m10 * x + m11 * y + m12 * z + m13;
+                out[d + 2] = m20 * x + m21 * y + m22 * z + m23;
+            }
+            destination.position(dstBase + start * dstStride);
+            destination.put(out, 0, count * dstStride);
+        }
+    }
+
+    /**
+     * Tracks the ranges of a parallel transform running on the executor.
+     * <p/>
+     * Cancelling a future doesn't wait for its task, and ranges queued behind an interrupted call
+     * can still start later. Ranges register here instead, so the call can wait for those already
+     * running, and those starting late return right away.
+     */
+    private static class TaskTracker {
+        private int mRunningCount;
+        private boolean mIsCancelled;
+
+        synchronized boolean begin() {
+            if (mIsCancelled) {
+                return false;
+            }
+            mRunningCount++;
+            return true;
+        }
+
+        synchronized void end() {
+            mRunningCount--;
+            notifyAll();
+        }
+
+        /**
+         * Skips the ranges not started yet and waits for those running. Keeps the interrupted
+         * status of the calling thread.
+         */
+        synchronized void cancelAndWait() {
+            mIsCancelled = true;
+            boolean isInterrupted = false;
+            while (mRunningCount > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
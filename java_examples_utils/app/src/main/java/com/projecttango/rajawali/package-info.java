@@ -15,5 +15,8 @@
  */
 /**
  * Rajawali-specific code shared by the different samples.
+ * <p/>
+ * The samples don't build against this library; they keep copies of the classes they use. This
+ * code is built against Rajawali 1.0.325.
  */
 package com.projecttango.rajawali;
@@ -25,66 +25,369 @@ import org.rajawali3d.math.vector.Vector3;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Rajawali object showing the Trajectory of the Project Tango
  * device in 3D space. Points are added when the trajectory is updated by
  * passing translation data obtained from Tango Pose Data.
+ * <p/>
+ * The trajectory has no length limit. It is stored in line strip chunks of a fixed number of
+ * vertices, each with its own vertex buffer, and a new point only uploads its own vertex.
+ * Consecutive chunks share their boundary vertex so that the line is continuous.
+ * <p/>
+ * Points are simplified online: the latest vertex is replaced instead of kept when it lies within
+ * the tolerance of the segment from the vertex before it to the new point, so that a device
+ * standing still or walking straight adds no vertices. When there are more than the maximum
+ * number of full chunks, they are compacted by simplifying them again with a coarser tolerance.
+ * <p/>
+ * All methods must be called from the OpenGL thread.
  */
 public class Trajectory extends Object3D {
-    private static final int MAX_NUMBER_OF_VERTICES = 9000;
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    private static final int DEFAULT_MAX_CHUNKS = 64;
+    private static final float DEFAULT_TOLERANCE = 0.01f;
+    // Initial compaction tolerance, as a multiple of the simplification tolerance.
+    private static final float COMPACTION_TOLERANCE_FACTOR = 4;
+    // Points simplified away since the last kept vertex, which must all stay within the tolerance.
+    private static final int MAX_SKIPPED_POINTS = 256;
+
+    private final int mChunkSize;
+    private final int mMaxChunks;
+    private final float mTolerance;
+    // Doubled by each compaction that keeps more than half the maximum number of chunks.
+    private float mCompactionTolerance;
+    private final Material mMaterial;
+    // Indices 0 to chunk size - 1, shared by all chunks.
+    private final int[] mIndices;
+    private final List<Chunk> mChunks = new ArrayList<Chunk>();
+    private Chunk mCurrentChunk;
     private Vector3 mLastPoint = new Vector3();
-    private FloatBuffer mVertexBuffer;
-    private int mTrajectoryCount;
+    // Staging buffer for uploading one vertex; Geometry3D.changeBufferData uploads its data
+    // from position 0 to the given offset.
+    private final FloatBuffer mVertexBuffer;
+    private final float[] mSkippedPoints = new float[3 * MAX_SKIPPED_POINTS];
+    private int mSkippedCount;
 
-    public Trajectory(int color, float thickness) {
-        super();
-        init(true);
-        Material m = new Material();
-        m.setColor(color);
-        setMaterial(m);
-        mVertexBuffer = ByteBuffer
-                .allocateDirect(MAX_NUMBER_OF_VERTICES * Geometry3D.FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private long mPointCount;
+    private long mUploadedBytes;
 
+    public Trajectory(int color, float thickness) {
+        this(color, thickness, DEFAULT_TOLERANCE, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
     }
 
-    // Initialize the buffers for Trajectory primitive.
-    // Since only vertex and Index buffers are used, we only initialize them using setData call.
-    protected void init(boolean createVBOs) {
-        float[] vertices = new float[MAX_NUMBER_OF_VERTICES * 3];
-        int[] indices = new int[MAX_NUMBER_OF_VERTICES];
-        for (int i = 0; i < indices.length; ++i) {
-            indices[i] = i;
+    /**
+     * @param tolerance Distance in meters within which points are simplified away.
+     * @param chunkSize Number of vertices per chunk.
+     * @param maxChunks Number of chunks above which the older ones are compacted.
+     */
+    public Trajectory(int color, float thickness, float tolerance, int chunkSize,
+                      int maxChunks) {
+        super();
+        mTolerance = tolerance;
+        mCompactionTolerance = tolerance * COMPACTION_TOLERANCE_FACTOR;
+        mChunkSize = chunkSize;
+        mMaxChunks = maxChunks;
+        mMaterial = new Material();
+        mMaterial.setColor(color);
+        setMaterial(mMaterial);
+        mIndices = new int[chunkSize];
+        for (int i = 0; i < mIndices.length; ++i) {
+            mIndices[i] = i;
         }
-        setData(vertices, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                indices, GLES20.GL_STATIC_DRAW,
-                createVBOs);
+        mVertexBuffer = ByteBuffer.allocateDirect(3 * Geometry3D.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
     }
 
     // Update the geometry of the Trajectory once new vertex is available.
     public void addSegmentTo(Vector3 vertex) {
-        mVertexBuffer.position(mTrajectoryCount * 3);
-        mVertexBuffer.put((float) vertex.x);
-        mVertexBuffer.put((float) vertex.y);
-        mVertexBuffer.put((float) vertex.z);
-        mTrajectoryCount++;
+        mPointCount++;
         mLastPoint = vertex.clone();
-        mGeometry.setNumIndices(mTrajectoryCount);
-        mGeometry.getVertices().position(0);
-        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mVertexBuffer, 0,
-                mTrajectoryCount * 3);
-    }
+        float x = (float) vertex.x;
+        float y = (float) vertex.y;
+        float z = (float) vertex.z;
+        if (mCurrentChunk == null) {
+            mCurrentChunk = addChunk(new float[3 * mChunkSize], 0);
+            append(x, y, z);
+            return;
+        }
 
-    public void preRender() {
-        super.preRender();
-        setDrawingMode(GLES20.GL_LINE_STRIP);
+        // Replace the tip if it and the points it replaced are all within the tolerance of the
+        // segment from the last kept vertex to the new point.
+        Chunk chunk = mCurrentChunk;
+        int count = chunk.mCount;
+        if (count >= 2 && mSkippedCount < MAX_SKIPPED_POINTS) {
+            float[] v = chunk.mVertices;
+            int a = 3 * (count - 2);
+            int b = 3 * (count - 1);
+            boolean skip = distanceToSegment(v[b], v[b + 1], v[b + 2],
+                    v[a], v[a + 1], v[a + 2], x, y, z) < mTolerance;
+            for (int i = 0; skip && i < mSkippedCount; i++) {
+                skip = distanceToSegment(mSkippedPoints[3 * i], mSkippedPoints[3 * i + 1],
+                        mSkippedPoints[3 * i + 2], v[a], v[a + 1], v[a + 2], x, y, z)
+                        < mTolerance;
+            }
+            if (skip) {
+                System.arraycopy(v, b, mSkippedPoints, 3 * mSkippedCount, 3);
+                mSkippedCount++;
+                chunk.set(count - 1, x, y, z);
+                upload(chunk, count - 1);
+                return;
+            }
+        }
+        mSkippedCount = 0;
+        append(x, y, z);
     }
 
     public Vector3 getLastPoint() {
         return mLastPoint;
     }
+
+    /**
+     * @return Number of points added, before simplification.
+     */
+    public long getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * @return Number of vertices stored, after simplification.
+     */
+    public int getVertexCount() {
+        int count = 0;
+        for (Chunk chunk : mChunks) {
+            count += chunk.mCount;
+        }
+        return count;
+    }
+
+    public int getChunkCount() {
+        return mChunks.size();
+    }
+
+    /**
+     * @return Bytes held by the vertex and index buffers, in GPU and Java memory.
+     */
+    public long getMemoryBytes() {
+        long vertexBytes = 3L * mChunkSize * Geometry3D.FLOAT_SIZE_BYTES;
+        long indexBytes = (long) mChunkSize * Geometry3D.INT_SIZE_BYTES;
+        return mChunks.size() * (2 * vertexBytes + indexBytes) + indexBytes;
+    }
+
+    /**
+     * @return Total bytes uploaded to the GPU; the difference between two frames is the upload
+     * cost of that frame.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /**
+     * Appends a vertex, starting a new chunk from the current tip when the chunk is full.
+     */
+    private void append(float x, float y, float z) {
+        Chunk chunk = mCurrentChunk;
+        if (chunk.mCount == mChunkSize) {
+            float[] vertices = new float[3 * mChunkSize];
+            System.arraycopy(chunk.mVertices, 3 * (mChunkSize - 1), vertices, 0, 3);
+            chunk = addChunk(vertices, 1);
+            mCurrentChunk = chunk;
+            if (mChunks.size() > mMaxChunks) {
+                compact();
+            }
+        }
+        chunk.set(chunk.mCount, x, y, z);
+        chunk.mCount++;
+        chunk.getGeometry().setNumIndices(chunk.mCount);
+        upload(chunk, chunk.mCount - 1);
+    }
+
+    /**
+     * Creates a chunk after the existing ones.
+     */
+    private Chunk addChunk(float[] vertices, int count) {
+        Chunk chunk = newChunk(vertices, count);
+        mChunks.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * Uploads one vertex of a chunk.
+     */
+    private void upload(Chunk chunk, int index) {
+        Geometry3D geometry = chunk.getGeometry();
+        // Without resizing, changeBufferData only updates the GPU buffer. The geometry's own
+        // copy is what it uploads again when the OpenGL context is recreated, so keep it current.
+        FloatBuffer vertices = geometry.getVertices();
+        for (int i = 3 * index; i < 3 * index + 3; i++) {
+            vertices.put(i, chunk.mVertices[i]);
+        }
+        mVertexBuffer.position(0);
+        mVertexBuffer.put(chunk.mVertices, 3 * index, 3);
+        geometry.changeBufferData(geometry.getVertexBufferInfo(), mVertexBuffer, 3 * index, 3);
+        mUploadedBytes += 3 * Geometry3D.FLOAT_SIZE_BYTES;
+    }
+
+    /**
+     * Simplifies all full chunks with the compaction tolerance and stores the result in as few
+     * chunks as possible.
+     */
+    private void compact() {
+        int fullChunks = mChunks.size() - 1;
+        // The full chunks as one polyline, without the vertices shared between chunks.
+        float[] polyline = new float[3 * (fullChunks * (mChunkSize - 1) + 1)];
+        int length = 0;
+        for (int i = 0; i < fullChunks; i++) {
+            Chunk chunk = mChunks.get(i);
+            int first = i == 0 ? 0 : 1;
+            System.arraycopy(chunk.mVertices, 3 * first, polyline, 3 * length,
+                    3 * (chunk.mCount - first));
+            length += chunk.mCount - first;
+        }
+        boolean[] keep = new boolean[length];
+        int kept = simplify(polyline, length, mCompactionTolerance, keep);
+        if (kept > (mMaxChunks / 2) * (mChunkSize - 1)) {
+            mCompactionTolerance *= 2;
+        }
+
+        for (int i = 0; i < fullChunks; i++) {
+            Chunk chunk = mChunks.get(i);
+            removeChild(chunk);
+            chunk.destroy();
+        }
+        mChunks.subList(0, fullChunks).clear();
+
+        // Refill chunks, each starting with the last vertex of the previous one.
+        List<Chunk> compacted = new ArrayList<Chunk>();
+        float[] vertices = null;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            if (vertices == null || count == mChunkSize) {
+                float[] next = new float[3 * mChunkSize];
+                if (vertices != null) {
+                    System.arraycopy(vertices, 3 * (count - 1), next, 0, 3);
+                    compacted.add(newChunk(vertices, count));
+                    count = 1;
+                }
+                vertices = next;
+            }
+            System.arraycopy(polyline, 3 * i, vertices, 3 * count, 3);
+            count++;
+        }
+        compacted.add(newChunk(vertices, count));
+        mChunks.addAll(0, compacted);
+    }
+
+    /**
+     * Creates a chunk holding the given vertices, uploads all of its buffers and adds it to the
+     * scene.
+     */
+    private Chunk newChunk(float[] vertices, int count) {
+        Chunk chunk = new Chunk(vertices, count, mIndices, mMaterial);
+        mUploadedBytes += (3L * Geometry3D.FLOAT_SIZE_BYTES + Geometry3D.INT_SIZE_BYTES)
+                * mChunkSize;
+        addChild(chunk);
+        return chunk;
+    }
+
+    /**
+     * Douglas-Peucker simplification of a polyline, keeping both end points.
+     *
+     * @return Number of vertices kept.
+     */
+    private static int simplify(float[] v, int length, float tolerance, boolean[] keep) {
+        keep[0] = true;
+        keep[length - 1] = true;
+        int kept = length > 1 ? 2 : 1;
+        // Stack of ranges still to be simplified, as first and last index pairs.
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = length - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                float distance = distanceToSegment(v[3 * i], v[3 * i + 1], v[3 * i + 2],
+                        v[3 * first], v[3 * first + 1], v[3 * first + 2],
+                        v[3 * last], v[3 * last + 1], v[3 * last + 2]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0 || maxDistance < tolerance) {
+                continue;
+            }
+            keep[farthest] = true;
+            kept++;
+            if (top + 4 > stack.length) {
+                int[] grown = new int[2 * stack.length];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        return kept;
+    }
+
+    /**
+     * Distance from point p to the segment from a to b.
+     */
+    private static float distanceToSegment(float px, float py, float pz,
+                                           float ax, float ay, float az,
+                                           float bx, float by, float bz) {
+        float abx = bx - ax;
+        float aby = by - ay;
+        float abz = bz - az;
+        float apx = px - ax;
+        float apy = py - ay;
+        float apz = pz - az;
+        float lengthSquared = abx * abx + aby * aby + abz * abz;
+        float t = lengthSquared > 0
+                ? (apx * abx + apy * aby + apz * abz) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        float dx = apx - t * abx;
+        float dy = apy - t * aby;
+        float dz = apz - t * abz;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Line strip of up to a fixed number of vertices, keeping a copy of them for compaction.
+     */
+    private static class Chunk extends Object3D {
+        private final float[] mVertices;
+        private int mCount;
+
+        Chunk(float[] vertices, int count, int[] indices, Material material) {
+            super();
+            mVertices = vertices;
+            mCount = count;
+            setData(vertices, GLES20.GL_DYNAMIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    indices, GLES20.GL_STATIC_DRAW,
+                    true);
+            mGeometry.setNumIndices(count);
+            setMaterial(material);
+            setDrawingMode(GLES20.GL_LINE_STRIP);
+        }
+
+        void set(int index, float x, float y, float z) {
+            mVertices[3 * index] = x;
+            mVertices[3 * index + 1] = y;
+            mVertices[3 * index + 2] = z;
+        }
+    }
 }
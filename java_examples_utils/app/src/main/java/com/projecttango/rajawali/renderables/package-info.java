@@ -15,5 +15,8 @@
  */
 /**
  * Rajawali renderable objects used in more than one sample.
+ * <p/>
+ * The samples keep copies of the renderables they draw, e.g. the point cloud sample's own
+ * {@code FrustumAxes} and {@code Points}.
  */
 package com.projecttango.rajawali.renderables;
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates surface normals of a point cloud.
+ * <p/>
+ * The normal of every point is the direction of least variance (PCA) of its k nearest neighbours,
+ * searched in the 27 cells around the point of a uniform grid whose cell size is the search
+ * radius. The 3x3 covariance eigenproblem is solved in closed form and no objects are allocated
+ * per point. The cloud is split in point ranges that are processed in parallel.
+ * <p/>
+ * The output buffer has the same layout as the XYZC point cloud: four floats per point holding
+ * the unit normal (nx, ny, nz), oriented towards the sensor, and the surface curvature, i.e. the
+ * smallest eigenvalue over the sum of eigenvalues. Points with too few neighbours get a zero
+ * normal and a curvature of 1.
+ */
+public class NormalEstimator {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int MIN_NEIGHBOURS = 3;
+    private static final int GRID_BITS = 14;
+    private static final int INDEX_BITS = 20;
+    private static final int MAX_POINTS = 1 << INDEX_BITS;
+    // Minimum number of points per parallel task.
+    private static final int MIN_POINTS_PER_TASK = 1024;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    private final int mNeighbours;
+    private final float mRadius;
+
+    // Working buffers reused across calls.
+    private float[] mPoints = new float[0];
+    // XYZ of the points in grid order.
+    private float[] mSortedPoints = new float[0];
+    // Cell key and point index packed in a long, sorted by cell (grid order).
+    private long[] mGridEntries = new long[0];
+    // Distinct cell keys and their first entry in mGridEntries; the last start is numPoints.
+    private long[] mCellKeys = new long[0];
+    private int[] mCellStarts = new int[0];
+    private int mCellCount;
+    private FloatBuffer mNormals = allocate(0);
+
+    /**
+     * @param executor    Executor used to process point ranges in parallel.
+     * @param parallelism Maximum number of ranges the cloud is split into.
+     * @param neighbours  Number of neighbours (k) used per normal, including the point itself.
+     * @param radius      Search radius in meters.
+     */
+    public NormalEstimator(ExecutorService executor, int parallelism, int neighbours,
+                           float radius) {
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mNeighbours = Math.max(MIN_NEIGHBOURS, neighbours);
+        mRadius = radius;
+    }
+
+    /**
+     * Estimates the normals of a point cloud. Not thread safe; the buffers are shared between
+     * calls.
+     *
+     * @param points    Point cloud in XYZC layout, in sensor frame.
+     * @param numPoints Number of points in the cloud.
+     * @return Normals and curvature in the XYZC layout. The buffer is reused by the next call.
+     */
+    public FloatBuffer estimate(FloatBuffer points, final int numPoints)
+            throws InterruptedException {
+        if (numPoints > MAX_POINTS) {
+            throw new IllegalArgumentException("Too many points: " + numPoints);
+        }
+        if (mPoints.length < FLOATS_PER_POINT * numPoints) {
+            mPoints = new float[FLOATS_PER_POINT * numPoints];
+            mSortedPoints = new float[3 * numPoints];
+            mGridEntries = new long[numPoints];
+            mCellKeys = new long[numPoints];
+            mCellStarts = new int[numPoints + 1];
+        }
+        if (mNormals.capacity() < FLOATS_PER_POINT * numPoints) {
+            mNormals = allocate(FLOATS_PER_POINT * numPoints);
+        }
+        FloatBuffer source = points.duplicate();
+        source.rewind();
+        source.get(mPoints, 0, FLOATS_PER_POINT * numPoints);
+        buildGrid(numPoints);
+
+        int tasks = Math.max(1, Math.min(mParallelism, numPoints / MIN_POINTS_PER_TASK));
+        int perTask = (numPoints + tasks - 1) / tasks;
+        final TaskTracker tracker = new TaskTracker();
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        try {
+            // Split on cell boundaries so that every task reuses its neighbour cell lookups.
+            int firstCell = 0;
+            while (firstCell < mCellCount) {
+                int lastCell = firstCell + 1;
+                while (lastCell < mCellCount
+                        && mCellStarts[lastCell] - mCellStarts[firstCell] < perTask) {
+                    lastCell++;
+                }
+                final int first = firstCell;
+                final int last = lastCell;
+                if (last == mCellCount) {
+                    estimateCells(first, last, tracker);
+                } else {
+                    futures.add(mExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!tracker.begin()) {
+                                return;
+                            }
+                            try {
+                                estimateCells(first, last, tracker);
+                            } finally {
+                                tracker.end();
+                            }
+                        }
+                    }));
+                }
+                firstCell = lastCell;
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Don't return while a task still uses the buffers the next call reuses.
+            tracker.cancelAndWait();
+        }
+
+        mNormals.position(0);
+        mNormals.limit(FLOATS_PER_POINT * numPoints);
+        return mNormals;
+    }
+
+    /**
+     * Sorts the points by grid cell into {@link #mSortedPoints} so that the points of a cell are
+     * contiguous in memory.
+     */
+    private void buildGrid(int numPoints) {
+        for (int i = 0; i < numPoints; i++) {
+            mGridEntries[i] = (cellKey(cellOf(mPoints[FLOATS_PER_POINT * i]),
+                    cellOf(mPoints[FLOATS_PER_POINT * i + 1]),
+                    cellOf(mPoints[FLOATS_PER_POINT * i + 2])) << INDEX_BITS) | i;
+        }
+        Arrays.sort(mGridEntries, 0, numPoints);
+        mCellCount = 0;
+        for (int e = 0; e < numPoints; e++) {
+            long key = mGridEntries[e] >>> INDEX_BITS;
+            if (mCellCount == 0 || mCellKeys[mCellCount - 1] != key) {
+                mCellKeys[mCellCount] = key;
+                mCellStarts[mCellCount] = e;
+                mCellCount++;
+            }
+            int i = (int) (mGridEntries[e] & (MAX_POINTS - 1));
+            mSortedPoints[3 * e] = mPoints[FLOATS_PER_POINT * i];
+            mSortedPoints[3 * e + 1] = mPoints[FLOATS_PER_POINT * i + 1];
+            mSortedPoints[3 * e + 2] = mPoints[FLOATS_PER_POINT * i + 2];
+        }
+        mCellStarts[mCellCount] = numPoints;
+    }
+
+    /**
+     * Estimates the normals of the points in the cells [firstCell, lastCell). Only allocates
+     * scratch arrays, once per task.
+     */
+    private void estimateCells(int firstCell, int lastCell, TaskTracker tracker) {
+        int[] neighbourIndices = new int[mNeighbours];
+        float[] neighbourDistances = new float[mNeighbours];
+        int[] rangeStarts = new int[27];
+        int[] rangeEnds = new int[27];
+        float radius2 = mRadius * mRadius;
+
+        for (int cell = firstCell; cell < lastCell; cell++) {
+            if (tracker.isCancelled()) {
+                return;
+            }
+            // Entries of the 27 cells around this one.
+            int cellStart = mCellStarts[cell];
+            int cx = cellOf(mSortedPoints[3 * cellStart]);
+            int cy = cellOf(mSortedPoints[3 * cellStart + 1]);
+            int cz = cellOf(mSortedPoints[3 * cellStart + 2]);
+            int ranges = 0;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        int neighbour = Arrays.binarySearch(mCellKeys, 0, mCellCount,
+                                cellKey(cx + dx, cy + dy, cz + dz));
+                        if (neighbour >= 0) {
+                            rangeStarts[ranges] = mCellStarts[neighbour];
+                            rangeEnds[ranges] = mCellStarts[neighbour + 1];
+                            ranges++;
+                        }
+                    }
+                }
+            }
+
+            for (int e = cellStart; e < mCellStarts[cell + 1]; e++) {
+                float px = mSortedPoints[3 * e];
+                float py = mSortedPoints[3 * e + 1];
+                float pz = mSortedPoints[3 * e + 2];
+
+                // k nearest neighbours within the radius; the farthest one is replaced first.
+                int count = 0;
+                int farthest = 0;
+                for (int range = 0; range < ranges; range++) {
+                    for (int j = rangeStarts[range]; j < rangeEnds[range]; j++) {
+                        float ex = mSortedPoints[3 * j] - px;
+                        float ey = mSortedPoints[3 * j + 1] - py;
+                        float ez = mSortedPoints[3 * j + 2] - pz;
+                        float distance = ex * ex + ey * ey + ez * ez;
+                        if (distance > radius2) {
+                            continue;
+                        }
+                        if (count < mNeighbours) {
+                            neighbourIndices[count] = j;
+                            neighbourDistances[count] = distance;
+                            if (distance > neighbourDistances[farthest]) {
+                                farthest = count;
+                            }
+                            count++;
+                        } else if (distance < neighbourDistances[farthest]) {
+                            neighbourIndices[farthest] = j;
+                            neighbourDistances[farthest] = distance;
+                            for (int n = 0; n < count; n++) {
+                                if (neighbourDistances[n] > neighbourDistances[farthest]) {
+                                    farthest = n;
+                                }
+                            }
+                        }
+                    }
+                }
+                estimateNormal((int) (mGridEntries[e] & (MAX_POINTS - 1)), px, py, pz,
+                        neighbourIndices, count);
+            }
+        }
+    }
+
+    /**
+     * Writes the normal of point {@code i} from the sorted indices of its neighbours.
+     */
+    private void estimateNormal(int i, float px, float py, float pz, int[] neighbourIndices,
+                                int count) {
+        int out = FLOATS_PER_POINT * i;
+        if (count < MIN_NEIGHBOURS) {
+            writeNormal(out, 0, 0, 0, 1);
+            return;
+        }
+
+        // Covariance of the neighbourhood, relative to the point for precision.
+        double sx = 0, sy = 0, sz = 0;
+        double sxx = 0, sxy = 0, sxz = 0, syy = 0, syz = 0, szz = 0;
+        for (int n = 0; n < count; n++) {
+            int j = neighbourIndices[n];
+            double x = mSortedPoints[3 * j] - px;
+            double y = mSortedPoints[3 * j + 1] - py;
+            double z = mSortedPoints[3 * j + 2] - pz;
+            sx += x;
+            sy += y;
+            sz += z;
+            sxx += x * x;
+            sxy += x * y;
+            sxz += x * z;
+            syy += y * y;
+            syz += y * z;
+            szz += z * z;
+        }
+        double mx = sx / count;
+        double my = sy / count;
+        double mz = sz / count;
+        solveSmallestEigenvector(out, px, py, pz,
+                sxx / count - mx * mx, sxy / count - mx * my, sxz / count - mx * mz,
+                syy / count - my * my, syz / count - my * mz, szz / count - mz * mz);
+    }
+
+    /**
+     * Writes the eigenvector of the smallest eigenvalue of a symmetric 3x3 matrix, oriented
+     * towards the sensor, and the curvature at {@code out}.
+     */
+    private void solveSmallestEigenvector(int out, float px, float py, float pz,
+                                          double a00, double a01, double a02,
+                                          double a11, double a12, double a22) {
+        double trace = a00 + a11 + a22;
+        double p1 = a01 * a01 + a02 * a02 + a12 * a12;
+        double q = trace / 3;
+        double p2 = (a00 - q) * (a00 - q) + (a11 - q) * (a11 - q) + (a22 - q) * (a22 - q)
+                + 2 * p1;
+        double p = Math.sqrt(p2 / 6);
+        if (p == 0 || trace <= 0) {
+            // Isotropic or degenerate neighbourhood: no preferred direction.
+            writeNormal(out, 0, 0, 0, 1);
+            return;
+        }
+        double b00 = (a00 - q) / p;
+        double b11 = (a11 - q) / p;
+        double b22 = (a22 - q) / p;
+        double b01 = a01 / p;
+        double b02 = a02 / p;
+        double b12 = a12 / p;
+        double r = (b00 * (b11 * b22 - b12 * b12) - b01 * (b01 * b22 - b12 * b02)
+                + b02 * (b01 * b12 - b11 * b02)) / 2;
+        double phi = r <= -1 ? Math.PI / 3 : (r >= 1 ? 0 : Math.acos(r) / 3);
+        double eigenvalue = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+
+        // The eigenvector is orthogonal to the rows of (A - eigenvalue * I); take the longest
+        // cross product of two rows.
+        double r00 = a00 - eigenvalue;
+        double r11 = a11 - eigenvalue;
+        double r22 = a22 - eigenvalue;
+        double nx = a01 * a12 - a02 * r11;
+        double ny = a02 * a01 - r00 * a12;
+        double nz = r00 * r11 - a01 * a01;
+        double length = nx * nx + ny * ny + nz * nz;
+        double cx = a01 * r22 - a02 * a12;
+        double cy = a02 * a02 - r00 * r22;
+        double cz = r00 * a12 - a01 * a02;
+        double candidate = cx * cx + cy * cy + cz * cz;
+        if (candidate > length) {
+            nx = cx;
+            ny = cy;
+            nz = cz;
+            length = candidate;
+        }
+        cx = r11 * r22 - a12 * a12;
+        cy = a12 * a02 - a01 * r22;
+        cz = a01 * a12 - r11 * a02;
+        candidate = cx * cx + cy * cy + cz * cz;
+        if (candidate > length) {
+            nx = cx;
+            ny = cy;
+            nz = cz;
+            length = candidate;
+        }
+        if (length == 0) {
+            writeNormal(out, 0, 0, 0, 1);
+            return;
+        }
+        length = Math.sqrt(length);
+        // The sensor is at the origin; flip the normal if it points away from it.
+        if (nx * px + ny * py + nz * pz > 0) {
+            length = -length;
+        }
+        writeNormal(out, (float) (nx / length), (float) (ny / length), (float) (nz / length),
+                (float) (Math.max(0, eigenvalue) / trace));
+    }
+
+    private void writeNormal(int out, float nx, float ny, float nz, float curvature) {
+        mNormals.put(out, nx);
+        mNormals.put(out + 1, ny);
+        mNormals.put(out + 2, nz);
+        mNormals.put(out + 3, curvature);
+    }
+
+    private int cellOf(float coordinate) {
+        return (int) Math.floor(coordinate / mRadius);
+    }
+
+    private static long cellKey(int x, int y, int z) {
+        int mask = (1 << GRID_BITS) - 1;
+        return ((long) (x & mask) << (2 * GRID_BITS)) | ((long) (y & mask) << GRID_BITS)
+                | (z & mask);
+    }
+
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(floats * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Tracks the tasks of a call running on the executor.
+     * <p/>
+     * Cancelling a future doesn't wait for its task, and tasks queued behind an interrupted call
+     * can still start later. Tasks register here instead, so the call can stop them and wait for
+     * those already running, and those starting late return right away.
+     */
+    private static class TaskTracker {
+        private int mRunningCount;
+        private volatile boolean mIsCancelled;
+
+        synchronized boolean begin() {
+            if (mIsCancelled) {
+                return false;
+            }
+            mRunningCount++;
+            return true;
+        }
+
+        synchronized void end() {
+            mRunningCount--;
+            notifyAll();
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Stops the tasks and waits for those running. Keeps the interrupted status of the
+         * calling thread.
+         */
+        synchronized void cancelAndWait() {
+            mIsCancelled = true;
+            boolean isInterrupted = false;
+            while (mRunningCount > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -15,5 +15,7 @@
  */
 /**
  * General-purpose code that is re-used among the different samples.
+ * <p/>
+ * The samples don't build against this library; they keep copies of the classes they use.
  */
 package com.projecttango.tangoutils;
@@ -38,6 +38,8 @@ import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.hardware.display.DisplayManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.UiThread;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -49,8 +51,15 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An example showing how to use the 3D reconstruction floor planning features to create a
@@ -61,12 +70,17 @@ import java.util.List;
  * <p/>
  * Rendering is done in a simplistic way, using the canvas API over a SurfaceView.
  */
-public class FloorPlanReconstructionActivity extends Activity implements FloorplanView
-        .DrawingCallback {
+public class FloorPlanReconstructionActivity extends Activity {
     private static final String TAG = FloorPlanReconstructionActivity.class.getSimpleName();
 
     private static final String CAMERA_PERMISSION = Manifest.permission.CAMERA;
     private static final int CAMERA_PERMISSION_CODE = 0;
+    // Intent extras to view a floorplan history file offline: the path of the file and,
+    // optionally, the time of the snapshot in seconds since the start of the scan.
+    public static final String EXTRA_HISTORY_FILE = "history_file";
+    public static final String EXTRA_HISTORY_TIME = "history_time";
+    // Seconds between snapshots written to the history file.
+    private static final double HISTORY_INTERVAL = 5.0;
 
     private TangoFloorplanner mTangoFloorplanner;
     private Tango mTango;
@@ -78,10 +92,29 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
     private TextView mAreaText;
     private TextView mHeightText;
     private TextView mDistanceText;
+    private TextView mRenderStatsText;
 
     private int mDisplayRotation = 0;
 
+    // Queries the device pose when the Tango callback thread reports a new one. The query takes
+    // the activity lock, which must not be taken in the callback thread: onStop holds it while
+    // disconnecting, and disconnecting waits for the callbacks to return.
+    private HandlerThread mPoseThread;
+    private Handler mPoseHandler;
+    private final AtomicBoolean mIsPoseUpdatePending = new AtomicBoolean();
+
     private float mMinAreaSpace = 0;
+    private FloorplanStatistics mStatistics;
+    // History of the current scan, guarded by mHistoryLock.
+    private final Object mHistoryLock = new Object();
+    private FloorplanHistoryWriter mHistoryWriter;
+    private long mScanStartNs;
+    private double mLastSnapshotTime;
+    // History file to view offline, or null to scan.
+    private File mHistoryFile;
+    // Statistics waiting to be shown by the UI thread.
+    private final AtomicReference<FloorplanStatistics.Snapshot> mPendingStatistics =
+            new AtomicReference<FloorplanStatistics.Snapshot>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,13 +124,49 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
         TypedValue typedValue = new TypedValue();
         getResources().getValue(R.dimen.min_area_space, typedValue, true);
         mMinAreaSpace = typedValue.getFloat();
+        mStatistics = new FloorplanStatistics(mMinAreaSpace);
 
         mPauseButton = (Button) findViewById(R.id.pause_button);
         mFloorplanView = (FloorplanView) findViewById(R.id.floorplan);
-        mFloorplanView.registerCallback(this);
         mAreaText = (TextView) findViewById(R.id.area_text);
         mHeightText = (TextView) findViewById(R.id.height_text);
         mDistanceText = (TextView) findViewById(R.id.floordistance_text);
+        mRenderStatsText = (TextView) findViewById(R.id.render_stats_text);
+        mPoseThread = new HandlerThread("devicePose");
+        mPoseThread.start();
+        mPoseHandler = new Handler(mPoseThread.getLooper());
+        String historyFile = getIntent().getStringExtra(EXTRA_HISTORY_FILE);
+        if (historyFile != null) {
+            mHistoryFile = new File(historyFile);
+            mPauseButton.setVisibility(View.GONE);
+            findViewById(R.id.clear_button).setVisibility(View.GONE);
+        }
+        mFloorplanView.setOnPolygonTappedListener(new FloorplanView.OnPolygonTappedListener() {
+            @Override
+            public void onPolygonTapped(FloorplanPolygon polygon) {
+                if (polygon != null) {
+                    Toast.makeText(FloorPlanReconstructionActivity.this,
+                            getLayerName(polygon.layer) + ": "
+                                    + String.format("%.2f", Math.abs(polygon.area)) + " m²",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        mFloorplanView.setOnRenderStatsListener(new FloorplanView.OnRenderStatsListener() {
+            @Override
+            public void onRenderStats(float redrawsPerSecond, float meanLatencyMs,
+                                      float maxLatencyMs, int vertexCount) {
+                final String statsText = String.format(
+                        "%.0f redraws/s, latency mean/max %.1f/%.1f ms, %d vertices",
+                        redrawsPerSecond, meanLatencyMs, maxLatencyMs, vertexCount);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRenderStatsText.setText(statsText);
+                    }
+                });
+            }
+        });
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
@@ -124,12 +193,45 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
     protected void onStart() {
         super.onStart();
 
+        if (mHistoryFile != null) {
+            loadHistory(mHistoryFile,
+                    getIntent().getDoubleExtra(EXTRA_HISTORY_TIME, Double.MAX_VALUE));
+            return;
+        }
         // Check and request camera permission at run time.
         if (checkAndRequestPermissions()) {
             bindTangoService();
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        synchronized (this) {
+            if (mTangoFloorplanner != null) {
+                mTangoFloorplanner.setExtractionRate(TangoFloorplanner.DEFAULT_EXTRACTION_RATE);
+                // Show what was integrated while the activity was in the background.
+                mTangoFloorplanner.requestExtraction();
+            }
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Keep integrating depth, but only extract the floorplan again once it is visible.
+        synchronized (this) {
+            if (mTangoFloorplanner != null) {
+                mTangoFloorplanner.setExtractionRate(0);
+                TangoFloorplanner.Timings timings = mTangoFloorplanner.getTimings();
+                Log.i(TAG, String.format("Integration %.1f ms (%d), extraction %.1f + %.1f ms, "
+                                + "callback %.1f ms (%d)", timings.integrationMs,
+                        timings.integrationCount, timings.polygonExtractionMs,
+                        timings.levelExtractionMs, timings.callbackMs, timings.extractionCount));
+            }
+        }
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -152,6 +254,13 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
                 Log.e(TAG, getString(R.string.exception_tango_error), e);
             }
         }
+        closeHistory();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPoseThread.quit();
     }
 
     /**
@@ -227,6 +336,7 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
                 mFloorplanView.setFloorplan(polygons);
                 updateFloorAndCeiling(levels);
                 calculateAndUpdateArea(polygons);
+                appendToHistory(polygons, levels);
             }
         });
         // Set camera intrinsics to TangoFloorplanner.
@@ -234,14 +344,22 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
                 (TangoCameraIntrinsics.TANGO_CAMERA_DEPTH));
 
         mTangoFloorplanner.startFloorplanning();
+        openHistory();
 
         // Connect listeners to Tango Service and forward point cloud and camera information to
-        // TangoFloorplanner.
+        // TangoFloorplanner. Device poses move the map in the floorplan view.
         List<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
+        framePairs.add(new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                TangoPoseData.COORDINATE_FRAME_DEVICE));
         mTango.connectListener(framePairs, new Tango.OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(TangoPoseData tangoPoseData) {
-                // We are not using onPoseAvailable for this app.
+                // Don't synchronize against the activity here, see mPoseThread. Poses arriving
+                // while a query is pending are covered by it.
+                if (mIsPoseUpdatePending.compareAndSet(false, true)) {
+                    mPoseHandler.post(mUpdateDevicePoseRunnable);
+                }
             }
 
             @Override
@@ -266,12 +384,20 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
         });
     }
 
+    private final Runnable mUpdateDevicePoseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mIsPoseUpdatePending.set(false);
+            updateDevicePose();
+        }
+    };
+
     /**
-     * Method called each time right before the floorplan is drawn. It allows use of the Tango
-     * Service to get the device position and orientation.
+     * Method called each time a new device pose is available. It uses the Tango Service to get
+     * the device position and orientation in the view convention, and passes them to the
+     * floorplan view, which redraws when they changed noticeably. This runs in the pose thread.
      */
-    @Override
-    public void onPreDrawing() {
+    private void updateDevicePose() {
         try {
             // Synchronize against disconnecting while using the service.
             synchronized (FloorPlanReconstructionActivity.this) {
@@ -317,28 +443,126 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
         return (float) Math.atan2(2 * (w * y - x * z), w * (w + x) - y * (z + y));
     }
 
+    private static String getLayerName(int layer) {
+        switch (layer) {
+            case TangoPolygon.TANGO_3DR_LAYER_SPACE:
+                return "Space";
+            case TangoPolygon.TANGO_3DR_LAYER_WALLS:
+                return "Wall";
+            case TangoPolygon.TANGO_3DR_LAYER_FURNITURE:
+                return "Furniture";
+            default:
+                return "Unknown";
+        }
+    }
+
     /**
-     * Calculate the total explored space area and update the text field with that information.
+     * Updates the statistics with the polygons that changed, and shows the explored area.
      */
     private void calculateAndUpdateArea(List<TangoPolygon> polygons) {
-        double area = 0;
-        for (TangoPolygon polygon : polygons) {
-            if (polygon.layer == TangoPolygon.TANGO_3DR_LAYER_SPACE) {
-                // If there is more than one free space polygon, only count those
-                // that have an area larger than two square meters to suppress unconnected
-                // areas (which might occur in front of windows).
-                if (area == 0 || (polygon.area > mMinAreaSpace || polygon.area < 0)) {
-                    area += polygon.area;
+        FloorplanStatistics.Snapshot statistics = mStatistics.update(polygons);
+        // Only post to the UI thread if the previous statistics were shown already; the UI
+        // always shows the latest ones.
+        if (mPendingStatistics.getAndSet(statistics) == null) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    FloorplanStatistics.Snapshot statistics = mPendingStatistics.getAndSet(null);
+                    mAreaText.setText(String.format("%.2f", statistics.exploredArea));
                 }
+            });
+        }
+    }
+
+    /**
+     * Starts recording the history of a new scan.
+     */
+    private void openHistory() {
+        File file = new File(getExternalFilesDir(null),
+                "floorplan-" + System.currentTimeMillis() + ".fph");
+        synchronized (mHistoryLock) {
+            try {
+                mHistoryWriter = new FloorplanHistoryWriter(file);
+                mScanStartNs = System.nanoTime();
+                mLastSnapshotTime = -HISTORY_INTERVAL;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot create the floorplan history " + file, e);
             }
         }
-        final String areaText = String.format("%.2f", area);
-        runOnUiThread(new Runnable() {
+    }
+
+    /**
+     * Appends the floorplan to the history if the last snapshot is old enough.
+     */
+    private void appendToHistory(List<TangoPolygon> polygons, List<TangoFloorplanLevel> levels) {
+        synchronized (mHistoryLock) {
+            double time = (System.nanoTime() - mScanStartNs) / 1e9;
+            if (mHistoryWriter == null || time - mLastSnapshotTime < HISTORY_INTERVAL) {
+                return;
+            }
+            try {
+                mHistoryWriter.append(FloorplanSnapshot.fromTango(time, polygons, levels));
+                mLastSnapshotTime = time;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write the floorplan history, stopping it", e);
+                closeHistory();
+            }
+        }
+    }
+
+    private void closeHistory() {
+        synchronized (mHistoryLock) {
+            if (mHistoryWriter == null) {
+                return;
+            }
+            try {
+                mHistoryWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close the floorplan history", e);
+            }
+            mHistoryWriter = null;
+        }
+    }
+
+    /**
+     * Shows a snapshot of a history file, without connecting to Tango.
+     *
+     * @param time Time of the snapshot in seconds since the start of the scan.
+     */
+    private void loadHistory(final File file, final double time) {
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                mAreaText.setText(areaText);
+                FloorplanSnapshot snapshot = null;
+                try {
+                    FloorplanHistoryReader reader = new FloorplanHistoryReader(file);
+                    try {
+                        int index = reader.indexAt(time);
+                        if (index >= 0) {
+                            snapshot = reader.read(index);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot read the floorplan history " + file, e);
+                }
+                if (snapshot == null) {
+                    return;
+                }
+                mFloorplanView.setFloorplan(snapshot);
+                if (snapshot.getLevelCount() > 0) {
+                    final String ceilingHeightText = String.format("%.2f",
+                            snapshot.getLevelMaxZ(0) - snapshot.getLevelMinZ(0));
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mHeightText.setText(ceilingHeightText);
+                        }
+                    });
+                }
             }
-        });
+        }).start();
     }
 
     /**
@@ -399,6 +623,55 @@ public class FloorPlanReconstructionActivity extends Activity implements Floorpl
         mTangoFloorplanner.resetFloorplan();
     }
 
+    public void onExportButtonClicked(View v) {
+        final List<FloorplanPolygon> polygons = mFloorplanView.getFloorplanSnapshot();
+        final File directory = getExternalFilesDir(null);
+        final String name = "floorplan-" + System.currentTimeMillis();
+        // Export the snapshot in the background, the floorplan keeps updating meanwhile.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startNs = System.nanoTime();
+                String message;
+                try {
+                    exportFloorplan(polygons, directory, name);
+                    message = "Exported to " + directory + " in "
+                            + (System.nanoTime() - startNs) / 1000000 + " ms";
+                } catch (IOException e) {
+                    Log.e(TAG, "Floorplan export failed", e);
+                    message = "Export failed: " + e.getMessage();
+                }
+                final String toastText = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(FloorPlanReconstructionActivity.this, toastText,
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Writes the polygons in all export formats, to files named after the format.
+     */
+    private static void exportFloorplan(List<FloorplanPolygon> polygons, File directory,
+                                        String name) throws IOException {
+        int[] formats = {FloorplanExporter.FORMAT_SVG, FloorplanExporter.FORMAT_GEOJSON,
+                FloorplanExporter.FORMAT_DXF};
+        for (int format : formats) {
+            File file = new File(directory,
+                    name + "." + FloorplanExporter.getFileExtension(format));
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                new FloorplanExporter(writer).export(polygons, format);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
     /**
      * Set the display rotation.
      */
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import com.google.atap.tango.reconstruction.TangoPolygon;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes floorplan polygons to SVG, GeoJSON or DXF.
+ * <p/>
+ * Coordinates are meters in the Tango start of service frame, with x right and y forward. GeoJSON
+ * and DXF use them directly; SVG flips the y axis and is sized at a 1:100 scale. Closed polygons
+ * are written counterclockwise and holes (negative area polygons) clockwise, so that holes cut
+ * out of the polygons of their layer under the nonzero fill rule. GeoJSON writes holes as the
+ * interior rings of the polygon around them.
+ * <p/>
+ * Output is streamed through a buffered writer and numbers are formatted into a reused buffer,
+ * so exporting doesn't build intermediate strings. The polygons are not modified, so a snapshot
+ * can be exported from any thread.
+ */
+public class FloorplanExporter {
+    public static final int FORMAT_SVG = 0;
+    public static final int FORMAT_GEOJSON = 1;
+    public static final int FORMAT_DXF = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Coordinates are written with 0.1 mm resolution.
+    private static final int DECIMALS = 4;
+    private static final double DECIMAL_FACTOR = 1e4;
+    private static final float SVG_WALL_STROKE_WIDTH = 0.03f;
+
+    // Layers in drawing order, with their names and SVG styles.
+    private static final int[] LAYERS = {
+            TangoPolygon.TANGO_3DR_LAYER_SPACE,
+            TangoPolygon.TANGO_3DR_LAYER_FURNITURE,
+            TangoPolygon.TANGO_3DR_LAYER_WALLS,
+    };
+    private static final String[] SVG_FILLS = {"#d2d2d2", "#15a6d9", "none"};
+    private static final String[] SVG_STROKES = {"none", "none", "#000000"};
+
+    private final Writer mWriter;
+    private final char[] mNumber = new char[24];
+
+    public FloorplanExporter(Writer writer) {
+        mWriter = writer instanceof BufferedWriter ? writer
+                : new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    public static String getFileExtension(int format) {
+        switch (format) {
+            case FORMAT_SVG:
+                return "svg";
+            case FORMAT_GEOJSON:
+                return "geojson";
+            case FORMAT_DXF:
+                return "dxf";
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    /**
+     * Writes the polygons and flushes the writer. The writer is not closed.
+     */
+    public void export(List<FloorplanPolygon> polygons, int format) throws IOException {
+        switch (format) {
+            case FORMAT_SVG:
+                writeSvg(polygons);
+                break;
+            case FORMAT_GEOJSON:
+                writeGeoJson(polygons);
+                break;
+            case FORMAT_DXF:
+                writeDxf(polygons);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        mWriter.flush();
+    }
+
+    /**
+     * @return Name of a polygon layer, as used in all formats.
+     */
+    public static String getLayerName(int layer) {
+        switch (layer) {
+            case TangoPolygon.TANGO_3DR_LAYER_SPACE:
+                return "space";
+            case TangoPolygon.TANGO_3DR_LAYER_WALLS:
+                return "walls";
+            case TangoPolygon.TANGO_3DR_LAYER_FURNITURE:
+                return "furniture";
+            default:
+                return "unknown";
+        }
+    }
+
+    private void writeSvg(List<FloorplanPolygon> polygons) throws IOException {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (FloorplanPolygon polygon : polygons) {
+            minX = Math.min(minX, polygon.minX);
+            minY = Math.min(minY, polygon.minY);
+            maxX = Math.max(maxX, polygon.maxX);
+            maxY = Math.max(maxY, polygon.maxY);
+        }
+        if (polygons.isEmpty()) {
+            minX = minY = maxX = maxY = 0;
+        }
+        // Leave room for the wall strokes.
+        float margin = SVG_WALL_STROKE_WIDTH;
+        float width = maxX - minX + 2 * margin;
+        float height = maxY - minY + 2 * margin;
+
+        Writer w = mWriter;
+        w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        w.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"");
+        // One meter is one centimeter.
+        writeNumber(width);
+        w.write("cm\" height=\"");
+        writeNumber(height);
+        w.write("cm\" viewBox=\"");
+        writeNumber(minX - margin);
+        w.write(' ');
+        writeNumber(-maxY - margin);
+        w.write(' ');
+        writeNumber(width);
+        w.write(' ');
+        writeNumber(height);
+        w.write("\">\n");
+        for (int i = 0; i < LAYERS.length; i++) {
+            w.write("<g id=\"");
+            w.write(getLayerName(LAYERS[i]));
+            w.write("\" fill=\"");
+            w.write(SVG_FILLS[i]);
+            w.write("\" stroke=\"");
+            w.write(SVG_STROKES[i]);
+            w.write("\" stroke-width=\"");
+            writeNumber(SVG_WALL_STROKE_WIDTH);
+            w.write("\" fill-rule=\"nonzero\">\n");
+            // All closed polygons of a layer go in one path, so that holes cut out of them. Open
+            // ones are stroked with the layer color.
+            writeSvgPath(polygons, LAYERS[i], true, null);
+            writeSvgPath(polygons, LAYERS[i], false,
+                    SVG_FILLS[i].equals("none") ? SVG_STROKES[i] : SVG_FILLS[i]);
+            w.write("</g>\n");
+        }
+        w.write("</svg>\n");
+    }
+
+    /**
+     * @param stroke Stroke color of the path, for open polygons, or null to use the group style.
+     */
+    private void writeSvgPath(List<FloorplanPolygon> polygons, int layer, boolean isClosed,
+                              String stroke) throws IOException {
+        Writer w = mWriter;
+        boolean isStarted = false;
+        for (FloorplanPolygon polygon : polygons) {
+            if (polygon.layer != layer || polygon.isClosed != isClosed
+                    || polygon.vertices.length == 0) {
+                continue;
+            }
+            if (!isStarted) {
+                w.write("<path");
+                if (stroke != null) {
+                    w.write(" fill=\"none\" stroke=\"");
+                    w.write(stroke);
+                    w.write('"');
+                }
+                w.write(" d=\"");
+                isStarted = true;
+            }
+            boolean reverse = isReversed(polygon);
+            int count = polygon.getVertexCount();
+            for (int i = 0; i < count; i++) {
+                int vertex = reverse ? count - 1 - i : i;
+                w.write(i == 0 ? 'M' : 'L');
+                writeNumber(polygon.vertices[2 * vertex]);
+                w.write(' ');
+                writeNumber(-polygon.vertices[2 * vertex + 1]);
+            }
+            if (isClosed) {
+                w.write('Z');
+            }
+        }
+        if (isStarted) {
+            w.write("\"/>\n");
+        }
+    }
+
+    private void writeGeoJson(List<FloorplanPolygon> polygons) throws IOException {
+        // Holes are written as interior rings of the smallest polygon of their layer around them.
+        // Holes without one are written as polygons of their own.
+        int polygonCount = polygons.size();
+        int[] outers = new int[polygonCount];
+        Arrays.fill(outers, -1);
+        for (int i = 0; i < polygonCount; i++) {
+            FloorplanPolygon hole = polygons.get(i);
+            if (!hole.isClosed || hole.area >= 0 || hole.vertices.length == 0) {
+                continue;
+            }
+            for (int j = 0; j < polygonCount; j++) {
+                FloorplanPolygon outer = polygons.get(j);
+                if (outer.layer == hole.layer && outer.isClosed && outer.area > 0
+                        && (outers[i] < 0 || outer.area < polygons.get(outers[i]).area)
+                        && outer.surrounds(hole)) {
+                    outers[i] = j;
+                }
+            }
+        }
+
+        Writer w = mWriter;
+        w.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        boolean isFirst = true;
+        for (int i = 0; i < polygonCount; i++) {
+            FloorplanPolygon polygon = polygons.get(i);
+            if (polygon.vertices.length == 0 || outers[i] >= 0) {
+                continue;
+            }
+            double area = polygon.area;
+            for (int j = 0; j < polygonCount; j++) {
+                if (outers[j] == i) {
+                    area += polygons.get(j).area;
+                }
+            }
+            w.write(isFirst ? "\n" : ",\n");
+            isFirst = false;
+            w.write("{\"type\":\"Feature\",\"properties\":{\"layer\":\"");
+            w.write(getLayerName(polygon.layer));
+            w.write("\",\"area\":");
+            writeNumber(area);
+            w.write(",\"hole\":");
+            w.write(polygon.area < 0 ? "true" : "false");
+            w.write("},\"geometry\":{\"type\":\"");
+            w.write(polygon.isClosed ? "Polygon" : "LineString");
+            w.write("\",\"coordinates\":");
+            if (polygon.isClosed) {
+                w.write('[');
+                writeGeoJsonRing(polygon);
+                for (int j = 0; j < polygonCount; j++) {
+                    if (outers[j] == i) {
+                        w.write(',');
+                        writeGeoJsonRing(polygons.get(j));
+                    }
+                }
+                w.write(']');
+            } else {
+                writeGeoJsonRing(polygon);
+            }
+            w.write("}}");
+        }
+        w.write("\n]}\n");
+    }
+
+    /**
+     * Writes the coordinates of a polygon, as a ring repeating its first vertex if it is closed.
+     */
+    private void writeGeoJsonRing(FloorplanPolygon polygon) throws IOException {
+        Writer w = mWriter;
+        w.write('[');
+        boolean reverse = isReversed(polygon);
+        int count = polygon.getVertexCount();
+        int ringCount = polygon.isClosed ? count + 1 : count;
+        for (int i = 0; i < ringCount; i++) {
+            int vertex = reverse ? count - 1 - i % count : i % count;
+            if (i > 0) {
+                w.write(',');
+            }
+            w.write('[');
+            writeNumber(polygon.vertices[2 * vertex]);
+            w.write(',');
+            writeNumber(polygon.vertices[2 * vertex + 1]);
+            w.write(']');
+        }
+        w.write(']');
+    }
+
+    /**
+     * Writes an AutoCAD R12 DXF, with a polyline per polygon on the layer of the polygon. R12 has
+     * no header for the drawing units; coordinates are in meters.
+     */
+    private void writeDxf(List<FloorplanPolygon> polygons) throws IOException {
+        writeDxfGroup(0, "SECTION");
+        writeDxfGroup(2, "HEADER");
+        writeDxfGroup(9, "$ACADVER");
+        writeDxfGroup(1, "AC1009");
+        writeDxfGroup(0, "ENDSEC");
+        writeDxfGroup(0, "SECTION");
+        writeDxfGroup(2, "ENTITIES");
+        for (FloorplanPolygon polygon : polygons) {
+            if (polygon.vertices.length == 0) {
+                continue;
+            }
+            String layer = getLayerName(polygon.layer);
+            writeDxfGroup(0, "POLYLINE");
+            writeDxfGroup(8, layer);
+            // Vertices follow.
+            writeDxfGroup(66, "1");
+            writeDxfGroup(70, polygon.isClosed ? "1" : "0");
+            writeDxfCoordinates(0, 0);
+            boolean reverse = isReversed(polygon);
+            int count = polygon.getVertexCount();
+            for (int i = 0; i < count; i++) {
+                int vertex = reverse ? count - 1 - i : i;
+                writeDxfGroup(0, "VERTEX");
+                writeDxfGroup(8, layer);
+                writeDxfCoordinates(polygon.vertices[2 * vertex],
+                        polygon.vertices[2 * vertex + 1]);
+            }
+            writeDxfGroup(0, "SEQEND");
+            writeDxfGroup(8, layer);
+        }
+        writeDxfGroup(0, "ENDSEC");
+        writeDxfGroup(0, "EOF");
+    }
+
+    private void writeDxfGroup(int code, String value) throws IOException {
+        writeNumber(code);
+        mWriter.write('\n');
+        mWriter.write(value);
+        mWriter.write('\n');
+    }
+
+    private void writeDxfCoordinates(float x, float y) throws IOException {
+        Writer w = mWriter;
+        w.write("10\n");
+        writeNumber(x);
+        w.write("\n20\n");
+        writeNumber(y);
+        w.write("\n30\n0\n");
+    }
+
+    /**
+     * Whether the vertices of a closed polygon must be reversed to be counterclockwise, or
+     * clockwise for holes.
+     */
+    private static boolean isReversed(FloorplanPolygon polygon) {
+        if (!polygon.isClosed) {
+            return false;
+        }
+        // Twice the signed area with the shoelace formula, positive when counterclockwise.
+        float[] v = polygon.vertices;
+        double signedArea = 0;
+        for (int i = 0, j = v.length - 2; i < v.length; j = i, i += 2) {
+            signedArea += (double) v[j] * v[i + 1] - (double) v[i] * v[j + 1];
+        }
+        return (signedArea > 0) != (polygon.area > 0);
+    }
+
+    /**
+     * Writes a number with at most {@link #DECIMALS} decimals and no trailing zeros.
+     */
+    private void writeNumber(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        long fixed = Math.round(value * DECIMAL_FACTOR);
+        boolean isNegative = fixed < 0;
+        fixed = Math.abs(fixed);
+        char[] buffer = mNumber;
+        int start = buffer.length;
+        int decimals = DECIMALS;
+        // Skip the trailing zeros of the fraction.
+        while (decimals > 0 && fixed % 10 == 0) {
+            fixed /= 10;
+            decimals--;
+        }
+        for (int i = 0; i < decimals; i++) {
+            buffer[--start] = (char) ('0' + fixed % 10);
+            fixed /= 10;
+        }
+        if (decimals > 0) {
+            buffer[--start] = '.';
+        }
+        do {
+            buffer[--start] = (char) ('0' + fixed % 10);
+            fixed /= 10;
+        } while (fixed > 0);
+        if (isNegative) {
+            buffer[--start] = '-';
+        }
+        mWriter.write(buffer, start, buffer.length - start);
+    }
+}
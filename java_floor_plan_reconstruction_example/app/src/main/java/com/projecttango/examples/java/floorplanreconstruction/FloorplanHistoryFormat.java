@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary format of floorplan history files, shared by {@link FloorplanHistoryWriter} and
+ * {@link FloorplanHistoryReader}.
+ * <p/>
+ * A file is a header followed by snapshot records, all big endian:
+ * <pre>
+ * header:   int magic, int version
+ * record:   byte type, double timestamp, int payload size, payload
+ * payload:  varint level count, (float min z, float max z) per level,
+ *           varint polygon count, entry per polygon in drawing order
+ * entry:    varint 0 followed by a polygon, or varint i + 1 to reuse polygon i of the
+ *           previous snapshot
+ * polygon:  byte layer, byte closed, float area, varint vertex count, (float x, float y) per
+ *           vertex
+ * </pre>
+ * Keyframe records don't reuse polygons, so they can be decoded on their own; delta records
+ * only store the polygons that changed.
+ */
+final class FloorplanHistoryFormat {
+    static final int MAGIC = 0x46504831;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    // Size of a record before its payload.
+    static final int RECORD_HEADER_SIZE = 13;
+    static final byte TYPE_KEYFRAME = 1;
+    static final byte TYPE_DELTA = 2;
+
+    private FloorplanHistoryFormat() {
+    }
+
+    static void writePolygon(DataOutput out, FloorplanPolygon polygon) throws IOException {
+        out.writeByte(polygon.layer);
+        out.writeByte(polygon.isClosed ? 1 : 0);
+        out.writeFloat(polygon.area);
+        writeVarInt(out, polygon.getVertexCount());
+        for (float value : polygon.vertices) {
+            out.writeFloat(value);
+        }
+    }
+
+    static FloorplanPolygon readPolygon(DataInput in) throws IOException {
+        int layer = in.readByte();
+        boolean isClosed = in.readByte() != 0;
+        float area = in.readFloat();
+        float[] vertices = new float[2 * readVarInt(in)];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = in.readFloat();
+        }
+        return new FloorplanPolygon(layer, area, isClosed, vertices);
+    }
+
+    /**
+     * Writes a non negative int in 7 bit groups, least significant first.
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the snapshots of a floorplan history file, see {@link FloorplanHistoryFormat}.
+ * <p/>
+ * Opening the file only reads the record headers, to index the offset and timestamp of each
+ * snapshot. Reading a snapshot decodes it from the closest keyframe before it, or from the last
+ * snapshot read if that is closer, so playing the history forward decodes each record once.
+ * <p/>
+ * Not thread safe.
+ */
+public class FloorplanHistoryReader implements Closeable {
+    private final RandomAccessFile mFile;
+    private final long[] mOffsets;
+    private final double[] mTimestamps;
+    private final boolean[] mIsKeyframe;
+    private final int mCount;
+
+    // Last snapshot decoded.
+    private int mLastIndex = -1;
+    private FloorplanSnapshot mLastSnapshot;
+
+    public FloorplanHistoryReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        long length = mFile.length();
+        if (length < FloorplanHistoryFormat.HEADER_SIZE
+                || mFile.readInt() != FloorplanHistoryFormat.MAGIC
+                || mFile.readInt() != FloorplanHistoryFormat.VERSION) {
+            mFile.close();
+            throw new IOException("Not a floorplan history file: " + file);
+        }
+        long[] offsets = new long[64];
+        double[] timestamps = new double[64];
+        boolean[] isKeyframe = new boolean[64];
+        int count = 0;
+        long offset = FloorplanHistoryFormat.HEADER_SIZE;
+        while (offset + FloorplanHistoryFormat.RECORD_HEADER_SIZE <= length) {
+            mFile.seek(offset);
+            byte type = mFile.readByte();
+            double timestamp = mFile.readDouble();
+            int size = mFile.readInt();
+            long next = offset + FloorplanHistoryFormat.RECORD_HEADER_SIZE + size;
+            // Ignore a record cut short, and everything from a corrupt size on.
+            if (size < 0 || next <= offset || next > length) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+                timestamps = Arrays.copyOf(timestamps, 2 * count);
+                isKeyframe = Arrays.copyOf(isKeyframe, 2 * count);
+            }
+            offsets[count] = offset;
+            timestamps[count] = timestamp;
+            isKeyframe[count] = type == FloorplanHistoryFormat.TYPE_KEYFRAME;
+            count++;
+            offset = next;
+        }
+        mOffsets = offsets;
+        mTimestamps = timestamps;
+        mIsKeyframe = isKeyframe;
+        mCount = count;
+    }
+
+    /**
+     * @return Number of snapshots in the file.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public double getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    /**
+     * @return Index of the last snapshot taken at or before a time, or -1 if there is none.
+     */
+    public int indexAt(double timestamp) {
+        int index = Arrays.binarySearch(mTimestamps, 0, mCount, timestamp);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Return the last of equal timestamps.
+        while (index + 1 < mCount && mTimestamps[index + 1] == timestamp) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Decodes a snapshot.
+     */
+    public FloorplanSnapshot read(int index) throws IOException {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Snapshot " + index + " of " + mCount);
+        }
+        int keyframe = index;
+        while (!mIsKeyframe[keyframe]) {
+            if (keyframe == 0) {
+                throw new IOException("History file doesn't start with a keyframe");
+            }
+            keyframe--;
+        }
+        FloorplanSnapshot snapshot = null;
+        int first = keyframe;
+        if (mLastSnapshot != null && mLastIndex >= keyframe && mLastIndex <= index) {
+            snapshot = mLastSnapshot;
+            first = mLastIndex + 1;
+        }
+        for (int i = first; i <= index; i++) {
+            snapshot = decode(i, snapshot);
+        }
+        mLastIndex = index;
+        mLastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private FloorplanSnapshot decode(int index, FloorplanSnapshot previous) throws IOException {
+        mFile.seek(mOffsets[index] + FloorplanHistoryFormat.RECORD_HEADER_SIZE - 4);
+        byte[] payload = new byte[mFile.readInt()];
+        mFile.readFully(payload);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        float[] levels = new float[2 * FloorplanHistoryFormat.readVarInt(in)];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = in.readFloat();
+        }
+        int polygonCount = FloorplanHistoryFormat.readVarInt(in);
+        List<FloorplanPolygon> polygons = new ArrayList<FloorplanPolygon>(polygonCount);
+        for (int i = 0; i < polygonCount; i++) {
+            int reference = FloorplanHistoryFormat.readVarInt(in);
+            if (reference == 0) {
+                polygons.add(FloorplanHistoryFormat.readPolygon(in));
+            } else if (previous != null && reference <= previous.polygons.size()) {
+                polygons.add(previous.polygons.get(reference - 1));
+            } else {
+                throw new IOException("Invalid polygon reference in snapshot " + index);
+            }
+        }
+        return new FloorplanSnapshot(mTimestamps[index], polygons, levels);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends floorplan snapshots to a history file, see {@link FloorplanHistoryFormat}.
+ * <p/>
+ * Each snapshot is stored as the difference to the previous one, and every few snapshots as a
+ * keyframe, so that readers can decode any snapshot quickly. Records are flushed as they are
+ * appended; a record cut short by a crash is ignored by readers, and dropped when the file is
+ * opened again for writing.
+ * <p/>
+ * Not thread safe.
+ */
+public class FloorplanHistoryWriter implements Closeable {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 16;
+
+    private final int mKeyframeInterval;
+    private final DataOutputStream mOut;
+    private final ByteArrayOutputStream mPayloadBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPayload = new DataOutputStream(mPayloadBytes);
+    // Index of each polygon of the previous snapshot, by content hash.
+    private Map<Long, Integer> mPreviousIndices = new HashMap<Long, Integer>();
+    private int mRecordCount;
+    private long mBytesWritten;
+
+    public FloorplanHistoryWriter(File file) throws IOException {
+        this(file, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Opens a history file, creating it if needed. Snapshots are appended to existing files,
+     * starting with a keyframe.
+     *
+     * @param keyframeInterval A keyframe is written every this many snapshots.
+     */
+    public FloorplanHistoryWriter(File file, int keyframeInterval) throws IOException {
+        mKeyframeInterval = keyframeInterval;
+        boolean isNew = !file.exists() || file.length() == 0;
+        if (!isNew) {
+            recover(file);
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (isNew) {
+            mOut.writeInt(FloorplanHistoryFormat.MAGIC);
+            mOut.writeInt(FloorplanHistoryFormat.VERSION);
+            mOut.flush();
+            mBytesWritten = FloorplanHistoryFormat.HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Appends a snapshot.
+     */
+    public void append(FloorplanSnapshot snapshot) throws IOException {
+        boolean isKeyframe = mRecordCount % mKeyframeInterval == 0;
+        List<FloorplanPolygon> polygons = snapshot.polygons;
+        Map<Long, Integer> indices = new HashMap<Long, Integer>(2 * polygons.size());
+
+        mPayloadBytes.reset();
+        FloorplanHistoryFormat.writeVarInt(mPayload, snapshot.getLevelCount());
+        for (int i = 0; i < snapshot.getLevelCount(); i++) {
+            mPayload.writeFloat(snapshot.getLevelMinZ(i));
+            mPayload.writeFloat(snapshot.getLevelMaxZ(i));
+        }
+        FloorplanHistoryFormat.writeVarInt(mPayload, polygons.size());
+        for (int i = 0; i < polygons.size(); i++) {
+            FloorplanPolygon polygon = polygons.get(i);
+            Integer previousIndex = isKeyframe ? null : mPreviousIndices.get(polygon.hash);
+            if (previousIndex != null) {
+                FloorplanHistoryFormat.writeVarInt(mPayload, previousIndex + 1);
+            } else {
+                FloorplanHistoryFormat.writeVarInt(mPayload, 0);
+                FloorplanHistoryFormat.writePolygon(mPayload, polygon);
+            }
+            if (!indices.containsKey(polygon.hash)) {
+                indices.put(polygon.hash, i);
+            }
+        }
+        mPayload.flush();
+
+        mOut.writeByte(isKeyframe ? FloorplanHistoryFormat.TYPE_KEYFRAME
+                : FloorplanHistoryFormat.TYPE_DELTA);
+        mOut.writeDouble(snapshot.timestamp);
+        mOut.writeInt(mPayloadBytes.size());
+        mPayloadBytes.writeTo(mOut);
+        mOut.flush();
+
+        mBytesWritten += FloorplanHistoryFormat.RECORD_HEADER_SIZE + mPayloadBytes.size();
+        mPreviousIndices = indices;
+        mRecordCount++;
+    }
+
+    /**
+     * @return Number of snapshots appended since the file was opened.
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return Bytes written since the file was opened.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Checks the header of an existing file and drops a record cut short at its end.
+     */
+    private static void recover(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "rw");
+        try {
+            if (in.length() < FloorplanHistoryFormat.HEADER_SIZE
+                    || in.readInt() != FloorplanHistoryFormat.MAGIC
+                    || in.readInt() != FloorplanHistoryFormat.VERSION) {
+                throw new IOException("Not a floorplan history file: " + file);
+            }
+            long end = FloorplanHistoryFormat.HEADER_SIZE;
+            long length = in.length();
+            while (end + FloorplanHistoryFormat.RECORD_HEADER_SIZE <= length) {
+                in.seek(end + FloorplanHistoryFormat.RECORD_HEADER_SIZE - 4);
+                int size = in.readInt();
+                long next = end + FloorplanHistoryFormat.RECORD_HEADER_SIZE + size;
+                // Drop a record cut short, and everything from a corrupt size on.
+                if (size < 0 || next <= end || next > length) {
+                    break;
+                }
+                end = next;
+            }
+            if (end < length) {
+                in.setLength(end);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
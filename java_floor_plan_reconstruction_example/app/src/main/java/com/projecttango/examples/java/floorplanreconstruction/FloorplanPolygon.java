@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import com.google.atap.tango.reconstruction.TangoPolygon;
+
+import java.util.List;
+
+/**
+ * Immutable copy of a {@code TangoPolygon} with its vertices packed in a float array.
+ * <p/>
+ * The vertices are x, y pairs in meters in the Tango start of service frame. A 64 bit content
+ * hash over the layer, area, closedness and vertices identifies polygons that did not change
+ * between two floorplans; it is cheap to compute directly from a {@code TangoPolygon}, so that
+ * unchanged polygons can be looked up before anything is copied.
+ */
+public class FloorplanPolygon {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public final int layer;
+    public final float area;
+    public final boolean isClosed;
+    public final float[] vertices;
+    public final long hash;
+    public final float minX;
+    public final float minY;
+    public final float maxX;
+    public final float maxY;
+
+    public FloorplanPolygon(int layer, float area, boolean isClosed, float[] vertices) {
+        this.layer = layer;
+        this.area = area;
+        this.isClosed = isClosed;
+        this.vertices = vertices;
+        long h = hashHeader(layer, area, isClosed);
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < vertices.length; i += 2) {
+            float x = vertices[i];
+            float y = vertices[i + 1];
+            h = hashVertex(h, x, y);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        this.hash = h;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * Copies a {@code TangoPolygon}.
+     */
+    public static FloorplanPolygon fromTangoPolygon(TangoPolygon polygon) {
+        List<float[]> points = polygon.vertices2d;
+        float[] vertices = new float[2 * points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            float[] point = points.get(i);
+            vertices[2 * i] = point[0];
+            vertices[2 * i + 1] = point[1];
+        }
+        return new FloorplanPolygon(polygon.layer, (float) polygon.area, polygon.isClosed,
+                vertices);
+    }
+
+    /**
+     * Computes the content hash that {@link #fromTangoPolygon} would give, without copying.
+     */
+    public static long hash(TangoPolygon polygon) {
+        long h = hashHeader(polygon.layer, (float) polygon.area, polygon.isClosed);
+        List<float[]> points = polygon.vertices2d;
+        for (int i = 0; i < points.size(); i++) {
+            float[] point = points.get(i);
+            h = hashVertex(h, point[0], point[1]);
+        }
+        return h;
+    }
+
+    public int getVertexCount() {
+        return vertices.length / 2;
+    }
+
+    /**
+     * Whether a point in meters lies inside the polygon. Open polygons contain no points.
+     */
+    public boolean contains(float x, float y) {
+        if (!isClosed || x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        // Count the edges crossed by a ray from the point towards +x.
+        boolean inside = false;
+        int n = vertices.length;
+        for (int i = 0, j = n - 2; i < n; j = i, i += 2) {
+            float yi = vertices[i + 1];
+            float yj = vertices[j + 1];
+            if ((yi > y) != (yj > y)) {
+                float xCross = vertices[i] + (y - yi) / (yj - yi) * (vertices[j] - vertices[i]);
+                if (x < xCross) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Whether another polygon, e.g. a hole, lies inside this one. Polygons of a floorplan don't
+     * cross each other's outlines, so one vertex inside is enough; others are only tested if it
+     * lies on the outline.
+     */
+    public boolean surrounds(FloorplanPolygon other) {
+        if (other.minX < minX || other.maxX > maxX || other.minY < minY || other.maxY > maxY) {
+            return false;
+        }
+        float[] v = other.vertices;
+        for (int i = 0; i < v.length; i += 2) {
+            if (contains(v[i], v[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hashHeader(int layer, float area, boolean isClosed) {
+        long h = FNV_OFFSET_BASIS;
+        h = (h ^ layer) * FNV_PRIME;
+        h = (h ^ Float.floatToIntBits(area)) * FNV_PRIME;
+        return (h ^ (isClosed ? 1 : 0)) * FNV_PRIME;
+    }
+
+    private static long hashVertex(long h, float x, float y) {
+        h = (h ^ Float.floatToIntBits(x)) * FNV_PRIME;
+        return (h ^ Float.floatToIntBits(y)) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import com.google.atap.tango.reconstruction.TangoPolygon;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts floorplan polygons into paths ready to be drawn.
+ * <p/>
+ * Each polygon is packed and turned into a path once. When a new floorplan arrives, polygons
+ * whose content hash matches one of the previous floorplan reuse its path, so only the polygons
+ * that changed are rebuilt. The layer and area filters are applied here too, so the draw loop
+ * only iterates the polygons to be drawn.
+ * <p/>
+ * Detail levels are computed here as well, on the thread delivering the floorplans, so that the
+ * view only has to pick the level matching its zoom.
+ * <p/>
+ * {@link #update} and {@link #updatePolygons} must always be called from the same thread. The
+ * lists they return are immutable and can be drawn from any thread.
+ */
+public class FloorplanRenderCache {
+    private static final String TAG = FloorplanRenderCache.class.getSimpleName();
+
+    public static final int STYLE_WALL = 0;
+    public static final int STYLE_SPACE = 1;
+    public static final int STYLE_FURNITURE = 2;
+    // Negative area polygons of any layer, drawn with the background color.
+    public static final int STYLE_HOLE = 3;
+
+    // Simplification tolerance in meters of the first simplified detail level; each following
+    // level doubles it. The floorplan itself is extracted with a 5 cm tolerance.
+    private static final float BASE_TOLERANCE = 0.02f;
+    private static final int MAX_DETAIL_LEVELS = 6;
+
+    /**
+     * A polygon with its path and bounds in view pixels, before pan, zoom and camera transforms.
+     * <p/>
+     * Besides the full resolution path, it keeps paths simplified with a doubling tolerance, so
+     * that a zoomed out view can draw fewer vertices.
+     */
+    public static class RenderPolygon {
+        public final FloorplanPolygon polygon;
+        public final int style;
+        public final Path path;
+        public final RectF bounds;
+        // Paths of the detail levels, from the full resolution one, with the maximum error in
+        // meters of each and their vertex count.
+        private final Path[] mLevelPaths;
+        private final float[] mLevelErrors;
+        private final int[] mLevelVertexCounts;
+
+        RenderPolygon(FloorplanPolygon polygon, int style, float scale, float margin) {
+            this.polygon = polygon;
+            this.style = style;
+            path = createPath(polygon.vertices, polygon.isClosed, scale);
+            bounds = new RectF(polygon.minX * scale - margin, -polygon.maxY * scale - margin,
+                    polygon.maxX * scale + margin, -polygon.minY * scale + margin);
+
+            Path[] paths = new Path[MAX_DETAIL_LEVELS];
+            float[] errors = new float[MAX_DETAIL_LEVELS];
+            int[] vertexCounts = new int[MAX_DETAIL_LEVELS];
+            paths[0] = path;
+            vertexCounts[0] = polygon.getVertexCount();
+            int minVertexCount = polygon.isClosed ? 3 : 2;
+            int levels = 1;
+            float tolerance = BASE_TOLERANCE;
+            // Always simplify the original vertices, so the error of each level is bounded by
+            // its own tolerance.
+            while (levels < MAX_DETAIL_LEVELS && vertexCounts[levels - 1] > minVertexCount) {
+                float[] simplified =
+                        PolygonSimplifier.simplify(polygon.vertices, polygon.isClosed, tolerance);
+                int vertexCount = simplified.length / 2;
+                if (vertexCount < minVertexCount) {
+                    break;
+                }
+                // Share the path of the previous level if nothing more was removed.
+                paths[levels] = vertexCount == vertexCounts[levels - 1] ? paths[levels - 1]
+                        : createPath(simplified, polygon.isClosed, scale);
+                errors[levels] = tolerance;
+                vertexCounts[levels] = vertexCount;
+                levels++;
+                tolerance *= 2;
+            }
+            mLevelPaths = new Path[levels];
+            mLevelErrors = new float[levels];
+            mLevelVertexCounts = new int[levels];
+            System.arraycopy(paths, 0, mLevelPaths, 0, levels);
+            System.arraycopy(errors, 0, mLevelErrors, 0, levels);
+            System.arraycopy(vertexCounts, 0, mLevelVertexCounts, 0, levels);
+        }
+
+        /**
+         * @param maxError Maximum error in meters, e.g. the size of a screen pixel.
+         * @return The path with the fewest vertices whose error is below {@code maxError}.
+         */
+        public Path getPath(float maxError) {
+            return mLevelPaths[getLevel(maxError)];
+        }
+
+        /**
+         * @return Number of vertices of the path returned by {@link #getPath}.
+         */
+        public int getVertexCount(float maxError) {
+            return mLevelVertexCounts[getLevel(maxError)];
+        }
+
+        public int getLevelCount() {
+            return mLevelPaths.length;
+        }
+
+        private int getLevel(float maxError) {
+            int level = mLevelErrors.length - 1;
+            while (level > 0 && mLevelErrors[level] >= maxError) {
+                level--;
+            }
+            return level;
+        }
+
+        private static Path createPath(float[] v, boolean isClosed, float scale) {
+            Path path = new Path();
+            // NOTE: We need to flip the Y axis since the polygon data is in Tango start of
+            // service frame (Y+ forward) and we want to draw image coordinates (Y+ 2D down).
+            path.moveTo(v[0] * scale, -v[1] * scale);
+            for (int i = 2; i < v.length; i += 2) {
+                path.lineTo(v[i] * scale, -v[i + 1] * scale);
+            }
+            if (isClosed) {
+                path.close();
+            }
+            return path;
+        }
+    }
+
+    private final float mScale;
+    private final float mMargin;
+    private final float mMinAreaSpace;
+    private final float mMinAreaWall;
+
+    private Map<Long, RenderPolygon> mCache = new HashMap<Long, RenderPolygon>();
+    private int mRebuiltCount;
+    private int mReusedCount;
+
+    /**
+     * @param scale        Pixels per meter.
+     * @param margin       Pixels added around the bounds, e.g. for the stroke width.
+     * @param minAreaSpace Free space polygons smaller than this are only drawn if they are the
+     *                     first one.
+     * @param minAreaWall  Wall polygons smaller than this are not drawn.
+     */
+    public FloorplanRenderCache(float scale, float margin, float minAreaSpace,
+                                float minAreaWall) {
+        mScale = scale;
+        mMargin = margin;
+        mMinAreaSpace = minAreaSpace;
+        mMinAreaWall = minAreaWall;
+    }
+
+    /**
+     * Converts a new floorplan, reusing the unchanged polygons of the previous one.
+     *
+     * @return The polygons to be drawn, in drawing order.
+     */
+    public List<RenderPolygon> update(List<TangoPolygon> polygons) {
+        Update update = new Update(polygons.size());
+        for (TangoPolygon tangoPolygon : polygons) {
+            long hash = FloorplanPolygon.hash(tangoPolygon);
+            RenderPolygon renderPolygon = update.find(hash);
+            if (renderPolygon == null) {
+                if (tangoPolygon.vertices2d.isEmpty()) {
+                    continue;
+                }
+                renderPolygon = update.build(FloorplanPolygon.fromTangoPolygon(tangoPolygon));
+            }
+            update.add(hash, renderPolygon);
+        }
+        return update.finish();
+    }
+
+    /**
+     * Converts a floorplan that was already copied, e.g. one loaded from a history file.
+     *
+     * @return The polygons to be drawn, in drawing order.
+     */
+    public List<RenderPolygon> updatePolygons(List<FloorplanPolygon> polygons) {
+        Update update = new Update(polygons.size());
+        for (FloorplanPolygon polygon : polygons) {
+            RenderPolygon renderPolygon = update.find(polygon.hash);
+            if (renderPolygon == null) {
+                if (polygon.vertices.length == 0) {
+                    continue;
+                }
+                renderPolygon = update.build(polygon);
+            }
+            update.add(polygon.hash, renderPolygon);
+        }
+        return update.finish();
+    }
+
+    /**
+     * State of one update: the new cache, the draw list and the filters.
+     */
+    private class Update {
+        final Map<Long, RenderPolygon> cache;
+        final List<RenderPolygon> drawPolygons;
+        int rebuilt = 0;
+        boolean largestSpaceDrawn = false;
+
+        Update(int size) {
+            cache = new HashMap<Long, RenderPolygon>(2 * size);
+            drawPolygons = new ArrayList<RenderPolygon>(size);
+        }
+
+        /**
+         * @return The polygon of this or the previous floorplan with a given hash, or null.
+         */
+        RenderPolygon find(long hash) {
+            RenderPolygon renderPolygon = cache.get(hash);
+            return renderPolygon != null ? renderPolygon : mCache.get(hash);
+        }
+
+        /**
+         * @return A new polygon, or null if its layer is unknown.
+         */
+        RenderPolygon build(FloorplanPolygon polygon) {
+            int style = getStyle(polygon);
+            if (style < 0) {
+                Log.w(TAG, "Ignoring polygon with unknown layer value: " + polygon.layer);
+                return null;
+            }
+            rebuilt++;
+            return new RenderPolygon(polygon, style, mScale, mMargin);
+        }
+
+        void add(long hash, RenderPolygon renderPolygon) {
+            if (renderPolygon == null) {
+                return;
+            }
+            cache.put(hash, renderPolygon);
+
+            FloorplanPolygon polygon = renderPolygon.polygon;
+            switch (polygon.layer) {
+                case TangoPolygon.TANGO_3DR_LAYER_SPACE:
+                    // Only draw free space polygons larger than 2 square meter.
+                    // The goal of this is to suppress free space polygons in front of windows.
+                    // Always draw holes (=negative area) independent of surface area.
+                    if (polygon.area > 0) {
+                        if (largestSpaceDrawn && polygon.area < mMinAreaSpace) {
+                            return;
+                        }
+                        largestSpaceDrawn = true;
+                    }
+                    break;
+                case TangoPolygon.TANGO_3DR_LAYER_WALLS:
+                    // Only draw wall polygons larger than 20cm x 20cm to suppress noise.
+                    if (Math.abs(polygon.area) < mMinAreaWall) {
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            drawPolygons.add(renderPolygon);
+        }
+
+        List<RenderPolygon> finish() {
+            mCache = cache;
+            mRebuiltCount = rebuilt;
+            mReusedCount = cache.size() - rebuilt;
+            return Collections.unmodifiableList(drawPolygons);
+        }
+    }
+
+    /**
+     * @return Number of distinct polygons rebuilt by the last update.
+     */
+    public int getRebuiltCount() {
+        return mRebuiltCount;
+    }
+
+    /**
+     * @return Number of distinct polygons reused by the last update.
+     */
+    public int getReusedCount() {
+        return mReusedCount;
+    }
+
+    /**
+     * @return The drawing style of a polygon, or -1 if its layer is unknown.
+     */
+    private static int getStyle(FloorplanPolygon polygon) {
+        int style;
+        switch (polygon.layer) {
+            case TangoPolygon.TANGO_3DR_LAYER_FURNITURE:
+                style = STYLE_FURNITURE;
+                break;
+            case TangoPolygon.TANGO_3DR_LAYER_SPACE:
+                style = STYLE_SPACE;
+                break;
+            case TangoPolygon.TANGO_3DR_LAYER_WALLS:
+                style = STYLE_WALL;
+                break;
+            default:
+                return -1;
+        }
+        return polygon.area < 0 ? STYLE_HOLE : style;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import com.google.atap.tango.reconstruction.TangoFloorplanLevel;
+import com.google.atap.tango.reconstruction.TangoPolygon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable floorplan at a point in time: its polygons in drawing order and its levels.
+ */
+public class FloorplanSnapshot {
+    // Seconds, e.g. since the start of the scan.
+    public final double timestamp;
+    public final List<FloorplanPolygon> polygons;
+    // Min z and max z of each level, in meters.
+    private final float[] mLevels;
+
+    public FloorplanSnapshot(double timestamp, List<FloorplanPolygon> polygons, float[] levels) {
+        this.timestamp = timestamp;
+        this.polygons = Collections.unmodifiableList(polygons);
+        mLevels = levels;
+    }
+
+    /**
+     * Copies the output of the floorplanner.
+     */
+    public static FloorplanSnapshot fromTango(double timestamp, List<TangoPolygon> polygons,
+                                              List<TangoFloorplanLevel> levels) {
+        List<FloorplanPolygon> copies = new ArrayList<FloorplanPolygon>(polygons.size());
+        for (TangoPolygon polygon : polygons) {
+            if (!polygon.vertices2d.isEmpty()) {
+                copies.add(FloorplanPolygon.fromTangoPolygon(polygon));
+            }
+        }
+        float[] levelHeights = new float[2 * levels.size()];
+        for (int i = 0; i < levels.size(); i++) {
+            levelHeights[2 * i] = levels.get(i).minZ;
+            levelHeights[2 * i + 1] = levels.get(i).maxZ;
+        }
+        return new FloorplanSnapshot(timestamp, copies, levelHeights);
+    }
+
+    public int getLevelCount() {
+        return mLevels.length / 2;
+    }
+
+    public float getLevelMinZ(int level) {
+        return mLevels[2 * level];
+    }
+
+    public float getLevelMaxZ(int level) {
+        return mLevels[2 * level + 1];
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import com.google.atap.tango.reconstruction.TangoPolygon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Area and wall length statistics of a floorplan, updated incrementally.
+ * <p/>
+ * Polygons are identified by their content hash, so each update only converts and accounts for
+ * the polygons added or removed since the previous floorplan. Identical polygons are counted
+ * once.
+ * <p/>
+ * A room is a free space polygon with a positive area, minus the free space holes inside it.
+ * Rooms can be nested, e.g. an island inside a hole of another room; each hole belongs to the
+ * smallest room around it.
+ * Rooms smaller than the minimum area, e.g. those seen through windows, don't count towards the
+ * explored area, unless there is no larger room; then only the largest one counts.
+ * <p/>
+ * {@link #update} must always be called from the same thread. The snapshots it returns are
+ * immutable and can be read from any thread.
+ */
+public class FloorplanStatistics {
+
+    /**
+     * A free space component.
+     */
+    public static class Room {
+        // Area without the holes, in square meters.
+        public final double area;
+        // Area of the outline, in square meters.
+        public final double outlineArea;
+        public final int holeCount;
+        public final FloorplanPolygon polygon;
+
+        Room(RoomState state) {
+            area = state.polygon.area + state.holeArea;
+            outlineArea = state.polygon.area;
+            holeCount = state.holeCount;
+            polygon = state.polygon;
+        }
+    }
+
+    /**
+     * Statistics of one floorplan.
+     */
+    public static class Snapshot {
+        // Sum of the signed polygon areas of each layer, in square meters.
+        public final double spaceArea;
+        public final double wallArea;
+        public final double furnitureArea;
+        // Area of the rooms counted as explored, in square meters.
+        public final double exploredArea;
+        // Length of the walls in meters, counting closed wall polygons as half their perimeter.
+        public final double wallLength;
+        // Rooms by decreasing area.
+        public final List<Room> rooms;
+        public final int polygonCount;
+        // Polygons added and removed by the update that produced these statistics.
+        public final int addedCount;
+        public final int removedCount;
+
+        Snapshot(double spaceArea, double wallArea, double furnitureArea, double exploredArea,
+                 double wallLength, List<Room> rooms, int polygonCount, int addedCount,
+                 int removedCount) {
+            this.spaceArea = spaceArea;
+            this.wallArea = wallArea;
+            this.furnitureArea = furnitureArea;
+            this.exploredArea = exploredArea;
+            this.wallLength = wallLength;
+            this.rooms = rooms;
+            this.polygonCount = polygonCount;
+            this.addedCount = addedCount;
+            this.removedCount = removedCount;
+        }
+    }
+
+    private static class RoomState {
+        final FloorplanPolygon polygon;
+        double holeArea;
+        int holeCount;
+
+        RoomState(FloorplanPolygon polygon) {
+            this.polygon = polygon;
+        }
+    }
+
+    private static class HoleState {
+        final FloorplanPolygon polygon;
+        RoomState room;
+
+        HoleState(FloorplanPolygon polygon) {
+            this.polygon = polygon;
+        }
+    }
+
+    private static final Comparator<Room> BY_DECREASING_AREA = new Comparator<Room>() {
+        @Override
+        public int compare(Room a, Room b) {
+            return Double.compare(b.area, a.area);
+        }
+    };
+
+    private final float mMinRoomArea;
+
+    // Current polygons by hash.
+    private final Map<Long, FloorplanPolygon> mPolygons = new HashMap<Long, FloorplanPolygon>();
+    private final Map<Long, RoomState> mRooms = new HashMap<Long, RoomState>();
+    private final Map<Long, HoleState> mHoles = new HashMap<Long, HoleState>();
+    private double mSpaceArea;
+    private double mWallArea;
+    private double mFurnitureArea;
+    private double mWallLength;
+    private volatile Snapshot mSnapshot = new Snapshot(0, 0, 0, 0, 0,
+            Collections.<Room>emptyList(), 0, 0, 0);
+
+    /**
+     * @param minRoomArea Rooms smaller than this are not counted as explored area if there is a
+     *                    larger one.
+     */
+    public FloorplanStatistics(float minRoomArea) {
+        mMinRoomArea = minRoomArea;
+    }
+
+    /**
+     * Updates the statistics with a new floorplan.
+     *
+     * @return The statistics of the new floorplan, also returned by {@link #getSnapshot}.
+     */
+    public Snapshot update(List<TangoPolygon> polygons) {
+        Map<Long, TangoPolygon> current = new HashMap<Long, TangoPolygon>(2 * polygons.size());
+        for (TangoPolygon polygon : polygons) {
+            if (!polygon.vertices2d.isEmpty()) {
+                current.put(FloorplanPolygon.hash(polygon), polygon);
+            }
+        }
+
+        int removed = 0;
+        for (Iterator<Map.Entry<Long, FloorplanPolygon>> it = mPolygons.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<Long, FloorplanPolygon> entry = it.next();
+            if (!current.containsKey(entry.getKey())) {
+                remove(entry.getKey(), entry.getValue());
+                it.remove();
+                removed++;
+            }
+        }
+        // Add rooms before holes, so that new holes find their new room.
+        List<Long> addedHoles = new ArrayList<Long>();
+        int added = 0;
+        for (Map.Entry<Long, TangoPolygon> entry : current.entrySet()) {
+            long hash = entry.getKey();
+            if (mPolygons.containsKey(hash)) {
+                continue;
+            }
+            FloorplanPolygon polygon = FloorplanPolygon.fromTangoPolygon(entry.getValue());
+            mPolygons.put(hash, polygon);
+            added++;
+            if (isHole(polygon)) {
+                addedHoles.add(hash);
+            } else {
+                add(hash, polygon);
+            }
+        }
+        for (long hash : addedHoles) {
+            add(hash, mPolygons.get(hash));
+        }
+
+        if (added > 0 || removed > 0) {
+            mSnapshot = createSnapshot(added, removed);
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * @return The statistics of the last floorplan.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    private void add(long hash, FloorplanPolygon polygon) {
+        addToLayer(polygon, 1);
+        if (isRoom(polygon)) {
+            RoomState room = new RoomState(polygon);
+            mRooms.put(hash, room);
+            // Take over the holes of larger rooms that are also inside the new one.
+            for (HoleState hole : mHoles.values()) {
+                if ((hole.room == null || polygon.area < hole.room.polygon.area)
+                        && polygon.surrounds(hole.polygon)) {
+                    detach(hole);
+                    attach(hole, room);
+                }
+            }
+        } else if (isHole(polygon)) {
+            HoleState hole = new HoleState(polygon);
+            mHoles.put(hash, hole);
+            attachToSmallestRoom(hole);
+        }
+    }
+
+    private void remove(long hash, FloorplanPolygon polygon) {
+        addToLayer(polygon, -1);
+        RoomState room = mRooms.remove(hash);
+        if (room != null) {
+            // Holes of the removed room move to the next larger room around them, if any.
+            for (HoleState hole : mHoles.values()) {
+                if (hole.room == room) {
+                    detach(hole);
+                    attachToSmallestRoom(hole);
+                }
+            }
+        }
+        HoleState hole = mHoles.remove(hash);
+        if (hole != null) {
+            detach(hole);
+        }
+    }
+
+    private void attachToSmallestRoom(HoleState hole) {
+        RoomState smallest = null;
+        for (RoomState room : mRooms.values()) {
+            if ((smallest == null || room.polygon.area < smallest.polygon.area)
+                    && room.polygon.surrounds(hole.polygon)) {
+                smallest = room;
+            }
+        }
+        if (smallest != null) {
+            attach(hole, smallest);
+        }
+    }
+
+    private static void attach(HoleState hole, RoomState room) {
+        hole.room = room;
+        room.holeArea += hole.polygon.area;
+        room.holeCount++;
+    }
+
+    private static void detach(HoleState hole) {
+        if (hole.room != null) {
+            hole.room.holeArea -= hole.polygon.area;
+            hole.room.holeCount--;
+            hole.room = null;
+        }
+    }
+
+    /**
+     * Adds or subtracts the area and wall length of a polygon.
+     */
+    private void addToLayer(FloorplanPolygon polygon, int sign) {
+        switch (polygon.layer) {
+            case TangoPolygon.TANGO_3DR_LAYER_SPACE:
+                mSpaceArea += sign * polygon.area;
+                break;
+            case TangoPolygon.TANGO_3DR_LAYER_WALLS:
+                mWallArea += sign * polygon.area;
+                mWallLength += sign * getWallLength(polygon);
+                break;
+            case TangoPolygon.TANGO_3DR_LAYER_FURNITURE:
+                mFurnitureArea += sign * polygon.area;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Snapshot createSnapshot(int added, int removed) {
+        List<Room> rooms = new ArrayList<Room>(mRooms.size());
+        for (RoomState room : mRooms.values()) {
+            rooms.add(new Room(room));
+        }
+        Collections.sort(rooms, BY_DECREASING_AREA);
+        double exploredArea = 0;
+        for (Room room : rooms) {
+            if (room.area >= mMinRoomArea) {
+                exploredArea += room.area;
+            }
+        }
+        if (exploredArea == 0 && !rooms.isEmpty()) {
+            exploredArea = rooms.get(0).area;
+        }
+        return new Snapshot(mSpaceArea, mWallArea, mFurnitureArea, exploredArea, mWallLength,
+                Collections.unmodifiableList(rooms), mPolygons.size(), added, removed);
+    }
+
+    private static boolean isRoom(FloorplanPolygon polygon) {
+        return polygon.layer == TangoPolygon.TANGO_3DR_LAYER_SPACE && polygon.isClosed
+                && polygon.area > 0;
+    }
+
+    private static boolean isHole(FloorplanPolygon polygon) {
+        return polygon.layer == TangoPolygon.TANGO_3DR_LAYER_SPACE && polygon.isClosed
+                && polygon.area < 0;
+    }
+
+    /**
+     * @return Half the perimeter of closed wall polygons, which are thin outlines around the
+     * walls, or the length of open ones.
+     */
+    private static double getWallLength(FloorplanPolygon polygon) {
+        float[] v = polygon.vertices;
+        double length = 0;
+        for (int i = 2; i < v.length; i += 2) {
+            length += Math.hypot(v[i] - v[i - 2], v[i + 1] - v[i - 1]);
+        }
+        if (polygon.isClosed && v.length > 2) {
+            length += Math.hypot(v[0] - v[v.length - 2], v[1] - v[v.length - 1]);
+            length /= 2;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Renders floorplan tiles into bitmaps on a background thread.
+ * <p/>
+ * Tiles are requested by the view as it finds them missing or stale; the most recent requests
+ * are rendered first, so that panning renders the tiles in view before older ones. Bitmaps
+ * evicted from the cache are pooled and reused.
+ */
+public class FloorplanTileRenderer implements TileCache.Recycler<Bitmap> {
+    private static final int MAX_POOLED_BITMAPS = 4;
+
+    private final int mTileSize;
+    private final float mPlanScale;
+    private final Paint[] mStylePaints;
+    private final int mBackgroundColor;
+    private final Runnable mOnTileRendered;
+    private TileCache<Bitmap> mCache;
+
+    private volatile FloorplanView.IndexedPolygons mPolygons;
+    private final LinkedBlockingDeque<Long> mRequests = new LinkedBlockingDeque<Long>();
+    // Keys in mRequests, guarded by itself.
+    private final Set<Long> mRequested = new HashSet<Long>();
+    // Bitmaps ready to be reused, guarded by itself.
+    private final ArrayDeque<Bitmap> mPool = new ArrayDeque<Bitmap>();
+    private Thread mThread;
+
+    /**
+     * @param planScale      Plan pixels per meter.
+     * @param stylePaints    Paint of each polygon style, only read while rendering.
+     * @param onTileRendered Called from the render thread after each tile.
+     */
+    public FloorplanTileRenderer(int tileSize, float planScale, Paint[] stylePaints,
+                                 int backgroundColor, Runnable onTileRendered) {
+        mTileSize = tileSize;
+        mPlanScale = planScale;
+        mStylePaints = stylePaints;
+        mBackgroundColor = backgroundColor;
+        mOnTileRendered = onTileRendered;
+    }
+
+    /**
+     * Sets the cache to render into. Must be called before {@link #start}.
+     */
+    public void setCache(TileCache<Bitmap> cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the polygons tiles are rendered from. Call it before invalidating the changed areas.
+     */
+    public void setPolygons(FloorplanView.IndexedPolygons polygons) {
+        mPolygons = polygons;
+    }
+
+    /**
+     * Queues a tile for rendering, ahead of the tiles already queued.
+     */
+    public void request(int level, int x, int y) {
+        long key = TileCache.key(level, x, y);
+        synchronized (mRequested) {
+            if (!mRequested.add(key)) {
+                return;
+            }
+        }
+        mRequests.offerFirst(key);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renderTiles();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "FloorplanTileRenderer");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stops rendering and drops the pending requests.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mThread.interrupt();
+        mThread = null;
+        synchronized (mRequested) {
+            mRequests.clear();
+            mRequested.clear();
+        }
+    }
+
+    @Override
+    public void recycle(Bitmap tile) {
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED_BITMAPS) {
+                mPool.push(tile);
+                return;
+            }
+        }
+        tile.recycle();
+    }
+
+    private void renderTiles() throws InterruptedException {
+        Canvas canvas = new Canvas();
+        int[] hits = new int[64];
+        while (true) {
+            long key = mRequests.takeFirst();
+            synchronized (mRequested) {
+                mRequested.remove(key);
+            }
+            int level = TileCache.levelOf(key);
+            int x = TileCache.xOf(key);
+            int y = TileCache.yOf(key);
+            if (!mCache.startRender(level, x, y)) {
+                continue;
+            }
+            // Read the polygons only after the tile is marked, see TileCache.
+            FloorplanView.IndexedPolygons polygons = mPolygons;
+            Bitmap bitmap = obtainBitmap();
+            bitmap.eraseColor(mBackgroundColor);
+            canvas.setBitmap(bitmap);
+            float scale = mCache.getScale(level);
+            float extent = mCache.getTileExtent(level);
+            float minX = x * extent;
+            float minY = y * extent;
+            canvas.save();
+            canvas.scale(scale, scale);
+            canvas.translate(-minX, -minY);
+            if (polygons != null) {
+                int count;
+                while ((count = polygons.index.query(minX, minY, minX + extent, minY + extent,
+                        hits)) < 0) {
+                    hits = new int[2 * hits.length];
+                }
+                float pixelSize = 1f / (mPlanScale * scale);
+                for (int i = 0; i < count; i++) {
+                    FloorplanRenderCache.RenderPolygon polygon = polygons.polygons.get(hits[i]);
+                    canvas.drawPath(polygon.getPath(pixelSize), mStylePaints[polygon.style]);
+                }
+            }
+            canvas.restore();
+            canvas.setBitmap(null);
+            mCache.finishRender(level, x, y, bitmap);
+            mOnTileRendered.run();
+        }
+    }
+
+    private Bitmap obtainBitmap() {
+        synchronized (mPool) {
+            if (!mPool.isEmpty()) {
+                return mPool.pop();
+            }
+        }
+        return Bitmap.createBitmap(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
+    }
+}
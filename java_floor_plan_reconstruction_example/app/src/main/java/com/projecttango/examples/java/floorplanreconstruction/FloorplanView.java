@@ -19,28 +19,42 @@ package com.projecttango.examples.java.floorplanreconstruction;
 import com.google.atap.tango.reconstruction.TangoPolygon;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 import android.support.v4.view.MotionEventCompat;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.util.TypedValue;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Custom view to represent a floorplan.
  *
- * It is implemented as a regular SurfaceView with its own render thread running at a fixed 10Hz
- * rate.
- * The floorplan is drawn using standard canvas draw methods.
+ * It is implemented as a regular SurfaceView with its own render thread, which only redraws when
+ * something changed: a new floorplan, a device pose change above a threshold, or a pan or zoom
+ * gesture. Requests arriving before the next frame are coalesced into it, and the frame rate is
+ * capped. The redraw rate and the time from a request to its frame are published to an
+ * {@link OnRenderStatsListener}.
+ * The floorplan is drawn using standard canvas draw methods. When zoomed out, the polygons are
+ * drawn from a pyramid of bitmap tiles rendered in the background instead, and only the user
+ * marker is drawn live. Tiles touched by a changed polygon are rendered again.
+ * <p/>
+ * Everything a frame depends on is published to the render thread as an immutable
+ * {@link RenderState}, which the floorplan, pose and gesture threads replace atomically. The render
+ * thread reads it once per frame without taking any lock, so it never waits for them.
  */
 public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback {
     private static final String TAG = FloorplanView.class.getSimpleName();
@@ -48,24 +62,55 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
     // Scale between meters and pixels. Hardcoded to a reasonable default.
     private static final float SCALE = 100f;
     private static final int INVALID_POINTER_ID = -1;
-
-    private volatile List<TangoPolygon> mPolygons = new ArrayList<>();
+    private static final float WALL_STROKE_WIDTH = 3;
+    private static final long MIN_FRAME_INTERVAL_NS = 1000000000L / 60;
+    // Device pose changes smaller than these don't trigger a redraw.
+    private static final float POSE_TRANSLATION_THRESHOLD = 0.01f;
+    private static final float POSE_YAW_THRESHOLD = (float) Math.toRadians(0.5);
+    private static final long STATS_INTERVAL_NS = 1000000000L;
+    // Tiles are used at zoom factors up to TILE_MAX_SCALE, with levels rendered at this zoom
+    // factor and halving it down to the minimum zoom. At 256 KB per tile, the cache holds 24 MB.
+    private static final float TILE_MAX_SCALE = 0.5f;
+    private static final int TILE_SIZE = 256;
+    private static final int TILE_LEVEL_COUNT = 3;
+    private static final int MAX_TILES = 96;
+
+    // State to draw next, and state of the last frame drawn, for hit testing.
+    private final AtomicReference<RenderState> mState = new AtomicReference<RenderState>(
+            new RenderState(new IndexedPolygons(
+                    new ArrayList<FloorplanRenderCache.RenderPolygon>())));
+    private volatile RenderState mDrawnState = mState.get();
+    private FloorplanRenderCache mRenderCache;
+    // Indices of the polygons in the viewport. Only used in the render thread.
+    private int[] mVisiblePolygons = new int[64];
+    private OnPolygonTappedListener mTapListener;
+    private volatile OnRenderStatsListener mStatsListener;
+    private TileCache<Bitmap> mTileCache;
+    private FloorplanTileRenderer mTileRenderer;
+    private Paint mTilePaint;
+    // Destination of a tile, one entry to test tiles for polygons. Only used in the render thread.
+    private RectF mTileRect = new RectF();
+    private int[] mTileHit = new int[1];
 
     private Paint mBackgroundPaint;
     private Paint mWallPaint;
     private Paint mSpacePaint;
     private Paint mFurniturePaint;
     private Paint mUserMarkerPaint;
+    private Paint mSelectedPaint;
     private ScaleGestureDetector mScaleDetector;
+    private GestureDetector mTapDetector;
 
     private Path mUserMarkerPath;
 
-    // Pan and Zoom matrix.
-    private Matrix mPanAndZoomMatrix;
-    // The fixed camera matrix does not include the translation that comes from the user dragging
-    // the plan around.
-    private Matrix mFixedCameraMatrix;
+    // Matrices derived from the render state. Only used in the render thread.
+    // The inverse of the fixed camera transform, without the translation that comes from the user
+    // dragging the plan around, to draw the user marker.
     private Matrix mFixedCameraInverse;
+    // Full transform from the plan to the view, and its inverse, for culling.
+    private Matrix mViewMatrix;
+    private Matrix mViewInverse;
+    private RectF mViewport;
 
     // The ‘active pointer’ is the one currently moving our object.
     private int mActivePointerId = INVALID_POINTER_ID;
@@ -74,50 +119,227 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
     private float mLastTouchX;
     private float mLastTouchY;
 
-    // Position of the user marker relative to its start position, in screen coordinates.
-    private float mDragX = 0;
-    private float mDragY = 0;
+    // Scale factor of the frame being drawn. Only used in the render thread.
+    private float mDrawScaleFactor = 1.f;
+    private int mDrawnVertexCount;
 
-    private float mScaleFactor = 1.f;
+    // Device position and yaw of the last redraw request from updateCameraMatrix, guarded by
+    // mPoseLock. The render thread doesn't use them.
+    private final Object mPoseLock = new Object();
+    private float mRequestedDeviceX;
+    private float mRequestedDeviceY;
+    private float mRequestedDeviceYaw;
+    private boolean mHasDevicePose;
 
-    private boolean mIsDrawing = false;
     private SurfaceHolder mSurfaceHolder;
 
     private float mMinAreaSpace = 0f;
     private float mMinAreaWall = 0f;
 
+    // Render scheduling state, guarded by mRenderLock.
+    private final Object mRenderLock = new Object();
+    private boolean mIsDrawing = false;
+    private boolean mRenderRequested;
+    // Time of the first redraw request since the last frame.
+    private long mRenderRequestTimeNs;
+
     /**
-     * Custom render thread, running at a fixed 10Hz rate.
+     * Custom render thread, redrawing on request.
      */
     private class RenderThread extends Thread {
+        private long mLastFrameNs;
+        private long mStatsStartNs = System.nanoTime();
+        private int mStatsFrames;
+        private long mStatsSumLatencyNs;
+        private long mStatsMaxLatencyNs;
+
         @Override
         public void run() {
-            while (mIsDrawing) {
-                Canvas canvas = mSurfaceHolder.lockCanvas();
-                if (canvas != null) {
-                    doDraw(canvas);
-                    mSurfaceHolder.unlockCanvasAndPost(canvas);
+            try {
+                while (true) {
+                    long requestTimeNs;
+                    synchronized (mRenderLock) {
+                        while (mIsDrawing && !mRenderRequested) {
+                            mRenderLock.wait();
+                        }
+                        if (!mIsDrawing) {
+                            return;
+                        }
+                        // Wait for the frame rate cap; requests arriving meanwhile are coalesced.
+                        long waitNs = mLastFrameNs + MIN_FRAME_INTERVAL_NS - System.nanoTime();
+                        if (waitNs > 0) {
+                            mRenderLock.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                            continue;
+                        }
+                        mRenderRequested = false;
+                        requestTimeNs = mRenderRequestTimeNs;
+                    }
+
+                    Canvas canvas = mSurfaceHolder.lockCanvas();
+                    if (canvas != null) {
+                        doDraw(canvas);
+                        mSurfaceHolder.unlockCanvasAndPost(canvas);
+                    }
+                    mLastFrameNs = System.nanoTime();
+                    updateStats(mLastFrameNs - requestTimeNs);
                 }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+            } catch (InterruptedException e) {
+                // The view is gone.
+            }
+        }
+
+        private void updateStats(long latencyNs) {
+            mStatsFrames++;
+            mStatsSumLatencyNs += latencyNs;
+            mStatsMaxLatencyNs = Math.max(mStatsMaxLatencyNs, latencyNs);
+            long elapsedNs = mLastFrameNs - mStatsStartNs;
+            if (elapsedNs >= STATS_INTERVAL_NS) {
+                OnRenderStatsListener listener = mStatsListener;
+                if (listener != null) {
+                    listener.onRenderStats(mStatsFrames * 1e9f / elapsedNs,
+                            mStatsSumLatencyNs / 1e6f / mStatsFrames, mStatsMaxLatencyNs / 1e6f,
+                            mDrawnVertexCount);
                 }
+                mStatsStartNs = mLastFrameNs;
+                mStatsFrames = 0;
+                mStatsSumLatencyNs = 0;
+                mStatsMaxLatencyNs = 0;
             }
         }
     };
     private RenderThread mDrawThread;
 
     /**
-     * Pre-drawing callback.
+     * Listener for taps on the floorplan.
      */
-    public interface DrawingCallback {
+    public interface OnPolygonTappedListener {
         /**
-         * Called during onDraw, before any element is drawn to the view canvas.
+         * Called from the UI thread with the topmost polygon drawn under a tap, or null if there
+         * is none.
          */
-        void onPreDrawing();
+        void onPolygonTapped(FloorplanPolygon polygon);
     }
 
-    private DrawingCallback mCallback;
+    /**
+     * Listener for the render statistics.
+     */
+    public interface OnRenderStatsListener {
+        /**
+         * Called from the render thread about once per second of redraws.
+         *
+         * @param redrawsPerSecond Redraws per second over the interval.
+         * @param meanLatencyMs    Mean time from a redraw request to its frame being posted.
+         * @param maxLatencyMs     Maximum time from a redraw request to its frame being posted.
+         * @param vertexCount      Number of polygon vertices drawn in the last frame.
+         */
+        void onRenderStats(float redrawsPerSecond, float meanLatencyMs, float maxLatencyMs,
+                           int vertexCount);
+    }
+
+    /**
+     * Drawn polygons with an R-tree over their bounds.
+     */
+    static class IndexedPolygons {
+        final List<FloorplanRenderCache.RenderPolygon> polygons;
+        final PackedRTree index;
+
+        IndexedPolygons(List<FloorplanRenderCache.RenderPolygon> polygons) {
+            this.polygons = polygons;
+            float[] boxes = new float[4 * polygons.size()];
+            for (int i = 0; i < polygons.size(); i++) {
+                RectF bounds = polygons.get(i).bounds;
+                boxes[4 * i] = bounds.left;
+                boxes[4 * i + 1] = bounds.top;
+                boxes[4 * i + 2] = bounds.right;
+                boxes[4 * i + 3] = bounds.bottom;
+            }
+            index = new PackedRTree(boxes, polygons.size());
+        }
+    }
+
+    /**
+     * Immutable state a frame is drawn from. Writers replace it with a modified copy, retrying if
+     * another thread replaced it meanwhile.
+     */
+    static final class RenderState {
+        final IndexedPolygons polygons;
+        final FloorplanRenderCache.RenderPolygon selectedPolygon;
+        // Device position and yaw.
+        final float deviceX;
+        final float deviceY;
+        final float deviceYaw;
+        // Position of the user marker relative to its start position, in screen coordinates.
+        final float dragX;
+        final float dragY;
+        final float scaleFactor;
+        final int width;
+        final int height;
+
+        RenderState(IndexedPolygons polygons) {
+            this(polygons, null, 0, 0, 0, 0, 0, 1, 0, 0);
+        }
+
+        private RenderState(IndexedPolygons polygons,
+                            FloorplanRenderCache.RenderPolygon selectedPolygon, float deviceX,
+                            float deviceY, float deviceYaw, float dragX, float dragY,
+                            float scaleFactor, int width, int height) {
+            this.polygons = polygons;
+            this.selectedPolygon = selectedPolygon;
+            this.deviceX = deviceX;
+            this.deviceY = deviceY;
+            this.deviceYaw = deviceYaw;
+            this.dragX = dragX;
+            this.dragY = dragY;
+            this.scaleFactor = scaleFactor;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Replaces the polygons, clearing the selection.
+         */
+        RenderState withPolygons(IndexedPolygons polygons) {
+            return new RenderState(polygons, null, deviceX, deviceY, deviceYaw, dragX, dragY,
+                    scaleFactor, width, height);
+        }
+
+        RenderState withSelectedPolygon(FloorplanRenderCache.RenderPolygon selectedPolygon) {
+            return new RenderState(polygons, selectedPolygon, deviceX, deviceY, deviceYaw, dragX,
+                    dragY, scaleFactor, width, height);
+        }
+
+        RenderState withDevicePose(float x, float y, float yaw) {
+            return new RenderState(polygons, selectedPolygon, x, y, yaw, dragX, dragY,
+                    scaleFactor, width, height);
+        }
+
+        RenderState withDrag(float x, float y) {
+            return new RenderState(polygons, selectedPolygon, deviceX, deviceY, deviceYaw, x, y,
+                    scaleFactor, width, height);
+        }
+
+        RenderState withScaleFactor(float scaleFactor) {
+            return new RenderState(polygons, selectedPolygon, deviceX, deviceY, deviceYaw, dragX,
+                    dragY, scaleFactor, width, height);
+        }
+
+        RenderState withSize(int width, int height) {
+            return new RenderState(polygons, selectedPolygon, deviceX, deviceY, deviceYaw, dragX,
+                    dragY, scaleFactor, width, height);
+        }
+
+        /**
+         * Sets a matrix to the transform from the plan to the view: start drawing from the center
+         * of the view, then apply pan and zoom, and the device position and orientation.
+         */
+        void getViewMatrix(Matrix matrix) {
+            matrix.setTranslate(width / 2f, height / 2f);
+            matrix.preScale(scaleFactor, scaleFactor);
+            matrix.preTranslate(dragX, dragY);
+            matrix.preRotate((float) Math.toDegrees(deviceYaw));
+            matrix.preTranslate(-deviceX * SCALE, -deviceY * SCALE);
+        }
+    }
 
     public FloorplanView(Context context) {
         super(context);
@@ -136,6 +358,13 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
 
     private void init(Context context) {
         mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        mTapDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onSingleTapUp(MotionEvent e) {
+                onTap(e.getX(), e.getY());
+                return true;
+            }
+        });
 
         // Get parameters.
         TypedValue typedValue = new TypedValue();
@@ -143,12 +372,14 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
         mMinAreaSpace = typedValue.getFloat();
         getResources().getValue(R.dimen.min_area_wall, typedValue, true);
         mMinAreaWall = typedValue.getFloat();
+        mRenderCache = new FloorplanRenderCache(SCALE, WALL_STROKE_WIDTH, mMinAreaSpace,
+                mMinAreaWall);
 
         // Pre-create graphics objects.
         mWallPaint = new Paint();
         mWallPaint.setColor(getResources().getColor(android.R.color.black));
         mWallPaint.setStyle(Paint.Style.STROKE);
-        mWallPaint.setStrokeWidth(3);
+        mWallPaint.setStrokeWidth(WALL_STROKE_WIDTH);
         mBackgroundPaint = new Paint();
         mBackgroundPaint.setColor(getResources().getColor(android.R.color.white));
         mBackgroundPaint.setStyle(Paint.Style.FILL);
@@ -161,6 +392,10 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
         mUserMarkerPaint = new Paint();
         mUserMarkerPaint.setColor(getResources().getColor(R.color.user_marker));
         mUserMarkerPaint.setStyle(Paint.Style.FILL);
+        mSelectedPaint = new Paint();
+        mSelectedPaint.setColor(getResources().getColor(R.color.user_marker));
+        mSelectedPaint.setStyle(Paint.Style.STROKE);
+        mSelectedPaint.setStrokeWidth(2 * WALL_STROKE_WIDTH);
         mUserMarkerPath = new Path();
         mUserMarkerPath.lineTo(-0.2f * SCALE, 0);
         mUserMarkerPath.lineTo(-0.2f * SCALE, -0.05f * SCALE);
@@ -171,9 +406,28 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
         mUserMarkerPath.lineTo(-0.4f * SCALE, -0.5f  * SCALE);
         mUserMarkerPath.lineTo(0.4f  * SCALE, -0.5f * SCALE);
         mUserMarkerPath.lineTo(0, 0);
-        mPanAndZoomMatrix = new Matrix();
-        mFixedCameraMatrix = new Matrix();
         mFixedCameraInverse = new Matrix();
+        mViewMatrix = new Matrix();
+        mViewInverse = new Matrix();
+        mViewport = new RectF();
+
+        mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Paint[] stylePaints = new Paint[4];
+        stylePaints[FloorplanRenderCache.STYLE_WALL] = mWallPaint;
+        stylePaints[FloorplanRenderCache.STYLE_SPACE] = mSpacePaint;
+        stylePaints[FloorplanRenderCache.STYLE_FURNITURE] = mFurniturePaint;
+        stylePaints[FloorplanRenderCache.STYLE_HOLE] = mBackgroundPaint;
+        mTileRenderer = new FloorplanTileRenderer(TILE_SIZE, SCALE, stylePaints,
+                getResources().getColor(android.R.color.white), new Runnable() {
+            @Override
+            public void run() {
+                requestRender();
+            }
+        });
+        mTileCache = new TileCache<Bitmap>(TILE_SIZE, TILE_MAX_SCALE, TILE_LEVEL_COUNT,
+                MAX_TILES, mTileRenderer);
+        mTileRenderer.setCache(mTileCache);
+        mTileRenderer.setPolygons(mState.get().polygons);
 
         // Register for surface callback events.
         getHolder().addCallback(this);
@@ -182,138 +436,293 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public void surfaceCreated(SurfaceHolder surfaceHolder) {
         mSurfaceHolder = surfaceHolder;
-        mIsDrawing = true;
+        synchronized (mRenderLock) {
+            mIsDrawing = true;
+        }
         mDrawThread = new RenderThread();
         mDrawThread.start();
+        mTileRenderer.start();
+        requestRender();
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder surfaceHolder, int i, int i1, int i2) {
         mSurfaceHolder = surfaceHolder;
+        requestRender();
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
-        mIsDrawing = false;
+        synchronized (mRenderLock) {
+            mIsDrawing = false;
+            mRenderLock.notifyAll();
+        }
+        mTileRenderer.stop();
     }
 
-    private void doDraw(Canvas canvas) {
-        // Notify the activity so that it can use Tango to query the current device pose.
-        if (mCallback != null) {
-            mCallback.onPreDrawing();
+    /**
+     * Schedules a redraw. Requests made before the next frame is drawn are coalesced into it.
+     */
+    public void requestRender() {
+        synchronized (mRenderLock) {
+            if (!mRenderRequested) {
+                mRenderRequested = true;
+                mRenderRequestTimeNs = System.nanoTime();
+            }
+            mRenderLock.notifyAll();
         }
+    }
 
+    private void doDraw(Canvas canvas) {
         // Erase the previous canvas image.
         canvas.drawColor(getResources().getColor(android.R.color.white));
 
-        // Start drawing from the center of the canvas.
-        float translationX = canvas.getWidth() / 2f;
-        float translationY = canvas.getHeight() / 2f;
-        canvas.translate(translationX, translationY);
-
-        updatePanAndZoomMatrix();
-        canvas.concat(mPanAndZoomMatrix);
-        // Update position and orientation based on the device position and orientation.
-        canvas.concat(mFixedCameraMatrix);
-
-        // Draw all the polygons. Make a shallow copy in case mPolygons is reset while rendering.
-        List<TangoPolygon> drawPolygons = mPolygons;
-        boolean largestSpaceDrawn = false;
-        for (TangoPolygon polygon : drawPolygons) {
-            Paint paint;
-            switch(polygon.layer) {
-                case TangoPolygon.TANGO_3DR_LAYER_FURNITURE:
-                    paint = mFurniturePaint;
-                    break;
-                case TangoPolygon.TANGO_3DR_LAYER_SPACE:
-                    // Only draw free space polygons larger than 2 square meter.
-                    // The goal of this is to suppress free space polygons in front of windows.
-                    // Always draw holes (=negative area) independent of surface area.
-                    if (polygon.area > 0) {
-                        if (largestSpaceDrawn && polygon.area < mMinAreaSpace) {
-                            continue;
-                        }
-                        largestSpaceDrawn = true;
-                    } 
-                    paint = mSpacePaint;
-                    break;
-                case TangoPolygon.TANGO_3DR_LAYER_WALLS:
-                    // Only draw wall polygons larger than 20cm x 20cm to suppress noise.
-                    if (Math.abs(polygon.area) < mMinAreaWall) {
-                        continue;
-                    }
-                    paint = mWallPaint;
-                    break;
-                default:
-                    Log.w(TAG, "Ignoring polygon with unknown layer value: " + polygon.layer);
-                    continue;
-            }
-            if (polygon.area < 0.0) {
-                paint = mBackgroundPaint;
-            }
-            Path path = new Path();
-            float[] p = polygon.vertices2d.get(0);
-            // NOTE: We need to flip the Y axis since the polygon data is in Tango start of
-            // service frame (Y+ forward) and we want to draw image coordinates (Y+ 2D down).
-            path.moveTo(p[0] * SCALE, -1 * p[1] * SCALE);
-            for (int i = 1; i < polygon.vertices2d.size(); i++) {
-                float[] point = polygon.vertices2d.get(i);
-                path.lineTo(point[0] * SCALE, -1 * point[1] * SCALE);
+        // Read the state once, all of the frame is drawn from it.
+        RenderState state = mState.get();
+        if (state.width != canvas.getWidth() || state.height != canvas.getHeight()) {
+            state = state.withSize(canvas.getWidth(), canvas.getHeight());
+        }
+        mDrawScaleFactor = state.scaleFactor;
+        state.getViewMatrix(mViewMatrix);
+        mViewMatrix.invert(mViewInverse);
+        mFixedCameraInverse.setRotate(-(float) Math.toDegrees(state.deviceYaw));
+        mFixedCameraInverse.postTranslate(state.deviceX * SCALE, state.deviceY * SCALE);
+        canvas.concat(mViewMatrix);
+
+        // Draw the polygons within the view, in their original order, at the coarsest detail
+        // level that is still accurate to a pixel.
+        IndexedPolygons drawPolygons = state.polygons;
+        float pixelSize = 1f / (SCALE * mDrawScaleFactor);
+        mViewport.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        mViewInverse.mapRect(mViewport);
+        int vertexCount = 0;
+        if (mDrawScaleFactor > TILE_MAX_SCALE || !drawTiles(canvas, drawPolygons)) {
+            int count;
+            while ((count = drawPolygons.index.query(mViewport.left, mViewport.top,
+                    mViewport.right, mViewport.bottom, mVisiblePolygons)) < 0) {
+                mVisiblePolygons = new int[2 * mVisiblePolygons.length];
             }
-            if (polygon.isClosed) {
-                path.close();
+            for (int i = 0; i < count; i++) {
+                FloorplanRenderCache.RenderPolygon polygon =
+                        drawPolygons.polygons.get(mVisiblePolygons[i]);
+                canvas.drawPath(polygon.getPath(pixelSize), getPaint(polygon.style));
+                vertexCount += polygon.getVertexCount(pixelSize);
             }
-            canvas.drawPath(path, paint);
+        }
+        mDrawnVertexCount = vertexCount;
+        if (state.selectedPolygon != null) {
+            canvas.drawPath(state.selectedPolygon.getPath(pixelSize), mSelectedPaint);
         }
 
         // Draw a user / device marker.
         canvas.concat(mFixedCameraInverse);
         canvas.drawPath(mUserMarkerPath, mUserMarkerPaint);
+        mDrawnState = state;
+    }
+
+    /**
+     * Draws the tiles covering the viewport that contain polygons, and requests those missing or
+     * stale. Stale tiles are drawn until they are replaced, unless they no longer contain any
+     * polygon, e.g. after clearing the floorplan, in which case they are dropped.
+     *
+     * @return False if nothing was drawn because some tiles are missing.
+     */
+    private boolean drawTiles(Canvas canvas, IndexedPolygons polygons) {
+        mTileCache.trim();
+        int level = mTileCache.getLevel(mDrawScaleFactor);
+        float extent = mTileCache.getTileExtent(level);
+        int minX = mTileCache.getTileIndex(level, mViewport.left);
+        int minY = mTileCache.getTileIndex(level, mViewport.top);
+        int maxX = mTileCache.getTileIndex(level, mViewport.right);
+        int maxY = mTileCache.getTileIndex(level, mViewport.bottom);
+        boolean isComplete = true;
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                if (mTileCache.isFresh(level, x, y)) {
+                    continue;
+                }
+                if (hasPolygons(polygons, x, y, extent)) {
+                    mTileRenderer.request(level, x, y);
+                    isComplete &= mTileCache.get(level, x, y) != null;
+                } else {
+                    mTileCache.remove(level, x, y);
+                }
+            }
+        }
+        if (!isComplete) {
+            return false;
+        }
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                Bitmap tile = mTileCache.get(level, x, y);
+                if (tile != null) {
+                    mTileRect.set(x * extent, y * extent, (x + 1) * extent, (y + 1) * extent);
+                    canvas.drawBitmap(tile, null, mTileRect, mTilePaint);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasPolygons(IndexedPolygons polygons, int x, int y, float extent) {
+        // A full result array means there is more than one polygon.
+        return polygons.index.query(x * extent, y * extent, (x + 1) * extent,
+                (y + 1) * extent, mTileHit) != 0;
+    }
+
+    private Paint getPaint(int style) {
+        switch (style) {
+            case FloorplanRenderCache.STYLE_WALL:
+                return mWallPaint;
+            case FloorplanRenderCache.STYLE_SPACE:
+                return mSpacePaint;
+            case FloorplanRenderCache.STYLE_FURNITURE:
+                return mFurniturePaint;
+            default:
+                return mBackgroundPaint;
+        }
     }
 
     /**
-     * Sets the new floorplan polygons model and levels.
+     * Sets the new floorplan polygons model and levels. Only the polygons that changed since the
+     * previous floorplan are converted again. Must always be called from the same thread.
      */
     public void setFloorplan(List<TangoPolygon> polygons) {
-        mPolygons = polygons;
+        showPolygons(mRenderCache.update(polygons));
+    }
+
+    /**
+     * Sets a floorplan snapshot, e.g. one loaded from a history file for offline viewing. Must be
+     * called from the same thread as {@link #setFloorplan(List)}.
+     */
+    public void setFloorplan(FloorplanSnapshot snapshot) {
+        showPolygons(mRenderCache.updatePolygons(snapshot.polygons));
+    }
+
+    private void showPolygons(List<FloorplanRenderCache.RenderPolygon> polygons) {
+        IndexedPolygons current = new IndexedPolygons(polygons);
+        RenderState state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, state.withPolygons(current)));
+        IndexedPolygons previous = state.polygons;
+        mTileRenderer.setPolygons(current);
+        // Polygons are reused when unchanged, so added and removed ones are told apart by
+        // identity.
+        Map<FloorplanRenderCache.RenderPolygon, Boolean> previousPolygons =
+                new IdentityHashMap<FloorplanRenderCache.RenderPolygon, Boolean>();
+        for (FloorplanRenderCache.RenderPolygon polygon : previous.polygons) {
+            previousPolygons.put(polygon, Boolean.TRUE);
+        }
+        for (FloorplanRenderCache.RenderPolygon polygon : current.polygons) {
+            if (previousPolygons.remove(polygon) == null) {
+                invalidateTiles(polygon.bounds);
+            }
+        }
+        for (FloorplanRenderCache.RenderPolygon polygon : previousPolygons.keySet()) {
+            invalidateTiles(polygon.bounds);
+        }
+        requestRender();
     }
 
-    public void registerCallback(DrawingCallback callback) {
-        mCallback = callback;
+    private void invalidateTiles(RectF bounds) {
+        mTileCache.invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
     }
 
     /**
-     * Updates the current rotation and translation to be used for the map. This is called with the
-     * current device position and orientation.
+     * @return The polygons currently drawn. Polygons are immutable, so they can be used from any
+     * thread, e.g. to export them.
      */
-    public void updateCameraMatrix(float translationX, float translationY, float yawRadians) {
-        mFixedCameraMatrix.setTranslate(-translationX * SCALE, -translationY * SCALE);
-        mFixedCameraMatrix.preRotate((float) Math.toDegrees(yawRadians), translationX * SCALE,
-                translationY * SCALE);
-        mFixedCameraMatrix.invert(mFixedCameraInverse);
+    public List<FloorplanPolygon> getFloorplanSnapshot() {
+        List<FloorplanRenderCache.RenderPolygon> drawPolygons = mState.get().polygons.polygons;
+        List<FloorplanPolygon> polygons = new ArrayList<FloorplanPolygon>(drawPolygons.size());
+        for (FloorplanRenderCache.RenderPolygon polygon : drawPolygons) {
+            polygons.add(polygon.polygon);
+        }
+        return polygons;
+    }
+
+    public void setOnPolygonTappedListener(OnPolygonTappedListener listener) {
+        mTapListener = listener;
+    }
+
+    public void setOnRenderStatsListener(OnRenderStatsListener listener) {
+        mStatsListener = listener;
+    }
+
+    /**
+     * Selects the topmost polygon drawn under a tap, using the transform of the last frame.
+     */
+    private void onTap(float x, float y) {
+        RenderState drawnState = mDrawnState;
+        Matrix inverse = new Matrix();
+        drawnState.getViewMatrix(inverse);
+        inverse.invert(inverse);
+        float[] point = new float[] {x, y};
+        inverse.mapPoints(point);
+        IndexedPolygons polygons = drawnState.polygons;
+        int[] candidates = new int[polygons.polygons.size()];
+        int count = polygons.index.query(point[0], point[1], point[0], point[1], candidates);
+        FloorplanRenderCache.RenderPolygon selected = null;
+        // Back to meters, flipping the Y axis back to the Tango start of service frame.
+        float xMeters = point[0] / SCALE;
+        float yMeters = -point[1] / SCALE;
+        for (int i = count - 1; i >= 0 && selected == null; i--) {
+            FloorplanRenderCache.RenderPolygon polygon = polygons.polygons.get(candidates[i]);
+            if (polygon.polygon.contains(xMeters, yMeters)) {
+                selected = polygon;
+            }
+        }
+        RenderState state;
+        do {
+            state = mState.get();
+            // Drop the selection if the floorplan changed since the frame tapped.
+            if (state.polygons != polygons) {
+                break;
+            }
+        } while (!mState.compareAndSet(state, state.withSelectedPolygon(selected)));
+        requestRender();
+        if (mTapListener != null) {
+            mTapListener.onPolygonTapped(selected != null ? selected.polygon : null);
+        }
     }
 
     /**
-     * Updates the pan and zoom matrix with the most recent drag and scale information.
+     * Updates the current rotation and translation to be used for the map. This is called with the
+     * current device position and orientation, and redraws the map if they changed noticeably
+     * since the last redraw request.
      */
-    private void updatePanAndZoomMatrix() {
-        float dragX;
-        float dragY;
-        float scaleFactor;
-        // Synchronize before reading fields that can be changed in a different thread.
-        synchronized (this) {
-            dragX = mDragX;
-            dragY = mDragY;
-            scaleFactor = mScaleFactor;
-        }
-        mPanAndZoomMatrix.setTranslate(dragX, dragY);
-        mPanAndZoomMatrix.postScale(scaleFactor, scaleFactor);
+    public void updateCameraMatrix(float translationX, float translationY, float yawRadians) {
+        RenderState state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state,
+                state.withDevicePose(translationX, translationY, yawRadians)));
+        boolean changed;
+        synchronized (mPoseLock) {
+            float yawChange = Math.abs(yawRadians - mRequestedDeviceYaw);
+            yawChange = Math.min(yawChange, (float) (2 * Math.PI) - yawChange);
+            changed = !mHasDevicePose
+                    || Math.abs(translationX - mRequestedDeviceX) > POSE_TRANSLATION_THRESHOLD
+                    || Math.abs(translationY - mRequestedDeviceY) > POSE_TRANSLATION_THRESHOLD
+                    || yawChange > POSE_YAW_THRESHOLD;
+            if (changed) {
+                mHasDevicePose = true;
+                mRequestedDeviceX = translationX;
+                mRequestedDeviceY = translationY;
+                mRequestedDeviceYaw = yawRadians;
+            }
+        }
+        if (changed) {
+            requestRender();
+        }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent ev) {
-        // Let the ScaleGestureDetector inspect all events.
+        // Let the ScaleGestureDetector and the tap detector inspect all events.
         mScaleDetector.onTouchEvent(ev);
+        mTapDetector.onTouchEvent(ev);
 
         final int action = MotionEventCompat.getActionMasked(ev);
 
@@ -343,14 +752,14 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
                 final float dx = x - mLastTouchX;
                 final float dy = y - mLastTouchY;
 
-                // Synchronize while changing the drag variables, since they are read in the
-                // renderer thread.
-                synchronized (this) {
-                    mDragX += dx;
-                    mDragY += dy;
-                }
+                // Publish the new drag to the render thread.
+                RenderState state;
+                do {
+                    state = mState.get();
+                } while (!mState.compareAndSet(state,
+                        state.withDrag(state.dragX + dx, state.dragY + dy)));
 
-                invalidate();
+                requestRender();
 
                 // Remember this touch position for the next move event
                 mLastTouchX = x;
@@ -396,13 +805,16 @@ public class FloorplanView extends SurfaceView implements SurfaceHolder.Callback
 
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
-            // Synchronize while changing the scale factor, since it is read in the renderer thread.
-            synchronized (FloorplanView.this) {
-                mScaleFactor *= detector.getScaleFactor();
+            // Publish the new scale factor to the render thread.
+            RenderState state;
+            float scaleFactor;
+            do {
+                state = mState.get();
+                scaleFactor = state.scaleFactor * detector.getScaleFactor();
                 // Don't let the object get too small or too large.
-                mScaleFactor = Math.max(mMinScaleFactor, Math.min(mScaleFactor, mMaxScaleFactor));
-            }
-            invalidate();
+                scaleFactor = Math.max(mMinScaleFactor, Math.min(scaleFactor, mMaxScaleFactor));
+            } while (!mState.compareAndSet(state, state.withScaleFactor(scaleFactor)));
+            requestRender();
             return true;
         }
     }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Static R-tree over axis aligned boxes, bulk loaded with the Sort-Tile-Recursive algorithm.
+ * <p/>
+ * Items are sorted into vertical slices by the x of their center and within each slice by the y
+ * of their center, and packed into full leaves; the levels above are packed the same way. Nodes
+ * are stored level by level in flat arrays, so the tree is compact and queries don't allocate.
+ * <p/>
+ * The tree is immutable after construction and can be queried from any thread.
+ */
+public class PackedRTree {
+    private static final int DEFAULT_NODE_CAPACITY = 16;
+
+    private final int mNodeCapacity;
+    private final int mItemCount;
+    // Boxes of the items followed by the nodes, level by level from the leaves up, as min x,
+    // min y, max x, max y.
+    private final float[] mBoxes;
+    // For each item, its original index; for each node, the index of its first child.
+    private final int[] mChildren;
+    // Start of each level in mChildren, from the items up to the root, plus the end.
+    private final int[] mLevelStarts;
+
+    /**
+     * Builds a tree over the boxes of items 0 to count - 1.
+     *
+     * @param boxes Min x, min y, max x, max y of each item.
+     */
+    public PackedRTree(float[] boxes, int count) {
+        this(boxes, count, DEFAULT_NODE_CAPACITY);
+    }
+
+    public PackedRTree(float[] boxes, int count, int nodeCapacity) {
+        mNodeCapacity = nodeCapacity;
+        mItemCount = count;
+
+        // Count the nodes of all levels.
+        int levels = 1;
+        int total = count;
+        for (int n = count; n > 1; n = (n + nodeCapacity - 1) / nodeCapacity) {
+            total += (n + nodeCapacity - 1) / nodeCapacity;
+            levels++;
+        }
+        mBoxes = new float[4 * total];
+        mChildren = new int[total];
+        mLevelStarts = new int[levels + 1];
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        sortTileRecursive(boxes, order, 0, count);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(boxes, 4 * order[i], mBoxes, 4 * i, 4);
+            mChildren[i] = order[i];
+        }
+
+        // Pack each level into the next; the nodes of a level are already in STR order.
+        int start = 0;
+        int end = count;
+        int level = 0;
+        mLevelStarts[0] = 0;
+        while (end - start > 1) {
+            int next = end;
+            for (int child = start; child < end; child += nodeCapacity) {
+                int last = Math.min(child + nodeCapacity, end);
+                float minX = Float.MAX_VALUE;
+                float minY = Float.MAX_VALUE;
+                float maxX = -Float.MAX_VALUE;
+                float maxY = -Float.MAX_VALUE;
+                for (int i = child; i < last; i++) {
+                    minX = Math.min(minX, mBoxes[4 * i]);
+                    minY = Math.min(minY, mBoxes[4 * i + 1]);
+                    maxX = Math.max(maxX, mBoxes[4 * i + 2]);
+                    maxY = Math.max(maxY, mBoxes[4 * i + 3]);
+                }
+                mBoxes[4 * next] = minX;
+                mBoxes[4 * next + 1] = minY;
+                mBoxes[4 * next + 2] = maxX;
+                mBoxes[4 * next + 3] = maxY;
+                mChildren[next] = child;
+                next++;
+            }
+            mLevelStarts[++level] = end;
+            start = end;
+            end = next;
+        }
+        mLevelStarts[++level] = end;
+    }
+
+    public int size() {
+        return mItemCount;
+    }
+
+    /**
+     * Finds the items whose box intersects the query box.
+     *
+     * @param out Receives the original item indices, in ascending order.
+     * @return Number of items found, or -1 if {@code out} is too small.
+     */
+    public int query(float minX, float minY, float maxX, float maxY, int[] out) {
+        if (mItemCount == 0) {
+            return 0;
+        }
+        int count = queryNode(mLevelStarts.length - 2, mBoxes.length / 4 - 1, minX, minY, maxX,
+                maxY, out, 0);
+        if (count > 0) {
+            Arrays.sort(out, 0, count);
+        }
+        return count;
+    }
+
+    /**
+     * Queries a node, or an item at level 0.
+     *
+     * @return The new number of items in {@code out}, or -1 if it is full.
+     */
+    private int queryNode(int level, int node, float minX, float minY, float maxX, float maxY,
+                          int[] out, int count) {
+        if (mBoxes[4 * node] > maxX || mBoxes[4 * node + 1] > maxY
+                || mBoxes[4 * node + 2] < minX || mBoxes[4 * node + 3] < minY) {
+            return count;
+        }
+        if (level == 0) {
+            if (count == out.length) {
+                return -1;
+            }
+            out[count] = mChildren[node];
+            return count + 1;
+        }
+        int first = mChildren[node];
+        int last = Math.min(first + mNodeCapacity, mLevelStarts[level]);
+        for (int child = first; child < last && count >= 0; child++) {
+            count = queryNode(level - 1, child, minX, minY, maxX, maxY, out, count);
+        }
+        return count;
+    }
+
+    /**
+     * Sorts items into vertical slices by the center x, and each slice by the center y.
+     */
+    private void sortTileRecursive(float[] boxes, Integer[] order, int from, int to) {
+        int count = to - from;
+        if (count <= mNodeCapacity) {
+            return;
+        }
+        int leaves = (count + mNodeCapacity - 1) / mNodeCapacity;
+        int slices = (int) Math.ceil(Math.sqrt(leaves));
+        int sliceSize = slices * mNodeCapacity;
+        Arrays.sort(order, from, to, new CenterComparator(boxes, 0));
+        CenterComparator byY = new CenterComparator(boxes, 1);
+        for (int slice = from; slice < to; slice += sliceSize) {
+            Arrays.sort(order, slice, Math.min(slice + sliceSize, to), byY);
+        }
+    }
+
+    /**
+     * Orders items by the center of their box along one axis.
+     */
+    private static class CenterComparator implements Comparator<Integer> {
+        private final float[] mBoxes;
+        private final int mAxis;
+
+        CenterComparator(float[] boxes, int axis) {
+            mBoxes = boxes;
+            mAxis = axis;
+        }
+
+        @Override
+        public int compare(Integer a, Integer b) {
+            float centerA = mBoxes[4 * a + mAxis] + mBoxes[4 * a + 2 + mAxis];
+            float centerB = mBoxes[4 * b + mAxis] + mBoxes[4 * b + 2 + mAxis];
+            return Float.compare(centerA, centerB);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+/**
+ * Douglas-Peucker simplification of floorplan polygons.
+ * <p/>
+ * Every removed vertex is within the tolerance of the simplified outline. Closed polygons are
+ * split at their first vertex and the vertex farthest from it, and both halves are simplified
+ * as polylines.
+ */
+public final class PolygonSimplifier {
+
+    private PolygonSimplifier() {
+    }
+
+    /**
+     * Simplifies a polygon or polyline.
+     *
+     * @param vertices  x, y pairs, without repeating the first vertex of closed polygons.
+     * @param tolerance Maximum distance of a removed vertex to the simplified outline.
+     * @return The kept vertices, or {@code vertices} itself if none was removed.
+     */
+    public static float[] simplify(float[] vertices, boolean isClosed, float tolerance) {
+        int count = vertices.length / 2;
+        if (count < 3) {
+            return vertices;
+        }
+        boolean[] keep = new boolean[count + 1];
+        int kept;
+        if (isClosed) {
+            // Repeat the first vertex at the end so that both halves are plain polylines.
+            float[] ring = new float[vertices.length + 2];
+            System.arraycopy(vertices, 0, ring, 0, vertices.length);
+            ring[vertices.length] = vertices[0];
+            ring[vertices.length + 1] = vertices[1];
+            int farthest = 0;
+            float maxDistance = -1;
+            for (int i = 1; i < count; i++) {
+                float dx = vertices[2 * i] - vertices[0];
+                float dy = vertices[2 * i + 1] - vertices[1];
+                float distance = dx * dx + dy * dy;
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            // The farthest vertex is counted by both halves, and the first vertex is counted
+            // again as the end of the second one.
+            kept = simplify(ring, 0, farthest, tolerance, keep)
+                    + simplify(ring, farthest, count, tolerance, keep) - 2;
+        } else {
+            kept = simplify(vertices, 0, count - 1, tolerance, keep);
+        }
+        if (kept == count) {
+            return vertices;
+        }
+        float[] simplified = new float[2 * kept];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                simplified[j++] = vertices[2 * i];
+                simplified[j++] = vertices[2 * i + 1];
+            }
+        }
+        return simplified;
+    }
+
+    /**
+     * Simplifies the polyline from vertex first to vertex last, keeping both end points.
+     *
+     * @return Number of vertices kept, including both end points.
+     */
+    private static int simplify(float[] v, int first, int last, float tolerance,
+                                boolean[] keep) {
+        keep[first] = true;
+        keep[last] = true;
+        int kept = 2;
+        // Stack of ranges still to be simplified, as first and last index pairs.
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int to = stack[--top];
+            int from = stack[--top];
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = from + 1; i < to; i++) {
+                float distance = distanceToSegment(v[2 * i], v[2 * i + 1],
+                        v[2 * from], v[2 * from + 1], v[2 * to], v[2 * to + 1]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0 || maxDistance <= tolerance) {
+                continue;
+            }
+            keep[farthest] = true;
+            kept++;
+            if (top + 4 > stack.length) {
+                int[] grown = new int[2 * stack.length];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            stack[top++] = from;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = to;
+        }
+        return kept;
+    }
+
+    /**
+     * Distance from point p to the segment from a to b.
+     */
+    private static float distanceToSegment(float px, float py, float ax, float ay,
+                                           float bx, float by) {
+        float abx = bx - ax;
+        float aby = by - ay;
+        float apx = px - ax;
+        float apy = py - ay;
+        float lengthSquared = abx * abx + aby * aby;
+        float t = lengthSquared > 0 ? (apx * abx + apy * aby) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        float dx = apx - t * abx;
+        float dy = apy - t * aby;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
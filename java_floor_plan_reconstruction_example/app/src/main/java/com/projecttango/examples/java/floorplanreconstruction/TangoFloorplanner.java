@@ -30,6 +30,7 @@ import com.google.tango.support.TangoSupport;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.List;
@@ -39,20 +40,50 @@ import java.util.List;
  * built on top of the {@code Tango3dReconstruction}.
  * Given a point cloud, it will report a callback with the floorplan polygons.
  * It abstracts all the needed thread management and pose requesting logic.
+ * <p/>
+ * Point clouds are integrated at depth rate in one thread. Extracting the polygons is much more
+ * expensive on large plans, so it runs in another thread, at most at the extraction rate, or on
+ * demand. The floorplan is marked as changed by each integration and only extracted if it did;
+ * since the callback runs in the extraction thread, a slow callback delays the next extraction
+ * but never drops the changes integrated meanwhile.
+ * <p/>
+ * {@code Tango3dReconstruction} doesn't document concurrent calls as safe, so integration and
+ * extraction still take turns on this object's lock. An integration waiting for an extraction
+ * only delays the latest point cloud; older ones are dropped rather than queued.
  */
 public class TangoFloorplanner extends Tango.OnTangoUpdateListener {
 
     private static final String TAG = TangoFloorplanner.class.getSimpleName();
+    public static final float DEFAULT_EXTRACTION_RATE = 2;
+    // Weight of the last measure in the mean stage timings.
+    private static final float TIMING_SMOOTHING = 0.1f;
     private final TangoPointCloudManager mPointCloudBuffer;
 
     private Tango3dReconstruction mTango3dReconstruction = null;
     private OnFloorplanAvailableListener mCallback = null;
     private HandlerThread mHandlerThread = null;
     private volatile Handler mHandler = null;
+    private HandlerThread mExtractionThread = null;
+    private Handler mExtractionHandler = null;
 
     private volatile boolean mIsFloorplanningActive = false;
+    // Guarded by this.
+    private boolean mIsReleased = false;
 
     private Runnable mRunnableCallback = null;
+    private Runnable mExtractionRunnable = null;
+
+    // Extraction scheduling state, guarded by mExtractionLock.
+    private final Object mExtractionLock = new Object();
+    // Whether points were integrated since the last extraction.
+    private boolean mIsDirty = false;
+    private boolean mIsExtractionScheduled = false;
+    private long mMinExtractionIntervalMs = (long) (1000 / DEFAULT_EXTRACTION_RATE);
+    private long mLastExtractionMs;
+
+    // Written under mTimingsLock, so that recording a timing never waits for the reconstruction.
+    private final Object mTimingsLock = new Object();
+    private volatile Timings mTimings = new Timings(0, 0, 0, 0, 0, 0);
 
    /**
      * Callback for when meshes are available.
@@ -61,6 +92,28 @@ public class TangoFloorplanner extends Tango.OnTangoUpdateListener {
         void onFloorplanAvailable(List<TangoPolygon> polygons, List<TangoFloorplanLevel> levels);
     }
 
+    /**
+     * Mean duration of each stage, in milliseconds, and number of runs.
+     */
+    public static class Timings {
+        public final float integrationMs;
+        public final float polygonExtractionMs;
+        public final float levelExtractionMs;
+        public final float callbackMs;
+        public final int integrationCount;
+        public final int extractionCount;
+
+        Timings(float integrationMs, float polygonExtractionMs, float levelExtractionMs,
+                float callbackMs, int integrationCount, int extractionCount) {
+            this.integrationMs = integrationMs;
+            this.polygonExtractionMs = polygonExtractionMs;
+            this.levelExtractionMs = levelExtractionMs;
+            this.callbackMs = callbackMs;
+            this.integrationCount = integrationCount;
+            this.extractionCount = extractionCount;
+        }
+    }
+
     public TangoFloorplanner(OnFloorplanAvailableListener callback) {
         mCallback = callback;
         Tango3dReconstructionConfig config = new Tango3dReconstructionConfig();
@@ -75,17 +128,19 @@ public class TangoFloorplanner extends Tango.OnTangoUpdateListener {
         mHandlerThread = new HandlerThread("mesherCallback");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+        mExtractionThread = new HandlerThread("floorplanExtraction");
+        mExtractionThread.start();
+        mExtractionHandler = new Handler(mExtractionThread.getLooper());
 
         if (callback != null) {
             /**
-             * This runnable processes the saved point clouds and meshes and triggers the
-             * onFloorplanAvailable callback with the generated {@code TangoPolygon} instances.
+             * This runnable integrates the latest point cloud into the floorplan and schedules
+             * the extraction of the polygons.
              */
             mRunnableCallback = new Runnable() {
                 @Override
                 public void run() {
-                    List<TangoPolygon> polygons;
-                    List<TangoFloorplanLevel> levels;
+                    long startNs = System.nanoTime();
                     // Synchronize access to mTango3dReconstruction. This runs in TangoFloorplanner
                     // thread.
                     synchronized (TangoFloorplanner.this) {
@@ -112,26 +167,149 @@ public class TangoFloorplanner extends Tango.OnTangoUpdateListener {
 
                         // Update the mesh and floorplan representation.
                         mTango3dReconstruction.updateFloorplan(cloudData, depthPose);
+                    }
+                    updateTimings(System.nanoTime() - startNs, -1, -1, -1);
+                    synchronized (mExtractionLock) {
+                        mIsDirty = true;
+                        if (mMinExtractionIntervalMs > 0) {
+                            scheduleExtraction(SystemClock.uptimeMillis());
+                        }
+                    }
+                }
+            };
+
+            /**
+             * This runnable extracts the floorplan if it changed and triggers the
+             * onFloorplanAvailable callback with the generated {@code TangoPolygon} instances.
+             */
+            mExtractionRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mExtractionLock) {
+                        mIsExtractionScheduled = false;
+                        if (!mIsDirty) {
+                            return;
+                        }
+                        // Clear it before extracting, so that points integrated meanwhile
+                        // trigger another extraction.
+                        mIsDirty = false;
+                        mLastExtractionMs = SystemClock.uptimeMillis();
+                    }
+                    List<TangoPolygon> polygons;
+                    List<TangoFloorplanLevel> levels;
+                    long startNs = System.nanoTime();
+                    long levelsStartNs;
+                    // Synchronize access to mTango3dReconstruction. This runs in the extraction
+                    // thread.
+                    synchronized (TangoFloorplanner.this) {
+                        // Changes integrated before floorplanning stopped are still extracted.
+                        if (mIsReleased) {
+                            return;
+                        }
 
                         // Extract the full set of floorplan polygons.
                         polygons = mTango3dReconstruction.extractFloorplan();
 
                         // Extract the full set of floorplan levels.
+                        levelsStartNs = System.nanoTime();
                         levels = mTango3dReconstruction.extractFloorplanLevels();
                     }
+                    long callbackStartNs = System.nanoTime();
                     // Provide the new floorplan polygons to the app via callback.
                     mCallback.onFloorplanAvailable(polygons, levels);
+                    updateTimings(-1, levelsStartNs - startNs, callbackStartNs - levelsStartNs,
+                            System.nanoTime() - callbackStartNs);
                 }
             };
         }
     }
 
+    /**
+     * Sets the maximum rate at which the floorplan is extracted after new points are integrated.
+     *
+     * @param extractionsPerSecond Maximum extractions per second, or 0 to only extract when
+     *                             {@link #requestExtraction} is called.
+     */
+    public void setExtractionRate(float extractionsPerSecond) {
+        synchronized (mExtractionLock) {
+            mMinExtractionIntervalMs =
+                    extractionsPerSecond > 0 ? (long) (1000 / extractionsPerSecond) : 0;
+            if (mMinExtractionIntervalMs > 0 && mIsDirty) {
+                scheduleExtraction(SystemClock.uptimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Extracts the floorplan as soon as possible if points were integrated since the last
+     * extraction, e.g. when the floorplan view becomes visible.
+     */
+    public void requestExtraction() {
+        synchronized (mExtractionLock) {
+            if (mIsDirty && mExtractionRunnable != null) {
+                mExtractionHandler.removeCallbacks(mExtractionRunnable);
+                mIsExtractionScheduled = true;
+                mExtractionHandler.post(mExtractionRunnable);
+            }
+        }
+    }
+
+    /**
+     * @return The mean duration of each stage.
+     */
+    public Timings getTimings() {
+        return mTimings;
+    }
+
+    /**
+     * Schedules an extraction respecting the extraction rate, unless one is scheduled already.
+     * Must be called with mExtractionLock held.
+     */
+    private void scheduleExtraction(long nowMs) {
+        if (mIsExtractionScheduled || mExtractionRunnable == null) {
+            return;
+        }
+        mIsExtractionScheduled = true;
+        long timeMs = Math.max(nowMs, mLastExtractionMs + mMinExtractionIntervalMs);
+        mExtractionHandler.postAtTime(mExtractionRunnable, timeMs);
+    }
+
+    /**
+     * Adds the duration of an integration, or of the stages of an extraction, in nanoseconds to
+     * the mean timings. Pass -1 for the stages that didn't run.
+     */
+    private void updateTimings(long integrationNs, long polygonExtractionNs,
+                               long levelExtractionNs, long callbackNs) {
+        synchronized (mTimingsLock) {
+            Timings t = mTimings;
+            if (integrationNs >= 0) {
+                mTimings = new Timings(smooth(t.integrationMs, integrationNs, t.integrationCount),
+                        t.polygonExtractionMs, t.levelExtractionMs, t.callbackMs,
+                        t.integrationCount + 1, t.extractionCount);
+            } else {
+                mTimings = new Timings(t.integrationMs,
+                        smooth(t.polygonExtractionMs, polygonExtractionNs, t.extractionCount),
+                        smooth(t.levelExtractionMs, levelExtractionNs, t.extractionCount),
+                        smooth(t.callbackMs, callbackNs, t.extractionCount),
+                        t.integrationCount, t.extractionCount + 1);
+            }
+        }
+    }
+
+    private static float smooth(float meanMs, long durationNs, int count) {
+        float durationMs = durationNs / 1e6f;
+        return count == 0 ? durationMs : meanMs + TIMING_SMOOTHING * (durationMs - meanMs);
+    }
+
     /**
      * Synchronize access to mTango3dReconstruction. This runs in UI thread.
      */
     public synchronized void release() {
         mIsFloorplanningActive = false;
+        mIsReleased = true;
         mTango3dReconstruction.release();
+        mHandlerThread.quitSafely();
+        mExtractionThread.quitSafely();
     }
 
     public void startFloorplanning() {
@@ -147,6 +325,13 @@ public class TangoFloorplanner extends Tango.OnTangoUpdateListener {
      */
     public synchronized void resetFloorplan() {
         mTango3dReconstruction.clear();
+        // Extract the empty floorplan.
+        synchronized (mExtractionLock) {
+            mIsDirty = true;
+            if (mMinExtractionIntervalMs > 0) {
+                scheduleExtraction(SystemClock.uptimeMillis());
+            }
+        }
     }
 
     /**
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplanreconstruction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pyramid of square tiles over the floorplan, with invalidation and least recently used eviction.
+ * <p/>
+ * Coordinates are plan pixels, the unit of the floorplan paths. Tiles of level 0 are rendered at
+ * the base scale, in tile pixels per plan pixel, and each following level halves it, so its
+ * tiles cover twice the extent. The tiles themselves are opaque to this class; it only tracks
+ * which are cached, which are stale and which are being rendered.
+ * <p/>
+ * A tile being rendered while an intersecting area is invalidated is stored as stale, so that it
+ * is rendered again. Renderers must mark a tile with {@link #startRender} before reading the
+ * content to render, and the content must be updated before calling {@link #invalidate}.
+ * <p/>
+ * Replaced and evicted tiles are only handed to the recycler by {@link #trim}, which must be
+ * called from the thread drawing the tiles, at a time it doesn't use any.
+ * <p/>
+ * All methods are thread safe.
+ */
+public class TileCache<T> {
+    // Bits of each tile index in a key.
+    private static final int INDEX_BITS = 28;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /**
+     * Receives the tiles the cache no longer holds, e.g. to reuse their memory.
+     */
+    public interface Recycler<T> {
+        void recycle(T tile);
+    }
+
+    private static class Entry<T> {
+        final T tile;
+        boolean isStale;
+
+        Entry(T tile, boolean isStale) {
+            this.tile = tile;
+            this.isStale = isStale;
+        }
+    }
+
+    private final int mTileSize;
+    private final float mBaseScale;
+    private final int mLevelCount;
+    private final int mMaxTiles;
+    private final Recycler<T> mRecycler;
+
+    // Cached tiles by key, in access order.
+    private final LinkedHashMap<Long, Entry<T>> mEntries =
+            new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true);
+    // Keys of the tiles being rendered, and of those invalidated meanwhile.
+    private final Set<Long> mRendering = new HashSet<Long>();
+    private final Set<Long> mInvalidatedWhileRendering = new HashSet<Long>();
+    // Replaced tiles waiting to be recycled.
+    private final List<T> mRetired = new ArrayList<T>();
+
+    /**
+     * @param tileSize   Width and height of a tile in tile pixels.
+     * @param baseScale  Tile pixels per plan pixel at level 0.
+     * @param levelCount Number of levels.
+     * @param maxTiles   Tiles kept after {@link #trim}; this should be more than a view needs.
+     * @param recycler   Receives the tiles no longer held, or null.
+     */
+    public TileCache(int tileSize, float baseScale, int levelCount, int maxTiles,
+                     Recycler<T> recycler) {
+        mTileSize = tileSize;
+        mBaseScale = baseScale;
+        mLevelCount = levelCount;
+        mMaxTiles = maxTiles;
+        mRecycler = recycler;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    /**
+     * @return Tile pixels per plan pixel at a level.
+     */
+    public float getScale(int level) {
+        return mBaseScale / (1 << level);
+    }
+
+    /**
+     * @return Width and height of the tiles of a level, in plan pixels.
+     */
+    public float getTileExtent(int level) {
+        return mTileSize / getScale(level);
+    }
+
+    /**
+     * @return The coarsest level that is drawn at the given scale without upsampling, or 0 if
+     * the scale is above the base scale.
+     */
+    public int getLevel(float scale) {
+        int level = 0;
+        while (level < mLevelCount - 1 && getScale(level + 1) >= scale) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return Index along one axis of the tile of a level containing a coordinate.
+     */
+    public int getTileIndex(int level, float coordinate) {
+        return (int) Math.floor(coordinate / getTileExtent(level));
+    }
+
+    public static long key(int level, int x, int y) {
+        return ((long) level << (2 * INDEX_BITS)) | ((x & INDEX_MASK) << INDEX_BITS)
+                | (y & INDEX_MASK);
+    }
+
+    public static int levelOf(long key) {
+        return (int) (key >>> (2 * INDEX_BITS));
+    }
+
+    public static int xOf(long key) {
+        // Sign extend the index.
+        return (int) (key << (64 - 2 * INDEX_BITS) >> (64 - INDEX_BITS));
+    }
+
+    public static int yOf(long key) {
+        return (int) (key << (64 - INDEX_BITS) >> (64 - INDEX_BITS));
+    }
+
+    /**
+     * @return The cached tile, possibly stale, or null. Marks it as recently used.
+     */
+    public synchronized T get(int level, int x, int y) {
+        Entry<T> entry = mEntries.get(key(level, x, y));
+        return entry != null ? entry.tile : null;
+    }
+
+    /**
+     * @return Whether the tile is cached and up to date.
+     */
+    public synchronized boolean isFresh(int level, int x, int y) {
+        Entry<T> entry = mEntries.get(key(level, x, y));
+        return entry != null && !entry.isStale;
+    }
+
+    /**
+     * Marks a tile as being rendered.
+     *
+     * @return False if the tile is fresh or already being rendered, and should not be rendered.
+     */
+    public synchronized boolean startRender(int level, int x, int y) {
+        long key = key(level, x, y);
+        Entry<T> entry = mEntries.get(key);
+        if ((entry != null && !entry.isStale) || mRendering.contains(key)) {
+            return false;
+        }
+        mRendering.add(key);
+        return true;
+    }
+
+    /**
+     * Stores a tile marked by {@link #startRender}. It is stale if its area was invalidated while
+     * it was rendered.
+     */
+    public synchronized void finishRender(int level, int x, int y, T tile) {
+        long key = key(level, x, y);
+        mRendering.remove(key);
+        boolean isStale = mInvalidatedWhileRendering.remove(key);
+        Entry<T> previous = mEntries.put(key, new Entry<T>(tile, isStale));
+        if (previous != null && previous.tile != tile) {
+            mRetired.add(previous.tile);
+        }
+    }
+
+    /**
+     * Unmarks a tile marked by {@link #startRender} that could not be rendered.
+     */
+    public synchronized void cancelRender(int level, int x, int y) {
+        long key = key(level, x, y);
+        mRendering.remove(key);
+        mInvalidatedWhileRendering.remove(key);
+    }
+
+    /**
+     * Marks the tiles of all levels intersecting an area as stale.
+     */
+    public synchronized void invalidate(float minX, float minY, float maxX, float maxY) {
+        for (Map.Entry<Long, Entry<T>> entry : mEntries.entrySet()) {
+            if (intersects(entry.getKey(), minX, minY, maxX, maxY)) {
+                entry.getValue().isStale = true;
+            }
+        }
+        for (long key : mRendering) {
+            if (intersects(key, minX, minY, maxX, maxY)) {
+                mInvalidatedWhileRendering.add(key);
+            }
+        }
+    }
+
+    /**
+     * Marks all tiles as stale.
+     */
+    public synchronized void invalidateAll() {
+        for (Entry<T> entry : mEntries.values()) {
+            entry.isStale = true;
+        }
+        mInvalidatedWhileRendering.addAll(mRendering);
+    }
+
+    /**
+     * Evicts the least recently used tiles above the maximum, and recycles them together with
+     * the replaced tiles.
+     */
+    public void trim() {
+        List<T> recycled;
+        synchronized (this) {
+            recycled = new ArrayList<T>(mRetired);
+            mRetired.clear();
+            Iterator<Entry<T>> it = mEntries.values().iterator();
+            for (int excess = mEntries.size() - mMaxTiles; excess > 0; excess--) {
+                recycled.add(it.next().tile);
+                it.remove();
+            }
+        }
+        if (mRecycler != null) {
+            for (T tile : recycled) {
+                mRecycler.recycle(tile);
+            }
+        }
+    }
+
+    /**
+     * Drops a tile, e.g. one that became empty; it is recycled by the next {@link #trim}.
+     */
+    public synchronized void remove(int level, int x, int y) {
+        Entry<T> entry = mEntries.remove(key(level, x, y));
+        if (entry != null) {
+            mRetired.add(entry.tile);
+        }
+    }
+
+    /**
+     * Drops all tiles; they are recycled by the next {@link #trim}.
+     */
+    public synchronized void clear() {
+        for (Entry<T> entry : mEntries.values()) {
+            mRetired.add(entry.tile);
+        }
+        mEntries.clear();
+        mInvalidatedWhileRendering.addAll(mRendering);
+    }
+
+    /**
+     * @return Number of cached tiles, including stale ones.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private boolean intersects(long key, float minX, float minY, float maxX, float maxY) {
+        float extent = getTileExtent(levelOf(key));
+        float tileMinX = xOf(key) * extent;
+        float tileMinY = yOf(key) * extent;
+        return tileMinX <= maxX && tileMinX + extent >= minX
+                && tileMinY <= maxY && tileMinY + extent >= minY;
+    }
+}
@@ -170,6 +170,11 @@ public class GreenScreenActivity extends AppCompatActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        try {
+            mRenderer.waitForScreenshots();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for screenshots.", e);
+        }
         mSurfaceView.onPause();
         // Synchronize against disconnecting while the service is being used in the OpenGL thread or
         // in the UI thread.
@@ -192,6 +197,12 @@ public class GreenScreenActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mRenderer.release();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -22,12 +22,8 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLException;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
-import android.util.Log;
-
-import java.nio.IntBuffer;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -47,6 +43,10 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
     public interface RenderCallback {
         void preRender();
 
+        /**
+         * Called from a background thread once a screenshot requested with
+         * {@link #takeScreenshot()} is converted to a bitmap.
+         */
         void onScreenshotTaken(Bitmap screenshot);
     }
 
@@ -59,7 +59,7 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
     private float[] mProjectionMatrix = new float[16];
     private float[] mModelMatrix = new float[16];
 
-    private boolean mTakeScreenshot;
+    private ScreenshotReader mScreenshotReader;
     private int mDefaultViewportWidth;
     private int mDefaultViewportHeight;
 
@@ -68,6 +68,12 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
         mRenderCallback = callback;
         mGreenScreen = new GreenScreen();
         mDepthTexture = new DepthTexture();
+        mScreenshotReader = new ScreenshotReader(new ScreenshotReader.OnScreenshotListener() {
+            @Override
+            public void onScreenshotTaken(Bitmap screenshot) {
+                mRenderCallback.onScreenshotTaken(screenshot);
+            }
+        });
     }
 
     @Override
@@ -84,6 +90,7 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
                 .background, options);
         mGreenScreen.setUpProgramAndBuffers(backgroundBitmap);
         mDepthTexture.resetDepthTexture();
+        mScreenshotReader.onSurfaceCreated();
     }
 
     /**
@@ -128,13 +135,8 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
         GLES20.glDepthMask(true);
         GLES20.glCullFace(GLES20.GL_BACK);
 
-        // Take screenshot if needed.
-        if (mTakeScreenshot) {
-            mTakeScreenshot = false;
-            Bitmap screenshot = createBitmapFromGLSurface(0, 0, mDefaultViewportWidth,
-                    mDefaultViewportHeight);
-            mRenderCallback.onScreenshotTaken(screenshot);
-        }
+        // Start reading a requested screenshot, and advance those being read.
+        mScreenshotReader.onDrawFrameEnd(mDefaultViewportWidth, mDefaultViewportHeight);
     }
 
     /**
@@ -171,46 +173,26 @@ public class GreenScreenRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * This method sets a flag for saving the view in the next frame to a screenshot.
+     * This method sets a flag for saving the view in the next frame to a screenshot. The pixels
+     * are read back asynchronously on OpenGL ES 3, and converted to a bitmap in a background
+     * thread.
      */
     public void takeScreenshot() {
-        mTakeScreenshot = true;
+        mScreenshotReader.requestScreenshot();
     }
 
     /**
-     * Read pixels from buffer to make a bitmap.
-     *
-     * @throws RuntimeException if there is a GLException.
-     * @trhows OutOfMemoryError
+     * Stops taking screenshots and waits for those being converted, which may still read OpenGL
+     * memory. Call before pausing the surface, which destroys the OpenGL context.
      */
-    private Bitmap createBitmapFromGLSurface(int x, int y, int w, int h) throws OutOfMemoryError {
-        int bitmapBuffer[] = new int[w * h];
-        int bitmapSource[] = new int[w * h];
-        IntBuffer intBuffer = IntBuffer.wrap(bitmapBuffer);
-        intBuffer.position(0);
-
-        try {
-            GLES20.glReadPixels(x, y, w, h, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, intBuffer);
-            // Transformation needed from RGBA to ARGB due to different formats used by OpenGL
-            // and Android.
-            int offset1, offset2;
-            for (int i = 0; i < h; i++) {
-                offset1 = i * w;
-                offset2 = (h - i - 1) * w;
-                for (int j = 0; j < w; j++) {
-                    int texturePixel = bitmapBuffer[offset1 + j];
-                    int red = (texturePixel << 16) & 0x00ff0000;
-                    int green = texturePixel & 0x0000ff00;
-                    int blue = (texturePixel >> 16) & 0xff;
-                    int alpha = texturePixel & 0xff000000;
-                    int pixel = alpha | red | green | blue;
-                    bitmapSource[offset2 + j] = pixel;
-                }
-            }
-        } catch (GLException e) {
-            Log.e(TAG, "Error while creating bitmap from GLSurface.");
-            throw new RuntimeException(e);
-        }
-        return Bitmap.createBitmap(bitmapSource, w, h, Bitmap.Config.ARGB_8888);
+    public void waitForScreenshots() throws InterruptedException {
+        mScreenshotReader.waitForConversions();
+    }
+
+    /**
+     * Stops the screenshot threads. Call once the renderer is no longer used.
+     */
+    public void release() {
+        mScreenshotReader.release();
     }
 }
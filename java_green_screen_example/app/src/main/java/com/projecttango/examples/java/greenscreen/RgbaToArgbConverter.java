@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.greenscreen;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts pixels read with {@code glReadPixels} as RGBA bytes, bottom row first, to the ARGB
+ * ints expected by {@code Bitmap}, top row first.
+ * <p/>
+ * The rows are split in bands converted in parallel by the calling thread and a fixed set of
+ * worker threads, so a conversion doesn't allocate anything. It doesn't depend on Android and can
+ * be run on any JVM.
+ */
+public class RgbaToArgbConverter {
+    private final Worker[] mWorkers;
+
+    // Conversion being run, guarded by mLock.
+    private final Object mLock = new Object();
+    private ByteBuffer mRgba;
+    private int mWidth;
+    private int mHeight;
+    private int[] mArgb;
+    // Incremented for each conversion, to wake up the workers.
+    private int mGeneration;
+    private int mPendingBands;
+    private boolean mIsShutdown;
+
+    /**
+     * @param threadCount Number of threads converting each image, including the calling thread.
+     */
+    public RgbaToArgbConverter(int threadCount) {
+        mWorkers = new Worker[Math.max(threadCount, 1) - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i + 1);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Converts an image. One conversion runs at a time; concurrent calls wait for their turn.
+     *
+     * @param rgba  Pixels read from OpenGL, in the buffer byte order. Only read with absolute
+     *              gets, so its position is left as is.
+     * @param argb  Destination, with at least {@code width * height} entries.
+     */
+    public synchronized void convert(ByteBuffer rgba, int width, int height, int[] argb)
+            throws InterruptedException {
+        int bandCount = mWorkers.length + 1;
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new IllegalStateException("Converter is shut down");
+            }
+            mRgba = rgba;
+            mWidth = width;
+            mHeight = height;
+            mArgb = argb;
+            mPendingBands = mWorkers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        convertRows(rgba, width, height, 0, getBandEnd(0, height, bandCount), argb);
+        synchronized (mLock) {
+            while (mPendingBands > 0 && !mIsShutdown) {
+                mLock.wait();
+            }
+            mRgba = null;
+            mArgb = null;
+            if (mPendingBands > 0) {
+                throw new IllegalStateException("Converter shut down while converting");
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Converts the rows {@code [firstRow, endRow)} of the destination image.
+     */
+    public static void convertRows(ByteBuffer rgba, int width, int height, int firstRow,
+                                   int endRow, int[] argb) {
+        boolean isLittleEndian = rgba.order() == ByteOrder.LITTLE_ENDIAN;
+        for (int row = firstRow; row < endRow; row++) {
+            // OpenGL reads rows bottom up.
+            int source = (height - 1 - row) * width * 4;
+            int destination = row * width;
+            int end = destination + width;
+            if (isLittleEndian) {
+                // Read as 0xAABBGGRR.
+                for (int i = destination; i < end; i++, source += 4) {
+                    int pixel = rgba.getInt(source);
+                    argb[i] = (pixel & 0xff00ff00) | ((pixel << 16) & 0x00ff0000)
+                            | ((pixel >>> 16) & 0xff);
+                }
+            } else {
+                // Read as 0xRRGGBBAA.
+                for (int i = destination; i < end; i++, source += 4) {
+                    int pixel = rgba.getInt(source);
+                    argb[i] = (pixel >>> 8) | (pixel << 24);
+                }
+            }
+        }
+    }
+
+    private static int getBandEnd(int band, int height, int bandCount) {
+        return (int) ((long) height * (band + 1) / bandCount);
+    }
+
+    /**
+     * Converts one band of each image.
+     */
+    private class Worker extends Thread {
+        private final int mBand;
+
+        Worker(int band) {
+            super("RgbaToArgbConverter-" + band);
+            mBand = band;
+        }
+
+        @Override
+        public void run() {
+            int generation = 0;
+            while (true) {
+                ByteBuffer rgba;
+                int width;
+                int height;
+                int[] argb;
+                synchronized (mLock) {
+                    while (mGeneration == generation && !mIsShutdown) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mIsShutdown) {
+                        return;
+                    }
+                    generation = mGeneration;
+                    rgba = mRgba;
+                    width = mWidth;
+                    height = mHeight;
+                    argb = mArgb;
+                }
+                int bandCount = mWorkers.length + 1;
+                convertRows(rgba, width, height, getBandEnd(mBand - 1, height, bandCount),
+                        getBandEnd(mBand, height, bandCount), argb);
+                synchronized (mLock) {
+                    mPendingBands--;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.greenscreen;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads screenshots of the OpenGL surface, keeping the work done on the render thread small.
+ * <p/>
+ * On OpenGL ES 3 the pixels are read into one of two pixel buffer objects, which completes
+ * asynchronously on the GPU, and the buffer is only mapped once a fence says it is done, a few
+ * frames later, so the render thread doesn't wait for the GPU. On OpenGL ES 2 they are read
+ * synchronously into one of two pooled direct buffers, which does wait for the frame.
+ * Either way, the conversion to a bitmap runs on a background thread and the buffer is only
+ * reused once it is done, so two screenshots can be in flight.
+ * <p/>
+ * {@link #requestScreenshot()}, {@link #waitForConversions()} and {@link #release()} can be
+ * called from any thread, the other methods must be called from the OpenGL thread.
+ */
+public class ScreenshotReader {
+    private static final String TAG = ScreenshotReader.class.getSimpleName();
+
+    private static final int SLOT_FREE = 0;
+    // Reading into a pixel buffer object, waiting for its fence.
+    private static final int SLOT_READING = 1;
+    private static final int SLOT_CONVERTING = 2;
+    // Converted, the pixel buffer object must be unmapped before it is reused.
+    private static final int SLOT_CONVERTED = 3;
+
+    /**
+     * Listener for finished screenshots.
+     */
+    public interface OnScreenshotListener {
+        /**
+         * Called from a background thread with a new bitmap.
+         */
+        void onScreenshotTaken(Bitmap screenshot);
+    }
+
+    /**
+     * Buffer a screenshot is read into and converted from.
+     */
+    private static class Slot {
+        volatile int state = SLOT_FREE;
+        int width;
+        int height;
+        // Pixel buffer object and fence, on OpenGL ES 3.
+        int pixelBuffer;
+        int pixelBufferSize;
+        long fence;
+        // Pixels to convert: the mapped pixel buffer object, or a pooled direct buffer.
+        ByteBuffer pixels;
+        boolean isMapped;
+        int[] argb;
+    }
+
+    private final OnScreenshotListener mListener;
+    private final Slot[] mSlots = new Slot[] {new Slot(), new Slot()};
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final RgbaToArgbConverter mConverter =
+            new RgbaToArgbConverter(Runtime.getRuntime().availableProcessors());
+    private volatile boolean mIsScreenshotRequested;
+    private boolean mUsePixelBuffers;
+
+    // Number of slots being converted, guarded by this.
+    private int mConversionCount;
+    // Whether screenshots are taken, written under this. Cleared while the surface is paused.
+    private volatile boolean mIsAccepting = true;
+
+    public ScreenshotReader(OnScreenshotListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets up the reader for a new OpenGL context. Buffers of the previous context are gone.
+     */
+    public void onSurfaceCreated() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        mUsePixelBuffers = version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+        for (Slot slot : mSlots) {
+            if (slot.isMapped && slot.state != SLOT_CONVERTING) {
+                slot.pixels = null;
+                slot.isMapped = false;
+            }
+            // Slots still converting will be freed by the background thread.
+            if (slot.state != SLOT_CONVERTING) {
+                slot.state = SLOT_FREE;
+            }
+            slot.pixelBuffer = 0;
+            slot.pixelBufferSize = 0;
+            slot.fence = 0;
+        }
+        synchronized (this) {
+            mIsAccepting = true;
+        }
+    }
+
+    /**
+     * Takes a screenshot at the end of the next frame. Ignored after
+     * {@link #waitForConversions()} until the next surface is created.
+     */
+    public void requestScreenshot() {
+        if (mIsAccepting) {
+            mIsScreenshotRequested = true;
+        }
+    }
+
+    /**
+     * Starts reading a requested screenshot and advances those in flight. Call at the end of each
+     * frame.
+     */
+    public void onDrawFrameEnd(int width, int height) {
+        for (Slot slot : mSlots) {
+            if (slot.state == SLOT_READING) {
+                int status = GLES30.glClientWaitSync(slot.fence, 0, 0);
+                // Once stopped, the pixels are left unmapped and dropped with the context.
+                if ((status == GLES30.GL_ALREADY_SIGNALED
+                        || status == GLES30.GL_CONDITION_SATISFIED) && beginConversion()) {
+                    GLES30.glDeleteSync(slot.fence);
+                    slot.fence = 0;
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.pixelBuffer);
+                    ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(
+                            GLES30.GL_PIXEL_PACK_BUFFER, 0, slot.pixelBufferSize,
+                            GLES30.GL_MAP_READ_BIT);
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                    slot.isMapped = pixels != null;
+                    slot.pixels = slot.isMapped ? pixels.order(ByteOrder.nativeOrder()) : null;
+                    convert(slot);
+                }
+            } else if (slot.state == SLOT_CONVERTED) {
+                // Skip buffers of a previous context.
+                if (slot.pixelBuffer != 0) {
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.pixelBuffer);
+                    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                }
+                slot.pixels = null;
+                slot.isMapped = false;
+                slot.state = SLOT_FREE;
+            }
+        }
+
+        if (!mIsScreenshotRequested || !mIsAccepting) {
+            return;
+        }
+        Slot slot = null;
+        for (Slot candidate : mSlots) {
+            if (candidate.state == SLOT_FREE) {
+                slot = candidate;
+                break;
+            }
+        }
+        // Keep the request for a later frame if both screenshots are in flight.
+        if (slot == null) {
+            return;
+        }
+        mIsScreenshotRequested = false;
+        slot.width = width;
+        slot.height = height;
+        int size = width * height * 4;
+        if (mUsePixelBuffers) {
+            if (slot.pixelBuffer == 0) {
+                int[] buffers = new int[1];
+                GLES30.glGenBuffers(1, buffers, 0);
+                slot.pixelBuffer = buffers[0];
+            }
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.pixelBuffer);
+            if (slot.pixelBufferSize != size) {
+                GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null,
+                        GLES30.GL_STREAM_READ);
+                slot.pixelBufferSize = size;
+            }
+            GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            slot.state = SLOT_READING;
+        } else {
+            if (slot.pixels == null || slot.pixels.capacity() < size || slot.isMapped) {
+                slot.pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    slot.pixels);
+            if (beginConversion()) {
+                convert(slot);
+            }
+        }
+    }
+
+    /**
+     * Stops taking screenshots and waits for those being converted, which may read mapped OpenGL
+     * memory. Call before the OpenGL context is destroyed. Screenshots are taken again once the
+     * next surface is created.
+     */
+    public synchronized void waitForConversions() throws InterruptedException {
+        mIsAccepting = false;
+        mIsScreenshotRequested = false;
+        while (mConversionCount > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Stops the background threads. The reader can't be used afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            mIsAccepting = false;
+        }
+        mExecutor.shutdown();
+        mConverter.shutdown();
+    }
+
+    /**
+     * Counts a new conversion, unless screenshots are no longer taken.
+     */
+    private synchronized boolean beginConversion() {
+        if (!mIsAccepting) {
+            return false;
+        }
+        mConversionCount++;
+        return true;
+    }
+
+    /**
+     * Converts a slot on the background thread. The conversion must have been counted with
+     * {@link #beginConversion()}.
+     */
+    private void convert(final Slot slot) {
+        slot.state = SLOT_CONVERTING;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap screenshot = null;
+                try {
+                    int pixelCount = slot.width * slot.height;
+                    if (slot.argb == null || slot.argb.length < pixelCount) {
+                        slot.argb = new int[pixelCount];
+                    }
+                    if (slot.pixels != null) {
+                        mConverter.convert(slot.pixels, slot.width, slot.height, slot.argb);
+                        screenshot = Bitmap.createBitmap(slot.argb, slot.width, slot.height,
+                                Bitmap.Config.ARGB_8888);
+                    } else {
+                        Log.e(TAG, "Error while mapping the screenshot pixels.");
+                    }
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while converting a screenshot.");
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "Out of memory while converting a screenshot.");
+                } finally {
+                    // Mapped pixel buffer objects are unmapped by the OpenGL thread.
+                    slot.state = slot.isMapped ? SLOT_CONVERTED : SLOT_FREE;
+                    synchronized (ScreenshotReader.this) {
+                        mConversionCount--;
+                        ScreenshotReader.this.notifyAll();
+                    }
+                }
+                if (screenshot != null) {
+                    mListener.onScreenshotTaken(screenshot);
+                }
+            }
+        });
+    }
+}
@@ -30,6 +30,12 @@ import java.util.Stack;
  * Rajawali object which represents a marker.
  */
 public class MarkerObject {
+    // Pose smoothing parameters, see PoseFilter.
+    private static final double FILTER_MIN_CUTOFF = 1.0;
+    private static final double FILTER_BETA = 10.0;
+    private static final double FILTER_DERIVATIVE_CUTOFF = 1.0;
+    private static final double FILTER_MAX_INTERVAL = 0.5;
+
     // 3D object for bounding box of the marker.
     private MutableLine3D mRect;
 
@@ -41,6 +47,12 @@ public class MarkerObject {
     // If the object is visible.
     private boolean mIsVisible;
 
+    // Removes the jitter of the detected marker pose.
+    private final PoseFilter mPoseFilter = new PoseFilter(FILTER_MIN_CUTOFF, FILTER_BETA,
+            FILTER_DERIVATIVE_CUTOFF, FILTER_MAX_INTERVAL);
+    private final double[] mFilteredTranslation = new double[3];
+    private final double[] mFilteredOrientation = new double[4];
+
     /**
      * Construct marker object.
      */
@@ -95,24 +107,32 @@ public class MarkerObject {
     }
 
     /**
-     * Update the geometry of the marker.
+     * Update the geometry of the marker, with its pose smoothed over the detections.
      */
     public void updateGeometry(TangoMarkers.Marker marker) {
-        // Create marker center and four corners.
-        Vector3 center =
+        mPoseFilter.filter(marker.timestamp, marker.translation, marker.orientation,
+                mFilteredTranslation, mFilteredOrientation);
+
+        // Create marker center and orientation, from the filtered pose.
+        Vector3 center = new Vector3(mFilteredTranslation[0], mFilteredTranslation[1],
+                mFilteredTranslation[2]);
+        Quaternion q = new Quaternion(mFilteredOrientation[3], mFilteredOrientation[0],
+                mFilteredOrientation[1], mFilteredOrientation[2]);
+
+        // Move the four corners along with the pose, from the detected to the filtered one.
+        Vector3 detectedCenter =
                 new Vector3(marker.translation[0], marker.translation[1], marker.translation[2]);
-        Vector3 cornerBottomLeft =
-                new Vector3(marker.corners3d[0][0], marker.corners3d[0][1], marker.corners3d[0][2]);
-        Vector3 cornerBottomRight =
-                new Vector3(marker.corners3d[1][0], marker.corners3d[1][1], marker.corners3d[1][2]);
-        Vector3 cornerTopRight =
-                new Vector3(marker.corners3d[2][0], marker.corners3d[2][1], marker.corners3d[2][2]);
-        Vector3 cornerTopLeft =
-                new Vector3(marker.corners3d[3][0], marker.corners3d[3][1], marker.corners3d[3][2]);
-
-        // Create a quaternion from marker orientation.
-        Quaternion q = new Quaternion(marker.orientation[3], marker.orientation[0],
+        Quaternion detectedQ = new Quaternion(marker.orientation[3], marker.orientation[0],
                 marker.orientation[1], marker.orientation[2]);
+        Quaternion correction = q.clone().multiply(detectedQ.conjugate());
+        Vector3 cornerBottomLeft = filterCorner(marker.corners3d[0], detectedCenter, correction,
+                center);
+        Vector3 cornerBottomRight = filterCorner(marker.corners3d[1], detectedCenter, correction,
+                center);
+        Vector3 cornerTopRight = filterCorner(marker.corners3d[2], detectedCenter, correction,
+                center);
+        Vector3 cornerTopLeft = filterCorner(marker.corners3d[3], detectedCenter, correction,
+                center);
 
         // Calculate marker size in meters, assuming square-shape markers.
         double markerSize = cornerTopLeft.distanceTo(cornerTopRight);
@@ -157,6 +177,15 @@ public class MarkerObject {
         }
     }
 
+    /**
+     * Applies the pose correction from the detected to the filtered marker pose to a corner.
+     */
+    private static Vector3 filterCorner(double[] corner, Vector3 detectedCenter,
+                                        Quaternion correction, Vector3 center) {
+        Vector3 offset = new Vector3(corner[0], corner[1], corner[2]).subtract(detectedCenter);
+        return Vector3.addAndCreate(center, correction.multiply(offset));
+    }
+
     /**
      * Set visibility of the marker object.
      */
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.markerdetection;
+
+/**
+ * Adaptive low-pass filter for a stream of poses, following the One Euro filter of Casiez et al.
+ * <p/>
+ * Translation and rotation are each smoothed with an exponential filter whose cutoff frequency
+ * grows with the filtered speed: {@code cutoff = minCutoff + beta * speed}. A static pose is
+ * smoothed heavily, which removes jitter, while a moving pose is followed closely, which keeps
+ * the lag low. Speeds are in meters per second and radians per second.
+ * <p/>
+ * The filter does not allocate after construction. It is not thread safe.
+ */
+public class PoseFilter {
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private final double mMinCutoff;
+    private final double mBeta;
+    private final double mDerivativeCutoff;
+    private final double mMaxInterval;
+
+    private boolean mHasPose;
+    private double mTimestamp;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private double mLinearSpeed;
+    private double mAngularSpeed;
+
+    /**
+     * @param minCutoff        Cutoff frequency in Hz when static; lower removes more jitter.
+     * @param beta             Cutoff increase per unit of speed; higher reduces lag when moving.
+     * @param derivativeCutoff Cutoff frequency in Hz of the speed estimate.
+     * @param maxInterval      Gap in seconds after which the filter restarts from the raw pose,
+     *                         e.g. when a marker was out of sight.
+     */
+    public PoseFilter(double minCutoff, double beta, double derivativeCutoff,
+                      double maxInterval) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivativeCutoff = derivativeCutoff;
+        mMaxInterval = maxInterval;
+    }
+
+    /**
+     * Filters the next pose of the stream. A pose that is not newer than the previous one yields
+     * the previous output.
+     *
+     * @param translation    Raw translation x, y, z.
+     * @param rotation       Raw rotation quaternion x, y, z, w.
+     * @param outTranslation Filtered translation; may be {@code translation}.
+     * @param outRotation    Filtered rotation; may be {@code rotation}.
+     */
+    public void filter(double timestamp, double[] translation, double[] rotation,
+                       double[] outTranslation, double[] outRotation) {
+        double dt = timestamp - mTimestamp;
+        if (!mHasPose || dt > mMaxInterval || dt < 0) {
+            reset();
+            mHasPose = true;
+            mTimestamp = timestamp;
+            System.arraycopy(translation, 0, mTranslation, 0, 3);
+            System.arraycopy(rotation, 0, mRotation, 0, 4);
+        } else if (dt > 0) {
+            mTimestamp = timestamp;
+            filterTranslation(translation, dt);
+            filterRotation(rotation, dt);
+        }
+        System.arraycopy(mTranslation, 0, outTranslation, 0, 3);
+        System.arraycopy(mRotation, 0, outRotation, 0, 4);
+    }
+
+    /**
+     * Forgets the stream, so that the next pose passes unfiltered.
+     */
+    public void reset() {
+        mHasPose = false;
+        mLinearSpeed = 0;
+        mAngularSpeed = 0;
+    }
+
+    private void filterTranslation(double[] translation, double dt) {
+        double dx = translation[0] - mTranslation[0];
+        double dy = translation[1] - mTranslation[1];
+        double dz = translation[2] - mTranslation[2];
+        double speed = Math.sqrt(dx * dx + dy * dy + dz * dz) / dt;
+        mLinearSpeed += alpha(mDerivativeCutoff, dt) * (speed - mLinearSpeed);
+        double a = alpha(mMinCutoff + mBeta * mLinearSpeed, dt);
+        mTranslation[0] += a * dx;
+        mTranslation[1] += a * dy;
+        mTranslation[2] += a * dz;
+    }
+
+    private void filterRotation(double[] rotation, double dt) {
+        double dot = mRotation[0] * rotation[0] + mRotation[1] * rotation[1]
+                + mRotation[2] * rotation[2] + mRotation[3] * rotation[3];
+        double sign = 1;
+        if (dot < 0) {
+            dot = -dot;
+            sign = -1;
+        }
+        double theta = Math.acos(Math.min(1, dot));
+        double speed = 2 * theta / dt;
+        mAngularSpeed += alpha(mDerivativeCutoff, dt) * (speed - mAngularSpeed);
+        double a = alpha(mMinCutoff + mBeta * mAngularSpeed, dt);
+
+        // SLERP from the filtered towards the raw rotation along the shortest arc.
+        double weightFiltered;
+        double weightRaw;
+        if (dot > SLERP_THRESHOLD) {
+            weightFiltered = 1 - a;
+            weightRaw = a;
+        } else {
+            double sinTheta = Math.sin(theta);
+            weightFiltered = Math.sin((1 - a) * theta) / sinTheta;
+            weightRaw = Math.sin(a * theta) / sinTheta;
+        }
+        weightRaw *= sign;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] = weightFiltered * mRotation[i] + weightRaw * rotation[i];
+            norm += mRotation[i] * mRotation[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] /= norm;
+        }
+    }
+
+    /**
+     * Smoothing factor of an exponential filter with the given cutoff frequency.
+     */
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1 / (2 * Math.PI * cutoff);
+        return 1 / (1 + tau / dt);
+    }
+}
@@ -51,6 +51,12 @@ public class MotionTrackingActivity extends Activity {
 
     private static final String TAG = MotionTrackingActivity.class.getSimpleName();
 
+    // Pose smoothing parameters, see PoseFilter.
+    private static final double FILTER_MIN_CUTOFF = 1.0;
+    private static final double FILTER_BETA = 20.0;
+    private static final double FILTER_DERIVATIVE_CUTOFF = 1.0;
+    private static final double FILTER_MAX_INTERVAL = 0.5;
+
     private RajawaliSurfaceView mSurfaceView;
     private MotionTrackingRajawaliRenderer mRenderer;
     private Tango mTango;
@@ -60,6 +66,11 @@ public class MotionTrackingActivity extends Activity {
 
     private int mDisplayRotation = 0;
 
+    // Removes the jitter of the device pose while keeping the lag low when moving. Only used in
+    // the OpenGL thread.
+    private final PoseFilter mPoseFilter = new PoseFilter(FILTER_MIN_CUTOFF, FILTER_BETA,
+            FILTER_DERIVATIVE_CUTOFF, FILTER_MAX_INTERVAL);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -238,6 +249,8 @@ public class MotionTrackingActivity extends Activity {
                                         mDisplayRotation);
 
                         if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                            mPoseFilter.filter(pose.timestamp, pose.translation, pose.rotation,
+                                    pose.translation, pose.rotation);
                             // Update the camera pose from the renderer.
                             mRenderer.updateRenderCameraPose(pose);
                         }
@@ -71,11 +71,26 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class OpenGlAugmentedRealityActivity extends Activity {
     private static final String TAG = OpenGlAugmentedRealityActivity.class.getSimpleName();
+    /**
+     * Boolean intent extra enabling the camera pose prediction, off by default. E.g.
+     * {@code adb shell am start -n <package>/.OpenGlAugmentedRealityActivity
+     * --ez predict_camera_pose true}.
+     */
+    public static final String EXTRA_PREDICT_CAMERA_POSE = "predict_camera_pose";
     private static final int INVALID_TEXTURE_ID = 0;
 
     private static final String CAMERA_PERMISSION = Manifest.permission.CAMERA;
     private static final int CAMERA_PERMISSION_CODE = 0;
 
+    // Expected time from the latest device pose to the display, and the longest extrapolation.
+    private static final double PREDICTION_DISPLAY_LATENCY = 0.033;
+    private static final double PREDICTION_MAX_HORIZON = 0.1;
+    private static final double PREDICTION_VELOCITY_SMOOTHING = 0.5;
+    // Camera frames older than this at display time, e.g. from before a reconnect, aren't moved.
+    private static final double PREDICTION_MAX_FRAME_AGE = 0.2;
+    // Every this many predicted frames the prediction error is logged.
+    private static final int PREDICTION_LOG_INTERVAL = 600;
+
     private GLSurfaceView mSurfaceView;
     private OpenGlAugmentedRealityRenderer mRenderer;
     private Tango mTango;
@@ -101,11 +116,33 @@ public class OpenGlAugmentedRealityActivity extends Activity {
 
     private int mDisplayRotation = 0;
 
+    // Renders the camera with the device pose predicted at display time instead of the color
+    // camera frame time, see EXTRA_PREDICT_CAMERA_POSE. The scene is then rendered continuously
+    // instead of once per camera frame, and the Earth and Moon lag less behind head motion on high
+    // refresh displays, at the cost of moving slightly against the camera image.
+    private boolean mIsCameraPosePredicted;
+    private final PosePredictor mPosePredictor =
+            new PosePredictor(PREDICTION_MAX_HORIZON, PREDICTION_VELOCITY_SMOOTHING);
+    // Color camera transform and start of service T device pose at the latest camera frame.
+    private float[] mCameraTransformGlThread;
+    private TangoPoseData mDevicePoseGlThread;
+    private final float[] mPredictedCameraTransformGlThread = new float[16];
+    private long mPredictedFrameCountGlThread;
+    // Scratch space of predictCameraTransform, so prediction doesn't allocate on each frame.
+    private final double[] mFromTranslationGlThread = new double[3];
+    private final double[] mFromRotationGlThread = new double[4];
+    private final double[] mToTranslationGlThread = new double[3];
+    private final double[] mToRotationGlThread = new double[4];
+    private final double[] mDeltaRotationGlThread = new double[4];
+    private final double[] mDeltaTranslationGlThread = new double[3];
+    private final float[] mDeltaTransformGlThread = new float[16];
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mSurfaceView = (GLSurfaceView) findViewById(R.id.surfaceview);
+        mIsCameraPosePredicted = getIntent().getBooleanExtra(EXTRA_PREDICT_CAMERA_POSE, false);
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
             displayManager.registerDisplayListener(new DisplayManager.DisplayListener() {
@@ -229,13 +266,19 @@ public class OpenGlAugmentedRealityActivity extends Activity {
      * Listen to updates from the RGB camera.
      */
     private void startupTango() {
-        // No need to add any coordinate frame pairs since we aren't using pose data from callbacks.
+        // The device pose stream is only needed to predict the camera pose.
         ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
+        if (mIsCameraPosePredicted) {
+            framePairs.add(new TangoCoordinateFramePair(
+                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                    TangoPoseData.COORDINATE_FRAME_DEVICE));
+        }
+        mPosePredictor.reset();
 
         mTango.connectListener(framePairs, new OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(TangoPoseData pose) {
-                // We are not using onPoseAvailable for this app.
+                mPosePredictor.add(pose);
             }
 
             @Override
@@ -264,8 +307,9 @@ public class OpenGlAugmentedRealityActivity extends Activity {
                     // the RGB camera driver.
                     // If you need to render at a higher rate (i.e., if you want to render complex
                     // animations smoothly) you can use RENDERMODE_CONTINUOUSLY throughout the
-                    // application lifecycle.
-                    if (mSurfaceView.getRenderMode() != GLSurfaceView.RENDERMODE_WHEN_DIRTY) {
+                    // application lifecycle, as the camera pose prediction does.
+                    if (!mIsCameraPosePredicted && mSurfaceView.getRenderMode()
+                            != GLSurfaceView.RENDERMODE_WHEN_DIRTY) {
                         mSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
                     }
 
@@ -348,6 +392,17 @@ public class OpenGlAugmentedRealityActivity extends Activity {
                                     if (transform.statusCode == TangoPoseData.POSE_VALID) {
 
                                         mRenderer.updateViewMatrix(transform.matrix);
+                                        if (mIsCameraPosePredicted) {
+                                            mCameraTransformGlThread = transform.matrix;
+                                            mDevicePoseGlThread = TangoSupport.getPoseAtTime(
+                                                    mRgbTimestampGlThread,
+                                                    TangoPoseData
+                                                            .COORDINATE_FRAME_START_OF_SERVICE,
+                                                    TangoPoseData.COORDINATE_FRAME_DEVICE,
+                                                    TangoSupport.ENGINE_TANGO,
+                                                    TangoSupport.ENGINE_TANGO,
+                                                    TangoSupport.ROTATION_IGNORED);
+                                        }
                                         double deltaTime = mRgbTimestampGlThread
                                                 - lastRenderedTimeStamp;
                                         lastRenderedTimeStamp = mRgbTimestampGlThread;
@@ -383,6 +438,18 @@ public class OpenGlAugmentedRealityActivity extends Activity {
                                                 mRgbTimestampGlThread);
                                     }
                                 }
+
+                                // Move the camera to the predicted pose on every rendered frame,
+                                // not only on new camera frames.
+                                if (mIsCameraPosePredicted && mCameraTransformGlThread != null
+                                        && predictCameraTransform(mCameraTransformGlThread,
+                                        mDevicePoseGlThread, mPredictedCameraTransformGlThread)) {
+                                    mRenderer.updateViewMatrix(mPredictedCameraTransformGlThread);
+                                    if (++mPredictedFrameCountGlThread % PREDICTION_LOG_INTERVAL
+                                            == 0) {
+                                        Log.d(TAG, "Pose prediction " + mPosePredictor);
+                                    }
+                                }
                             }
                             // Avoid crashing the application due to unhandled exceptions.
                         } catch (TangoErrorException e) {
@@ -440,6 +507,66 @@ public class OpenGlAugmentedRealityActivity extends Activity {
         return m;
     }
 
+    /**
+     * Moves an OpenGL camera transform by the device motion between its timestamp and the
+     * expected display time, as predicted from the pose stream.
+     *
+     * @param ssTcamera  OpenGL world T OpenGL camera transform, as queried for rendering.
+     * @param devicePose Start of service T device pose at the same time, in Tango convention.
+     * @param out        The predicted transform.
+     * @return Whether there is a prediction; the output is unchanged otherwise.
+     */
+    private boolean predictCameraTransform(float[] ssTcamera, TangoPoseData devicePose,
+                                           float[] out) {
+        double[] fromTranslation = mFromTranslationGlThread;
+        double[] fromRotation = mFromRotationGlThread;
+        double[] toTranslation = mToTranslationGlThread;
+        double[] toRotation = mToRotationGlThread;
+        double displayTimestamp = mPosePredictor.getLatestTimestamp() + PREDICTION_DISPLAY_LATENCY;
+        if (devicePose.statusCode != TangoPoseData.POSE_VALID
+                || displayTimestamp - devicePose.timestamp > PREDICTION_MAX_FRAME_AGE
+                || !mPosePredictor.predict(displayTimestamp, toTranslation, toRotation)) {
+            return false;
+        }
+        System.arraycopy(devicePose.translation, 0, fromTranslation, 0, 3);
+        System.arraycopy(devicePose.rotation, 0, fromRotation, 0, 4);
+
+        // Device motion in start of service frame: delta = to * inverse(from).
+        double[] delta = mDeltaRotationGlThread;
+        PosePredictor.conjugate(fromRotation);
+        PosePredictor.multiply(toRotation, fromRotation, delta);
+        double[] deltaTranslation = mDeltaTranslationGlThread;
+        PosePredictor.rotate(delta, fromTranslation, deltaTranslation);
+        for (int i = 0; i < 3; i++) {
+            deltaTranslation[i] = toTranslation[i] - deltaTranslation[i];
+        }
+        // The same motion in OpenGL world, whose Y is Tango Z and Z is Tango -Y.
+        double x = delta[0];
+        double y = delta[2];
+        double z = -delta[1];
+        double w = delta[3];
+        float[] m = mDeltaTransformGlThread;
+        m[0] = (float) (1 - 2 * (y * y + z * z));
+        m[1] = (float) (2 * (x * y + z * w));
+        m[2] = (float) (2 * (x * z - y * w));
+        m[3] = 0;
+        m[4] = (float) (2 * (x * y - z * w));
+        m[5] = (float) (1 - 2 * (x * x + z * z));
+        m[6] = (float) (2 * (y * z + x * w));
+        m[7] = 0;
+        m[8] = (float) (2 * (x * z + y * w));
+        m[9] = (float) (2 * (y * z - x * w));
+        m[10] = (float) (1 - 2 * (x * x + y * y));
+        m[11] = 0;
+        m[12] = (float) deltaTranslation[0];
+        m[13] = (float) deltaTranslation[2];
+        m[14] = (float) -deltaTranslation[1];
+        m[15] = 1;
+
+        Matrix.multiplyMM(out, 0, m, 0, ssTcamera, 0);
+        return true;
+    }
+
     /**
      * Set the color camera background texture rotation and save the camera to display rotation.
      */
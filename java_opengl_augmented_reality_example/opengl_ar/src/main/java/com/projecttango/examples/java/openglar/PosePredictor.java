@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.openglar;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+/**
+ * Predicts a pose stream, e.g. start of service T device, a short time into the future.
+ * <p/>
+ * The linear and angular velocities are estimated from consecutive poses and smoothed with an
+ * exponential moving average. A prediction extrapolates the latest pose with constant velocity,
+ * by at most the configured horizon.
+ * <p/>
+ * The predictor measures its own accuracy: each prediction is compared with the actual pose once
+ * the stream reaches the predicted timestamp, together with the error of simply holding the
+ * latest pose, which is what rendering without prediction does.
+ * <p/>
+ * All methods are thread safe.
+ */
+public class PosePredictor {
+    // Predictions waiting for the stream to reach their timestamp.
+    private static final int MAX_PENDING_PREDICTIONS = 32;
+    private static final double MIN_ANGLE = 1e-9;
+
+    private final double mMaxHorizon;
+    private final double mSmoothing;
+
+    // Latest pose and previous one.
+    private boolean mHasPose;
+    private boolean mHasVelocity;
+    private double mTimestamp;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private double mPreviousTimestamp;
+    private final double[] mPreviousTranslation = new double[3];
+    private final double[] mPreviousRotation = new double[4];
+    // Smoothed velocities in the base frame: m/s and rad/s around the axis.
+    private final double[] mLinearVelocity = new double[3];
+    private final double[] mAngularVelocity = new double[3];
+
+    // Pending predictions: timestamp, predicted translation and rotation, held translation and
+    // rotation.
+    private static final int PENDING_STRIDE = 1 + 3 + 4 + 3 + 4;
+    private final double[] mPending = new double[MAX_PENDING_PREDICTIONS * PENDING_STRIDE];
+    private int mPendingStart;
+    private int mPendingCount;
+
+    private long mEvaluationCount;
+    private double mSumTranslationError;
+    private double mMaxTranslationError;
+    private double mSumRotationError;
+    private double mMaxRotationError;
+    private double mSumHeldTranslationError;
+    private double mSumHeldRotationError;
+
+    // Scratch.
+    private final double[] mDelta = new double[4];
+    private final double[] mActualTranslation = new double[3];
+    private final double[] mActualRotation = new double[4];
+
+    /**
+     * @param maxHorizon Longest extrapolation in seconds.
+     * @param smoothing  Weight of the newest velocity sample in the moving average, in (0, 1].
+     */
+    public PosePredictor(double maxHorizon, double smoothing) {
+        mMaxHorizon = maxHorizon;
+        mSmoothing = smoothing;
+    }
+
+    /**
+     * Adds a pose of the stream. Invalid poses and poses older than the latest one are ignored.
+     */
+    public synchronized void add(TangoPoseData pose) {
+        if (pose.statusCode != TangoPoseData.POSE_VALID
+                || (mHasPose && pose.timestamp <= mTimestamp)) {
+            return;
+        }
+        if (mHasPose) {
+            mPreviousTimestamp = mTimestamp;
+            System.arraycopy(mTranslation, 0, mPreviousTranslation, 0, 3);
+            System.arraycopy(mRotation, 0, mPreviousRotation, 0, 4);
+        }
+        mTimestamp = pose.timestamp;
+        System.arraycopy(pose.translation, 0, mTranslation, 0, 3);
+        System.arraycopy(pose.rotation, 0, mRotation, 0, 4);
+        if (!mHasPose) {
+            mHasPose = true;
+            return;
+        }
+
+        double dt = mTimestamp - mPreviousTimestamp;
+        // Rotation from the previous to the latest pose, in the base frame.
+        multiplyConjugate(mRotation, mPreviousRotation, mDelta);
+        double alpha = mHasVelocity ? mSmoothing : 1;
+        for (int i = 0; i < 3; i++) {
+            double linear = (mTranslation[i] - mPreviousTranslation[i]) / dt;
+            mLinearVelocity[i] += alpha * (linear - mLinearVelocity[i]);
+        }
+        double sinHalfAngle = Math.sqrt(mDelta[0] * mDelta[0] + mDelta[1] * mDelta[1]
+                + mDelta[2] * mDelta[2]);
+        double angle = 2 * Math.atan2(sinHalfAngle, mDelta[3]);
+        for (int i = 0; i < 3; i++) {
+            double angular = sinHalfAngle < MIN_ANGLE ? 0 : mDelta[i] / sinHalfAngle * angle / dt;
+            mAngularVelocity[i] += alpha * (angular - mAngularVelocity[i]);
+        }
+        mHasVelocity = true;
+
+        evaluatePending();
+    }
+
+    /**
+     * Drops the stream state, e.g. after the service reconnects or tracking is lost.
+     */
+    public synchronized void reset() {
+        mHasPose = false;
+        mHasVelocity = false;
+        mPendingCount = 0;
+        for (int i = 0; i < 3; i++) {
+            mLinearVelocity[i] = 0;
+            mAngularVelocity[i] = 0;
+        }
+    }
+
+    /**
+     * @return Timestamp of the latest pose, or 0 if there is none.
+     */
+    public synchronized double getLatestTimestamp() {
+        return mHasPose ? mTimestamp : 0;
+    }
+
+    /**
+     * Predicts the pose at a timestamp after the latest pose. Extrapolation is limited to the
+     * maximum horizon.
+     *
+     * @param outTranslation Translation x, y, z.
+     * @param outRotation    Rotation quaternion x, y, z, w, as in {@link TangoPoseData}.
+     * @return Whether there is a prediction; the outputs are unchanged otherwise.
+     */
+    public synchronized boolean predict(double timestamp, double[] outTranslation,
+                                        double[] outRotation) {
+        if (!mHasVelocity) {
+            return false;
+        }
+        double dt = Math.max(0, Math.min(mMaxHorizon, timestamp - mTimestamp));
+        for (int i = 0; i < 3; i++) {
+            outTranslation[i] = mTranslation[i] + mLinearVelocity[i] * dt;
+        }
+        // Rotate the latest orientation by the angular velocity over dt.
+        double speed = Math.sqrt(mAngularVelocity[0] * mAngularVelocity[0]
+                + mAngularVelocity[1] * mAngularVelocity[1]
+                + mAngularVelocity[2] * mAngularVelocity[2]);
+        double halfAngle = speed * dt / 2;
+        double scale = speed < MIN_ANGLE ? 0 : Math.sin(halfAngle) / speed;
+        mDelta[0] = mAngularVelocity[0] * scale;
+        mDelta[1] = mAngularVelocity[1] * scale;
+        mDelta[2] = mAngularVelocity[2] * scale;
+        mDelta[3] = Math.cos(halfAngle);
+        multiply(mDelta, mRotation, outRotation);
+
+        addPending(mTimestamp + dt, outTranslation, outRotation);
+        return true;
+    }
+
+    /**
+     * @return Number of predictions compared with the actual pose.
+     */
+    public synchronized long getEvaluationCount() {
+        return mEvaluationCount;
+    }
+
+    /**
+     * @return Mean translation error of the predictions, in meters.
+     */
+    public synchronized double getMeanTranslationError() {
+        return mEvaluationCount == 0 ? 0 : mSumTranslationError / mEvaluationCount;
+    }
+
+    /**
+     * @return Mean rotation error of the predictions, in radians.
+     */
+    public synchronized double getMeanRotationError() {
+        return mEvaluationCount == 0 ? 0 : mSumRotationError / mEvaluationCount;
+    }
+
+    public synchronized double getMaxTranslationError() {
+        return mMaxTranslationError;
+    }
+
+    public synchronized double getMaxRotationError() {
+        return mMaxRotationError;
+    }
+
+    /**
+     * @return Mean translation error of holding the latest pose instead, in meters.
+     */
+    public synchronized double getMeanHeldTranslationError() {
+        return mEvaluationCount == 0 ? 0 : mSumHeldTranslationError / mEvaluationCount;
+    }
+
+    /**
+     * @return Mean rotation error of holding the latest pose instead, in radians.
+     */
+    public synchronized double getMeanHeldRotationError() {
+        return mEvaluationCount == 0 ? 0 : mSumHeldRotationError / mEvaluationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mEvaluationCount + " predictions, translation error mean/max (m): "
+                + getMeanTranslationError() + "/" + mMaxTranslationError
+                + " (held " + getMeanHeldTranslationError() + ")"
+                + ", rotation error mean/max (rad): " + getMeanRotationError() + "/"
+                + mMaxRotationError + " (held " + getMeanHeldRotationError() + ")";
+    }
+
+    private void addPending(double timestamp, double[] translation, double[] rotation) {
+        if (timestamp <= mTimestamp) {
+            // Nothing was extrapolated.
+            return;
+        }
+        if (mPendingCount == MAX_PENDING_PREDICTIONS) {
+            mPendingStart = (mPendingStart + 1) % MAX_PENDING_PREDICTIONS;
+            mPendingCount--;
+        }
+        int offset = ((mPendingStart + mPendingCount) % MAX_PENDING_PREDICTIONS) * PENDING_STRIDE;
+        mPending[offset] = timestamp;
+        System.arraycopy(translation, 0, mPending, offset + 1, 3);
+        System.arraycopy(rotation, 0, mPending, offset + 4, 4);
+        System.arraycopy(mTranslation, 0, mPending, offset + 8, 3);
+        System.arraycopy(mRotation, 0, mPending, offset + 11, 4);
+        mPendingCount++;
+    }
+
+    /**
+     * Compares the pending predictions whose timestamp the stream has reached with the actual
+     * pose, interpolated between the two latest poses.
+     */
+    private void evaluatePending() {
+        while (mPendingCount > 0) {
+            int offset = mPendingStart * PENDING_STRIDE;
+            double timestamp = mPending[offset];
+            if (timestamp > mTimestamp) {
+                return;
+            }
+            mPendingStart = (mPendingStart + 1) % MAX_PENDING_PREDICTIONS;
+            mPendingCount--;
+            if (timestamp < mPreviousTimestamp) {
+                // Predictions made before a gap in the stream can't be evaluated.
+                continue;
+            }
+
+            double t = (timestamp - mPreviousTimestamp) / (mTimestamp - mPreviousTimestamp);
+            double dot = 0;
+            for (int i = 0; i < 4; i++) {
+                dot += mPreviousRotation[i] * mRotation[i];
+            }
+            double sign = dot < 0 ? -1 : 1;
+            double norm = 0;
+            for (int i = 0; i < 4; i++) {
+                mActualRotation[i] = (1 - t) * mPreviousRotation[i] + t * sign * mRotation[i];
+                norm += mActualRotation[i] * mActualRotation[i];
+            }
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < 4; i++) {
+                mActualRotation[i] /= norm;
+            }
+            for (int i = 0; i < 3; i++) {
+                mActualTranslation[i] = mPreviousTranslation[i]
+                        + t * (mTranslation[i] - mPreviousTranslation[i]);
+            }
+
+            double translationError = distance(mPending, offset + 1, mActualTranslation);
+            double rotationError = angle(mPending, offset + 4, mActualRotation);
+            mEvaluationCount++;
+            mSumTranslationError += translationError;
+            mMaxTranslationError = Math.max(mMaxTranslationError, translationError);
+            mSumRotationError += rotationError;
+            mMaxRotationError = Math.max(mMaxRotationError, rotationError);
+            mSumHeldTranslationError += distance(mPending, offset + 8, mActualTranslation);
+            mSumHeldRotationError += angle(mPending, offset + 11, mActualRotation);
+        }
+    }
+
+    private static double distance(double[] a, int offset, double[] b) {
+        double dx = a[offset] - b[0];
+        double dy = a[offset + 1] - b[1];
+        double dz = a[offset + 2] - b[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static double angle(double[] a, int offset, double[] b) {
+        double dot = Math.abs(a[offset] * b[0] + a[offset + 1] * b[1] + a[offset + 2] * b[2]
+                + a[offset + 3] * b[3]);
+        return 2 * Math.acos(Math.min(1, dot));
+    }
+
+    /**
+     * Hamilton product {@code out = a * b} of x, y, z, w quaternions. {@code out} may not be
+     * {@code b}.
+     */
+    static void multiply(double[] a, double[] b, double[] out) {
+        double ax = a[0];
+        double ay = a[1];
+        double az = a[2];
+        double aw = a[3];
+        out[0] = aw * b[0] + ax * b[3] + ay * b[2] - az * b[1];
+        out[1] = aw * b[1] - ax * b[2] + ay * b[3] + az * b[0];
+        out[2] = aw * b[2] + ax * b[1] - ay * b[0] + az * b[3];
+        out[3] = aw * b[3] - ax * b[0] - ay * b[1] - az * b[2];
+    }
+
+    /**
+     * Rotates a vector by an x, y, z, w quaternion. {@code out} may not be {@code v}.
+     */
+    static void rotate(double[] q, double[] v, double[] out) {
+        // v + 2 * q.xyz x (q.xyz x v + w * v)
+        double cx = q[1] * v[2] - q[2] * v[1] + q[3] * v[0];
+        double cy = q[2] * v[0] - q[0] * v[2] + q[3] * v[1];
+        double cz = q[0] * v[1] - q[1] * v[0] + q[3] * v[2];
+        out[0] = v[0] + 2 * (q[1] * cz - q[2] * cy);
+        out[1] = v[1] + 2 * (q[2] * cx - q[0] * cz);
+        out[2] = v[2] + 2 * (q[0] * cy - q[1] * cx);
+    }
+
+    /**
+     * Conjugates an x, y, z, w quaternion in place.
+     */
+    static void conjugate(double[] q) {
+        q[0] = -q[0];
+        q[1] = -q[1];
+        q[2] = -q[2];
+    }
+
+    /**
+     * {@code out = a * conjugate(b)} of x, y, z, w quaternions, taking the shortest path.
+     */
+    private static void multiplyConjugate(double[] a, double[] b, double[] out) {
+        double bx = -b[0];
+        double by = -b[1];
+        double bz = -b[2];
+        double bw = b[3];
+        out[0] = a[3] * bx + a[0] * bw + a[1] * bz - a[2] * by;
+        out[1] = a[3] * by - a[0] * bz + a[1] * bw + a[2] * bx;
+        out[2] = a[3] * bz + a[0] * by - a[1] * bx + a[2] * bw;
+        out[3] = a[3] * bw - a[0] * bx - a[1] * by - a[2] * bz;
+        if (out[3] < 0) {
+            for (int i = 0; i < 4; i++) {
+                out[i] = -out[i];
+            }
+        }
+    }
+}
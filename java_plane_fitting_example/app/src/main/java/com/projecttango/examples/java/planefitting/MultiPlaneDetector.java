@@ -0,0 +1,559 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.planefitting;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Detects all the dominant planes in a point cloud using sequential RANSAC.
+ * <p/>
+ * Planes are extracted one at a time: a batch of plane hypotheses is generated from triplets of
+ * nearby points, the hypotheses are scored in parallel against the remaining points and the best
+ * one is refined with a least squares fit over its inliers. The inliers are then removed from the
+ * cloud and the process is repeated until no plane with enough support is left.
+ * <p/>
+ * Point triplets are sampled inside the cells of a uniform grid index so that the three points
+ * most likely belong to the same surface. Sampling stops early once enough hypotheses have been
+ * tried to find the best plane with {@link #CONFIDENCE} probability.
+ * <p/>
+ * Planes are expressed in the frame of the input cloud, normally the depth camera frame.
+ */
+public class MultiPlaneDetector {
+    // Probability of having sampled at least one all-inlier triplet when stopping early.
+    private static final double CONFIDENCE = 0.99;
+    private static final int HYPOTHESES_PER_BATCH = 32;
+    private static final int MAX_HYPOTHESES = 512;
+    // Maximum angle between the sampled and the refined plane normals, in radians.
+    private static final double MAX_REFINED_NORMAL_ANGLE = Math.toRadians(10);
+    // Samples whose normal can't be computed reliably are discarded.
+    private static final double MIN_SAMPLE_CROSS_LENGTH = 1e-6;
+    // Resolution of the convex hull vertices in meters.
+    private static final double HULL_RESOLUTION = 0.001;
+    private static final int GRID_BITS = 14;
+    private static final int INDEX_BITS = 20;
+    private static final int MAX_POINTS = 1 << INDEX_BITS;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    private final float mDistanceThreshold;
+    private final float mCellSize;
+    private final int mMinInliers;
+    private final int mMaxPlanes;
+    private final Random mRandom = new Random(0);
+
+    // Working buffers reused across calls.
+    private float[] mPoints = new float[0];
+    private boolean[] mRemoved = new boolean[0];
+    // Grid index: cell key and point index packed in a long, sorted by cell.
+    private long[] mGridEntries = new long[0];
+    // Position of every point in mGridEntries.
+    private int[] mGridPosition = new int[0];
+    private final float[] mHypotheses = new float[4 * HYPOTHESES_PER_BATCH];
+    private final int[] mScores = new int[HYPOTHESES_PER_BATCH];
+
+    private long mLastDetectionTimeNs;
+
+    /**
+     * A detected plane.
+     */
+    public static class Plane {
+        /**
+         * Plane equation (a, b, c, d) with a*x + b*y + c*z + d = 0, unit normal (a, b, c) pointing
+         * to the origin of the cloud frame.
+         */
+        public final float[] model;
+        /**
+         * Mean of the inlier points.
+         */
+        public final float[] centroid;
+        public final int inlierCount;
+        /**
+         * Convex hull of the inliers as a counter-clockwise list of 3D points (x, y, z) lying on
+         * the plane.
+         */
+        public final float[] hull;
+
+        public Plane(float[] model, float[] centroid, int inlierCount, float[] hull) {
+            this.model = model;
+            this.centroid = centroid;
+            this.inlierCount = inlierCount;
+            this.hull = hull;
+        }
+    }
+
+    /**
+     * @param executor          Executor used to score hypotheses in parallel.
+     * @param parallelism       Number of tasks the hypotheses of a batch are split into.
+     * @param distanceThreshold Maximum distance in meters from a point to its plane.
+     * @param cellSize          Size in meters of the grid cells points are sampled from.
+     * @param minInliers        Minimum number of inliers of a plane.
+     * @param maxPlanes         Maximum number of planes to detect per cloud.
+     */
+    public MultiPlaneDetector(ExecutorService executor, int parallelism, float distanceThreshold,
+                              float cellSize, int minInliers, int maxPlanes) {
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mDistanceThreshold = distanceThreshold;
+        mCellSize = cellSize;
+        mMinInliers = Math.max(3, minInliers);
+        mMaxPlanes = maxPlanes;
+    }
+
+    /**
+     * Detects the planes in a point cloud. Not thread safe; the working buffers are shared
+     * between calls.
+     *
+     * @param points    Point cloud in XYZC layout.
+     * @param numPoints Number of points in the cloud.
+     * @return The detected planes, in detection order.
+     */
+    public List<Plane> detect(FloatBuffer points, int numPoints) throws InterruptedException {
+        long startTime = System.nanoTime();
+        numPoints = Math.min(numPoints, MAX_POINTS);
+        loadPoints(points, numPoints);
+        buildGridIndex(numPoints);
+
+        List<Plane> planes = new ArrayList<Plane>();
+        int remaining = numPoints;
+        while (planes.size() < mMaxPlanes && remaining >= mMinInliers) {
+            float[] model = findBestHypothesis(numPoints, remaining);
+            if (model == null) {
+                break;
+            }
+            Plane plane = refine(model, numPoints);
+            if (plane == null) {
+                break;
+            }
+            planes.add(plane);
+            remaining -= plane.inlierCount;
+        }
+        mLastDetectionTimeNs = System.nanoTime() - startTime;
+        return planes;
+    }
+
+    /**
+     * @return Duration of the last call to {@link #detect} in milliseconds.
+     */
+    public double getLastDetectionTimeMs() {
+        return mLastDetectionTimeNs / 1e6;
+    }
+
+    private void loadPoints(FloatBuffer points, int numPoints) {
+        if (mPoints.length < 4 * numPoints) {
+            mPoints = new float[4 * numPoints];
+            mRemoved = new boolean[numPoints];
+            mGridEntries = new long[numPoints];
+            mGridPosition = new int[numPoints];
+        }
+        FloatBuffer source = points.duplicate();
+        source.rewind();
+        source.get(mPoints, 0, 4 * numPoints);
+        Arrays.fill(mRemoved, 0, numPoints, false);
+    }
+
+    /**
+     * Sorts the points by grid cell so that all the points of a cell are contiguous in
+     * {@code mGridEntries}.
+     */
+    private void buildGridIndex(int numPoints) {
+        int offset = 1 << (GRID_BITS - 1);
+        int mask = (1 << GRID_BITS) - 1;
+        for (int i = 0; i < numPoints; i++) {
+            long cx = ((int) Math.floor(mPoints[4 * i] / mCellSize) + offset) & mask;
+            long cy = ((int) Math.floor(mPoints[4 * i + 1] / mCellSize) + offset) & mask;
+            long cz = ((int) Math.floor(mPoints[4 * i + 2] / mCellSize) + offset) & mask;
+            long cell = (cx << (2 * GRID_BITS)) | (cy << GRID_BITS) | cz;
+            mGridEntries[i] = (cell << INDEX_BITS) | i;
+        }
+        Arrays.sort(mGridEntries, 0, numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            mGridPosition[(int) (mGridEntries[i] & (MAX_POINTS - 1))] = i;
+        }
+    }
+
+    /**
+     * Runs RANSAC over the points not assigned to a plane yet.
+     *
+     * @return The best plane hypothesis, or null if none has enough inliers.
+     */
+    private float[] findBestHypothesis(int numPoints, int remaining)
+            throws InterruptedException {
+        float[] best = null;
+        int bestScore = 0;
+        int tried = 0;
+        double required = MAX_HYPOTHESES;
+        while (tried < required && tried < MAX_HYPOTHESES) {
+            int count = 0;
+            int attempts = 0;
+            while (count < HYPOTHESES_PER_BATCH && attempts < 4 * HYPOTHESES_PER_BATCH) {
+                attempts++;
+                if (sampleHypothesis(numPoints, count)) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                break;
+            }
+            scoreHypotheses(count, numPoints);
+            for (int h = 0; h < count; h++) {
+                if (mScores[h] > bestScore) {
+                    bestScore = mScores[h];
+                    best = Arrays.copyOfRange(mHypotheses, 4 * h, 4 * h + 4);
+                }
+            }
+            tried += count;
+
+            // Adaptive number of iterations for the current inlier ratio.
+            double inlierRatio = (double) bestScore / remaining;
+            double allInliers = inlierRatio * inlierRatio * inlierRatio;
+            if (allInliers >= 1) {
+                break;
+            } else if (allInliers > 0) {
+                required = Math.log(1 - CONFIDENCE) / Math.log(1 - allInliers);
+            }
+        }
+        return bestScore >= mMinInliers ? best : null;
+    }
+
+    /**
+     * Samples three remaining points from the grid cell of a random seed point and stores the
+     * plane through them in {@code mHypotheses[4 * slot]}.
+     *
+     * @return False if the sample is degenerate.
+     */
+    private boolean sampleHypothesis(int numPoints, int slot) {
+        int seed = mRandom.nextInt(numPoints);
+        if (mRemoved[seed]) {
+            return false;
+        }
+        // Find the extent of the seed cell in the grid index.
+        int position = mGridPosition[seed];
+        long cell = mGridEntries[position] >>> INDEX_BITS;
+        int first = position;
+        while (first > 0 && (mGridEntries[first - 1] >>> INDEX_BITS) == cell) {
+            first--;
+        }
+        int last = position;
+        while (last < numPoints - 1 && (mGridEntries[last + 1] >>> INDEX_BITS) == cell) {
+            last++;
+        }
+        if (last - first < 2) {
+            return false;
+        }
+        int i1 = (int) (mGridEntries[first + mRandom.nextInt(last - first + 1)]
+                & (MAX_POINTS - 1));
+        int i2 = (int) (mGridEntries[first + mRandom.nextInt(last - first + 1)]
+                & (MAX_POINTS - 1));
+        if (i1 == seed || i2 == seed || i1 == i2 || mRemoved[i1] || mRemoved[i2]) {
+            return false;
+        }
+
+        float ux = mPoints[4 * i1] - mPoints[4 * seed];
+        float uy = mPoints[4 * i1 + 1] - mPoints[4 * seed + 1];
+        float uz = mPoints[4 * i1 + 2] - mPoints[4 * seed + 2];
+        float vx = mPoints[4 * i2] - mPoints[4 * seed];
+        float vy = mPoints[4 * i2 + 1] - mPoints[4 * seed + 1];
+        float vz = mPoints[4 * i2 + 2] - mPoints[4 * seed + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length < MIN_SAMPLE_CROSS_LENGTH) {
+            return false;
+        }
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        mHypotheses[4 * slot] = (float) nx;
+        mHypotheses[4 * slot + 1] = (float) ny;
+        mHypotheses[4 * slot + 2] = (float) nz;
+        mHypotheses[4 * slot + 3] = (float) -(nx * mPoints[4 * seed]
+                + ny * mPoints[4 * seed + 1] + nz * mPoints[4 * seed + 2]);
+        return true;
+    }
+
+    /**
+     * Counts the inliers of the first {@code count} hypotheses into {@code mScores}, splitting
+     * the hypotheses among {@code mParallelism} tasks.
+     */
+    private void scoreHypotheses(int count, final int numPoints) throws InterruptedException {
+        int perTask = (count + mParallelism - 1) / mParallelism;
+        List<Future<?>> tasks = new ArrayList<Future<?>>(mParallelism);
+        try {
+            for (int start = 0; start < count; start += perTask) {
+                final int first = start;
+                final int last = Math.min(count, start + perTask);
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int h = first; h < last; h++) {
+                            mScores[h] = countInliers(mHypotheses[4 * h], mHypotheses[4 * h + 1],
+                                    mHypotheses[4 * h + 2], mHypotheses[4 * h + 3], numPoints);
+                        }
+                    }
+                };
+                if (last == count) {
+                    task.run();
+                } else {
+                    tasks.add(mExecutor.submit(task));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private int countInliers(float a, float b, float c, float d, int numPoints) {
+        int inliers = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (mRemoved[i]) {
+                continue;
+            }
+            float distance = a * mPoints[4 * i] + b * mPoints[4 * i + 1]
+                    + c * mPoints[4 * i + 2] + d;
+            if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                inliers++;
+            }
+        }
+        return inliers;
+    }
+
+    /**
+     * Refits the hypothesis to its inliers with least squares, removes the inliers of the
+     * refined plane from the cloud and computes their convex hull.
+     */
+    private Plane refine(float[] hypothesis, int numPoints) {
+        // Centroid and covariance of the hypothesis inliers.
+        double sx = 0, sy = 0, sz = 0;
+        double sxx = 0, sxy = 0, sxz = 0, syy = 0, syz = 0, szz = 0;
+        int n = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (mRemoved[i]) {
+                continue;
+            }
+            float x = mPoints[4 * i];
+            float y = mPoints[4 * i + 1];
+            float z = mPoints[4 * i + 2];
+            float distance = hypothesis[0] * x + hypothesis[1] * y + hypothesis[2] * z
+                    + hypothesis[3];
+            if (Math.abs(distance) > mDistanceThreshold) {
+                continue;
+            }
+            sx += x;
+            sy += y;
+            sz += z;
+            sxx += x * x;
+            sxy += x * y;
+            sxz += x * z;
+            syy += y * y;
+            syz += y * z;
+            szz += z * z;
+            n++;
+        }
+        double cx = sx / n;
+        double cy = sy / n;
+        double cz = sz / n;
+        double[] normal = smallestEigenvector(
+                sxx / n - cx * cx, sxy / n - cx * cy, sxz / n - cx * cz,
+                syy / n - cy * cy, syz / n - cy * cz, szz / n - cz * cz);
+
+        // Keep the refined normal only if it agrees with the sampled one; otherwise the
+        // inliers span more than one surface and the least squares fit would tilt the plane.
+        double cosAngle = normal == null ? 0 : Math.abs(normal[0] * hypothesis[0]
+                + normal[1] * hypothesis[1] + normal[2] * hypothesis[2]);
+        float a, b, c, d;
+        if (cosAngle >= Math.cos(MAX_REFINED_NORMAL_ANGLE)) {
+            a = (float) normal[0];
+            b = (float) normal[1];
+            c = (float) normal[2];
+            d = (float) -(normal[0] * cx + normal[1] * cy + normal[2] * cz);
+        } else {
+            a = hypothesis[0];
+            b = hypothesis[1];
+            c = hypothesis[2];
+            d = hypothesis[3];
+        }
+        // Make the normal point to the origin of the cloud frame, i.e. the camera.
+        if (d < 0) {
+            a = -a;
+            b = -b;
+            c = -c;
+            d = -d;
+        }
+
+        // Plane basis used to compute the hull in 2D.
+        double[] u = Math.abs(a) < 0.9 ? new double[] {0, c, -b} : new double[] {-c, 0, a};
+        double uLength = Math.sqrt(u[0] * u[0] + u[1] * u[1] + u[2] * u[2]);
+        u[0] /= uLength;
+        u[1] /= uLength;
+        u[2] /= uLength;
+        double[] v = new double[] {b * u[2] - c * u[1], c * u[0] - a * u[2], a * u[1] - b * u[0]};
+
+        // Remove the inliers of the refined plane and quantize their projections.
+        long[] projected = new long[n + 16];
+        int inliers = 0;
+        double ox = -a * d;
+        double oy = -b * d;
+        double oz = -c * d;
+        for (int i = 0; i < numPoints; i++) {
+            if (mRemoved[i]) {
+                continue;
+            }
+            float x = mPoints[4 * i];
+            float y = mPoints[4 * i + 1];
+            float z = mPoints[4 * i + 2];
+            if (Math.abs(a * x + b * y + c * z + d) > mDistanceThreshold) {
+                continue;
+            }
+            mRemoved[i] = true;
+            if (inliers == projected.length) {
+                projected = Arrays.copyOf(projected, 2 * projected.length);
+            }
+            double px = ((x - ox) * u[0] + (y - oy) * u[1] + (z - oz) * u[2]) / HULL_RESOLUTION;
+            double py = ((x - ox) * v[0] + (y - oy) * v[1] + (z - oz) * v[2]) / HULL_RESOLUTION;
+            projected[inliers++] = (Math.round(px) << 32)
+                    + (Math.round(py) + Integer.MAX_VALUE);
+        }
+        if (inliers < mMinInliers) {
+            return null;
+        }
+
+        int[] hull2d = convexHull(projected, inliers);
+        int hullSize = hull2d.length / 2;
+        float[] hull = new float[3 * hullSize];
+        for (int i = 0; i < hullSize; i++) {
+            double px = hull2d[2 * i] * HULL_RESOLUTION;
+            double py = hull2d[2 * i + 1] * HULL_RESOLUTION;
+            hull[3 * i] = (float) (ox + px * u[0] + py * v[0]);
+            hull[3 * i + 1] = (float) (oy + px * u[1] + py * v[1]);
+            hull[3 * i + 2] = (float) (oz + px * u[2] + py * v[2]);
+        }
+        return new Plane(new float[] {a, b, c, d},
+                new float[] {(float) cx, (float) cy, (float) cz}, inliers, hull);
+    }
+
+    /**
+     * Andrew's monotone chain convex hull over quantized 2D points packed as
+     * {@code x << 32 + (y + Integer.MAX_VALUE)}.
+     *
+     * @return Counter-clockwise hull vertices as (x, y) pairs.
+     */
+    private static int[] convexHull(long[] packed, int count) {
+        Arrays.sort(packed, 0, count);
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = (int) (packed[i] >> 32);
+            ys[i] = (int) ((packed[i] & 0xFFFFFFFFL) - Integer.MAX_VALUE);
+        }
+        int[] hull = new int[2 * count + 2];
+        int k = 0;
+        // Lower hull.
+        for (int i = 0; i < count; i++) {
+            while (k >= 2 && cross(hull, k, xs[i], ys[i]) <= 0) {
+                k--;
+            }
+            hull[2 * k] = xs[i];
+            hull[2 * k + 1] = ys[i];
+            k++;
+        }
+        // Upper hull.
+        for (int i = count - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(hull, k, xs[i], ys[i]) <= 0) {
+                k--;
+            }
+            hull[2 * k] = xs[i];
+            hull[2 * k + 1] = ys[i];
+            k++;
+        }
+        // The last point is the same as the first one.
+        return Arrays.copyOf(hull, 2 * Math.max(1, k - 1));
+    }
+
+    private static long cross(int[] hull, int k, int x, int y) {
+        long ax = hull[2 * (k - 2)];
+        long ay = hull[2 * (k - 2) + 1];
+        long bx = hull[2 * (k - 1)];
+        long by = hull[2 * (k - 1) + 1];
+        return (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+    }
+
+    /**
+     * Closed form eigenvector of the smallest eigenvalue of a symmetric 3x3 matrix.
+     *
+     * @return The unit eigenvector, or null if it is not well defined.
+     */
+    static double[] smallestEigenvector(double a00, double a01, double a02,
+                                        double a11, double a12, double a22) {
+        double p1 = a01 * a01 + a02 * a02 + a12 * a12;
+        double q = (a00 + a11 + a22) / 3;
+        double p2 = (a00 - q) * (a00 - q) + (a11 - q) * (a11 - q) + (a22 - q) * (a22 - q)
+                + 2 * p1;
+        double p = Math.sqrt(p2 / 6);
+        if (p == 0) {
+            return null;
+        }
+        double b00 = (a00 - q) / p;
+        double b11 = (a11 - q) / p;
+        double b22 = (a22 - q) / p;
+        double b01 = a01 / p;
+        double b02 = a02 / p;
+        double b12 = a12 / p;
+        double r = (b00 * (b11 * b22 - b12 * b12) - b01 * (b01 * b22 - b12 * b02)
+                + b02 * (b01 * b12 - b11 * b02)) / 2;
+        double phi = r <= -1 ? Math.PI / 3 : (r >= 1 ? 0 : Math.acos(r) / 3);
+        double eigenvalue = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+
+        // The eigenvector is orthogonal to the rows of (A - eigenvalue * I); take the most
+        // stable cross product of two rows.
+        double r00 = a00 - eigenvalue;
+        double r11 = a11 - eigenvalue;
+        double r22 = a22 - eigenvalue;
+        double[][] candidates = {
+                {a01 * a12 - a02 * r11, a02 * a01 - r00 * a12, r00 * r11 - a01 * a01},
+                {a01 * r22 - a02 * a12, a02 * a02 - r00 * r22, r00 * a12 - a01 * a02},
+                {r11 * r22 - a12 * a12, a12 * a02 - a01 * r22, a01 * a12 - r11 * a02}};
+        double[] best = null;
+        double bestLength = 0;
+        for (double[] candidate : candidates) {
+            double length = candidate[0] * candidate[0] + candidate[1] * candidate[1]
+                    + candidate[2] * candidate[2];
+            if (length > bestLength) {
+                bestLength = length;
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        bestLength = Math.sqrt(bestLength);
+        return new double[] {best[0] / bestLength, best[1] / bestLength, best[2] / bestLength};
+    }
+}
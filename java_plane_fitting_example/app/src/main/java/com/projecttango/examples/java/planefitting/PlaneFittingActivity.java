@@ -41,11 +41,14 @@ import android.content.pm.PackageManager;
 import android.hardware.display.DisplayManager;
 import android.opengl.Matrix;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.View;
 import android.widget.Toast;
 
@@ -54,7 +57,12 @@ import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.view.SurfaceView;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An example showing how to use the Tango APIs to create an augmented reality application
@@ -78,18 +86,63 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Rajawali virtual world with the RGB camera.
  */
 public class PlaneFittingActivity extends Activity implements View.OnTouchListener {
+    /**
+     * A plane placed by the user, in depth camera frame at the time it was measured.
+     */
+    private static class PlacedPlane {
+        public final float[] depthTPlane;
+        public final double timestamp;
+
+        public PlacedPlane(float[] depthTPlane, double timestamp) {
+            this.depthTPlane = depthTPlane;
+            this.timestamp = timestamp;
+        }
+    }
+
     private static final String TAG = PlaneFittingActivity.class.getSimpleName();
+
+    /**
+     * Boolean intent extra enabling the camera pose prediction, off by default. E.g.
+     * {@code adb shell am start -n <package>/.PlaneFittingActivity --ez predict_camera_pose true}.
+     */
+    public static final String EXTRA_PREDICT_CAMERA_POSE = "predict_camera_pose";
     private static final int INVALID_TEXTURE_ID = 0;
 
     private static final String CAMERA_PERMISSION = Manifest.permission.CAMERA;
     private static final int CAMERA_PERMISSION_CODE = 0;
 
+    // Multi plane detection parameters.
+    private static final float PLANE_DISTANCE_THRESHOLD = 0.02f;
+    private static final float PLANE_SAMPLING_CELL_SIZE = 0.2f;
+    private static final int PLANE_MIN_INLIERS = 1000;
+    private static final int MAX_PLANES = 8;
+
+    // Plane map parameters.
+    private static final double PLANE_MERGE_ANGLE = Math.toRadians(10);
+    private static final double PLANE_MERGE_OFFSET = 0.05;
+    private static final double PLANE_MERGE_GAP = 0.2;
+    private static final double PLANE_MAP_CELL_SIZE = 0.5;
+    private static final double MAX_PLANE_LOOKUP_DISTANCE = 10;
+
+    // Pose history parameters; the pose stream runs at about 100 Hz.
+    private static final int POSE_HISTORY_CAPACITY = 4096;
+    private static final double POSE_HISTORY_MAX_INTERVAL = 0.1;
+    // Every this many pose lookups one is checked against the service and the stats logged.
+    private static final int POSE_VALIDATION_INTERVAL = 300;
+
+    // Expected time from the latest device pose to the display, and the longest extrapolation.
+    private static final double PREDICTION_DISPLAY_LATENCY = 0.033;
+    private static final double PREDICTION_MAX_HORIZON = 0.1;
+    private static final double PREDICTION_VELOCITY_SMOOTHING = 0.5;
+    // Every this many predicted frames the prediction error is logged.
+    private static final int PREDICTION_LOG_INTERVAL = 600;
+
     private SurfaceView mSurfaceView;
     private PlaneFittingRenderer mRenderer;
     private TangoPointCloudManager mPointCloudManager;
     private Tango mTango;
     private TangoConfig mConfig;
-    private boolean mIsConnected = false;
+    private volatile boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
 
     // Texture rendering related fields
@@ -100,8 +153,61 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
 
     private int mDisplayRotation;
 
-    private float[] mDepthTPlane;
-    private double mPlanePlacedTimestamp;
+    // Written by the plane fitting thread and read by the OpenGL thread.
+    private final AtomicReference<PlacedPlane> mPlacedPlane = new AtomicReference<PlacedPlane>();
+    // The placed plane whose pose has been resolved, and its OpenGL world T depth camera transform.
+    private PlacedPlane mResolvedPlacedPlaneGlThread;
+    private float[] mOpenglTPlacedDepthGlThread;
+
+    // Plane fitting runs in its own thread; a new touch supersedes any pending request.
+    private HandlerThread mPlaneFittingThread;
+    private Handler mPlaneFittingHandler;
+    private final AtomicLong mPlaneFitRequestId = new AtomicLong();
+    // Time spent in the UI and plane fitting threads per touch, for profiling.
+    private long mMaxUiStallNs;
+    private long mMaxPlaneFitNs;
+
+    // Detects all the dominant planes of the latest point cloud, in depth camera frame.
+    private HandlerThread mPlaneDetectionThread;
+    private Handler mPlaneDetectionHandler;
+    private ExecutorService mPlaneDetectionExecutor;
+    private MultiPlaneDetector mPlaneDetector;
+    // Point clouds for the plane detection thread. TangoPointCloudManager hands its latest buffer
+    // to one consumer at a time, so the detector has its own instead of sharing
+    // mPointCloudManager with plane fitting.
+    private TangoPointCloudManager mDetectionPointCloudManager;
+    // Planes detected so far, in start of service frame.
+    private PlaneMap mPlaneMap =
+            new PlaneMap(PLANE_MERGE_ANGLE, PLANE_MERGE_OFFSET, PLANE_MERGE_GAP,
+                    PLANE_MAP_CELL_SIZE);
+    private TangoCameraIntrinsics mColorIntrinsics;
+
+    // Start of service T device poses from onPoseAvailable, to avoid service queries for past
+    // camera poses.
+    private final PoseHistory mPoseHistory =
+            new PoseHistory(POSE_HISTORY_CAPACITY, POSE_HISTORY_MAX_INTERVAL);
+    private final AtomicLong mPoseLookupCount = new AtomicLong();
+    // Camera extrinsics, column-major, or null if they could not be queried.
+    private volatile double[] mDeviceTDepth;
+    private volatile double[] mDeviceTColor;
+
+    // Renders the camera with the device pose predicted at display time instead of the color
+    // camera frame time, see EXTRA_PREDICT_CAMERA_POSE. World-locked content then lags less
+    // behind head motion on high refresh displays, at the cost of moving slightly against the
+    // camera image.
+    private boolean mIsCameraPosePredicted;
+    private final PosePredictor mPosePredictor =
+            new PosePredictor(PREDICTION_MAX_HORIZON, PREDICTION_VELOCITY_SMOOTHING);
+    private TangoPoseData mCameraPoseGlThread;
+    private final TangoPoseData mPredictedCameraPoseGlThread = new TangoPoseData();
+    private long mPredictedFrameCountGlThread;
+    // Scratch space of predictCameraPose, so prediction doesn't allocate on each frame.
+    private final double[] mFromTranslationGlThread = new double[3];
+    private final double[] mFromRotationGlThread = new double[4];
+    private final double[] mToTranslationGlThread = new double[3];
+    private final double[] mToRotationGlThread = new double[4];
+    private final double[] mDeltaRotationGlThread = new double[4];
+    private final double[] mDeltaTranslationGlThread = new double[3];
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -110,9 +216,24 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
         mRenderer = new PlaneFittingRenderer(this);
         mSurfaceView.setSurfaceRenderer(mRenderer);
         mSurfaceView.setOnTouchListener(this);
+        mIsCameraPosePredicted = getIntent().getBooleanExtra(EXTRA_PREDICT_CAMERA_POSE, false);
         mPointCloudManager = new TangoPointCloudManager();
+        mDetectionPointCloudManager = new TangoPointCloudManager();
         setContentView(mSurfaceView);
 
+        mPlaneFittingThread = new HandlerThread("planeFitting");
+        mPlaneFittingThread.start();
+        mPlaneFittingHandler = new Handler(mPlaneFittingThread.getLooper());
+
+        mPlaneDetectionThread = new HandlerThread("planeDetection");
+        mPlaneDetectionThread.start();
+        mPlaneDetectionHandler = new Handler(mPlaneDetectionThread.getLooper());
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        mPlaneDetectionExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism - 1));
+        mPlaneDetector = new MultiPlaneDetector(mPlaneDetectionExecutor, parallelism,
+                PLANE_DISTANCE_THRESHOLD, PLANE_SAMPLING_CELL_SIZE, PLANE_MIN_INLIERS,
+                MAX_PLANES);
+
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
             displayManager.registerDisplayListener(new DisplayManager.DisplayListener() {
@@ -167,6 +288,14 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPlaneFittingThread.quit();
+        mPlaneDetectionThread.quit();
+        mPlaneDetectionExecutor.shutdownNow();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -189,6 +318,12 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                         mTango.connect(mConfig);
                         startupTango();
                         TangoSupport.initialize(mTango);
+                        mColorIntrinsics = mTango.getCameraIntrinsics(
+                                TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+                        mDeviceTDepth = getDeviceTCamera(
+                                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
+                        mDeviceTColor = getDeviceTCamera(
+                                TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR);
                         connectRenderer();
                         mIsConnected = true;
                         setDisplayRotation();
@@ -233,13 +368,20 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
      * Listen to updates from the RGB camera and Point Cloud.
      */
     private void startupTango() {
-        // No need to add any coordinate frame pairs since we are not
-        // using pose data. So just initialize.
+        // Record the device poses to look up the camera poses at past timestamps.
         ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
+        framePairs.add(new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                TangoPoseData.COORDINATE_FRAME_DEVICE));
+        mPoseHistory.clear();
+        mPosePredictor.reset();
+        // Planes of a previous connection are in another start of service frame.
+        mPlaneMap.clear();
         mTango.connectListener(framePairs, new OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(TangoPoseData pose) {
-                // We are not using OnPoseAvailable for this app.
+                mPoseHistory.add(pose);
+                mPosePredictor.add(pose);
             }
 
             @Override
@@ -262,6 +404,11 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
             public void onPointCloudAvailable(TangoPointCloudData pointCloud) {
                 // Save the cloud and point data for later use.
                 mPointCloudManager.updatePointCloud(pointCloud);
+                mDetectionPointCloudManager.updatePointCloud(pointCloud);
+                // Detect the planes of the latest cloud only; skip clouds arriving while the
+                // detector is busy.
+                mPlaneDetectionHandler.removeCallbacksAndMessages(null);
+                mPlaneDetectionHandler.post(mDetectPlanesRunnable);
             }
 
             @Override
@@ -334,6 +481,7 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                                 // Update the camera pose from the renderer.
                                 mRenderer.updateRenderCameraPose(lastFramePose);
                                 mCameraPoseTimestamp = lastFramePose.timestamp;
+                                mCameraPoseGlThread = lastFramePose;
                             } else {
                                 // When the pose status is not valid, it indicates the tracking has
                                 // been lost. In this case, we simply stop rendering.
@@ -344,29 +492,44 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                                         mRgbTimestampGlThread);
                             }
 
-                            if (mDepthTPlane != null) {
+                            PlacedPlane placedPlane = mPlacedPlane.get();
+                            if (placedPlane != null) {
                                 // Update the position of the rendered cube to the pose of the
                                 // detected plane. This update is made thread-safe by the renderer.
                                 //
-                                // To make sure drift corrected pose is applied to the virtual
-                                // object we need to re-query the Area Description to Depth camera
-                                // at the time when the corresponding plane fitting
-                                // measurement was acquired.
-                                TangoSupport.MatrixTransformData openglTDepthArr =
-                                        TangoSupport.getMatrixTransformAtTime(
-                                            mPlanePlacedTimestamp,
-                                            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                // The start of service T depth camera pose at the time the plane
+                                // was measured doesn't change afterwards, so it is resolved once
+                                // per placed plane: from the pose history while it still holds
+                                // that time, from the service otherwise.
+                                if (placedPlane != mResolvedPlacedPlaneGlThread) {
+                                    float[] openglTDepth = getWorldTCamera(placedPlane.timestamp,
                                             TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                                            TangoSupport.ENGINE_OPENGL,
-                                            TangoSupport.ENGINE_TANGO,
-                                            TangoSupport.ROTATION_IGNORED);
+                                            TangoSupport.ENGINE_OPENGL);
+                                    if (openglTDepth != null) {
+                                        mOpenglTPlacedDepthGlThread = openglTDepth;
+                                        mResolvedPlacedPlaneGlThread = placedPlane;
+                                    }
+                                }
 
-                                if (openglTDepthArr.statusCode == TangoPoseData.POSE_VALID) {
-                                    mRenderer.updateObjectPose(openglTDepthArr.matrix,
-                                            mDepthTPlane);
+                                // The renderer may have recreated the scene, so the pose is still
+                                // set on every camera frame.
+                                if (placedPlane == mResolvedPlacedPlaneGlThread) {
+                                    mRenderer.updateObjectPose(mOpenglTPlacedDepthGlThread,
+                                            placedPlane.depthTPlane);
                                 }
                             }
                         }
+
+                        // Move the camera to the predicted pose on every rendered frame, not only
+                        // on new camera frames.
+                        if (mIsCameraPosePredicted && mCameraPoseGlThread != null
+                                && predictCameraPose(mCameraPoseGlThread,
+                                mPredictedCameraPoseGlThread)) {
+                            mRenderer.updateRenderCameraPose(mPredictedCameraPoseGlThread);
+                            if (++mPredictedFrameCountGlThread % PREDICTION_LOG_INTERVAL == 0) {
+                                Log.d(TAG, "Pose prediction " + mPosePredictor);
+                            }
+                        }
                     }
                     // Avoid crashing the application due to unhandled exceptions.
                 } catch (TangoErrorException e) {
@@ -430,51 +593,130 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
     public boolean onTouch(View view, MotionEvent motionEvent) {
         if (motionEvent.getAction() == MotionEvent.ACTION_UP) {
             // Calculate click location in u,v (0;1) coordinates.
-            float u = motionEvent.getX() / view.getWidth();
-            float v = motionEvent.getY() / view.getHeight();
+            final float u = motionEvent.getX() / view.getWidth();
+            final float v = motionEvent.getY() / view.getHeight();
+            long startTime = System.nanoTime();
+
+            // Snapshot the RGB timestamp and display rotation; the OpenGL thread only holds the
+            // lock for a moment so this doesn't stall the UI.
+            final double rgbTimestamp;
+            final int displayRotation;
+            synchronized (this) {
+                rgbTimestamp = mRgbTimestampGlThread;
+                displayRotation = mDisplayRotation;
+            }
 
-            try {
-                // Fit a plane on the clicked point using the latest point cloud data.
-                // Synchronize against concurrent access to the RGB timestamp in the OpenGL thread
-                // and a possible service disconnection due to an onPause event.
-                synchronized (this) {
-                    mDepthTPlane = doFitPlane(u, v, mRgbTimestampGlThread);
+            // Fit the plane in the plane fitting thread, dropping requests still waiting there.
+            final long requestId = mPlaneFitRequestId.incrementAndGet();
+            mPlaneFittingHandler.removeCallbacksAndMessages(null);
+            mPlaneFittingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    placePlane(requestId, u, v, rgbTimestamp, displayRotation);
                 }
+            });
 
-            } catch (TangoException t) {
-                Toast.makeText(getApplicationContext(),
-                        R.string.failed_measurement,
-                        Toast.LENGTH_SHORT).show();
-                Log.e(TAG, getString(R.string.failed_measurement), t);
-            } catch (SecurityException t) {
-                Toast.makeText(getApplicationContext(),
-                        R.string.failed_permissions,
-                        Toast.LENGTH_SHORT).show();
-                Log.e(TAG, getString(R.string.failed_permissions), t);
-            }
+            long stallNs = System.nanoTime() - startTime;
+            mMaxUiStallNs = Math.max(mMaxUiStallNs, stallNs);
+            Log.d(TAG, "UI thread stall: " + stallNs / 1e6 + " ms (max "
+                    + mMaxUiStallNs / 1e6 + " ms)");
         }
         return true;
     }
 
+    /**
+     * Places a plane at the touch position and publishes it to the OpenGL thread, unless a newer
+     * touch arrived in the meantime. This runs in the plane fitting thread.
+     * <p/>
+     * Only the service queries hold the activity lock, so plane fitting itself doesn't stall the
+     * OpenGL thread.
+     */
+    private void placePlane(long requestId, float u, float v, double rgbTimestamp,
+                            int displayRotation) {
+        if (!mIsConnected) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        try {
+            // Once the surface has been mapped a lookup is enough; only fit a new plane if the
+            // touch doesn't hit a known one.
+            float[] depthTPlane = doLookupPlane(u, v, rgbTimestamp, displayRotation);
+            if (depthTPlane == null && requestId == mPlaneFitRequestId.get()) {
+                depthTPlane = doFitPlane(u, v, rgbTimestamp, displayRotation);
+            }
+            if (depthTPlane != null && requestId == mPlaneFitRequestId.get()) {
+                mPlacedPlane.set(new PlacedPlane(depthTPlane, rgbTimestamp));
+            }
+        } catch (TangoException t) {
+            Log.e(TAG, getString(R.string.failed_measurement), t);
+            showToastOnUiThread(R.string.failed_measurement);
+        } catch (SecurityException t) {
+            Log.e(TAG, getString(R.string.failed_permissions), t);
+            showToastOnUiThread(R.string.failed_permissions);
+        }
+        // This is how long the UI thread used to be blocked by plane fitting.
+        long fitNs = System.nanoTime() - startTime;
+        mMaxPlaneFitNs = Math.max(mMaxPlaneFitNs, fitNs);
+        Log.d(TAG, "Plane fitting: " + fitNs / 1e6 + " ms (max " + mMaxPlaneFitNs / 1e6 + " ms)");
+    }
+
+    /**
+     * Detects all the dominant planes in the latest point cloud. This runs in the plane detection
+     * thread.
+     */
+    private Runnable mDetectPlanesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            TangoPointCloudData pointCloud = mDetectionPointCloudManager.getLatestPointCloud();
+            if (pointCloud == null || pointCloud.numPoints == 0) {
+                return;
+            }
+            try {
+                List<MultiPlaneDetector.Plane> planes =
+                        mPlaneDetector.detect(pointCloud.points, pointCloud.numPoints);
+                Log.d(TAG, "Detected " + planes.size() + " planes in "
+                        + mPlaneDetector.getLastDetectionTimeMs() + " ms");
+
+                // Merge the planes in the map, in start of service frame.
+                float[] worldTDepth = getWorldTCamera(pointCloud.timestamp,
+                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH, TangoSupport.ENGINE_TANGO);
+                if (worldTDepth != null) {
+                    for (MultiPlaneDetector.Plane plane : planes) {
+                        mPlaneMap.addObservation(plane, worldTDepth);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Plane detection interrupted", e);
+            }
+        }
+    };
+
     /**
      * Use the Tango Support Library with point cloud data to calculate the plane
      * of the world feature pointed at the location the camera is looking.
      * It returns the transform of the fitted plane in a double array.
      */
-    private float[] doFitPlane(float u, float v, double rgbTimestamp) {
+    private float[] doFitPlane(float u, float v, double rgbTimestamp, int displayRotation) {
         TangoPointCloudData pointCloud = mPointCloudManager.getLatestPointCloud();
 
         if (pointCloud == null) {
             return null;
         }
 
-        TangoPoseData depthToColorPose = TangoSupport.getPoseAtTime(
-            rgbTimestamp,
-            TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-            TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
-            TangoSupport.ENGINE_TANGO,
-            TangoSupport.ENGINE_TANGO,
-            TangoSupport.ROTATION_IGNORED);
+        TangoPoseData depthToColorPose;
+        // Synchronize against disconnecting while the service is being used in this thread.
+        synchronized (this) {
+            if (!mIsConnected) {
+                return null;
+            }
+            depthToColorPose = TangoSupport.getPoseAtTime(
+                rgbTimestamp,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ROTATION_IGNORED);
+        }
         if (depthToColorPose.statusCode != TangoPoseData.POSE_VALID) {
             Log.d(TAG, "Could not get a valid pose from depth camera"
                 + "to color camera at time " + rgbTimestamp);
@@ -487,14 +729,226 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                 new double[] {0.0, 0.0, 0.0},
                 new double[] {0.0, 0.0, 0.0, 1.0},
                 u, v,
-                mDisplayRotation,
+                displayRotation,
                 depthToColorPose.translation,
                 depthToColorPose.rotation);
 
-        mPlanePlacedTimestamp = mRgbTimestampGlThread;
         return convertPlaneModelToMatrix(intersectionPointPlaneModelPair);
     }
 
+    /**
+     * Casts a ray from the color camera through the touch position and looks for the plane it
+     * hits in the plane map.
+     * It returns the transform of the hit plane in depth camera frame, or null if no known plane
+     * is hit.
+     */
+    private float[] doLookupPlane(float u, float v, double rgbTimestamp, int displayRotation) {
+        if (mColorIntrinsics == null) {
+            return null;
+        }
+        float[] worldTColor = getWorldTCamera(rgbTimestamp,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR, TangoSupport.ENGINE_TANGO);
+        float[] worldTDepth = getWorldTCamera(rgbTimestamp,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH, TangoSupport.ENGINE_TANGO);
+        if (worldTColor == null || worldTDepth == null) {
+            return null;
+        }
+
+        // Convert the touch position from display to color camera image coordinates.
+        float imageU;
+        float imageV;
+        switch (displayRotation) {
+            case Surface.ROTATION_90:
+                imageU = 1 - v;
+                imageV = u;
+                break;
+            case Surface.ROTATION_180:
+                imageU = 1 - u;
+                imageV = 1 - v;
+                break;
+            case Surface.ROTATION_270:
+                imageU = v;
+                imageV = 1 - u;
+                break;
+            default:
+                imageU = u;
+                imageV = v;
+                break;
+        }
+        float[] colorRay = new float[] {
+                (float) ((imageU * mColorIntrinsics.width - mColorIntrinsics.cx)
+                        / mColorIntrinsics.fx),
+                (float) ((imageV * mColorIntrinsics.height - mColorIntrinsics.cy)
+                        / mColorIntrinsics.fy),
+                1, 0};
+        float[] worldRay = new float[4];
+        Matrix.multiplyMV(worldRay, 0, worldTColor, 0, colorRay, 0);
+        PlaneMap.RayHit hit = mPlaneMap.raycast(
+                new double[] {worldTColor[12], worldTColor[13], worldTColor[14]},
+                new double[] {worldRay[0], worldRay[1], worldRay[2]},
+                MAX_PLANE_LOOKUP_DISTANCE);
+        if (hit == null) {
+            return null;
+        }
+
+        // Bring the hit point and plane normal to depth camera frame.
+        float[] depthTWorld = new float[16];
+        Matrix.invertM(depthTWorld, 0, worldTDepth, 0);
+        float[] depthPoint = new float[4];
+        float[] depthNormal = new float[4];
+        Matrix.multiplyMV(depthPoint, 0, depthTWorld, 0, new float[] {(float) hit.point[0],
+                (float) hit.point[1], (float) hit.point[2], 1}, 0);
+        double[] model = hit.plane.getModel();
+        Matrix.multiplyMV(depthNormal, 0, depthTWorld, 0, new float[] {
+                (float) model[0], (float) model[1], (float) model[2], 0}, 0);
+        // Make the normal face the camera, like the planes fitted by the support library.
+        float sign = depthNormal[0] * depthPoint[0] + depthNormal[1] * depthPoint[1]
+                + depthNormal[2] * depthPoint[2] > 0 ? -1 : 1;
+
+        float[] up = new float[]{0, 1, 0, 0};
+        return matrixFromPointNormalUp(
+                new double[] {depthPoint[0], depthPoint[1], depthPoint[2]},
+                new double[] {sign * depthNormal[0], sign * depthNormal[1],
+                        sign * depthNormal[2]},
+                up);
+    }
+
+    /**
+     * Queries the transform from a camera to the device frame, or returns null if it is not
+     * available.
+     */
+    private static double[] getDeviceTCamera(int cameraFrame) {
+        TangoSupport.MatrixTransformData deviceTCamera = TangoSupport.getMatrixTransformAtTime(
+                0.0,
+                TangoPoseData.COORDINATE_FRAME_DEVICE,
+                cameraFrame,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ROTATION_IGNORED);
+        if (deviceTCamera.statusCode != TangoPoseData.POSE_VALID) {
+            Log.w(TAG, "Could not get the extrinsics of camera frame " + cameraFrame);
+            return null;
+        }
+        double[] m = new double[16];
+        for (int i = 0; i < 16; i++) {
+            m[i] = deviceTCamera.matrix[i];
+        }
+        return m;
+    }
+
+    /**
+     * Moves an OpenGL camera pose by the device motion between its timestamp and the expected
+     * display time, as predicted from the pose stream.
+     *
+     * @param cameraPose OpenGL world T OpenGL camera pose, as queried for rendering.
+     * @param out        The predicted pose.
+     * @return Whether there is a prediction; the output is unchanged otherwise.
+     */
+    private boolean predictCameraPose(TangoPoseData cameraPose, TangoPoseData out) {
+        double[] fromTranslation = mFromTranslationGlThread;
+        double[] fromRotation = mFromRotationGlThread;
+        double[] toTranslation = mToTranslationGlThread;
+        double[] toRotation = mToRotationGlThread;
+        double displayTimestamp = mPosePredictor.getLatestTimestamp() + PREDICTION_DISPLAY_LATENCY;
+        // Not counted in the pose history stats: prediction never queried the service.
+        if (!mPoseHistory.peekPoseAtTime(cameraPose.timestamp, fromTranslation, fromRotation)
+                || !mPosePredictor.predict(displayTimestamp, toTranslation, toRotation)) {
+            return false;
+        }
+
+        // Device motion in start of service frame: delta = to * inverse(from).
+        double[] delta = mDeltaRotationGlThread;
+        PosePredictor.conjugate(fromRotation);
+        PosePredictor.multiply(toRotation, fromRotation, delta);
+        double[] deltaTranslation = mDeltaTranslationGlThread;
+        PosePredictor.rotate(delta, fromTranslation, deltaTranslation);
+        for (int i = 0; i < 3; i++) {
+            deltaTranslation[i] = toTranslation[i] - deltaTranslation[i];
+        }
+        // The same motion in OpenGL world, whose Y is Tango Z and Z is Tango -Y.
+        double y = delta[1];
+        delta[1] = delta[2];
+        delta[2] = -y;
+        y = deltaTranslation[1];
+        deltaTranslation[1] = deltaTranslation[2];
+        deltaTranslation[2] = -y;
+
+        PosePredictor.multiply(delta, cameraPose.rotation, out.rotation);
+        PosePredictor.rotate(delta, cameraPose.translation, out.translation);
+        for (int i = 0; i < 3; i++) {
+            out.translation[i] += deltaTranslation[i];
+        }
+        out.timestamp = displayTimestamp;
+        out.statusCode = TangoPoseData.POSE_VALID;
+        return true;
+    }
+
+    /**
+     * Calculates the start of service T camera transform at a timestamp, with the start of
+     * service frame in the given engine convention and the camera frame in Tango convention, like
+     * {@code TangoSupport.getMatrixTransformAtTime}. The device pose is interpolated from the
+     * pose history when possible, and only queried from the service on a miss.
+     * <p/>
+     * Can be called from any thread; the service is only queried while connected.
+     *
+     * @return The column-major transform, or null if there is no valid pose at that time.
+     */
+    private float[] getWorldTCamera(double timestamp, int cameraFrame, int worldEngine) {
+        double[] deviceTCamera = cameraFrame == TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH
+                ? mDeviceTDepth : mDeviceTColor;
+        double[] worldTDevice = new double[16];
+        if (deviceTCamera == null || !mPoseHistory.getMatrixAtTime(timestamp, worldTDevice)) {
+            // Synchronize against disconnecting while the service is being used in this thread.
+            synchronized (this) {
+                if (!mIsConnected) {
+                    return null;
+                }
+                TangoSupport.MatrixTransformData worldTCamera =
+                        TangoSupport.getMatrixTransformAtTime(
+                                timestamp,
+                                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                cameraFrame,
+                                worldEngine,
+                                TangoSupport.ENGINE_TANGO,
+                                TangoSupport.ROTATION_IGNORED);
+                return worldTCamera.statusCode == TangoPoseData.POSE_VALID
+                        ? worldTCamera.matrix : null;
+            }
+        }
+
+        if (mPoseLookupCount.incrementAndGet() % POSE_VALIDATION_INTERVAL == 0) {
+            synchronized (this) {
+                if (mIsConnected) {
+                    mPoseHistory.validate(TangoSupport.getPoseAtTime(
+                            timestamp,
+                            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                            TangoPoseData.COORDINATE_FRAME_DEVICE,
+                            TangoSupport.ENGINE_TANGO,
+                            TangoSupport.ENGINE_TANGO,
+                            TangoSupport.ROTATION_IGNORED));
+                    Log.d(TAG, "Pose history " + mPoseHistory);
+                }
+            }
+        }
+
+        float[] worldTCamera = new float[16];
+        for (int column = 0; column < 16; column += 4) {
+            for (int row = 0; row < 4; row++) {
+                worldTCamera[column + row] = (float) (worldTDevice[row] * deviceTCamera[column]
+                        + worldTDevice[row + 4] * deviceTCamera[column + 1]
+                        + worldTDevice[row + 8] * deviceTCamera[column + 2]
+                        + worldTDevice[row + 12] * deviceTCamera[column + 3]);
+            }
+            if (worldEngine == TangoSupport.ENGINE_OPENGL) {
+                // OpenGL world Y is Tango world Z and OpenGL world Z is Tango world -Y.
+                float y = worldTCamera[column + 1];
+                worldTCamera[column + 1] = worldTCamera[column + 2];
+                worldTCamera[column + 2] = -y;
+            }
+        }
+        return worldTCamera;
+    }
+
     private float[] convertPlaneModelToMatrix(IntersectionPointPlaneModelPair planeModel) {
         // Note that depth camera's space is:
         // X - right
@@ -628,6 +1082,20 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
         dialog.show();
     }
 
+    /**
+     * Display toast on UI thread.
+     *
+     * @param resId The resource id of the string resource to use. Can be formatted text.
+     */
+    private void showToastOnUiThread(final int resId) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), resId, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     /**
      * Display toast on UI thread.
      *
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.planefitting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of the planes observed so far, in world (start of service) frame.
+ * <p/>
+ * Each new plane observation is merged into an existing plane if their normals and offsets agree
+ * within tolerance and their extents overlap or are close enough, growing the extent of the
+ * existing plane with the new one; otherwise it is added as a new plane. Plane extents are kept
+ * as convex polygons in a 2D basis of the plane.
+ * <p/>
+ * A uniform grid over the plane bounding boxes answers "which plane is under this ray" queries
+ * by walking only the cells crossed by the ray.
+ * <p/>
+ * All the methods are synchronized; observations are added from the plane detection thread and
+ * queried from the plane fitting thread. Map planes are immutable: merging an observation
+ * replaces the plane with a new one, so planes returned by the queries can be read without
+ * holding the lock.
+ */
+public class PlaneMap {
+    private static final int MAX_RAY_CELLS = 1024;
+
+    private final double mMaxNormalAngleCos;
+    private final double mMaxOffset;
+    private final double mMaxGap;
+    private final double mCellSize;
+
+    private final List<MapPlane> mPlanes = new ArrayList<MapPlane>();
+    // Grid cell key to the planes whose bounding box overlaps the cell.
+    private final Map<Long, List<MapPlane>> mGrid = new HashMap<Long, List<MapPlane>>();
+
+    /**
+     * A plane of the map.
+     */
+    public static class MapPlane {
+        public final int observationCount;
+        public final int inlierCount;
+
+        // Plane equation (a, b, c, d) with a*x + b*y + c*z + d = 0 and unit normal (a, b, c).
+        private final double[] mModel;
+        // Origin and 2D basis of the plane polygon.
+        private final double[] mOrigin;
+        private final double[] mU = new double[3];
+        private final double[] mV = new double[3];
+        // Convex polygon in plane coordinates as (u, v) pairs.
+        private final double[] mPolygon;
+        private final double[] mBoundsMin = new double[3];
+        private final double[] mBoundsMax = new double[3];
+
+        /**
+         * @param points 3D points in world frame whose convex hull is the plane polygon.
+         */
+        private MapPlane(double[] model, double[] origin, int observationCount, int inlierCount,
+                         double[] points) {
+            this.observationCount = observationCount;
+            this.inlierCount = inlierCount;
+            mModel = model;
+            mOrigin = origin;
+            setBasis(this);
+            mPolygon = convexHull(this, points);
+            updateBounds(this);
+        }
+
+        /**
+         * @return A copy of the plane equation (a, b, c, d) with a*x + b*y + c*z + d = 0 and unit
+         * normal (a, b, c).
+         */
+        public double[] getModel() {
+            return mModel.clone();
+        }
+
+        /**
+         * @return The plane polygon as a list of 3D points (x, y, z) in world frame.
+         */
+        public double[] getPolygon() {
+            int count = mPolygon.length / 2;
+            double[] polygon = new double[3 * count];
+            for (int i = 0; i < count; i++) {
+                toWorld(mPolygon[2 * i], mPolygon[2 * i + 1], polygon, 3 * i);
+            }
+            return polygon;
+        }
+
+        private void toWorld(double u, double v, double[] out, int offset) {
+            for (int k = 0; k < 3; k++) {
+                out[offset + k] = mOrigin[k] + u * mU[k] + v * mV[k];
+            }
+        }
+
+    }
+
+    /**
+     * Result of a ray query.
+     */
+    public static class RayHit {
+        public final MapPlane plane;
+        public final double[] point;
+        public final double distance;
+
+        public RayHit(MapPlane plane, double[] point, double distance) {
+            this.plane = plane;
+            this.point = point;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * @param maxNormalAngle Maximum angle in radians between the normals of merged planes.
+     * @param maxOffset      Maximum distance in meters between merged planes.
+     * @param maxGap         Maximum distance in meters between the extents of merged planes,
+     *                       measured in the plane.
+     * @param cellSize       Size in meters of the spatial index cells.
+     */
+    public PlaneMap(double maxNormalAngle, double maxOffset, double maxGap, double cellSize) {
+        mMaxNormalAngleCos = Math.cos(maxNormalAngle);
+        mMaxOffset = maxOffset;
+        mMaxGap = maxGap;
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Adds a plane observation.
+     *
+     * @param plane       The observed plane, in depth camera frame.
+     * @param worldTDepth Column major transform from depth camera to world frame.
+     * @return The map plane the observation was merged into or added as.
+     */
+    public synchronized MapPlane addObservation(MultiPlaneDetector.Plane plane,
+                                                float[] worldTDepth) {
+        // Transform the plane to world frame.
+        double[] normal = new double[3];
+        double[] centroid = new double[3];
+        for (int k = 0; k < 3; k++) {
+            normal[k] = worldTDepth[k] * plane.model[0] + worldTDepth[4 + k] * plane.model[1]
+                    + worldTDepth[8 + k] * plane.model[2];
+            centroid[k] = worldTDepth[k] * plane.centroid[0]
+                    + worldTDepth[4 + k] * plane.centroid[1]
+                    + worldTDepth[8 + k] * plane.centroid[2] + worldTDepth[12 + k];
+        }
+        int hullSize = plane.hull.length / 3;
+        double[] hull = new double[3 * hullSize];
+        for (int i = 0; i < hullSize; i++) {
+            for (int k = 0; k < 3; k++) {
+                hull[3 * i + k] = worldTDepth[k] * plane.hull[3 * i]
+                        + worldTDepth[4 + k] * plane.hull[3 * i + 1]
+                        + worldTDepth[8 + k] * plane.hull[3 * i + 2] + worldTDepth[12 + k];
+            }
+        }
+        double offset = -(normal[0] * centroid[0] + normal[1] * centroid[1]
+                + normal[2] * centroid[2]);
+
+        MapPlane previous = findMergeCandidate(normal, centroid, hull);
+        MapPlane target;
+        if (previous == null) {
+            double[] model = {normal[0], normal[1], normal[2], offset};
+            target = new MapPlane(model, centroid, 1, plane.inlierCount, hull);
+            mPlanes.add(target);
+        } else {
+            // Inlier weighted average of the plane equations; flip the observation to agree
+            // with the map plane normal.
+            double[] model = new double[4];
+            double sign = dot(normal, previous.mModel) < 0 ? -1 : 1;
+            double w0 = previous.inlierCount;
+            double w1 = plane.inlierCount;
+            for (int k = 0; k < 4; k++) {
+                double observed = sign * (k < 3 ? normal[k] : offset);
+                model[k] = (w0 * previous.mModel[k] + w1 * observed) / (w0 + w1);
+            }
+            double length = Math.sqrt(dot(model, model));
+            for (int k = 0; k < 4; k++) {
+                model[k] /= length;
+            }
+            // Move the origin onto the updated plane, keeping the polygon in world frame.
+            double distance = dot(model, previous.mOrigin) + model[3];
+            double[] origin = new double[3];
+            for (int k = 0; k < 3; k++) {
+                origin[k] = previous.mOrigin[k] - distance * model[k];
+            }
+            target = new MapPlane(model, origin, previous.observationCount + 1,
+                    previous.inlierCount + plane.inlierCount,
+                    concat(previous.getPolygon(), hull));
+            removeFromGrid(previous);
+            mPlanes.set(mPlanes.indexOf(previous), target);
+        }
+        addToGrid(target);
+        return target;
+    }
+
+    /**
+     * Finds the closest plane hit by a ray.
+     *
+     * @param origin      Ray origin in world frame.
+     * @param direction   Ray direction in world frame; doesn't need to be normalized.
+     * @param maxDistance Maximum distance along the ray in meters.
+     * @return The closest hit, or null if the ray doesn't hit any plane.
+     */
+    public synchronized RayHit raycast(double[] origin, double[] direction, double maxDistance) {
+        double length = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1]
+                + direction[2] * direction[2]);
+        double[] d = {direction[0] / length, direction[1] / length, direction[2] / length};
+
+        // Walk the grid cells crossed by the ray (3D DDA), testing the planes in each cell.
+        int[] cell = new int[3];
+        int[] step = new int[3];
+        double[] tMax = new double[3];
+        double[] tDelta = new double[3];
+        for (int k = 0; k < 3; k++) {
+            cell[k] = (int) Math.floor(origin[k] / mCellSize);
+            if (d[k] > 0) {
+                step[k] = 1;
+                tMax[k] = ((cell[k] + 1) * mCellSize - origin[k]) / d[k];
+                tDelta[k] = mCellSize / d[k];
+            } else if (d[k] < 0) {
+                step[k] = -1;
+                tMax[k] = (cell[k] * mCellSize - origin[k]) / d[k];
+                tDelta[k] = -mCellSize / d[k];
+            } else {
+                tMax[k] = Double.POSITIVE_INFINITY;
+                tDelta[k] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        Set<MapPlane> tested = new HashSet<MapPlane>();
+        RayHit best = null;
+        double t = 0;
+        for (int i = 0; i < MAX_RAY_CELLS && t <= maxDistance; i++) {
+            List<MapPlane> planes = mGrid.get(cellKey(cell[0], cell[1], cell[2]));
+            if (planes != null) {
+                for (MapPlane plane : planes) {
+                    if (!tested.add(plane)) {
+                        continue;
+                    }
+                    RayHit hit = intersect(plane, origin, d, maxDistance);
+                    if (hit != null && (best == null || hit.distance < best.distance)) {
+                        best = hit;
+                    }
+                }
+            }
+            // Planes in later cells can't be closer than the current hit.
+            if (best != null && best.distance <= t) {
+                break;
+            }
+            int axis = tMax[0] < tMax[1] ? (tMax[0] < tMax[2] ? 0 : 2)
+                    : (tMax[1] < tMax[2] ? 1 : 2);
+            t = tMax[axis];
+            tMax[axis] += tDelta[axis];
+            cell[axis] += step[axis];
+        }
+        return best;
+    }
+
+    /**
+     * @return A copy of the list of map planes.
+     */
+    public synchronized List<MapPlane> getPlanes() {
+        return new ArrayList<MapPlane>(mPlanes);
+    }
+
+    public synchronized void clear() {
+        mPlanes.clear();
+        mGrid.clear();
+    }
+
+    /**
+     * @param hull Hull of the observation in world frame.
+     * @return The closest map plane with the same orientation and offset as the observation and
+     * an extent overlapping it, or null.
+     */
+    private MapPlane findMergeCandidate(double[] normal, double[] centroid, double[] hull) {
+        MapPlane best = null;
+        double bestDistance = mMaxOffset;
+        for (MapPlane plane : mPlanes) {
+            if (Math.abs(dot(normal, plane.mModel)) < mMaxNormalAngleCos) {
+                continue;
+            }
+            double distance = Math.abs(dot(plane.mModel, centroid) + plane.mModel[3]);
+            if (distance > bestDistance) {
+                continue;
+            }
+            // Parallel planes far apart on the same wall or floor are distinct planes.
+            if (polygonDistance(plane.mPolygon, convexHull(plane, hull)) > mMaxGap) {
+                continue;
+            }
+            bestDistance = distance;
+            best = plane;
+        }
+        return best;
+    }
+
+    private RayHit intersect(MapPlane plane, double[] origin, double[] d, double maxDistance) {
+        double denominator = dot(plane.mModel, d);
+        if (Math.abs(denominator) < 1e-9) {
+            return null;
+        }
+        double t = -(dot(plane.mModel, origin) + plane.mModel[3]) / denominator;
+        if (t < 0 || t > maxDistance) {
+            return null;
+        }
+        double[] point = {origin[0] + t * d[0], origin[1] + t * d[1], origin[2] + t * d[2]};
+        double[] relative = {point[0] - plane.mOrigin[0], point[1] - plane.mOrigin[1],
+                point[2] - plane.mOrigin[2]};
+        double u = dot(relative, plane.mU);
+        double v = dot(relative, plane.mV);
+        return contains(plane.mPolygon, u, v) ? new RayHit(plane, point, t) : null;
+    }
+
+    /**
+     * @return Whether a counter-clockwise convex polygon of (u, v) pairs contains a point.
+     */
+    private static boolean contains(double[] polygon, double u, double v) {
+        int count = polygon.length / 2;
+        if (count < 3) {
+            return false;
+        }
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double cross = (polygon[2 * i] - polygon[2 * j]) * (v - polygon[2 * j + 1])
+                    - (polygon[2 * i + 1] - polygon[2 * j + 1]) * (u - polygon[2 * j]);
+            if (cross < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The distance between two counter-clockwise convex polygons of (u, v) pairs, 0 if
+     * they overlap.
+     */
+    private static double polygonDistance(double[] a, double[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        for (int i = 0; i < a.length; i += 2) {
+            if (contains(b, a[i], a[i + 1])) {
+                return 0;
+            }
+        }
+        for (int i = 0; i < b.length; i += 2) {
+            if (contains(a, b[i], b[i + 1])) {
+                return 0;
+            }
+        }
+        // Neither polygon has a vertex inside the other: they either have crossing edges or are
+        // as far apart as their closest vertex and edge.
+        double distance = Double.POSITIVE_INFINITY;
+        for (int i = 0, j = a.length - 2; i < a.length; j = i, i += 2) {
+            for (int k = 0, l = b.length - 2; k < b.length; l = k, k += 2) {
+                if (segmentsCross(a[j], a[j + 1], a[i], a[i + 1],
+                        b[l], b[l + 1], b[k], b[k + 1])) {
+                    return 0;
+                }
+                distance = Math.min(distance, Math.min(
+                        segmentDistance(a[i], a[i + 1], b[l], b[l + 1], b[k], b[k + 1]),
+                        segmentDistance(b[k], b[k + 1], a[j], a[j + 1], a[i], a[i + 1])));
+            }
+        }
+        return distance;
+    }
+
+    private static boolean segmentsCross(double ax, double ay, double bx, double by,
+                                         double cx, double cy, double dx, double dy) {
+        double abC = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        double abD = (bx - ax) * (dy - ay) - (by - ay) * (dx - ax);
+        double cdA = (dx - cx) * (ay - cy) - (dy - cy) * (ax - cx);
+        double cdB = (dx - cx) * (by - cy) - (dy - cy) * (bx - cx);
+        return abC * abD < 0 && cdA * cdB < 0;
+    }
+
+    /**
+     * @return The distance from point p to the segment [a, b].
+     */
+    private static double segmentDistance(double px, double py, double ax, double ay,
+                                          double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((px - ax) * dx + (py - ay) * dy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+    }
+
+    private static void setBasis(MapPlane plane) {
+        double[] n = plane.mModel;
+        double[] u = Math.abs(n[0]) < 0.9 ? new double[] {0, n[2], -n[1]}
+                : new double[] {-n[2], 0, n[0]};
+        double length = Math.sqrt(dot(u, u));
+        for (int k = 0; k < 3; k++) {
+            plane.mU[k] = u[k] / length;
+        }
+        plane.mV[0] = n[1] * plane.mU[2] - n[2] * plane.mU[1];
+        plane.mV[1] = n[2] * plane.mU[0] - n[0] * plane.mU[2];
+        plane.mV[2] = n[0] * plane.mU[1] - n[1] * plane.mU[0];
+    }
+
+    /**
+     * Convex hull of 3D points projected in the plane basis, as counter-clockwise (u, v) pairs.
+     */
+    private static double[] convexHull(MapPlane plane, double[] points) {
+        int count = points.length / 3;
+        final double[] uv = new double[2 * count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            double[] relative = {points[3 * i] - plane.mOrigin[0],
+                    points[3 * i + 1] - plane.mOrigin[1], points[3 * i + 2] - plane.mOrigin[2]};
+            uv[2 * i] = dot(relative, plane.mU);
+            uv[2 * i + 1] = dot(relative, plane.mV);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byU = Double.compare(uv[2 * a], uv[2 * b]);
+                return byU != 0 ? byU : Double.compare(uv[2 * a + 1], uv[2 * b + 1]);
+            }
+        });
+        double[] hull = new double[2 * (2 * count + 1)];
+        int k = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int lower = k + 1;
+            for (int j = 0; j < count; j++) {
+                int i = pass == 0 ? order[j] : order[count - 1 - j];
+                while (k >= (pass == 0 ? 2 : lower)
+                        && cross(hull, k, uv[2 * i], uv[2 * i + 1]) <= 0) {
+                    k--;
+                }
+                hull[2 * k] = uv[2 * i];
+                hull[2 * k + 1] = uv[2 * i + 1];
+                k++;
+            }
+        }
+        // The last point is the same as the first one.
+        return Arrays.copyOf(hull, 2 * Math.max(0, k - 1));
+    }
+
+    private static double cross(double[] hull, int k, double x, double y) {
+        double ax = hull[2 * (k - 2)];
+        double ay = hull[2 * (k - 2) + 1];
+        double bx = hull[2 * (k - 1)];
+        double by = hull[2 * (k - 1) + 1];
+        return (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+    }
+
+    private static void updateBounds(MapPlane plane) {
+        double[] polygon = plane.getPolygon();
+        Arrays.fill(plane.mBoundsMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(plane.mBoundsMax, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < polygon.length; i += 3) {
+            for (int k = 0; k < 3; k++) {
+                plane.mBoundsMin[k] = Math.min(plane.mBoundsMin[k], polygon[i + k]);
+                plane.mBoundsMax[k] = Math.max(plane.mBoundsMax[k], polygon[i + k]);
+            }
+        }
+    }
+
+    private void addToGrid(MapPlane plane) {
+        if (plane.mPolygon.length == 0) {
+            return;
+        }
+        for (long key : cellKeys(plane)) {
+            List<MapPlane> planes = mGrid.get(key);
+            if (planes == null) {
+                planes = new ArrayList<MapPlane>(2);
+                mGrid.put(key, planes);
+            }
+            planes.add(plane);
+        }
+    }
+
+    private void removeFromGrid(MapPlane plane) {
+        if (plane.mPolygon.length == 0) {
+            return;
+        }
+        for (long key : cellKeys(plane)) {
+            List<MapPlane> planes = mGrid.get(key);
+            if (planes != null) {
+                planes.remove(plane);
+                if (planes.isEmpty()) {
+                    mGrid.remove(key);
+                }
+            }
+        }
+    }
+
+    private List<Long> cellKeys(MapPlane plane) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+        for (int k = 0; k < 3; k++) {
+            min[k] = (int) Math.floor(plane.mBoundsMin[k] / mCellSize);
+            max[k] = (int) Math.floor(plane.mBoundsMax[k] / mCellSize);
+        }
+        List<Long> keys = new ArrayList<Long>();
+        for (int x = min[0]; x <= max[0]; x++) {
+            for (int y = min[1]; y <= max[1]; y++) {
+                for (int z = min[2]; z <= max[2]; z++) {
+                    keys.add(cellKey(x, y, z));
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static long cellKey(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    private static double[] concat(double[] a, double[] b) {
+        double[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
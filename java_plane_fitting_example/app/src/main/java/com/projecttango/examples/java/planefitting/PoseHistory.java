@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.planefitting;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+/**
+ * Recent history of one pose stream, e.g. start of service T device from
+ * {@code onPoseAvailable}, so that poses at past timestamps can be looked up without a round
+ * trip to the Tango service.
+ * <p/>
+ * Poses are kept in a primitive ring buffer. A lookup finds the two samples around the requested
+ * timestamp by binary search and interpolates the translation linearly and the rotation with
+ * SLERP. Timestamps outside of the history, or in a gap longer than the maximum interpolation
+ * interval, are misses and should be queried from the service instead.
+ * <p/>
+ * Start of service poses are not corrected after the fact, so a past pose stays valid for as
+ * long as it is in the history. Drift corrected poses, relative to the area description, are a
+ * different stream and have to be queried from the service.
+ * <p/>
+ * The history counts the hits and misses of {@link #getPoseAtTime}, and tracks the
+ * interpolation error against poses queried from the service through {@link #validate}.
+ * <p/>
+ * All methods are thread safe.
+ */
+public class PoseHistory {
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private final int mCapacity;
+    private final double mMaxInterval;
+    private final double[] mTimestamps;
+    private final double[] mTranslations;
+    private final double[] mRotations;
+    // Ring buffer start and number of samples.
+    private int mStart;
+    private int mSize;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mValidationCount;
+    private double mSumTranslationError;
+    private double mMaxTranslationError;
+    private double mSumRotationError;
+    private double mMaxRotationError;
+
+    // Scratch for lookups.
+    private final double[] mScratchTranslation = new double[3];
+    private final double[] mScratchRotation = new double[4];
+
+    /**
+     * @param capacity    Number of poses kept.
+     * @param maxInterval Longest time in seconds between two poses to interpolate across.
+     */
+    public PoseHistory(int capacity, double maxInterval) {
+        mCapacity = capacity;
+        mMaxInterval = maxInterval;
+        mTimestamps = new double[capacity];
+        mTranslations = new double[3 * capacity];
+        mRotations = new double[4 * capacity];
+    }
+
+    /**
+     * Appends a pose of the stream. Invalid poses and poses older than the newest one are
+     * ignored.
+     */
+    public synchronized void add(TangoPoseData pose) {
+        if (pose.statusCode != TangoPoseData.POSE_VALID
+                || (mSize > 0 && pose.timestamp <= mTimestamps[index(mSize - 1)])) {
+            return;
+        }
+        int i;
+        if (mSize < mCapacity) {
+            i = index(mSize);
+            mSize++;
+        } else {
+            i = mStart;
+            mStart = (mStart + 1) % mCapacity;
+        }
+        mTimestamps[i] = pose.timestamp;
+        System.arraycopy(pose.translation, 0, mTranslations, 3 * i, 3);
+        System.arraycopy(pose.rotation, 0, mRotations, 4 * i, 4);
+    }
+
+    /**
+     * Drops all poses, e.g. after the service reconnects.
+     */
+    public synchronized void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Looks up the pose at a timestamp.
+     *
+     * @param outTranslation Translation x, y, z.
+     * @param outRotation    Rotation quaternion x, y, z, w, as in {@link TangoPoseData}.
+     * @return Whether the pose was found; the outputs are unchanged otherwise.
+     */
+    public synchronized boolean getPoseAtTime(double timestamp, double[] outTranslation,
+                                              double[] outRotation) {
+        if (interpolate(timestamp, outTranslation, outRotation)) {
+            mHitCount++;
+            return true;
+        }
+        mMissCount++;
+        return false;
+    }
+
+    /**
+     * Looks up the pose at a timestamp like {@link #getPoseAtTime}, without counting a hit or a
+     * miss. For lookups that would not otherwise query the service, e.g. for pose prediction, so
+     * that the counts keep measuring the service queries saved.
+     */
+    public synchronized boolean peekPoseAtTime(double timestamp, double[] outTranslation,
+                                               double[] outRotation) {
+        return interpolate(timestamp, outTranslation, outRotation);
+    }
+
+    /**
+     * Looks up the pose at a timestamp as a column-major transformation matrix.
+     *
+     * @return Whether the pose was found; the output is unchanged otherwise.
+     */
+    public synchronized boolean getMatrixAtTime(double timestamp, double[] out) {
+        double[] t = mScratchTranslation;
+        double[] q = mScratchRotation;
+        if (!getPoseAtTime(timestamp, t, q)) {
+            return false;
+        }
+        double xx = q[0] * q[0];
+        double yy = q[1] * q[1];
+        double zz = q[2] * q[2];
+        double xy = q[0] * q[1];
+        double xz = q[0] * q[2];
+        double yz = q[1] * q[2];
+        double wx = q[3] * q[0];
+        double wy = q[3] * q[1];
+        double wz = q[3] * q[2];
+        out[0] = 1 - 2 * (yy + zz);
+        out[1] = 2 * (xy + wz);
+        out[2] = 2 * (xz - wy);
+        out[3] = 0;
+        out[4] = 2 * (xy - wz);
+        out[5] = 1 - 2 * (xx + zz);
+        out[6] = 2 * (yz + wx);
+        out[7] = 0;
+        out[8] = 2 * (xz + wy);
+        out[9] = 2 * (yz - wx);
+        out[10] = 1 - 2 * (xx + yy);
+        out[11] = 0;
+        out[12] = t[0];
+        out[13] = t[1];
+        out[14] = t[2];
+        out[15] = 1;
+        return true;
+    }
+
+    /**
+     * Compares the interpolated pose against a pose of the same stream queried from the service,
+     * and accumulates the error. Does not count as a hit or miss.
+     */
+    public synchronized void validate(TangoPoseData servicePose) {
+        if (servicePose.statusCode != TangoPoseData.POSE_VALID
+                || !interpolate(servicePose.timestamp, mScratchTranslation,
+                mScratchRotation)) {
+            return;
+        }
+        double dx = mScratchTranslation[0] - servicePose.translation[0];
+        double dy = mScratchTranslation[1] - servicePose.translation[1];
+        double dz = mScratchTranslation[2] - servicePose.translation[2];
+        double translationError = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        double dot = Math.abs(mScratchRotation[0] * servicePose.rotation[0]
+                + mScratchRotation[1] * servicePose.rotation[1]
+                + mScratchRotation[2] * servicePose.rotation[2]
+                + mScratchRotation[3] * servicePose.rotation[3]);
+        double rotationError = 2 * Math.acos(Math.min(1, dot));
+        mValidationCount++;
+        mSumTranslationError += translationError;
+        mMaxTranslationError = Math.max(mMaxTranslationError, translationError);
+        mSumRotationError += rotationError;
+        mMaxRotationError = Math.max(mMaxRotationError, rotationError);
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return Mean translation error in meters of the validated lookups.
+     */
+    public synchronized double getMeanTranslationError() {
+        return mValidationCount == 0 ? 0 : mSumTranslationError / mValidationCount;
+    }
+
+    public synchronized double getMaxTranslationError() {
+        return mMaxTranslationError;
+    }
+
+    /**
+     * @return Mean rotation error in radians of the validated lookups.
+     */
+    public synchronized double getMeanRotationError() {
+        return mValidationCount == 0 ? 0 : mSumRotationError / mValidationCount;
+    }
+
+    public synchronized double getMaxRotationError() {
+        return mMaxRotationError;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + mHitCount + ", misses: " + mMissCount
+                + ", translation error mean/max (m): " + getMeanTranslationError() + "/"
+                + mMaxTranslationError
+                + ", rotation error mean/max (rad): " + getMeanRotationError() + "/"
+                + mMaxRotationError;
+    }
+
+    private int index(int logicalIndex) {
+        return (mStart + logicalIndex) % mCapacity;
+    }
+
+    /**
+     * Interpolates the pose at a timestamp between the two samples around it.
+     */
+    private boolean interpolate(double timestamp, double[] outTranslation,
+                                double[] outRotation) {
+        if (mSize == 0 || timestamp < mTimestamps[index(0)]
+                || timestamp > mTimestamps[index(mSize - 1)]) {
+            return false;
+        }
+        // Last sample at or before the timestamp.
+        int low = 0;
+        int high = mSize - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mTimestamps[index(middle)] <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int a = index(low);
+        if (mTimestamps[a] == timestamp) {
+            System.arraycopy(mTranslations, 3 * a, outTranslation, 0, 3);
+            System.arraycopy(mRotations, 4 * a, outRotation, 0, 4);
+            return true;
+        }
+        int b = index(low + 1);
+        double interval = mTimestamps[b] - mTimestamps[a];
+        if (interval > mMaxInterval) {
+            return false;
+        }
+        double t = (timestamp - mTimestamps[a]) / interval;
+
+        for (int i = 0; i < 3; i++) {
+            outTranslation[i] = mTranslations[3 * a + i]
+                    + t * (mTranslations[3 * b + i] - mTranslations[3 * a + i]);
+        }
+
+        // SLERP along the shortest arc.
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += mRotations[4 * a + i] * mRotations[4 * b + i];
+        }
+        double sign = 1;
+        if (dot < 0) {
+            dot = -dot;
+            sign = -1;
+        }
+        double weightA;
+        double weightB;
+        if (dot > SLERP_THRESHOLD) {
+            // Nearly identical rotations; linear interpolation is accurate and stable.
+            weightA = 1 - t;
+            weightB = t;
+        } else {
+            double theta = Math.acos(dot);
+            double sinTheta = Math.sin(theta);
+            weightA = Math.sin((1 - t) * theta) / sinTheta;
+            weightB = Math.sin(t * theta) / sinTheta;
+        }
+        weightB *= sign;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            outRotation[i] = weightA * mRotations[4 * a + i] + weightB * mRotations[4 * b + i];
+            norm += outRotation[i] * outRotation[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            outRotation[i] /= norm;
+        }
+        return true;
+    }
+}
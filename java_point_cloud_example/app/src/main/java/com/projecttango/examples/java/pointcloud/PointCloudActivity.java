@@ -17,6 +17,7 @@
 package com.projecttango.examples.java.pointcloud;
 
 import com.google.atap.tangoservice.Tango;
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
 import com.google.atap.tangoservice.TangoConfig;
 import com.google.atap.tangoservice.TangoCoordinateFramePair;
 import com.google.atap.tangoservice.TangoErrorException;
@@ -35,19 +36,30 @@ import com.google.tango.ux.UxExceptionEventListener;
 import android.app.Activity;
 import android.hardware.display.DisplayManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Main Activity class for the Point Cloud Sample. Handles the connection to the {@link Tango}
@@ -64,6 +76,16 @@ public class PointCloudActivity extends Activity {
     private static final DecimalFormat FORMAT_THREE_DECIMAL = new DecimalFormat("0.000");
     private static final double UPDATE_INTERVAL_MS = 100.0;
 
+    // Surface segmentation parameters.
+    private static final int SEGMENTATION_DOWNSAMPLE = 4;
+    private static final double SEGMENTATION_MAX_NORMAL_ANGLE = Math.toRadians(15);
+    private static final float SEGMENTATION_MAX_PLANE_DISTANCE = 0.02f;
+    private static final int SEGMENTATION_MIN_SEGMENT_SIZE = 20;
+    // Segmentation should keep up with 30 fps.
+    private static final double SEGMENTATION_FRAME_BUDGET_MS = 33.0;
+
+    private static final String EXPORT_FILE_PREFIX = "pointcloud_";
+
     private Tango mTango;
     private TangoConfig mConfig;
     private TangoUx mTangoUx;
@@ -82,6 +104,29 @@ public class PointCloudActivity extends Activity {
 
     private int mDisplayRotation = 0;
 
+    private HandlerThread mSegmentationThread;
+    private Handler mSegmentationHandler;
+    private ExecutorService mSegmentationExecutor;
+    private volatile SurfaceSegmenter mSurfaceSegmenter;
+    // Point clouds for the segmentation thread. TangoPointCloudManager hands its latest buffer
+    // to one consumer at a time, so the segmenter doesn't share mPointCloudManager with the
+    // renderer.
+    private TangoPointCloudManager mSegmentationPointCloudManager;
+    private Button mSegmentationButton;
+    // Segmentation keeps all the cores busy, so it only runs when turned on.
+    private volatile boolean mIsSegmenting = false;
+
+    private Button mExportButton;
+    private HandlerThread mExportThread;
+    private Handler mExportHandler;
+    private volatile boolean mIsExporting = false;
+    // Point clouds for the export thread, which doesn't share mPointCloudManager with the
+    // renderer and the segmenter.
+    private TangoPointCloudManager mExportPointCloudManager;
+    // Only accessed in the export thread.
+    private final List<PointCloudExporter> mExporters = new ArrayList<PointCloudExporter>();
+    private double mLastExportedTimestamp;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -90,12 +135,26 @@ public class PointCloudActivity extends Activity {
         mPointCountTextView = (TextView) findViewById(R.id.point_count_textview);
         mAverageZTextView = (TextView) findViewById(R.id.average_z_textview);
         mSurfaceView = (RajawaliSurfaceView) findViewById(R.id.gl_surface_view);
+        mExportButton = (Button) findViewById(R.id.export_button);
+        mSegmentationButton = (Button) findViewById(R.id.segmentation_button);
 
         mPointCloudManager = new TangoPointCloudManager();
+        mSegmentationPointCloudManager = new TangoPointCloudManager();
+        mExportPointCloudManager = new TangoPointCloudManager();
         mTangoUx = setupTangoUxAndLayout();
         mRenderer = new PointCloudRajawaliRenderer(this);
         setupRenderer();
 
+        mSegmentationThread = new HandlerThread("surfaceSegmentation");
+        mSegmentationThread.start();
+        mSegmentationHandler = new Handler(mSegmentationThread.getLooper());
+        mSegmentationExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+        mExportThread = new HandlerThread("pointCloudExport");
+        mExportThread.start();
+        mExportHandler = new Handler(mExportThread.getLooper());
+
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
             displayManager.registerDisplayListener(new DisplayManager.DisplayListener() {
@@ -134,6 +193,9 @@ public class PointCloudActivity extends Activity {
         // NOTE: DO NOT lock against this same object in the Tango callback thread.
         // Tango.disconnect will block here until all Tango callback calls are finished.
         // If you lock against this object in a Tango callback thread it will cause a deadlock.
+        if (mIsExporting) {
+            stopExport();
+        }
         synchronized (this) {
             try {
                 mTangoUx.stop();
@@ -145,6 +207,14 @@ public class PointCloudActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSegmentationThread.quit();
+        mSegmentationExecutor.shutdownNow();
+        mExportThread.quitSafely();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -167,6 +237,7 @@ public class PointCloudActivity extends Activity {
                         mTango.connect(mConfig);
                         startupTango();
                         TangoSupport.initialize(mTango);
+                        setupSurfaceSegmenter();
                         mIsConnected = true;
                         setDisplayRotation();
                     } catch (TangoOutOfDateException e) {
@@ -221,6 +292,18 @@ public class PointCloudActivity extends Activity {
                     mTangoUx.updatePointCloud(pointCloud);
                 }
                 mPointCloudManager.updatePointCloud(pointCloud);
+                if (mIsSegmenting) {
+                    mSegmentationPointCloudManager.updatePointCloud(pointCloud);
+                    // Segment the latest cloud only; skip clouds arriving while the segmenter
+                    // is busy.
+                    mSegmentationHandler.removeCallbacksAndMessages(null);
+                    mSegmentationHandler.post(mSegmentSurfacesRunnable);
+                }
+                if (mIsExporting) {
+                    mExportPointCloudManager.updatePointCloud(pointCloud);
+                    mExportHandler.removeCallbacks(mExportPointCloudRunnable);
+                    mExportHandler.post(mExportPointCloudRunnable);
+                }
 
                 final double currentTimeStamp = pointCloud.timestamp;
                 final double pointCloudFrameDelta =
@@ -254,6 +337,196 @@ public class PointCloudActivity extends Activity {
         });
     }
 
+    /**
+     * Creates the surface segmenter for the depth camera resolution.
+     */
+    private void setupSurfaceSegmenter() {
+        TangoCameraIntrinsics intrinsics =
+                mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_DEPTH);
+        mSurfaceSegmenter = new SurfaceSegmenter(mSegmentationExecutor,
+                Runtime.getRuntime().availableProcessors(),
+                intrinsics.fx, intrinsics.fy, intrinsics.cx, intrinsics.cy,
+                intrinsics.width, intrinsics.height, SEGMENTATION_DOWNSAMPLE,
+                SEGMENTATION_MAX_NORMAL_ANGLE, SEGMENTATION_MAX_PLANE_DISTANCE,
+                SEGMENTATION_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * Segments the latest point cloud into smooth surface patches. This runs in the surface
+     * segmentation thread.
+     */
+    private Runnable mSegmentSurfacesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            SurfaceSegmenter segmenter = mSurfaceSegmenter;
+            TangoPointCloudData pointCloud = mSegmentationPointCloudManager.getLatestPointCloud();
+            if (!mIsSegmenting || segmenter == null || pointCloud == null) {
+                return;
+            }
+            try {
+                segmenter.segment(pointCloud.points, pointCloud.numPoints);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Surface segmentation interrupted", e);
+                return;
+            }
+            double frameTimeMs = segmenter.getLastFrameTimeMs();
+            if (frameTimeMs > SEGMENTATION_FRAME_BUDGET_MS) {
+                Log.w(TAG, "Surface segmentation over budget: " + frameTimeMs + " ms");
+            } else {
+                Log.d(TAG, segmenter.getSegmentCount() + " surfaces segmented in "
+                        + frameTimeMs + " ms");
+            }
+        }
+    };
+
+    /**
+     * Appends the latest point cloud, in start of service frame, to the export files. This runs
+     * in the export thread; clouds that arrive while the previous one is being written are
+     * skipped.
+     */
+    private Runnable mExportPointCloudRunnable = new Runnable() {
+        @Override
+        public void run() {
+            TangoPointCloudData pointCloud = mExportPointCloudManager.getLatestPointCloud();
+            if (mExporters.isEmpty() || pointCloud == null
+                    || pointCloud.timestamp == mLastExportedTimestamp) {
+                return;
+            }
+            TangoSupport.MatrixTransformData transform;
+            synchronized (PointCloudActivity.this) {
+                if (!mIsConnected) {
+                    return;
+                }
+                transform = TangoSupport.getMatrixTransformAtTime(pointCloud.timestamp,
+                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                        TangoSupport.ENGINE_TANGO,
+                        TangoSupport.ENGINE_TANGO,
+                        TangoSupport.ROTATION_IGNORED);
+            }
+            if (transform.statusCode != TangoPoseData.POSE_VALID) {
+                return;
+            }
+            mLastExportedTimestamp = pointCloud.timestamp;
+            try {
+                for (PointCloudExporter exporter : mExporters) {
+                    exporter.addPoints(pointCloud.points, pointCloud.numPoints,
+                            pointCloud.timestamp, transform.matrix);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Point cloud export failed", e);
+                onExportFailed();
+            }
+        }
+    };
+
+    /**
+     * Segmentation button onClick callback. Turns the surface segmentation of the point clouds
+     * on or off.
+     */
+    public void onSegmentationClicked(View v) {
+        mIsSegmenting = !mIsSegmenting;
+        mSegmentationButton.setText(
+                mIsSegmenting ? R.string.segmentation_on : R.string.segmentation_off);
+        if (!mIsSegmenting) {
+            mSegmentationHandler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    /**
+     * Export button onClick callback. Starts or stops streaming the point clouds to PLY, LAS and
+     * quantized files in the app's external files directory.
+     */
+    public void onExportClicked(View v) {
+        if (mIsExporting) {
+            stopExport();
+        } else {
+            startExport();
+        }
+    }
+
+    private void startExport() {
+        String name = EXPORT_FILE_PREFIX
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        final File directory = getExternalFilesDir(null);
+        final String path = new File(directory, name).getPath();
+        mIsExporting = true;
+        mExportButton.setText(R.string.export_stop);
+        mExportHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mExporters.add(new PointCloudExporter(new File(path + ".ply"),
+                            PointCloudExporter.Format.PLY));
+                    mExporters.add(new PointCloudExporter(new File(path + ".las"),
+                            PointCloudExporter.Format.LAS));
+                    mExporters.add(new PointCloudExporter(new File(path + ".tpcc"),
+                            PointCloudExporter.Format.QUANTIZED));
+                    mLastExportedTimestamp = 0;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not create export files in " + directory, e);
+                    onExportFailed();
+                }
+            }
+        });
+    }
+
+    private void stopExport() {
+        mIsExporting = false;
+        mExportButton.setText(R.string.export_start);
+        mExportHandler.removeCallbacks(mExportPointCloudRunnable);
+        mExportHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Close first; a quantized export decodes its last frame back when closed.
+                List<PointCloudExporter> exporters = new ArrayList<PointCloudExporter>(mExporters);
+                closeExporters();
+                for (PointCloudExporter exporter : exporters) {
+                    Log.i(TAG, "Exported " + exporter.getPointCount() + " points to "
+                            + exporter.getFormat() + " at " + exporter.getThroughput()
+                            + " points/s");
+                    if (exporter.getFormat() == PointCloudExporter.Format.QUANTIZED) {
+                        Log.i(TAG, String.format(Locale.US, "Quantized compression ratio %.2f, "
+                                        + "max error %.2f mm, encode %.0f points/s, "
+                                        + "decode %.0f points/s",
+                                exporter.getCompressionRatio(), exporter.getMaxError() * 1e3,
+                                exporter.getEncodeThroughput(), exporter.getDecodeThroughput()));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the export after a write error. This runs in the export thread.
+     */
+    private void onExportFailed() {
+        closeExporters();
+        mIsExporting = false;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mExportButton.setText(R.string.export_start);
+                Toast.makeText(PointCloudActivity.this,
+                        getString(R.string.export_failed), Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Closes the export files. This runs in the export thread.
+     */
+    private void closeExporters() {
+        for (PointCloudExporter exporter : mExporters) {
+            try {
+                exporter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close export file", e);
+            }
+        }
+        mExporters.clear();
+    }
+
     /**
      * Sets Rajawali surface view and its renderer. This is ideally called only once in onCreate.
      */
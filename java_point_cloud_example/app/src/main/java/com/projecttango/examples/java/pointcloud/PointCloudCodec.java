@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact lossy encoding of point cloud frames.
+ * <p/>
+ * XYZ is quantized to 16 bit fixed point relative to the center of the frame's bounding box, at
+ * the configured resolution or coarser if the frame does not fit in 16 bits. The quantized values
+ * are delta encoded in the order of the cloud, which follows the depth camera scanlines, and the
+ * confidence is packed to 8 bits, for 7 bytes per point instead of 16. Each component is stored
+ * in its own plane so that the optional Deflate stage sees long runs of small deltas.
+ * <p/>
+ * A frame is self-delimiting so frames can be concatenated in a stream:
+ * <pre>
+ * int magic, byte version, byte flags, int numPoints, double timestamp,
+ * float scale, float originX, float originY, float originZ, int payloadSize, payload
+ * </pre>
+ * all little endian. Without compression the payload is written directly between the caller's
+ * buffers. The Deflate stage goes through reusable arrays since {@link Deflater} only takes
+ * arrays on Android.
+ */
+public class PointCloudCodec {
+    public static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 8 + 4 * 4 + 4;
+
+    private static final int MAGIC = 0x43435054; // "TPCC"
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATE = 1;
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int BYTES_PER_POINT = 3 * 2 + 1;
+    private static final int MAX_QUANTIZED = Short.MAX_VALUE;
+    private static final int MAX_CONFIDENCE = 255;
+
+    private final float mResolution;
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater();
+
+    // Reusable arrays for the Deflate stage.
+    private byte[] mRaw = new byte[0];
+    private ByteBuffer mRawBuffer = ByteBuffer.wrap(mRaw);
+    private byte[] mCompressed = new byte[0];
+
+    private double mLastTimestamp;
+    private float mLastMaxError;
+    private float mLastCompressionRatio;
+    private double mLastEncodeThroughput;
+    private double mLastDecodeThroughput;
+
+    /**
+     * @param resolution Quantization step in meters. Frames wider than 65535 steps are encoded
+     *                   at a coarser step.
+     * @param compress   Whether to Deflate the quantized payload.
+     */
+    public PointCloudCodec(float resolution, boolean compress) {
+        mResolution = resolution;
+        mDeflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * @return Size in bytes that {@link #encode} needs in the destination buffer.
+     */
+    public static int maxEncodedSize(int numPoints) {
+        return HEADER_SIZE + BYTES_PER_POINT * numPoints;
+    }
+
+    /**
+     * Encodes a point cloud frame at the position of {@code dst}, advancing it.
+     *
+     * @param points    Point cloud in XYZC layout.
+     * @param numPoints Number of points in the cloud.
+     * @param timestamp Timestamp of the frame.
+     * @param dst       Destination with at least {@link #maxEncodedSize} bytes remaining.
+     * @return Number of bytes written.
+     */
+    public int encode(FloatBuffer points, int numPoints, double timestamp, ByteBuffer dst) {
+        if (dst.remaining() < maxEncodedSize(numPoints)) {
+            throw new IllegalArgumentException("Destination too small for " + numPoints
+                    + " points");
+        }
+        long start = System.nanoTime();
+
+        // Bounding box of the frame.
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < numPoints; i++) {
+            float x = points.get(FLOATS_PER_POINT * i);
+            float y = points.get(FLOATS_PER_POINT * i + 1);
+            float z = points.get(FLOATS_PER_POINT * i + 2);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        float originX = numPoints == 0 ? 0 : (minX + maxX) / 2;
+        float originY = numPoints == 0 ? 0 : (minY + maxY) / 2;
+        float originZ = numPoints == 0 ? 0 : (minZ + maxZ) / 2;
+        float halfExtent = numPoints == 0 ? 0
+                : Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2;
+        float scale = Math.max(mResolution, halfExtent / MAX_QUANTIZED);
+
+        ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int headerPosition = out.position();
+        int payloadPosition = headerPosition + HEADER_SIZE;
+        int rawSize = BYTES_PER_POINT * numPoints;
+        ByteBuffer payload = out;
+        int payloadOffset = payloadPosition;
+        if (mDeflater != null) {
+            if (mRaw.length < rawSize) {
+                mRaw = new byte[rawSize];
+                mRawBuffer = ByteBuffer.wrap(mRaw).order(ByteOrder.LITTLE_ENDIAN);
+                mCompressed = new byte[rawSize];
+            }
+            payload = mRawBuffer;
+            payloadOffset = 0;
+        }
+
+        // Planes of X, Y and Z deltas, then confidence. Deltas wrap around in 16 bits, which
+        // the decoder undoes by adding them with the same wrap around.
+        int planeY = payloadOffset + 2 * numPoints;
+        int planeZ = payloadOffset + 4 * numPoints;
+        int planeC = payloadOffset + 6 * numPoints;
+        short previousX = 0;
+        short previousY = 0;
+        short previousZ = 0;
+        float maxError = 0;
+        for (int i = 0; i < numPoints; i++) {
+            float x = points.get(FLOATS_PER_POINT * i);
+            float y = points.get(FLOATS_PER_POINT * i + 1);
+            float z = points.get(FLOATS_PER_POINT * i + 2);
+            float c = points.get(FLOATS_PER_POINT * i + 3);
+            short qx = quantize(x - originX, scale);
+            short qy = quantize(y - originY, scale);
+            short qz = quantize(z - originZ, scale);
+            payload.putShort(payloadOffset + 2 * i, (short) (qx - previousX));
+            payload.putShort(planeY + 2 * i, (short) (qy - previousY));
+            payload.putShort(planeZ + 2 * i, (short) (qz - previousZ));
+            payload.put(planeC + i,
+                    (byte) Math.round(Math.max(0, Math.min(1, c)) * MAX_CONFIDENCE));
+            previousX = qx;
+            previousY = qy;
+            previousZ = qz;
+            maxError = Math.max(maxError, Math.abs(originX + qx * scale - x));
+            maxError = Math.max(maxError, Math.abs(originY + qy * scale - y));
+            maxError = Math.max(maxError, Math.abs(originZ + qz * scale - z));
+        }
+
+        byte flags = 0;
+        int payloadSize = rawSize;
+        if (mDeflater != null) {
+            mDeflater.reset();
+            mDeflater.setInput(mRaw, 0, rawSize);
+            mDeflater.finish();
+            int compressedSize = mDeflater.deflate(mCompressed, 0, mCompressed.length);
+            out.position(payloadPosition);
+            if (mDeflater.finished() && compressedSize < rawSize) {
+                flags = FLAG_DEFLATE;
+                payloadSize = compressedSize;
+                out.put(mCompressed, 0, compressedSize);
+            } else {
+                // Incompressible; store the quantized payload as is.
+                out.put(mRaw, 0, rawSize);
+            }
+        }
+
+        out.position(headerPosition);
+        out.putInt(MAGIC);
+        out.put(VERSION);
+        out.put(flags);
+        out.putInt(numPoints);
+        out.putDouble(timestamp);
+        out.putFloat(scale);
+        out.putFloat(originX);
+        out.putFloat(originY);
+        out.putFloat(originZ);
+        out.putInt(payloadSize);
+
+        int encodedSize = HEADER_SIZE + payloadSize;
+        dst.position(headerPosition + encodedSize);
+        long elapsedNs = System.nanoTime() - start;
+        mLastMaxError = maxError;
+        mLastCompressionRatio = (float) FLOATS_PER_POINT * 4 * numPoints / encodedSize;
+        mLastEncodeThroughput = elapsedNs == 0 ? 0 : numPoints * 1e9 / elapsedNs;
+        return encodedSize;
+    }
+
+    /**
+     * Decodes the frame at the position of {@code src} into XYZC points at the position of
+     * {@code dst}, advancing both.
+     *
+     * @return Number of points decoded.
+     * @throws IllegalArgumentException If the frame is malformed or {@code dst} is too small.
+     */
+    public int decode(ByteBuffer src, FloatBuffer dst) {
+        long start = System.nanoTime();
+        ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.get() != VERSION) {
+            throw new IllegalArgumentException("Not a point cloud frame");
+        }
+        byte flags = in.get();
+        int numPoints = in.getInt();
+        double timestamp = in.getDouble();
+        float scale = in.getFloat();
+        float originX = in.getFloat();
+        float originY = in.getFloat();
+        float originZ = in.getFloat();
+        int payloadSize = in.getInt();
+        if (numPoints < 0 || payloadSize < 0 || in.remaining() < payloadSize) {
+            throw new IllegalArgumentException("Truncated point cloud frame");
+        }
+        if (dst.remaining() < FLOATS_PER_POINT * numPoints) {
+            throw new IllegalArgumentException("Destination too small for " + numPoints
+                    + " points");
+        }
+
+        int rawSize = BYTES_PER_POINT * numPoints;
+        ByteBuffer payload = in;
+        int payloadOffset = in.position();
+        if ((flags & FLAG_DEFLATE) != 0) {
+            if (mRaw.length < rawSize) {
+                mRaw = new byte[rawSize];
+                mRawBuffer = ByteBuffer.wrap(mRaw).order(ByteOrder.LITTLE_ENDIAN);
+                mCompressed = new byte[rawSize];
+            }
+            if (mCompressed.length < payloadSize) {
+                mCompressed = new byte[payloadSize];
+            }
+            in.get(mCompressed, 0, payloadSize);
+            mInflater.reset();
+            mInflater.setInput(mCompressed, 0, payloadSize);
+            try {
+                if (mInflater.inflate(mRaw, 0, rawSize) != rawSize) {
+                    throw new IllegalArgumentException("Corrupt point cloud frame");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt point cloud frame", e);
+            }
+            payload = mRawBuffer;
+            payloadOffset = 0;
+        } else if (payloadSize != rawSize) {
+            throw new IllegalArgumentException("Corrupt point cloud frame");
+        }
+
+        int planeY = payloadOffset + 2 * numPoints;
+        int planeZ = payloadOffset + 4 * numPoints;
+        int planeC = payloadOffset + 6 * numPoints;
+        int out = dst.position();
+        short qx = 0;
+        short qy = 0;
+        short qz = 0;
+        for (int i = 0; i < numPoints; i++) {
+            qx += payload.getShort(payloadOffset + 2 * i);
+            qy += payload.getShort(planeY + 2 * i);
+            qz += payload.getShort(planeZ + 2 * i);
+            dst.put(out++, originX + qx * scale);
+            dst.put(out++, originY + qy * scale);
+            dst.put(out++, originZ + qz * scale);
+            dst.put(out++, (payload.get(planeC + i) & 0xFF) / (float) MAX_CONFIDENCE);
+        }
+
+        src.position(src.position() + HEADER_SIZE + payloadSize);
+        dst.position(out);
+        long elapsedNs = System.nanoTime() - start;
+        mLastTimestamp = timestamp;
+        mLastDecodeThroughput = elapsedNs == 0 ? 0 : numPoints * 1e9 / elapsedNs;
+        return numPoints;
+    }
+
+    /**
+     * @return Timestamp of the last decoded frame.
+     */
+    public double getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /**
+     * @return Largest per-axis quantization error of the last encoded frame, in meters.
+     */
+    public float getLastMaxError() {
+        return mLastMaxError;
+    }
+
+    /**
+     * @return Raw XYZC size over encoded size of the last encoded frame.
+     */
+    public float getLastCompressionRatio() {
+        return mLastCompressionRatio;
+    }
+
+    /**
+     * @return Points per second of the last encode.
+     */
+    public double getLastEncodeThroughput() {
+        return mLastEncodeThroughput;
+    }
+
+    /**
+     * @return Points per second of the last decode.
+     */
+    public double getLastDecodeThroughput() {
+        return mLastDecodeThroughput;
+    }
+
+    private static short quantize(float value, float scale) {
+        return (short) Math.max(-MAX_QUANTIZED, Math.min(MAX_QUANTIZED,
+                Math.round(value / scale)));
+    }
+}
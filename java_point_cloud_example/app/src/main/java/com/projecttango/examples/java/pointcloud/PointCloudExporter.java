@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Streams point clouds to a file as they arrive.
+ * <p/>
+ * Points are transformed in bulk while they are copied into a large direct buffer, which is
+ * written through a {@link FileChannel} whenever it fills up. Every point carries its confidence
+ * and the timestamp of its frame. The header is written with a zero point count and rewritten
+ * with the final count and bounds when the exporter is closed.
+ * <p/>
+ * Three formats are supported:
+ * <ul>
+ * <li>{@link Format#PLY}: binary little endian PLY with float x, y, z, confidence and a double
+ * timestamp per vertex.</li>
+ * <li>{@link Format#LAS}: LAS 1.2 with point data format 1, millimeter resolution, the confidence
+ * as intensity and the timestamp as GPS time.</li>
+ * <li>{@link Format#QUANTIZED}: concatenated {@link PointCloudCodec} frames, one per cloud, with
+ * Deflate compression.</li>
+ * </ul>
+ */
+public class PointCloudExporter implements Closeable {
+    /**
+     * Output file format.
+     */
+    public enum Format {
+        PLY, LAS, QUANTIZED
+    }
+
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    // Points transformed per bulk read from the source cloud.
+    private static final int BATCH_POINTS = 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // PLY layout.
+    private static final int PLY_POINT_SIZE = 4 * 4 + 8;
+    // Wide enough for any unsigned 32 bit count, so the header can be rewritten in place.
+    private static final String PLY_COUNT_FORMAT = "%010d";
+
+    // LAS 1.2 layout.
+    private static final int LAS_HEADER_SIZE = 227;
+    private static final int LAS_POINT_FORMAT = 1;
+    private static final int LAS_POINT_SIZE = 28;
+    private static final double LAS_SCALE = 0.001;
+    // Return number 1 of 1.
+    private static final byte LAS_RETURN_FLAGS = 0x09;
+    // ASPRS class 1, unclassified.
+    private static final byte LAS_CLASSIFICATION = 1;
+    private static final long MAX_LAS_POINTS = 0xFFFFFFFFL;
+
+    // Quantized layout.
+    private static final float QUANTIZED_RESOLUTION = 0.0005f;
+
+    private final Format mFormat;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private ByteBuffer mBuffer;
+    private final float[] mBatch = new float[BATCH_POINTS * FLOATS_PER_POINT];
+    private final int mPointSize;
+    private final int mHeaderSize;
+    private final PointCloudCodec mCodec;
+    // Transformed cloud handed to the codec.
+    private FloatBuffer mTransformed;
+
+    private long mPointCount;
+    private double mMinX = Double.MAX_VALUE;
+    private double mMinY = Double.MAX_VALUE;
+    private double mMinZ = Double.MAX_VALUE;
+    private double mMaxX = -Double.MAX_VALUE;
+    private double mMaxY = -Double.MAX_VALUE;
+    private double mMaxZ = -Double.MAX_VALUE;
+    private long mWriteTimeNs;
+
+    // Codec statistics of a QUANTIZED export.
+    private long mEncodedSize;
+    private long mEncodeTimeNs;
+    private float mMaxError;
+    private double mDecodeThroughput;
+    // Position in mBuffer of the last frame encoded, or -1 if it has been written out.
+    private int mLastFramePosition = -1;
+
+    public PointCloudExporter(File file, Format format) throws IOException {
+        this(file, format, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param file       Output file. It is truncated if it exists.
+     * @param format     Output format.
+     * @param bufferSize Size in bytes of the direct buffer between writes.
+     */
+    public PointCloudExporter(File file, Format format, int bufferSize) throws IOException {
+        mFormat = format;
+        mPointSize = format == Format.PLY ? PLY_POINT_SIZE : LAS_POINT_SIZE;
+        mCodec = format == Format.QUANTIZED
+                ? new PointCloudCodec(QUANTIZED_RESOLUTION, true) : null;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, LAS_HEADER_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader();
+        mHeaderSize = mBuffer.position();
+        flush();
+    }
+
+    /**
+     * Appends a point cloud.
+     *
+     * @param points    Point cloud in XYZC layout.
+     * @param numPoints Number of points in the cloud.
+     * @param timestamp Timestamp of the cloud, written with every point.
+     * @param transform Column-major 4x4 transform applied to the points, typically
+     *                  start of service T depth camera. May be null for no transform.
+     */
+    public void addPoints(FloatBuffer points, int numPoints, double timestamp,
+                          float[] transform) throws IOException {
+        if (mFormat == Format.LAS && mPointCount + numPoints > MAX_LAS_POINTS) {
+            throw new IOException("LAS files are limited to " + MAX_LAS_POINTS + " points");
+        }
+        long start = System.nanoTime();
+        if (mFormat == Format.QUANTIZED) {
+            addQuantizedFrame(points, numPoints, timestamp, transform);
+            mPointCount += numPoints;
+            mWriteTimeNs += System.nanoTime() - start;
+            return;
+        }
+        FloatBuffer source = points.duplicate();
+        source.rewind();
+        for (int first = 0; first < numPoints; first += BATCH_POINTS) {
+            int count = Math.min(BATCH_POINTS, numPoints - first);
+            source.get(mBatch, 0, count * FLOATS_PER_POINT);
+            if (transform != null) {
+                transformBatch(transform, count);
+            }
+            for (int i = 0; i < count; i++) {
+                if (mBuffer.remaining() < mPointSize) {
+                    flush();
+                }
+                float x = mBatch[FLOATS_PER_POINT * i];
+                float y = mBatch[FLOATS_PER_POINT * i + 1];
+                float z = mBatch[FLOATS_PER_POINT * i + 2];
+                float confidence = mBatch[FLOATS_PER_POINT * i + 3];
+                if (mFormat == Format.PLY) {
+                    mBuffer.putFloat(x).putFloat(y).putFloat(z).putFloat(confidence)
+                            .putDouble(timestamp);
+                } else {
+                    putLasPoint(x, y, z, confidence, timestamp);
+                }
+                updateBounds(x, y, z);
+            }
+        }
+        mPointCount += numPoints;
+        mWriteTimeNs += System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the remaining points and the final header, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            boolean isLastFrameValid = mFormat != Format.QUANTIZED || decodeLastFrame();
+            long start = System.nanoTime();
+            flush();
+            mBuffer.clear();
+            writeHeader();
+            mBuffer.flip();
+            if (mBuffer.remaining() != mHeaderSize) {
+                throw new IOException("Header size changed");
+            }
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer, mBuffer.position());
+            }
+            mWriteTimeNs += System.nanoTime() - start;
+            if (!isLastFrameValid) {
+                throw new IOException("The last frame written doesn't decode");
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public long getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * @return Points written per second, including the time spent in file writes.
+     */
+    public double getThroughput() {
+        return mWriteTimeNs == 0 ? 0 : mPointCount * 1e9 / mWriteTimeNs;
+    }
+
+    /**
+     * @return Raw XYZC size over encoded size of the frames written, for a QUANTIZED export.
+     */
+    public double getCompressionRatio() {
+        return mEncodedSize == 0 ? 0 : FLOATS_PER_POINT * 4.0 * mPointCount / mEncodedSize;
+    }
+
+    /**
+     * @return Largest per-axis quantization error of the frames written in meters, for a
+     * QUANTIZED export.
+     */
+    public float getMaxError() {
+        return mMaxError;
+    }
+
+    /**
+     * @return Points encoded per second, excluding file writes, for a QUANTIZED export.
+     */
+    public double getEncodeThroughput() {
+        return mEncodeTimeNs == 0 ? 0 : mPointCount * 1e9 / mEncodeTimeNs;
+    }
+
+    /**
+     * @return Points decoded per second, for a QUANTIZED export once it is closed. Only the last
+     * frame is decoded back, to check the round trip.
+     */
+    public double getDecodeThroughput() {
+        return mDecodeThroughput;
+    }
+
+    /**
+     * Transforms the cloud into {@link #mTransformed} and encodes it as one frame.
+     */
+    private void addQuantizedFrame(FloatBuffer points, int numPoints, double timestamp,
+                                   float[] transform) throws IOException {
+        if (mTransformed == null || mTransformed.capacity() < FLOATS_PER_POINT * numPoints) {
+            mTransformed = ByteBuffer.allocateDirect(FLOATS_PER_POINT * 4 * numPoints)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        FloatBuffer source = points.duplicate();
+        source.rewind();
+        mTransformed.clear();
+        for (int first = 0; first < numPoints; first += BATCH_POINTS) {
+            int count = Math.min(BATCH_POINTS, numPoints - first);
+            source.get(mBatch, 0, count * FLOATS_PER_POINT);
+            if (transform != null) {
+                transformBatch(transform, count);
+            }
+            for (int i = 0; i < count; i++) {
+                updateBounds(mBatch[FLOATS_PER_POINT * i], mBatch[FLOATS_PER_POINT * i + 1],
+                        mBatch[FLOATS_PER_POINT * i + 2]);
+            }
+            mTransformed.put(mBatch, 0, count * FLOATS_PER_POINT);
+        }
+
+        int frameSize = PointCloudCodec.maxEncodedSize(numPoints);
+        if (mBuffer.remaining() < frameSize) {
+            flush();
+            if (mBuffer.capacity() < frameSize) {
+                mBuffer = ByteBuffer.allocateDirect(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        mLastFramePosition = mBuffer.position();
+        long start = System.nanoTime();
+        mEncodedSize += mCodec.encode(mTransformed, numPoints, timestamp, mBuffer);
+        mEncodeTimeNs += System.nanoTime() - start;
+        mMaxError = Math.max(mMaxError, mCodec.getLastMaxError());
+    }
+
+    /**
+     * Decodes the last frame back while it is still in the buffer, which checks the round trip
+     * and measures the decode throughput.
+     *
+     * @return False if the frame doesn't decode.
+     */
+    private boolean decodeLastFrame() {
+        if (mLastFramePosition < 0) {
+            return true;
+        }
+        ByteBuffer frame = mBuffer.duplicate();
+        frame.limit(frame.position());
+        frame.position(mLastFramePosition);
+        mTransformed.clear();
+        try {
+            mCodec.decode(frame, mTransformed);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        mDecodeThroughput = mCodec.getLastDecodeThroughput();
+        return true;
+    }
+
+    /**
+     * Applies a column-major 4x4 transform to the points of the current batch in place.
+     */
+    private void transformBatch(float[] m, int count) {
+        for (int i = 0; i < count * FLOATS_PER_POINT; i += FLOATS_PER_POINT) {
+            float x = mBatch[i];
+            float y = mBatch[i + 1];
+            float z = mBatch[i + 2];
+            mBatch[i] = m[0] * x + m[4] * y + m[8] * z + m[12];
+            mBatch[i + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+            mBatch[i + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+        }
+    }
+
+    private void putLasPoint(float x, float y, float z, float confidence, double timestamp) {
+        mBuffer.putInt((int) Math.round(x / LAS_SCALE));
+        mBuffer.putInt((int) Math.round(y / LAS_SCALE));
+        mBuffer.putInt((int) Math.round(z / LAS_SCALE));
+        // Intensity.
+        mBuffer.putShort((short) Math.round(Math.max(0, Math.min(1, confidence)) * 0xFFFF));
+        mBuffer.put(LAS_RETURN_FLAGS);
+        mBuffer.put(LAS_CLASSIFICATION);
+        // Scan angle rank, user data and point source ID.
+        mBuffer.put((byte) 0);
+        mBuffer.put((byte) 0);
+        mBuffer.putShort((short) 0);
+        // GPS time.
+        mBuffer.putDouble(timestamp);
+    }
+
+    private void updateBounds(float x, float y, float z) {
+        mMinX = Math.min(mMinX, x);
+        mMinY = Math.min(mMinY, y);
+        mMinZ = Math.min(mMinZ, z);
+        mMaxX = Math.max(mMaxX, x);
+        mMaxY = Math.max(mMaxY, y);
+        mMaxZ = Math.max(mMaxZ, z);
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+        mLastFramePosition = -1;
+    }
+
+    /**
+     * Writes the header for the current point count and bounds into the buffer.
+     */
+    private void writeHeader() {
+        if (mFormat == Format.QUANTIZED) {
+            // Frames carry their own headers.
+            return;
+        }
+        if (mFormat == Format.PLY) {
+            String header = "ply\n"
+                    + "format binary_little_endian 1.0\n"
+                    + "comment Tango point cloud, start of service frame\n"
+                    + "element vertex "
+                    + String.format(Locale.US, PLY_COUNT_FORMAT, mPointCount) + "\n"
+                    + "property float x\n"
+                    + "property float y\n"
+                    + "property float z\n"
+                    + "property float confidence\n"
+                    + "property double timestamp\n"
+                    + "end_header\n";
+            mBuffer.put(header.getBytes(ASCII));
+        } else {
+            writeLasHeader();
+        }
+    }
+
+    private void writeLasHeader() {
+        boolean empty = mPointCount == 0;
+        Calendar calendar = Calendar.getInstance();
+        mBuffer.put("LASF".getBytes(ASCII));
+        // File source ID and global encoding.
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        // Project GUID.
+        mBuffer.put(new byte[16]);
+        mBuffer.put((byte) 1);
+        mBuffer.put((byte) 2);
+        putFixedString("Tango", 32);
+        putFixedString("Java Point Cloud Example", 32);
+        mBuffer.putShort((short) calendar.get(Calendar.DAY_OF_YEAR));
+        mBuffer.putShort((short) calendar.get(Calendar.YEAR));
+        mBuffer.putShort((short) LAS_HEADER_SIZE);
+        // Offset to point data and number of variable length records.
+        mBuffer.putInt(LAS_HEADER_SIZE);
+        mBuffer.putInt(0);
+        mBuffer.put((byte) LAS_POINT_FORMAT);
+        mBuffer.putShort((short) LAS_POINT_SIZE);
+        mBuffer.putInt((int) mPointCount);
+        // Number of points by return; all points are first returns.
+        mBuffer.putInt((int) mPointCount);
+        for (int i = 1; i < 5; i++) {
+            mBuffer.putInt(0);
+        }
+        for (int i = 0; i < 3; i++) {
+            mBuffer.putDouble(LAS_SCALE);
+        }
+        // X, Y and Z offsets.
+        for (int i = 0; i < 3; i++) {
+            mBuffer.putDouble(0);
+        }
+        mBuffer.putDouble(empty ? 0 : mMaxX);
+        mBuffer.putDouble(empty ? 0 : mMinX);
+        mBuffer.putDouble(empty ? 0 : mMaxY);
+        mBuffer.putDouble(empty ? 0 : mMinY);
+        mBuffer.putDouble(empty ? 0 : mMaxZ);
+        mBuffer.putDouble(empty ? 0 : mMinZ);
+    }
+
+    private void putFixedString(String value, int length) {
+        byte[] bytes = new byte[length];
+        byte[] source = value.getBytes(ASCII);
+        System.arraycopy(source, 0, bytes, 0, Math.min(length, source.length));
+        mBuffer.put(bytes);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Segments depth frames into smooth surface patches.
+ * <p/>
+ * The point cloud is projected into an organized depth image using the depth camera intrinsics,
+ * optionally downsampled. A normal is estimated for every pixel from its neighbours, and regions
+ * are grown from seed pixels over neighbours with a similar normal lying close to the tangent
+ * plane. The image is split into horizontal tiles that are processed in parallel; regions
+ * touching across tile borders are then merged with a union-find pass.
+ * <p/>
+ * Every point of the cloud is labeled with the segment of its pixel, or {@link #NO_SEGMENT} if
+ * the pixel belongs to no segment large enough.
+ */
+public class SurfaceSegmenter {
+    public static final int NO_SEGMENT = -1;
+
+    private final ExecutorService mExecutor;
+    private final int mNumTiles;
+    private final int mWidth;
+    private final int mHeight;
+    private final double mFx;
+    private final double mFy;
+    private final double mCx;
+    private final double mCy;
+    private final float mMinNormalCos;
+    private final float mMaxRelativePlaneDistance;
+    private final int mMinSegmentSize;
+
+    // Organized image buffers, indexed by pixel.
+    private final float[] mXyz;
+    private final float[] mNormals;
+    private final boolean[] mValid;
+    private final boolean[] mHasNormal;
+    private final int[] mRegion;
+    private final int[] mParent;
+    private final int[] mSegment;
+    private final int[] mSegmentSize;
+    // Region growing queue per tile.
+    private final int[][] mQueues;
+    // Point index to pixel, reused across frames.
+    private int[] mPointPixel = new int[0];
+    private int[] mLabels = new int[0];
+
+    private int mSegmentCount;
+    private long mLastFrameTimeNs;
+
+    /**
+     * @param executor            Executor running the tiles in parallel.
+     * @param numTiles            Number of horizontal tiles.
+     * @param fx                  Depth camera focal length in pixels.
+     * @param fy                  Depth camera focal length in pixels.
+     * @param cx                  Depth camera principal point in pixels.
+     * @param cy                  Depth camera principal point in pixels.
+     * @param width               Depth camera image width in pixels.
+     * @param height              Depth camera image height in pixels.
+     * @param downsample          Downsampling factor of the organized image.
+     * @param maxNormalAngle      Maximum angle in radians between neighbouring normals of a
+     *                            segment.
+     * @param maxRelativePlaneDistance Maximum distance from a pixel to the tangent plane of its
+     *                                 neighbour in the same segment, relative to the depth.
+     * @param minSegmentSize      Minimum number of pixels of a segment.
+     */
+    public SurfaceSegmenter(ExecutorService executor, int numTiles, double fx, double fy,
+                            double cx, double cy, int width, int height, int downsample,
+                            double maxNormalAngle, float maxRelativePlaneDistance,
+                            int minSegmentSize) {
+        mExecutor = executor;
+        mWidth = width / downsample;
+        mHeight = height / downsample;
+        mNumTiles = Math.max(1, Math.min(numTiles, mHeight));
+        mFx = fx / downsample;
+        mFy = fy / downsample;
+        mCx = cx / downsample;
+        mCy = cy / downsample;
+        mMinNormalCos = (float) Math.cos(maxNormalAngle);
+        mMaxRelativePlaneDistance = maxRelativePlaneDistance;
+        mMinSegmentSize = minSegmentSize;
+
+        int pixels = mWidth * mHeight;
+        mXyz = new float[3 * pixels];
+        mNormals = new float[3 * pixels];
+        mValid = new boolean[pixels];
+        mHasNormal = new boolean[pixels];
+        mRegion = new int[pixels];
+        mParent = new int[pixels];
+        mSegment = new int[pixels];
+        mSegmentSize = new int[pixels];
+        mQueues = new int[mNumTiles][pixels / mNumTiles + mWidth + 1];
+    }
+
+    /**
+     * Segments a point cloud. Not thread safe; the buffers are shared between calls.
+     *
+     * @param points    Point cloud in XYZC layout, in depth camera frame.
+     * @param numPoints Number of points in the cloud.
+     * @return The segment of every point, or {@link #NO_SEGMENT}. The array is reused by the next
+     * call.
+     */
+    public int[] segment(FloatBuffer points, int numPoints) throws InterruptedException {
+        long startTime = System.nanoTime();
+        project(points, numPoints);
+
+        // Estimate normals and grow regions inside each tile in parallel.
+        int rowsPerTile = (mHeight + mNumTiles - 1) / mNumTiles;
+        final TileTracker tracker = new TileTracker();
+        List<Future<?>> tiles = new ArrayList<Future<?>>(mNumTiles);
+        try {
+            for (int tile = 0; tile < mNumTiles; tile++) {
+                final int tileIndex = tile;
+                final int firstRow = tile * rowsPerTile;
+                final int lastRow = Math.min(mHeight, firstRow + rowsPerTile);
+                if (firstRow >= lastRow) {
+                    break;
+                }
+                if (lastRow == mHeight) {
+                    estimateNormals(firstRow, lastRow);
+                    growRegions(tileIndex, firstRow, lastRow);
+                } else {
+                    tiles.add(mExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!tracker.begin()) {
+                                return;
+                            }
+                            try {
+                                estimateNormals(firstRow, lastRow);
+                                if (!tracker.isCancelled()) {
+                                    growRegions(tileIndex, firstRow, lastRow);
+                                }
+                            } finally {
+                                tracker.end();
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Future<?> tile : tiles) {
+                tile.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Don't return while a tile still writes the buffers the next call reuses.
+            tracker.cancelAndWait();
+        }
+
+        mergeTiles(rowsPerTile);
+        labelSegments();
+
+        if (mLabels.length < numPoints) {
+            mLabels = new int[numPoints];
+        }
+        for (int i = 0; i < numPoints; i++) {
+            int pixel = mPointPixel[i];
+            mLabels[i] = pixel < 0 ? NO_SEGMENT : mSegment[pixel];
+        }
+        mLastFrameTimeNs = System.nanoTime() - startTime;
+        return mLabels;
+    }
+
+    /**
+     * @return Number of segments found in the last frame.
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * @return Duration of the last call to {@link #segment} in milliseconds.
+     */
+    public double getLastFrameTimeMs() {
+        return mLastFrameTimeNs / 1e6;
+    }
+
+    /**
+     * Projects the cloud into the organized image, keeping the closest point per pixel.
+     */
+    private void project(FloatBuffer points, int numPoints) {
+        if (mPointPixel.length < numPoints) {
+            mPointPixel = new int[numPoints];
+        }
+        Arrays.fill(mValid, false);
+        for (int i = 0; i < numPoints; i++) {
+            float x = points.get(4 * i);
+            float y = points.get(4 * i + 1);
+            float z = points.get(4 * i + 2);
+            mPointPixel[i] = -1;
+            if (z <= 0) {
+                continue;
+            }
+            int u = (int) (mFx * x / z + mCx);
+            int v = (int) (mFy * y / z + mCy);
+            if (u < 0 || v < 0 || u >= mWidth || v >= mHeight) {
+                continue;
+            }
+            int pixel = v * mWidth + u;
+            mPointPixel[i] = pixel;
+            if (!mValid[pixel] || z < mXyz[3 * pixel + 2]) {
+                mValid[pixel] = true;
+                mXyz[3 * pixel] = x;
+                mXyz[3 * pixel + 1] = y;
+                mXyz[3 * pixel + 2] = z;
+            }
+        }
+    }
+
+    /**
+     * Estimates the normal of each pixel in the given rows from the cross product of the
+     * horizontal and vertical differences with its neighbours.
+     */
+    private void estimateNormals(int firstRow, int lastRow) {
+        for (int v = firstRow; v < lastRow; v++) {
+            for (int u = 0; u < mWidth; u++) {
+                int pixel = v * mWidth + u;
+                mHasNormal[pixel] = false;
+                if (!mValid[pixel]) {
+                    continue;
+                }
+                int left = u > 0 && mValid[pixel - 1] ? pixel - 1 : pixel;
+                int right = u < mWidth - 1 && mValid[pixel + 1] ? pixel + 1 : pixel;
+                int up = v > 0 && mValid[pixel - mWidth] ? pixel - mWidth : pixel;
+                int down = v < mHeight - 1 && mValid[pixel + mWidth] ? pixel + mWidth : pixel;
+                if (left == right || up == down) {
+                    continue;
+                }
+                float ax = mXyz[3 * right] - mXyz[3 * left];
+                float ay = mXyz[3 * right + 1] - mXyz[3 * left + 1];
+                float az = mXyz[3 * right + 2] - mXyz[3 * left + 2];
+                float bx = mXyz[3 * down] - mXyz[3 * up];
+                float by = mXyz[3 * down + 1] - mXyz[3 * up + 1];
+                float bz = mXyz[3 * down + 2] - mXyz[3 * up + 2];
+                float nx = ay * bz - az * by;
+                float ny = az * bx - ax * bz;
+                float nz = ax * by - ay * bx;
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (length == 0) {
+                    continue;
+                }
+                // Make the normal face the camera.
+                if (nx * mXyz[3 * pixel] + ny * mXyz[3 * pixel + 1] + nz * mXyz[3 * pixel + 2]
+                        > 0) {
+                    length = -length;
+                }
+                mNormals[3 * pixel] = nx / length;
+                mNormals[3 * pixel + 1] = ny / length;
+                mNormals[3 * pixel + 2] = nz / length;
+                mHasNormal[pixel] = true;
+            }
+        }
+    }
+
+    /**
+     * Grows regions inside the given rows. Regions are identified by their seed pixel.
+     */
+    private void growRegions(int tile, int firstRow, int lastRow) {
+        int[] queue = mQueues[tile];
+        int first = firstRow * mWidth;
+        int last = lastRow * mWidth;
+        for (int pixel = first; pixel < last; pixel++) {
+            mRegion[pixel] = -1;
+            mParent[pixel] = pixel;
+        }
+        for (int seed = first; seed < last; seed++) {
+            if (!mHasNormal[seed] || mRegion[seed] >= 0) {
+                continue;
+            }
+            mRegion[seed] = seed;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = seed;
+            while (head < tail) {
+                int pixel = queue[head++];
+                int u = pixel % mWidth;
+                if (u > 0) {
+                    tail = visit(pixel, pixel - 1, seed, queue, tail);
+                }
+                if (u < mWidth - 1) {
+                    tail = visit(pixel, pixel + 1, seed, queue, tail);
+                }
+                if (pixel - mWidth >= first) {
+                    tail = visit(pixel, pixel - mWidth, seed, queue, tail);
+                }
+                if (pixel + mWidth < last) {
+                    tail = visit(pixel, pixel + mWidth, seed, queue, tail);
+                }
+            }
+        }
+    }
+
+    private int visit(int pixel, int neighbour, int seed, int[] queue, int tail) {
+        if (mRegion[neighbour] < 0 && isSmooth(pixel, neighbour)) {
+            mRegion[neighbour] = seed;
+            queue[tail++] = neighbour;
+        }
+        return tail;
+    }
+
+    private boolean isSmooth(int a, int b) {
+        if (!mHasNormal[a] || !mHasNormal[b]) {
+            return false;
+        }
+        float cos = mNormals[3 * a] * mNormals[3 * b] + mNormals[3 * a + 1] * mNormals[3 * b + 1]
+                + mNormals[3 * a + 2] * mNormals[3 * b + 2];
+        // Distance from b to the tangent plane at a, so that slanted surfaces are not split.
+        float distance = mNormals[3 * a] * (mXyz[3 * b] - mXyz[3 * a])
+                + mNormals[3 * a + 1] * (mXyz[3 * b + 1] - mXyz[3 * a + 1])
+                + mNormals[3 * a + 2] * (mXyz[3 * b + 2] - mXyz[3 * a + 2]);
+        return cos >= mMinNormalCos
+                && Math.abs(distance) <= mMaxRelativePlaneDistance * mXyz[3 * a + 2];
+    }
+
+    /**
+     * Merges regions across tile borders with union-find over region seeds.
+     */
+    private void mergeTiles(int rowsPerTile) {
+        for (int row = rowsPerTile; row < mHeight; row += rowsPerTile) {
+            int above = (row - 1) * mWidth;
+            int below = row * mWidth;
+            for (int u = 0; u < mWidth; u++) {
+                int a = above + u;
+                int b = below + u;
+                if (mRegion[a] >= 0 && mRegion[b] >= 0 && isSmooth(a, b)) {
+                    union(mRegion[a], mRegion[b]);
+                }
+            }
+        }
+    }
+
+    private int find(int region) {
+        while (mParent[region] != region) {
+            mParent[region] = mParent[mParent[region]];
+            region = mParent[region];
+        }
+        return region;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            // Keep the smallest seed as root so that labels don't depend on merge order.
+            if (rootA < rootB) {
+                mParent[rootB] = rootA;
+            } else {
+                mParent[rootA] = rootB;
+            }
+        }
+    }
+
+    /**
+     * Assigns consecutive labels to the merged regions with at least {@code mMinSegmentSize}
+     * pixels.
+     */
+    private void labelSegments() {
+        int pixels = mWidth * mHeight;
+        Arrays.fill(mSegmentSize, 0);
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            if (mRegion[pixel] >= 0) {
+                mSegmentSize[find(mRegion[pixel])]++;
+            }
+        }
+        // Reuse mSegment as root to label table before labeling the pixels.
+        Arrays.fill(mSegment, NO_SEGMENT);
+        mSegmentCount = 0;
+        for (int root = 0; root < pixels; root++) {
+            if (mSegmentSize[root] >= mMinSegmentSize) {
+                mSegment[root] = mSegmentCount++;
+            }
+        }
+        // Roots are their own region seeds and come first in their segment, so relabel the
+        // pixels in reverse order to keep the root entries intact until they are read.
+        for (int pixel = pixels - 1; pixel >= 0; pixel--) {
+            mSegment[pixel] = mRegion[pixel] >= 0 ? mSegment[find(mRegion[pixel])] : NO_SEGMENT;
+        }
+    }
+
+    /**
+     * Tracks the tiles of a call running on the executor.
+     * <p/>
+     * Cancelling a future doesn't wait for its task, and tiles queued behind an interrupted call
+     * can still start later. Tiles register here instead, so the call can stop them and wait for
+     * those already running, and those starting late return right away.
+     */
+    private static class TileTracker {
+        private int mRunningCount;
+        private volatile boolean mIsCancelled;
+
+        synchronized boolean begin() {
+            if (mIsCancelled) {
+                return false;
+            }
+            mRunningCount++;
+            return true;
+        }
+
+        synchronized void end() {
+            mRunningCount--;
+            notifyAll();
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Stops the tiles and waits for those running. Keeps the interrupted status of the
+         * calling thread.
+         */
+        synchronized void cancelAndWait() {
+            mIsCancelled = true;
+            boolean isInterrupted = false;
+            while (mRunningCount > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointtopoint;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java joint bilateral depth upsampler.
+ * <p/>
+ * The sparse depth point cloud is projected into the color camera image and the depth of every
+ * pixel in a square region of interest around the query pixel is estimated as a weighted average
+ * of the projected depth samples around it. Weights combine the spatial distance in pixels with
+ * the luminance difference in the color image, so that depth does not bleed across object edges.
+ * The rows of the region of interest are split in bands and processed in parallel.
+ * <p/>
+ * Only the Y plane of the NV21 color image is used as guide image.
+ */
+public class BilateralDepthUpsampler {
+    // Half size in pixels of the region of interest around the query pixel.
+    private static final int DEFAULT_ROI_RADIUS = 24;
+    // Half size in pixels of the bilateral kernel.
+    private static final int DEFAULT_KERNEL_RADIUS = 8;
+    private static final float DEFAULT_SIGMA_SPACE = 4.0f;
+    private static final float DEFAULT_SIGMA_COLOR = 12.0f;
+    // Half size in pixels of the window used to read the final depth around the query pixel.
+    private static final int RESULT_WINDOW_RADIUS = 1;
+    // Number of points projected between checks for interruption.
+    private static final int INTERRUPT_CHECK_INTERVAL = 4096;
+
+    private final ExecutorService mExecutor;
+    private final int mNumBands;
+    private final int mRoiRadius;
+    private final int mKernelRadius;
+    private final float[] mSpatialWeights;
+    private final float[] mColorWeights = new float[256];
+
+    // Depth samples projected in the region of interest, indexed by ROI pixel. Zero means no
+    // sample. Reused across calls; calls must be serialized, and each waits for its bands.
+    private final float[] mSparseDepth;
+    private final float[] mDenseDepth;
+
+    /**
+     * Color camera calibration, expressed in pixels of the native (unrotated) color image.
+     */
+    public static class Intrinsics {
+        public final double fx;
+        public final double fy;
+        public final double cx;
+        public final double cy;
+        public final int width;
+        public final int height;
+
+        public Intrinsics(double fx, double fy, double cx, double cy, int width, int height) {
+            this.fx = fx;
+            this.fy = fy;
+            this.cx = cx;
+            this.cy = cy;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public BilateralDepthUpsampler(ExecutorService executor, int numBands) {
+        this(executor, numBands, DEFAULT_ROI_RADIUS, DEFAULT_KERNEL_RADIUS,
+                DEFAULT_SIGMA_SPACE, DEFAULT_SIGMA_COLOR);
+    }
+
+    public BilateralDepthUpsampler(ExecutorService executor, int numBands, int roiRadius,
+                                   int kernelRadius, float sigmaSpace, float sigmaColor) {
+        mExecutor = executor;
+        mNumBands = Math.max(1, numBands);
+        mRoiRadius = roiRadius;
+        mKernelRadius = kernelRadius;
+
+        int kernelSize = 2 * kernelRadius + 1;
+        mSpatialWeights = new float[kernelSize * kernelSize];
+        for (int dy = -kernelRadius; dy <= kernelRadius; dy++) {
+            for (int dx = -kernelRadius; dx <= kernelRadius; dx++) {
+                mSpatialWeights[(dy + kernelRadius) * kernelSize + dx + kernelRadius] =
+                        (float) Math.exp(-(dx * dx + dy * dy) / (2.0 * sigmaSpace * sigmaSpace));
+            }
+        }
+        for (int i = 0; i < mColorWeights.length; i++) {
+            mColorWeights[i] = (float) Math.exp(-(i * i) / (2.0 * sigmaColor * sigmaColor));
+        }
+
+        int roiSize = 2 * roiRadius + 1;
+        mSparseDepth = new float[roiSize * roiSize];
+        mDenseDepth = new float[roiSize * roiSize];
+    }
+
+    /**
+     * Estimates the 3D point seen at a color image pixel.
+     *
+     * @param points         Point cloud in XYZC layout, in depth camera frame.
+     * @param numPoints      Number of points in the cloud.
+     * @param luminance      Color image; the first {@code stride * height} bytes are the Y plane.
+     * @param stride         Row stride of the Y plane in bytes.
+     * @param intrinsics     Color camera calibration.
+     * @param depthTColorTranslation Translation of the color camera in depth camera frame.
+     * @param depthTColorRotation    Rotation quaternion (x, y, z, w) of the color camera in depth
+     *                               camera frame.
+     * @param pixelX         Query column in color image pixels.
+     * @param pixelY         Query row in color image pixels.
+     * @return The point in depth camera frame, or null if there is not enough depth data around
+     * the query pixel.
+     * @throws InterruptedException If the calling thread is interrupted, e.g. because the
+     *                              measurement was cancelled.
+     */
+    public float[] getDepthAtPixel(FloatBuffer points, int numPoints, ByteBuffer luminance,
+                                   int stride, Intrinsics intrinsics,
+                                   double[] depthTColorTranslation, double[] depthTColorRotation,
+                                   int pixelX, int pixelY) throws InterruptedException {
+        final int roiSize = 2 * mRoiRadius + 1;
+        final int roiLeft = pixelX - mRoiRadius;
+        final int roiTop = pixelY - mRoiRadius;
+
+        // Rotation matrix of the color camera in depth frame, row major.
+        double[] r = quaternionToMatrix(depthTColorRotation);
+        double tx = depthTColorTranslation[0];
+        double ty = depthTColorTranslation[1];
+        double tz = depthTColorTranslation[2];
+
+        // Project the cloud in the region of interest, keeping the closest sample per pixel.
+        Arrays.fill(mSparseDepth, 0);
+        int samples = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (i % INTERRUPT_CHECK_INTERVAL == 0 && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            double dx = points.get(4 * i) - tx;
+            double dy = points.get(4 * i + 1) - ty;
+            double dz = points.get(4 * i + 2) - tz;
+            // colorTdepth = transpose(R) * (p - t).
+            double x = r[0] * dx + r[3] * dy + r[6] * dz;
+            double y = r[1] * dx + r[4] * dy + r[7] * dz;
+            double z = r[2] * dx + r[5] * dy + r[8] * dz;
+            if (z <= 0) {
+                continue;
+            }
+            int u = (int) Math.round(intrinsics.fx * x / z + intrinsics.cx) - roiLeft;
+            int v = (int) Math.round(intrinsics.fy * y / z + intrinsics.cy) - roiTop;
+            if (u < 0 || v < 0 || u >= roiSize || v >= roiSize) {
+                continue;
+            }
+            int index = v * roiSize + u;
+            if (mSparseDepth[index] == 0 || z < mSparseDepth[index]) {
+                if (mSparseDepth[index] == 0) {
+                    samples++;
+                }
+                mSparseDepth[index] = (float) z;
+            }
+        }
+        if (samples == 0) {
+            return null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        filterRoi(luminance, stride, intrinsics.width, intrinsics.height, roiLeft, roiTop);
+
+        // Average the dense depth in a small window around the query pixel to reduce noise.
+        float depthSum = 0;
+        int depthCount = 0;
+        for (int v = mRoiRadius - RESULT_WINDOW_RADIUS;
+             v <= mRoiRadius + RESULT_WINDOW_RADIUS; v++) {
+            for (int u = mRoiRadius - RESULT_WINDOW_RADIUS;
+                 u <= mRoiRadius + RESULT_WINDOW_RADIUS; u++) {
+                float depth = mDenseDepth[v * roiSize + u];
+                if (depth > 0) {
+                    depthSum += depth;
+                    depthCount++;
+                }
+            }
+        }
+        if (depthCount == 0) {
+            return null;
+        }
+        double z = depthSum / depthCount;
+
+        // Back project in color frame and transform to depth frame: depthTcolor = R * p + t.
+        double x = (pixelX - intrinsics.cx) * z / intrinsics.fx;
+        double y = (pixelY - intrinsics.cy) * z / intrinsics.fy;
+        return new float[] {
+                (float) (r[0] * x + r[1] * y + r[2] * z + tx),
+                (float) (r[3] * x + r[4] * y + r[5] * z + ty),
+                (float) (r[6] * x + r[7] * y + r[8] * z + tz)};
+    }
+
+    /**
+     * Fills {@code mDenseDepth} from {@code mSparseDepth} by running the joint bilateral filter
+     * in parallel row bands. Doesn't return before every band has stopped, even when interrupted,
+     * so that no band still uses the buffers when the next call fills them.
+     */
+    private void filterRoi(final ByteBuffer luminance, final int stride, final int imageWidth,
+                           final int imageHeight, final int roiLeft, final int roiTop)
+            throws InterruptedException {
+        final int roiSize = 2 * mRoiRadius + 1;
+        int rowsPerBand = (roiSize + mNumBands - 1) / mNumBands;
+        final BandTracker tracker = new BandTracker();
+        List<Future<?>> bands = new ArrayList<Future<?>>(mNumBands);
+        try {
+            for (int band = 0; band < mNumBands; band++) {
+                final int firstRow = band * rowsPerBand;
+                final int lastRow = Math.min(roiSize, firstRow + rowsPerBand);
+                if (firstRow >= lastRow) {
+                    break;
+                }
+                if (band == mNumBands - 1 || lastRow == roiSize) {
+                    // Run the last band on the calling thread.
+                    filterRows(luminance, stride, imageWidth, imageHeight, roiLeft, roiTop,
+                            firstRow, lastRow, tracker);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                } else {
+                    bands.add(mExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!tracker.begin()) {
+                                return;
+                            }
+                            try {
+                                filterRows(luminance, stride, imageWidth, imageHeight, roiLeft,
+                                        roiTop, firstRow, lastRow, tracker);
+                            } finally {
+                                tracker.end();
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Future<?> band : bands) {
+                band.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            tracker.cancelAndWait();
+        }
+    }
+
+    private void filterRows(ByteBuffer luminance, int stride, int imageWidth, int imageHeight,
+                            int roiLeft, int roiTop, int firstRow, int lastRow,
+                            BandTracker tracker) {
+        final int roiSize = 2 * mRoiRadius + 1;
+        final int kernelSize = 2 * mKernelRadius + 1;
+        for (int v = firstRow; v < lastRow; v++) {
+            // Stop early when the measurement is cancelled; the caller discards the result.
+            if (tracker.isCancelled() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            int imageY = clamp(roiTop + v, imageHeight);
+            for (int u = 0; u < roiSize; u++) {
+                int imageX = clamp(roiLeft + u, imageWidth);
+                int centerLuminance = luminance.get(imageY * stride + imageX) & 0xFF;
+                float weightSum = 0;
+                float depthSum = 0;
+                int vMin = Math.max(0, v - mKernelRadius);
+                int vMax = Math.min(roiSize - 1, v + mKernelRadius);
+                int uMin = Math.max(0, u - mKernelRadius);
+                int uMax = Math.min(roiSize - 1, u + mKernelRadius);
+                for (int kv = vMin; kv <= vMax; kv++) {
+                    int sampleY = clamp(roiTop + kv, imageHeight);
+                    int rowOffset = kv * roiSize;
+                    int kernelRow = (kv - v + mKernelRadius) * kernelSize + mKernelRadius - u;
+                    for (int ku = uMin; ku <= uMax; ku++) {
+                        float depth = mSparseDepth[rowOffset + ku];
+                        if (depth == 0) {
+                            continue;
+                        }
+                        int sampleX = clamp(roiLeft + ku, imageWidth);
+                        int sampleLuminance = luminance.get(sampleY * stride + sampleX) & 0xFF;
+                        float weight = mSpatialWeights[kernelRow + ku]
+                                * mColorWeights[Math.abs(sampleLuminance - centerLuminance)];
+                        weightSum += weight;
+                        depthSum += weight * depth;
+                    }
+                }
+                mDenseDepth[v * roiSize + u] = weightSum > 0 ? depthSum / weightSum : 0;
+            }
+        }
+    }
+
+    /**
+     * Tracks the bands of a call running on the worker pool.
+     * <p/>
+     * Cancelling a future doesn't wait for its task, and bands queued behind a cancelled call can
+     * still start later. Bands register here instead, so the call can stop them and wait for
+     * those already running, and those starting late return right away.
+     */
+    private static class BandTracker {
+        private int mRunningCount;
+        private volatile boolean mIsCancelled;
+
+        synchronized boolean begin() {
+            if (mIsCancelled) {
+                return false;
+            }
+            mRunningCount++;
+            return true;
+        }
+
+        synchronized void end() {
+            mRunningCount--;
+            notifyAll();
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Stops the bands and waits for those running. Keeps the interrupted status of the
+         * calling thread.
+         */
+        synchronized void cancelAndWait() {
+            mIsCancelled = true;
+            boolean isInterrupted = false;
+            while (mRunningCount > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+
+    /**
+     * Converts a (x, y, z, w) quaternion into a row major 3x3 rotation matrix.
+     */
+    private static double[] quaternionToMatrix(double[] q) {
+        double x = q[0];
+        double y = q[1];
+        double z = q[2];
+        double w = q[3];
+        return new double[] {
+                1 - 2 * (y * y + z * z), 2 * (x * y - z * w), 2 * (x * z + y * w),
+                2 * (x * y + z * w), 1 - 2 * (x * x + z * z), 2 * (y * z - x * w),
+                2 * (x * z - y * w), 2 * (y * z + x * w), 1 - 2 * (x * x + y * y)};
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointtopoint;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs bilateral depth measurements off the UI thread.
+ * <p/>
+ * Measurements are run one at a time in a dedicated thread, using a {@link
+ * BilateralDepthUpsampler} that spreads the filtering over a small worker pool. Submitting a new
+ * measurement cancels the one in flight, if any, so that only the latest touch is answered.
+ */
+public class DepthMeasurementService {
+    private final ExecutorService mMeasurementExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mFilterExecutor;
+    private final BilateralDepthUpsampler mUpsampler;
+
+    private Future<float[]> mPendingMeasurement;
+    // Id of the latest measurement submitted, guarded by this. Only that one is delivered.
+    private int mLatestRequestId;
+
+    /**
+     * Callback for when a measurement completes. Called from the measurement thread, and not
+     * called for measurements cancelled or superseded before they complete.
+     */
+    public interface OnMeasurementListener {
+        /**
+         * @param timestamp   Timestamp of the color image used for the measurement.
+         * @param depthTPoint Measured point in depth camera frame, or null if there was not enough
+         *                    depth data around the touch position.
+         */
+        void onMeasurement(double timestamp, float[] depthTPoint);
+    }
+
+    /**
+     * Snapshot of all the data needed to run a measurement.
+     */
+    public static class Request {
+        public final FloatBuffer points;
+        public final int numPoints;
+        public final ByteBuffer image;
+        public final int stride;
+        public final double timestamp;
+        public final BilateralDepthUpsampler.Intrinsics intrinsics;
+        public final double[] depthTColorTranslation;
+        public final double[] depthTColorRotation;
+        public final int pixelX;
+        public final int pixelY;
+
+        public Request(FloatBuffer points, int numPoints, ByteBuffer image, int stride,
+                       double timestamp, BilateralDepthUpsampler.Intrinsics intrinsics,
+                       double[] depthTColorTranslation, double[] depthTColorRotation,
+                       int pixelX, int pixelY) {
+            this.points = points;
+            this.numPoints = numPoints;
+            this.image = image;
+            this.stride = stride;
+            this.timestamp = timestamp;
+            this.intrinsics = intrinsics;
+            this.depthTColorTranslation = depthTColorTranslation;
+            this.depthTColorRotation = depthTColorRotation;
+            this.pixelX = pixelX;
+            this.pixelY = pixelY;
+        }
+    }
+
+    public DepthMeasurementService() {
+        // Leave one core to the UI and OpenGL threads; the measurement thread takes one band too.
+        int numBands = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mFilterExecutor = Executors.newFixedThreadPool(Math.max(1, numBands - 1));
+        mUpsampler = new BilateralDepthUpsampler(mFilterExecutor, numBands);
+    }
+
+    /**
+     * Submits a measurement, cancelling the previous one if it is still running.
+     *
+     * @return A future for the measured point in depth camera frame.
+     */
+    public synchronized Future<float[]> measure(final Request request,
+                                                final OnMeasurementListener listener) {
+        if (mPendingMeasurement != null) {
+            mPendingMeasurement.cancel(true);
+        }
+        final int requestId = ++mLatestRequestId;
+        mPendingMeasurement = mMeasurementExecutor.submit(new Callable<float[]>() {
+            @Override
+            public float[] call() throws InterruptedException {
+                float[] depthTPoint = mUpsampler.getDepthAtPixel(request.points,
+                        request.numPoints, request.image, request.stride, request.intrinsics,
+                        request.depthTColorTranslation, request.depthTColorRotation,
+                        request.pixelX, request.pixelY);
+                synchronized (DepthMeasurementService.this) {
+                    if (Thread.interrupted() || requestId != mLatestRequestId) {
+                        throw new InterruptedException();
+                    }
+                }
+                // Deliver out of the lock, so that the listener can't block new submissions.
+                // Measurements run one at a time, so a newer one is still delivered after this.
+                if (listener != null) {
+                    listener.onMeasurement(request.timestamp, depthTPoint);
+                }
+                return depthTPoint;
+            }
+        });
+        return mPendingMeasurement;
+    }
+
+    /**
+     * Cancels the measurement in flight, if any.
+     */
+    public synchronized void cancel() {
+        if (mPendingMeasurement != null) {
+            mPendingMeasurement.cancel(true);
+            mPendingMeasurement = null;
+        }
+        mLatestRequestId++;
+    }
+
+    /**
+     * Cancels pending work and stops the worker threads. The service can't be used afterwards.
+     */
+    public synchronized void shutdown() {
+        cancel();
+        mMeasurementExecutor.shutdownNow();
+        mFilterExecutor.shutdownNow();
+    }
+}
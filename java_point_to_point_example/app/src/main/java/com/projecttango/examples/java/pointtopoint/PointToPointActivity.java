@@ -49,6 +49,7 @@ import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.TextView;
@@ -59,6 +60,8 @@ import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.view.SurfaceView;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Stack;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -81,6 +84,8 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
     private class MeasuredPoint {
         public double mTimestamp;
         public float[] mDepthTPoint;
+        // The point in OpenGL space, or null until the depth camera pose at mTimestamp is known.
+        public float[] mOpenGlTPoint;
 
         public MeasuredPoint(double timestamp, float[] depthTPoint) {
             mTimestamp = timestamp;
@@ -109,6 +114,8 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
     private TextView mDistanceTextview;
     private CheckBox mBilateralBox;
     private volatile TangoImageBuffer mCurrentImageBuffer;
+    private volatile BilateralDepthUpsampler.Intrinsics mColorIntrinsics;
+    private DepthMeasurementService mDepthMeasurementService;
 
     // Texture rendering related fields.
     // NOTE: Naming indicates which thread is in charge of updating this variable.
@@ -145,6 +152,7 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
         mBilateralBox = (CheckBox) findViewById(R.id.check_box);
         mMeasuredPoints[0] = null;
         mMeasuredPoints[1] = null;
+        mDepthMeasurementService = new DepthMeasurementService();
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
@@ -180,6 +188,7 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
     @Override
     protected void onStop() {
         super.onStop();
+        mDepthMeasurementService.cancel();
         clearLine();
         // Synchronize against disconnecting while the service is being used in the OpenGL thread or
         // in the UI thread.
@@ -203,6 +212,12 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDepthMeasurementService.shutdown();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -308,6 +323,10 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
                 // We are not using OnPoseAvailable for this app.
             }
         });
+        TangoCameraIntrinsics intrinsics =
+                mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+        mColorIntrinsics = new BilateralDepthUpsampler.Intrinsics(intrinsics.fx, intrinsics.fy,
+                intrinsics.cx, intrinsics.cy, intrinsics.width, intrinsics.height);
         mTango.experimentalConnectOnFrameListener(TangoCameraIntrinsics.TANGO_CAMERA_COLOR,
                 new Tango.OnFrameAvailableListener() {
                     @Override
@@ -422,48 +441,25 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
                             // If both points have been measured, we transform the points to OpenGL
                             // space, and send it to mRenderer to render.
                             if (mMeasuredPoints[0] != null && mMeasuredPoints[1] != null) {
-                                // To make sure drift correct pose is also applied to virtual
-                                // object (measured points).
-                                // We need to re-query the Start of Service to Depth camera
-                                // pose every frame. Note that you will need to use the timestamp
-                                // at the time when the points were measured to query the pose.
-                                TangoSupport.MatrixTransformData openglTDepthArr0 =
-                                        TangoSupport.getMatrixTransformAtTime(
-                                                mMeasuredPoints[0].mTimestamp,
-                                                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                                                TangoSupport.ENGINE_OPENGL,
-                                                TangoSupport.ENGINE_TANGO,
-                                                TangoSupport.ROTATION_IGNORED);
-
-                                TangoSupport.MatrixTransformData openglTDepthArr1 =
-                                        TangoSupport.getMatrixTransformAtTime(
-                                                mMeasuredPoints[1].mTimestamp,
-                                                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                                                TangoSupport.ENGINE_OPENGL,
-                                                TangoSupport.ENGINE_TANGO,
-                                                TangoSupport.ROTATION_IGNORED);
-
-                                if (openglTDepthArr0.statusCode == TangoPoseData.POSE_VALID &&
-                                    openglTDepthArr1.statusCode == TangoPoseData.POSE_VALID) {
-                                        mMeasurePoitnsInOpenGLSpace.clear();
-                                        float[] p0 = TangoTransformHelper.transformPoint(
-                                                openglTDepthArr0.matrix,
-                                                mMeasuredPoints[0].mDepthTPoint);
-                                        float[] p1 = TangoTransformHelper.transformPoint(
-                                                openglTDepthArr1.matrix,
-                                                mMeasuredPoints[1].mDepthTPoint);
-
-                                        mMeasurePoitnsInOpenGLSpace.push(
-                                                new Vector3(p0[0], p0[1], p0[2]));
-                                        mMeasurePoitnsInOpenGLSpace.push(
-                                                new Vector3(p1[0], p1[1], p1[2]));
-
-                                        mMeasuredDistance = (float) Math.sqrt(
-                                                Math.pow(p0[0] - p1[0], 2) +
-                                                Math.pow(p0[1] - p1[1], 2) +
-                                                Math.pow(p0[2] - p1[2], 2));
+                                // The start of service T depth camera pose at the time a point
+                                // was measured doesn't change afterwards, so each point is only
+                                // transformed once, on the first frame its pose is available.
+                                boolean isResolved0 = resolveOpenGlPoint(mMeasuredPoints[0]);
+                                boolean isResolved1 = resolveOpenGlPoint(mMeasuredPoints[1]);
+                                if (isResolved0 && isResolved1) {
+                                    mMeasurePoitnsInOpenGLSpace.clear();
+                                    float[] p0 = mMeasuredPoints[0].mOpenGlTPoint;
+                                    float[] p1 = mMeasuredPoints[1].mOpenGlTPoint;
+
+                                    mMeasurePoitnsInOpenGLSpace.push(
+                                            new Vector3(p0[0], p0[1], p0[2]));
+                                    mMeasurePoitnsInOpenGLSpace.push(
+                                            new Vector3(p1[0], p1[1], p1[2]));
+
+                                    mMeasuredDistance = (float) Math.sqrt(
+                                            Math.pow(p0[0] - p1[0], 2) +
+                                            Math.pow(p0[1] - p1[1], 2) +
+                                            Math.pow(p0[2] - p1[2], 2));
                                 }
                             }
 
@@ -536,6 +532,14 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
             float v = motionEvent.getY() / view.getHeight();
 
             try {
+                if (mBilateralBox.isChecked()) {
+                    // The bilateral filter is too slow to run on the UI thread; the result is
+                    // delivered asynchronously and a newer touch cancels a pending measurement.
+                    synchronized (this) {
+                        measureDepthAtTouchPositionBilateral(u, v);
+                    }
+                    return true;
+                }
                 // Place point near the clicked point using the latest point cloud data.
                 // Synchronize against concurrent access to the RGB timestamp in the OpenGL thread
                 // and a possible service disconnection due to an onPause event.
@@ -577,13 +581,7 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
             return null;
         }
 
-        double rgbTimestamp;
-        TangoImageBuffer imageBuffer = mCurrentImageBuffer;
-        if (mBilateralBox.isChecked()) {
-            rgbTimestamp = imageBuffer.timestamp; // CPU.
-        } else {
-            rgbTimestamp = mRgbTimestampGlThread; // GPU.
-        }
+        double rgbTimestamp = mRgbTimestampGlThread; // GPU.
 
         TangoPoseData depthlTcolorPose = TangoSupport.getPoseAtTime(
                 rgbTimestamp,
@@ -598,27 +596,14 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
             return null;
         }
 
-        float[] depthPoint;
-        if (mBilateralBox.isChecked()) {
-            depthPoint = TangoDepthInterpolation.getDepthAtPointBilateral(
-                    pointCloud,
-                    new double[] {0.0, 0.0, 0.0},
-                    new double[] {0.0, 0.0, 0.0, 1.0},
-                    imageBuffer,
-                    u, v,
-                    mDisplayRotation,
-                    depthlTcolorPose.translation,
-                    depthlTcolorPose.rotation);
-        } else {
-            depthPoint = TangoDepthInterpolation.getDepthAtPointNearestNeighbor(
-                    pointCloud,
-                    new double[] {0.0, 0.0, 0.0},
-                    new double[] {0.0, 0.0, 0.0, 1.0},
-                    u, v,
-                    mDisplayRotation,
-                    depthlTcolorPose.translation,
-                    depthlTcolorPose.rotation);
-        }
+        float[] depthPoint = TangoDepthInterpolation.getDepthAtPointNearestNeighbor(
+                pointCloud,
+                new double[] {0.0, 0.0, 0.0},
+                new double[] {0.0, 0.0, 0.0, 1.0},
+                u, v,
+                mDisplayRotation,
+                depthlTcolorPose.translation,
+                depthlTcolorPose.rotation);
 
         if (depthPoint == null) {
             return null;
@@ -627,10 +612,113 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
         return new MeasuredPoint(rgbTimestamp, depthPoint);
     }
 
+    /**
+     * Snapshots the latest point cloud and the cached color image and submits a bilateral depth
+     * measurement at the touch position to {@code mDepthMeasurementService}. The line is updated
+     * when the measurement completes.
+     */
+    private void measureDepthAtTouchPositionBilateral(float u, float v) {
+        TangoPointCloudData pointCloud = mPointCloudManager.getLatestPointCloud();
+        TangoImageBuffer imageBuffer = mCurrentImageBuffer;
+        BilateralDepthUpsampler.Intrinsics intrinsics = mColorIntrinsics;
+        if (pointCloud == null || imageBuffer == null || intrinsics == null) {
+            return;
+        }
+
+        TangoPoseData depthlTcolorPose = TangoSupport.getPoseAtTime(
+                imageBuffer.timestamp,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ENGINE_TANGO,
+                TangoSupport.ROTATION_IGNORED);
+        if (depthlTcolorPose.statusCode != TangoPoseData.POSE_VALID) {
+            Log.w(TAG, "Could not get color camera transform at time "
+                       + imageBuffer.timestamp);
+            return;
+        }
+
+        // The point cloud manager recycles its buffers, so take a copy for the worker thread.
+        // The cached image buffer is already a copy and is never written again.
+        FloatBuffer points = ByteBuffer.allocateDirect(pointCloud.numPoints * 4 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        FloatBuffer source = pointCloud.points.duplicate();
+        source.rewind();
+        source.limit(pointCloud.numPoints * 4);
+        points.put(source);
+        points.rewind();
+
+        // Convert the touch position from display to color camera image coordinates.
+        float imageU;
+        float imageV;
+        switch (mDisplayRotation) {
+            case Surface.ROTATION_90:
+                imageU = 1 - v;
+                imageV = u;
+                break;
+            case Surface.ROTATION_180:
+                imageU = 1 - u;
+                imageV = 1 - v;
+                break;
+            case Surface.ROTATION_270:
+                imageU = v;
+                imageV = 1 - u;
+                break;
+            default:
+                imageU = u;
+                imageV = v;
+                break;
+        }
+
+        mDepthMeasurementService.measure(new DepthMeasurementService.Request(
+                        points, pointCloud.numPoints, imageBuffer.data, imageBuffer.stride,
+                        imageBuffer.timestamp, intrinsics,
+                        depthlTcolorPose.translation, depthlTcolorPose.rotation,
+                        (int) (imageU * intrinsics.width), (int) (imageV * intrinsics.height)),
+                new DepthMeasurementService.OnMeasurementListener() {
+                    @Override
+                    public void onMeasurement(final double timestamp, final float[] depthTPoint) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (depthTPoint != null) {
+                                    updateLine(new MeasuredPoint(timestamp, depthTPoint));
+                                } else {
+                                    Log.w(TAG, "Point was null.");
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
     /**
      * Update the oldest line endpoint to the value passed into this function.
      * This will also flag the line for update on the next render pass.
      */
+    /**
+     * Transforms a measured point to OpenGL space, unless that was already done.
+     *
+     * @return Whether the point is in OpenGL space.
+     */
+    private boolean resolveOpenGlPoint(MeasuredPoint point) {
+        if (point.mOpenGlTPoint == null) {
+            TangoSupport.MatrixTransformData openglTDepthArr =
+                    TangoSupport.getMatrixTransformAtTime(
+                            point.mTimestamp,
+                            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                            TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                            TangoSupport.ENGINE_OPENGL,
+                            TangoSupport.ENGINE_TANGO,
+                            TangoSupport.ROTATION_IGNORED);
+            if (openglTDepthArr.statusCode == TangoPoseData.POSE_VALID) {
+                point.mOpenGlTPoint = TangoTransformHelper.transformPoint(
+                        openglTDepthArr.matrix, point.mDepthTPoint);
+            }
+        }
+        return point.mOpenGlTPoint != null;
+    }
+
     private synchronized void updateLine(MeasuredPoint newPoint) {
         if (mPointSwitch) {
             mPointSwitch = !mPointSwitch;